@@ -15,7 +15,19 @@
  */
 package net.tracknalysis.ecu.ms.common;
 
+/**
+ * A source of output channel values, implemented by the generated ECU classes.
+ */
 public interface DataSource
 {
-
+    /**
+     * Returns the current value of the output channel with the given index without
+     * using reflection.
+     * 
+     * @param index
+     *            the index assigned to the output channel by the normaliser, see
+     *            {@link OutputChannel#getIndex()}
+     * @return the current value of the channel or 0 if the index is unknown
+     */
+    double getOutputChannelValue(int index);
 }
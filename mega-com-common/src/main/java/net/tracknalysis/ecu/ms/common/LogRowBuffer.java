@@ -0,0 +1,247 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A reusable, unsynchronized UTF-8 byte buffer that log rows are formatted directly into.  The
+ * {@code append} methods mirror those of {@link StringBuffer} and produce exactly the bytes that
+ * the UTF-8 encoding of the equivalent {@link StringBuffer} contents would, so that generated
+ * code written against one works unchanged against the other.
+ * <p/>
+ * Integers are always written digit by digit.  Doubles are written digit by digit when they
+ * are exactly representable with at most {@link #MAX_FAST_FRACTION_DIGITS} fraction digits and
+ * fall in the range that {@link Double#toString(double)} prints without an exponent, which
+ * covers the rounded values found in a log row.  All other values fall back to
+ * {@link String#valueOf(double)}.
+ * <p/>
+ * Instances are not thread safe.
+ *
+ * @author David Valeri
+ */
+public final class LogRowBuffer {
+
+	private static final int MAX_FAST_FRACTION_DIGITS = 4;
+
+	private static final double[] POWERS_OF_TEN = {1d, 10d, 100d, 1000d, 10000d};
+
+	private static final long[] LONG_POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L};
+
+	/**
+	 * Lower bound, inclusive, of the magnitudes {@link Double#toString(double)} prints without an
+	 * exponent.
+	 */
+	private static final double MIN_PLAIN_MAGNITUDE = 1e-3;
+
+	/**
+	 * Upper bound, exclusive, of the magnitudes {@link Double#toString(double)} prints without an
+	 * exponent.
+	 */
+	private static final double MAX_PLAIN_MAGNITUDE = 1e7;
+
+	private byte[] buffer;
+	private int length;
+
+	/**
+	 * Scratch space for writing digits in reverse order.
+	 */
+	private final byte[] digits = new byte[20];
+
+	public LogRowBuffer() {
+		this(1024);
+	}
+
+	public LogRowBuffer(int initialCapacity) {
+		buffer = new byte[initialCapacity];
+	}
+
+	/**
+	 * Discards the contents of the buffer, retaining its capacity.
+	 */
+	public LogRowBuffer reset() {
+		length = 0;
+		return this;
+	}
+
+	/**
+	 * Returns the number of bytes in the buffer.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Returns the backing array.  Only the first {@link #length()} bytes are valid.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Writes the contents of the buffer to {@code out}.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, 0, length);
+	}
+
+	public LogRowBuffer append(String value) {
+		if (value == null) {
+			value = "null";
+		}
+
+		final int size = value.length();
+		ensureCapacity(length + size);
+
+		for (int i = 0; i < size; i++) {
+			final char c = value.charAt(i);
+			if (c >= 0x80) {
+				// Rewind and let the platform deal with multi-byte sequences.
+				length -= i;
+				return appendEncoded(value);
+			}
+			buffer[length++] = (byte) c;
+		}
+
+		return this;
+	}
+
+	public LogRowBuffer append(char value) {
+		if (value >= 0x80) {
+			return appendEncoded(String.valueOf(value));
+		}
+
+		ensureCapacity(length + 1);
+		buffer[length++] = (byte) value;
+		return this;
+	}
+
+	public LogRowBuffer append(boolean value) {
+		return append(value ? "true" : "false");
+	}
+
+	public LogRowBuffer append(int value) {
+		return append((long) value);
+	}
+
+	public LogRowBuffer append(long value) {
+		if (value == Long.MIN_VALUE) {
+			return append(String.valueOf(value));
+		}
+
+		ensureCapacity(length + 20);
+
+		if (value < 0) {
+			buffer[length++] = '-';
+			value = -value;
+		}
+
+		writeDigits(value);
+		return this;
+	}
+
+	public LogRowBuffer append(float value) {
+		return append(String.valueOf(value));
+	}
+
+	public LogRowBuffer append(double value) {
+		final double magnitude = Math.abs(value);
+
+		if (magnitude >= MIN_PLAIN_MAGNITUDE && magnitude < MAX_PLAIN_MAGNITUDE) {
+			for (int fractionDigits = 0; fractionDigits <= MAX_FAST_FRACTION_DIGITS; fractionDigits++) {
+				final double scaled = Math.rint(magnitude * POWERS_OF_TEN[fractionDigits]);
+
+				// The division is correctly rounded, so equality means that the decimal string
+				// we are about to write parses back to the value and is the shortest that does.
+				if (scaled / POWERS_OF_TEN[fractionDigits] == magnitude) {
+					appendDecimal(value < 0, (long) scaled, fractionDigits);
+					return this;
+				}
+			}
+		} else if (value == 0d) {
+			return append(1 / value < 0 ? "-0.0" : "0.0");
+		}
+
+		return append(String.valueOf(value));
+	}
+
+	public LogRowBuffer append(Object value) {
+		return append(String.valueOf(value));
+	}
+
+	private void appendDecimal(boolean negative, long scaled, int fractionDigits) {
+		ensureCapacity(length + 22);
+
+		if (negative) {
+			buffer[length++] = '-';
+		}
+
+		final long power = LONG_POWERS_OF_TEN[fractionDigits];
+		writeDigits(scaled / power);
+		buffer[length++] = '.';
+
+		if (fractionDigits == 0) {
+			buffer[length++] = '0';
+		} else {
+			long fraction = scaled % power;
+			for (int i = fractionDigits - 1; i >= 0; i--) {
+				buffer[length + i] = (byte) ('0' + (fraction % 10));
+				fraction /= 10;
+			}
+			length += fractionDigits;
+		}
+	}
+
+	/**
+	 * Writes the decimal digits of a non-negative value.  The caller is responsible for ensuring
+	 * capacity.
+	 */
+	private void writeDigits(long value) {
+		int count = 0;
+		do {
+			digits[count++] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+
+		while (count > 0) {
+			buffer[length++] = digits[--count];
+		}
+	}
+
+	private LogRowBuffer appendEncoded(String value) {
+		final byte[] encoded;
+		try {
+			encoded = value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not supported.", e);
+		}
+
+		ensureCapacity(length + encoded.length);
+		System.arraycopy(encoded, 0, buffer, length, encoded.length);
+		length += encoded.length;
+		return this;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(capacity, buffer.length * 2)];
+			System.arraycopy(buffer, 0, newBuffer, 0, length);
+			buffer = newBuffer;
+		}
+	}
+}
@@ -47,21 +47,78 @@ public interface MsEcu
 	 */
 	OutputChannel getOutputChannelByName(final String name);
 	
+	/**
+	 * Returns the names of the output channels of the ECU class indexed by their
+	 * channel index.  The returned array must not be modified.
+	 */
+	String[] getOutputChannelNames();
+	
+	/**
+	 * Copies the current value of every output channel into {@code values}, indexed
+	 * by channel index, without boxing or reflection.
+	 * 
+	 * @param values
+	 *            the destination, at least as long as {@link #getOutputChannelNames()}
+	 */
+	void getOutputChannelValues(double[] values);
+	
     void setFlags();
     String getSignature();
 
     byte[] getOchCommand();
 
+    /**
+     * Returns the command to read {@code count} bytes of the OCH block starting at
+     * {@code offset} or {@code null} if the firmware does not support ranged OCH reads.
+     */
+    byte[] getOchCommand(int offset, int count);
+
     byte[] getSigCommand();
 
     void loadConstants() throws IOException;
 
+    /**
+     * Returns the numbers of the pages that hold constants, in the order {@link #loadConstants()}
+     * loads them.
+     */
+    int[] getConstantPages();
+
+    /**
+     * Reads page {@code pageNo} of the constants from the ECU without decoding it.
+     *
+     * @see #decodeConstantsPage(int, byte[])
+     */
+    byte[] fetchConstantsPage(int pageNo) throws IOException;
+
+    /**
+     * Decodes the constants of page {@code pageNo} from a page previously read with
+     * {@link #fetchConstantsPage(int)}.  Does not call {@link #refreshFlags()} and touches no
+     * state shared with the fetch, so decoding one page may overlap with fetching the next.
+     */
+    void decodeConstantsPage(int pageNo, byte[] pageBuffer);
+
     void calculate(byte[] ochBuffer);
 
+    /**
+     * Calculates the output channels from {@code ochBuffer} as {@link #calculate(byte[])} does and
+     * stores the value of every output channel in {@code values}, indexed by channel index, in the
+     * same pass, without boxing or reflection.
+     * 
+     * @param values
+     *            the destination, at least as long as {@link #getOutputChannelNames()}
+     */
+    void calculate(byte[] ochBuffer, double[] values);
+
     String getLogHeader();
 
     String getLogRow();
     
+    /**
+     * Appends the log row for the current runtime vars to {@code buffer}.  Produces the same
+     * content as {@link #getLogRow()} without building intermediate strings.
+     */
+    void getLogRow(LogRowBuffer buffer);
+    
     byte[] getLogData();
 
     int getBlockSize();
@@ -78,6 +135,12 @@ public interface MsEcu
     
     List<String> getPageChunkWrites();
 
+    /**
+     * Returns the command that asks the ECU for the CRC32 of page {@code pageNo}, numbered from
+     * 1, or {@code null} if the firmware does not support page CRCs.
+     */
+    byte[] getPageCrcCommand(int pageNo);
+
     int getInterWriteDelay();
 
     int getCurrentTPS();
@@ -26,9 +26,21 @@ public class OutputChannel
     private double     scale;
     private double     translate;
     private DataSource source;
+    private int        index;
     private Field      field;
 
     public OutputChannel(String name, String type, int offset, String units, double scale, double translate, DataSource source)
+    {
+        this(name, type, offset, units, scale, translate, source, -1);
+    }
+
+    /**
+     * @param index
+     *            the index of the channel in {@code source}, used to read the value through
+     *            {@link DataSource#getOutputChannelValue(int)}, or -1 to read the value
+     *            reflectively
+     */
+    public OutputChannel(String name, String type, int offset, String units, double scale, double translate, DataSource source, int index)
     {
         this.name = name;
         this.type = type;
@@ -37,7 +49,8 @@ public class OutputChannel
         this.scale = scale;
         this.translate = translate;
         this.source = source;
-        if (source != null)
+        this.index = index;
+        if (source != null && index < 0)
         {
             Class<?> c = source.getClass();
 
@@ -54,6 +67,11 @@ public class OutputChannel
 
     public double getValue()
     {
+        if (index >= 0 && source != null)
+        {
+            return source.getOutputChannelValue(index);
+        }
+        
         double value = 0;
         if (field != null)
         {
@@ -105,8 +123,16 @@ public class OutputChannel
         return source;
     }
 
+    /**
+     * Returns the index of the channel in its data source or -1 if the value is read reflectively.
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+
     public String toString()
     {
-        return String.format("OutputChannel(\"%s\",\"%s\",%d,\"%s\",%f,%f,this)", name, type, offset, units, scale, translate);
+        return String.format("OutputChannel(\"%s\",\"%s\",%d,\"%s\",%f,%f,this,%d)", name, type, offset, units, scale, translate, index);
     }
 }
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.common.io.IoManager;
+import net.tracknalysis.common.io.command.IoCommand;
+import net.tracknalysis.ecu.ms.ChannelSnapshot;
+import net.tracknalysis.ecu.ms.ChannelSnapshotListener;
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.Megasquirt;
+import net.tracknalysis.ecu.ms.io.CommandPriority;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+import net.tracknalysis.ecu.ms.io.PriorityCommandQueue;
+import net.tracknalysis.ecu.ms.io.PriorityIoCommandManager;
+import net.tracknalysis.ecu.ms.io.WaitTimeHistogram;
+import net.tracknalysis.ecu.ms.log.NoOpLog;
+
+/**
+ * Measures how long user commands wait to run while a {@link Megasquirt} polls an emulated ECU.
+ * Commands are submitted at a fixed interval, once as {@link CommandPriority#INTERACTIVE} and
+ * once as {@link CommandPriority#POLL}, which queues them in order of arrival with the polls as
+ * the original single FIFO queue did.  A third run submits them as
+ * {@link CommandPriority#INTERACTIVE} while {@link CommandPriority#BULK} page reads are kept
+ * queued, as while loading constants or a tuning tool reading tables, to check that interactive
+ * commands still come first and that polls are not starved beyond
+ * {@link PriorityCommandQueue#DEFAULT_MAX_POLL_GAP_NANOS}.  Runnable from the command line:
+ * 
+ * <pre>
+ * CommandLatencyBenchmark &lt;signature&gt; [seconds] [baud rate] [submit interval ms]
+ * </pre>
+ * 
+ * The wait of each submitted command and the waits recorded by the queue for polls are reported
+ * as {@link WaitTimeHistogram}s.  The longest time between two consecutive polls completing is
+ * reported as the maximum poll gap.  It includes the poll itself and the bulk read that was
+ * running when the gap ran out, so it may exceed the queue's gap by up to those two.
+ *
+ * @author David Valeri
+ */
+public class CommandLatencyBenchmark {
+
+    private final EcuEmulator emulator;
+    private final int baudRate;
+
+    private final WaitTimeHistogram commandWaits = new WaitTimeHistogram();
+    private WaitTimeHistogram pollWaits;
+    private volatile long maxPollGapNanos;
+    private volatile long bulkCount;
+    private long promotedCount;
+
+    public CommandLatencyBenchmark(EcuEmulator emulator, int baudRate) {
+        this.emulator = emulator;
+        this.baudRate = baudRate;
+    }
+
+    /**
+     * Polls for {@code duration}, submitting an empty command of {@code priority} every
+     * {@code intervalMillis}.
+     */
+    public void run(CommandPriority priority, long intervalMillis, long duration, TimeUnit unit)
+            throws Exception {
+        run(priority, false, intervalMillis, duration, unit);
+    }
+
+    /**
+     * Polls for {@code duration}, submitting an empty command of {@code priority} every
+     * {@code intervalMillis}.  If {@code bulk} is true, a {@link CommandPriority#BULK} read of
+     * a constants page is queued throughout.
+     */
+    public void run(CommandPriority priority, boolean bulk, long intervalMillis, long duration,
+            TimeUnit unit) throws Exception {
+        commandWaits.reset();
+        maxPollGapNanos = 0;
+        bulkCount = 0;
+
+        final EmulatedSocketManager socketManager = new EmulatedSocketManager(emulator);
+        socketManager.setBaudRate(baudRate);
+        final Megasquirt ms = new Megasquirt(new MsIoManager(socketManager),
+                new DefaultTableManager(), new NoOpLog(),
+                new DefaultMsConfiguration(Collections.<String>emptySet()), null);
+        final PriorityCommandQueue queue =
+                ((PriorityIoCommandManager) ms.getIoCommandManager()).getQueue();
+
+        ms.start();
+        try {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!ms.isConnected()) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("Failed to connect to " + emulator + ".");
+                }
+                Thread.sleep(10);
+            }
+
+            ms.startLogging();
+            final BulkReadCommand bulkRead = bulk ? new BulkReadCommand(ms) : null;
+            if (bulkRead != null) {
+                ms.submit(bulkRead, CommandPriority.BULK);
+            }
+            // Let polling settle before measuring.
+            Thread.sleep(500);
+            queue.getWaitTimeHistogram(CommandPriority.POLL).reset();
+            final long startPromotedCount = queue.getPromotedCount();
+            final PollGapListener gaps = new PollGapListener();
+            ms.addChannelSnapshotListener(gaps);
+
+            final long end = System.nanoTime() + unit.toNanos(duration);
+            while (System.nanoTime() < end) {
+                ms.submit(new TimedCommand(), priority);
+                Thread.sleep(intervalMillis);
+            }
+            ms.removeChannelSnapshotListener(gaps);
+            if (bulkRead != null) {
+                bulkRead.running = false;
+            }
+            pollWaits = queue.getWaitTimeHistogram(CommandPriority.POLL);
+            promotedCount = queue.getPromotedCount() - startPromotedCount;
+        } finally {
+            ms.stop();
+            while (ms.getState() != Megasquirt.MegasquirtState.DISCONNECTED) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Returns the waits of the commands submitted by the last run.
+     */
+    public WaitTimeHistogram getCommandWaits() {
+        return commandWaits;
+    }
+
+    /**
+     * Returns the waits of the polls made during the last run.
+     */
+    public WaitTimeHistogram getPollWaits() {
+        return pollWaits;
+    }
+
+    /**
+     * Returns the longest time between two consecutive polls completing during the last run.
+     */
+    public long getMaxPollGapNanos() {
+        return maxPollGapNanos;
+    }
+
+    /**
+     * Returns the number of bulk page reads made during the last run.
+     */
+    public long getBulkCount() {
+        return bulkCount;
+    }
+
+    /**
+     * Returns the number of polls served ahead of queued work to honour the maximum poll gap
+     * during the last run.
+     */
+    public long getPromotedCount() {
+        return promotedCount;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: CommandLatencyBenchmark <signature> [seconds] [baud rate] "
+                    + "[submit interval ms]");
+            System.exit(1);
+        }
+
+        final long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+        final int baudRate = args.length > 2 ? Integer.parseInt(args[2])
+                : EmulatedSocketManager.DEFAULT_BAUD_RATE;
+        final long interval = args.length > 3 ? Long.parseLong(args[3]) : 50;
+
+        final CommandLatencyBenchmark benchmark =
+                new CommandLatencyBenchmark(new EcuEmulator(args[0]), baudRate);
+        System.out.printf("Maximum poll gap of the queue: %d ms%n",
+                PriorityCommandQueue.DEFAULT_MAX_POLL_GAP_NANOS / 1000000);
+        System.out.printf("%-12s %-5s %8s %10s %10s %10s %10s %12s %12s %9s %8s%n",
+                "Submitted as", "Bulk", "Commands", "Mean us", "p50 us", "p99 us", "Max us",
+                "Poll p99 us", "Poll gap ms", "Promoted", "Reads");
+        final CommandPriority[] priorities = new CommandPriority[] {CommandPriority.POLL,
+                CommandPriority.INTERACTIVE, CommandPriority.INTERACTIVE};
+        final boolean[] bulk = new boolean[] {false, false, true};
+        for (int i = 0; i < priorities.length; i++) {
+            benchmark.run(priorities[i], bulk[i], interval, seconds, TimeUnit.SECONDS);
+            final WaitTimeHistogram waits = benchmark.getCommandWaits();
+            System.out.printf("%-12s %-5s %8d %10d %10d %10d %10d %12d %12.1f %9d %8d%n",
+                    priorities[i], bulk[i] ? "yes" : "no", waits.getCount(),
+                    waits.getMeanNanos() / 1000, waits.getPercentileMicros(50),
+                    waits.getPercentileMicros(99), waits.getMaxNanos() / 1000,
+                    benchmark.getPollWaits().getPercentileMicros(99),
+                    benchmark.getMaxPollGapNanos() / 1e6, benchmark.getPromotedCount(),
+                    benchmark.getBulkCount());
+        }
+    }
+
+    /**
+     * Reads the constants pages in turn, queueing the next read before each one runs so that a
+     * bulk read is always waiting.
+     */
+    private final class BulkReadCommand implements IoCommand {
+
+        private final Megasquirt ms;
+        private volatile boolean running = true;
+        private int next;
+
+        BulkReadCommand(Megasquirt ms) {
+            this.ms = ms;
+        }
+
+        @Override
+        public void execute(IoManager ioManager) {
+            if (!running) {
+                return;
+            }
+            ms.submit(this, CommandPriority.BULK);
+
+            final int[] pages = ms.getEcuImplementation().getConstantPages();
+            try {
+                ms.getEcuImplementation().fetchConstantsPage(pages[next++ % pages.length]);
+                bulkCount++;
+            } catch (IOException e) {
+                throw new IllegalStateException("Error reading a constants page.", e);
+            }
+        }
+    }
+
+    /**
+     * Records the longest time between consecutive snapshots, each of which follows a poll.
+     */
+    private final class PollGapListener implements ChannelSnapshotListener {
+
+        private long lastNanos;
+
+        @Override
+        public void onSnapshot(ChannelSnapshot snapshot) {
+            final long now = System.nanoTime();
+            if (lastNanos != 0 && now - lastNanos > maxPollGapNanos) {
+                maxPollGapNanos = now - lastNanos;
+            }
+            lastNanos = now;
+        }
+    }
+
+    /**
+     * Records the time from its creation, just before being submitted, to its execution.
+     */
+    private final class TimedCommand implements IoCommand {
+
+        private final long createdNanos = System.nanoTime();
+
+        @Override
+        public void execute(IoManager ioManager) {
+            commandWaits.record(System.nanoTime() - createdNanos);
+        }
+    }
+}
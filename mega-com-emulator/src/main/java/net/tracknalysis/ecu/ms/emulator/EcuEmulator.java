@@ -0,0 +1,540 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import net.tracknalysis.ecu.ms.AbstractMsController;
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactoryException;
+import net.tracknalysis.ecu.ms.io.Crc32IoProtocolHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The ECU side of the serial protocol, answering the requests {@link net.tracknalysis.ecu.ms.Megasquirt}
+ * makes of the firmware named by a signature.  The commands understood are taken from the
+ * generated definition of that firmware:
+ * <ul>
+ * <li>the {@code Q} and {@code S} queries and the firmware's own query command return the
+ * signature,</li>
+ * <li>the OCH command returns the next frame from the {@link FrameSource} and ranged OCH
+ * commands return part of a frame,</li>
+ * <li>page select and read commands return the page contents, which start out zeroed, and</li>
+ * <li>page CRC commands return the CRC-32 of the page contents.</li>
+ * </ul>
+ * For firmware using the CRC32 protocol, enveloped requests are also accepted and answered with
+ * enveloped responses.  Bare requests are always answered bare, as the signature query is sent
+ * bare.  Commands that are not understood are discarded, or answered with an error in an
+ * envelope.
+ * <p/>
+ * A new frame is taken from the source for each full OCH read and for each ranged read that
+ * starts before the end of the previous one, that is, for each new polling cycle.
+ *
+ * @author David Valeri
+ */
+public class EcuEmulator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EcuEmulator.class);
+
+    /**
+     * Response type of a successful enveloped request.
+     */
+    public static final int RESPONSE_OK = 0x00;
+
+    /**
+     * Response type of an enveloped request whose CRC did not match.
+     */
+    public static final int RESPONSE_CRC_FAILURE = 0x82;
+
+    /**
+     * Response type of an enveloped request that was not understood.
+     */
+    public static final int RESPONSE_UNRECOGNISED_COMMAND = 0x83;
+
+    private static final int ENVELOPE_LENGTH_SIZE = 2;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final MsEcu ecu;
+    private final String signature;
+    private final byte[] signatureBytes;
+    private final boolean crc32Protocol;
+    private final List<Command> commands = new ArrayList<Command>();
+    private final Map<Integer, byte[]> pages = new TreeMap<Integer, byte[]>();
+    private final CRC32 crc32 = new CRC32();
+    private final Crc32IoProtocolHandler protocolHandler = new Crc32IoProtocolHandler();
+
+    private FrameSource frameSource;
+    private final byte[] och;
+    private int lastRangeEnd = Integer.MAX_VALUE;
+    private int selectedPage;
+
+    private byte[] pending = new byte[256];
+    private int pendingLength;
+
+    private long ochCount;
+    private long pageReadCount;
+    private long discardedCount;
+
+    /**
+     * Creates an emulator of the firmware identified by {@code signature} serving synthetic
+     * frames.
+     *
+     * @throws MsEcuFactoryException if the firmware is not supported
+     */
+    public EcuEmulator(String signature) throws MsEcuFactoryException {
+        this(signature, MsEcuFactory.getInstance());
+    }
+
+    public EcuEmulator(String signature, MsEcuFactory factory) throws MsEcuFactoryException {
+        final DiscoveryController controller = new DiscoveryController();
+        ecu = factory.getMegasquirt(signature, controller);
+        this.signature = ecu.getSignature();
+        try {
+            signatureBytes = signature.getBytes(MsEcuFactory.SIGNATURE_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new MsEcuFactoryException("Error encoding signature " + signature + ".", e);
+        }
+        crc32Protocol = ecu.isCRC32Protocol();
+        och = new byte[ecu.getBlockSize()];
+        frameSource = new SyntheticFrameSource(och.length);
+
+        addCommand(new Command(CommandType.SIGNATURE, new byte[] {'Q'}, 0));
+        addCommand(new Command(CommandType.SIGNATURE, new byte[] {'S'}, 0));
+        if (ecu.getSigCommand() != null) {
+            addCommand(new Command(CommandType.SIGNATURE, ecu.getSigCommand(), 0));
+        }
+        addCommand(new Command(CommandType.OCH, ecu.getOchCommand(), 0));
+        addRangedOchCommand();
+
+        for (int pageNo : ecu.getConstantPages()) {
+            controller.pageNo = pageNo;
+            try {
+                ecu.fetchConstantsPage(pageNo);
+            } catch (IOException e) {
+                throw new MsEcuFactoryException("Error discovering page " + pageNo + " of "
+                        + signature + ".", e);
+            }
+
+            final byte[] crcCommand = ecu.getPageCrcCommand(pageNo);
+            if (crcCommand != null) {
+                addCommand(new Command(CommandType.PAGE_CRC, crcCommand, pageNo));
+            }
+        }
+
+        LOG.debug("Created {} understanding {} commands.", this, commands.size());
+    }
+
+    /**
+     * Returns the signature returned by the emulated firmware.
+     */
+    public String getSignature() {
+        return signature;
+    }
+
+    /**
+     * Returns true if the emulated firmware uses the CRC32 enveloped protocol.
+     */
+    public boolean isCrc32Protocol() {
+        return crc32Protocol;
+    }
+
+    /**
+     * Returns the length of the OCH block of the emulated firmware.
+     */
+    public int getBlockSize() {
+        return och.length;
+    }
+
+    /**
+     * Sets the source of the frames returned for OCH reads.  Frames shorter than the block size
+     * of the emulated firmware leave the remaining bytes unchanged.
+     */
+    public synchronized void setFrameSource(FrameSource frameSource) {
+        this.frameSource = frameSource;
+    }
+
+    public synchronized FrameSource getFrameSource() {
+        return frameSource;
+    }
+
+    /**
+     * Returns the numbers of the pages the emulated firmware has.
+     */
+    public synchronized int[] getPageNumbers() {
+        final int[] pageNumbers = new int[pages.size()];
+        int i = 0;
+        for (Integer pageNo : pages.keySet()) {
+            pageNumbers[i++] = pageNo;
+        }
+        return pageNumbers;
+    }
+
+    /**
+     * Replaces the contents of a page.  {@code contents} is copied and truncated or zero padded
+     * to the size of the page.
+     *
+     * @throws IllegalArgumentException if the page does not exist
+     */
+    public synchronized void setPage(int pageNo, byte[] contents) {
+        final byte[] page = pages.get(pageNo);
+        if (page == null) {
+            throw new IllegalArgumentException("No page " + pageNo + ".");
+        }
+        Arrays.fill(page, (byte) 0);
+        System.arraycopy(contents, 0, page, 0, Math.min(page.length, contents.length));
+    }
+
+    /**
+     * Returns a copy of the contents of a page or {@code null} if the page does not exist.
+     */
+    public synchronized byte[] getPage(int pageNo) {
+        final byte[] page = pages.get(pageNo);
+        return page == null ? null : page.clone();
+    }
+
+    /**
+     * Discards any partially received request, as happens when the link is dropped.
+     */
+    public synchronized void reset() {
+        pendingLength = 0;
+        lastRangeEnd = Integer.MAX_VALUE;
+        selectedPage = 0;
+    }
+
+    /**
+     * Accepts bytes sent to the ECU and returns the responses to any requests they complete, in
+     * order.
+     */
+    public synchronized List<byte[]> receive(byte[] data, int offset, int length) {
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pendingLength + length, pending.length * 2));
+        }
+        System.arraycopy(data, offset, pending, pendingLength, length);
+        pendingLength += length;
+
+        List<byte[]> responses = Collections.emptyList();
+        int position = 0;
+        while (position < pendingLength) {
+            final int consumed;
+            final byte[] response;
+
+            if (crc32Protocol && pending[position] == 0) {
+                // Bare commands are printable, so a leading zero is the high byte of the length
+                // of an envelope.
+                if (pendingLength - position < ENVELOPE_LENGTH_SIZE) {
+                    break;
+                }
+                final int payloadLength = ((pending[position] & 0xFF) << 8)
+                        | (pending[position + 1] & 0xFF);
+                final int frameLength = protocolHandler.getWrappedRequestLength(payloadLength);
+                if (pendingLength - position < frameLength) {
+                    break;
+                }
+                consumed = frameLength;
+                response = processEnvelope(position, frameLength, payloadLength);
+            } else {
+                final Command command = match(position, pendingLength - position);
+                if (command == PARTIAL) {
+                    break;
+                } else if (command == null) {
+                    discardedCount++;
+                    consumed = 1;
+                    response = null;
+                } else {
+                    consumed = command.length();
+                    response = process(command, position);
+                }
+            }
+
+            position += consumed;
+            if (response != null) {
+                if (responses.isEmpty()) {
+                    responses = new ArrayList<byte[]>(1);
+                }
+                responses.add(response);
+            }
+        }
+
+        System.arraycopy(pending, position, pending, 0, pendingLength - position);
+        pendingLength -= position;
+
+        return responses;
+    }
+
+    /**
+     * Returns the number of OCH requests answered.
+     */
+    public synchronized long getOchCount() {
+        return ochCount;
+    }
+
+    /**
+     * Returns the number of page reads answered.
+     */
+    public synchronized long getPageReadCount() {
+        return pageReadCount;
+    }
+
+    /**
+     * Returns the number of bytes and envelopes discarded or rejected because they were not
+     * understood.
+     */
+    public synchronized long getDiscardedCount() {
+        return discardedCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("EcuEmulator [signature=");
+        builder.append(signature);
+        builder.append(", crc32Protocol=");
+        builder.append(crc32Protocol);
+        builder.append(", blockSize=");
+        builder.append(och.length);
+        builder.append(", pages=");
+        builder.append(pages.keySet());
+        builder.append("]");
+        return builder.toString();
+    }
+
+    private byte[] processEnvelope(int frameOffset, int frameLength, int payloadLength) {
+        if (!protocolHandler.check(pending, frameOffset, frameLength)) {
+            discardedCount++;
+            return protocolHandler.wrapResponse(RESPONSE_CRC_FAILURE, EMPTY);
+        }
+
+        final int payloadOffset = frameOffset + ENVELOPE_LENGTH_SIZE;
+        final Command command = match(payloadOffset, payloadLength);
+        if (command == null || command == PARTIAL || command.length() != payloadLength) {
+            discardedCount++;
+            return protocolHandler.wrapResponse(RESPONSE_UNRECOGNISED_COMMAND, EMPTY);
+        }
+
+        final byte[] response = process(command, payloadOffset);
+        return response == null ? null : protocolHandler.wrapResponse(RESPONSE_OK, response);
+    }
+
+    /**
+     * Returns the response to {@code command}, which starts at {@code offset} in the pending
+     * bytes, or {@code null} if the command has no response.
+     */
+    private byte[] process(Command command, int offset) {
+        switch (command.type) {
+            case SIGNATURE:
+                return signatureBytes.clone();
+            case OCH:
+                frameSource.nextFrame(och);
+                lastRangeEnd = Integer.MAX_VALUE;
+                ochCount++;
+                return och.clone();
+            case OCH_RANGE:
+                final int end = command.length();
+                final int rangeOffset = ((pending[offset + end - 4] & 0xFF) << 8)
+                        | (pending[offset + end - 3] & 0xFF);
+                final int count = ((pending[offset + end - 2] & 0xFF) << 8)
+                        | (pending[offset + end - 1] & 0xFF);
+                if (rangeOffset < lastRangeEnd) {
+                    frameSource.nextFrame(och);
+                }
+                lastRangeEnd = rangeOffset + count;
+                ochCount++;
+                final byte[] range = new byte[count];
+                System.arraycopy(och, Math.min(rangeOffset, och.length), range, 0,
+                        Math.max(0, Math.min(count, och.length - rangeOffset)));
+                return range;
+            case PAGE_SELECT:
+                selectedPage = command.pageNo;
+                return null;
+            case PAGE_READ:
+                pageReadCount++;
+                if (command.shared && selectedPage != 0) {
+                    // The read command is common to several pages, so read the whole of the
+                    // selected one.
+                    return pages.get(selectedPage).clone();
+                }
+                return Arrays.copyOfRange(pages.get(command.pageNo), command.pageOffset,
+                        command.pageOffset + command.pageSize);
+            case PAGE_CRC:
+                crc32.reset();
+                crc32.update(pages.get(command.pageNo));
+                final long value = crc32.getValue();
+                return new byte[] {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8),
+                        (byte) value};
+            default:
+                throw new IllegalStateException("Unknown command type " + command.type + ".");
+        }
+    }
+
+    /**
+     * Returns the command that {@code length} pending bytes starting at {@code offset} begin
+     * with, {@link #PARTIAL} if they are the start of a command or {@code null} if they cannot
+     * begin any command.
+     */
+    private Command match(int offset, int length) {
+        boolean partial = false;
+        for (Command command : commands) {
+            final int compared = Math.min(length, command.length());
+            if (command.matches(pending, offset, compared)) {
+                if (compared == command.length()) {
+                    return command;
+                }
+                partial = true;
+            }
+        }
+        return partial ? PARTIAL : null;
+    }
+
+    /**
+     * Adds a command that reads a range of the OCH block if the firmware supports ranged reads
+     * with the offset and count as the last four bytes of the command.
+     */
+    private void addRangedOchCommand() {
+        final byte[] low = ecu.getOchCommand(0, 0);
+        final byte[] high = ecu.getOchCommand(0xFFFF, 0xFFFF);
+        if (low == null || high == null || low.length != high.length || low.length < 4) {
+            return;
+        }
+
+        final int fixedLength = low.length - 4;
+        for (int i = 0; i < low.length; i++) {
+            if ((low[i] == high[i]) != (i < fixedLength)) {
+                LOG.debug("Ranged OCH command of {} is not supported.", signature);
+                return;
+            }
+        }
+
+        final Command command = new Command(CommandType.OCH_RANGE, Arrays.copyOf(low, fixedLength), 0);
+        command.wildcardLength = 4;
+        addCommand(command);
+    }
+
+    /**
+     * Adds {@code command} unless an identical command exists.  A page read identical to an
+     * existing page read is instead marked as shared so that the selected page is read.
+     */
+    private void addCommand(Command command) {
+        for (Command existing : commands) {
+            if (Arrays.equals(existing.pattern, command.pattern)
+                    && existing.wildcardLength == command.wildcardLength) {
+                if (existing.type == CommandType.PAGE_READ && command.type == CommandType.PAGE_READ) {
+                    existing.shared = true;
+                }
+                return;
+            }
+        }
+        commands.add(command);
+    }
+
+    private static final Command PARTIAL = new Command(null, new byte[0], 0);
+
+    private static enum CommandType {
+        SIGNATURE,
+        OCH,
+        OCH_RANGE,
+        PAGE_SELECT,
+        PAGE_READ,
+        PAGE_CRC;
+    }
+
+    private static final class Command {
+        private final CommandType type;
+        private final byte[] pattern;
+        private final int pageNo;
+        private int wildcardLength;
+        private int pageOffset;
+        private int pageSize;
+        private boolean shared;
+
+        public Command(CommandType type, byte[] pattern, int pageNo) {
+            this.type = type;
+            this.pattern = pattern;
+            this.pageNo = pageNo;
+        }
+
+        public int length() {
+            return pattern.length + wildcardLength;
+        }
+
+        /**
+         * Returns true if {@code length} bytes of {@code buffer} starting at {@code offset} match
+         * the start of this command.
+         */
+        public boolean matches(byte[] buffer, int offset, int length) {
+            final int fixed = Math.min(length, pattern.length);
+            for (int i = 0; i < fixed; i++) {
+                if (buffer[offset + i] != pattern[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Records the commands the firmware definition uses to read each page, in place of reading
+     * them from an ECU.
+     */
+    private final class DiscoveryController extends AbstractMsController {
+
+        private int pageNo;
+
+        public DiscoveryController() {
+            super(new DefaultTableManager(), new DefaultMsConfiguration(Collections.<String>emptySet()));
+        }
+
+        @Override
+        public double timeNow() {
+            return 0;
+        }
+
+        @Override
+        public byte[] loadPage(int pageNo, int pageOffset, int pageSize, byte[] select,
+                byte[] read) throws IOException {
+            byte[] page = pages.get(this.pageNo);
+            if (page == null || page.length < pageOffset + pageSize) {
+                page = page == null ? new byte[pageOffset + pageSize]
+                        : Arrays.copyOf(page, pageOffset + pageSize);
+                pages.put(this.pageNo, page);
+            }
+
+            if (select != null) {
+                addCommand(new Command(CommandType.PAGE_SELECT, select, this.pageNo));
+            }
+            if (read != null) {
+                final Command command = new Command(CommandType.PAGE_READ, read, this.pageNo);
+                command.pageOffset = pageOffset;
+                command.pageSize = pageSize;
+                addCommand(command);
+            }
+
+            return new byte[pageSize];
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import net.tracknalysis.common.io.SocketManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SocketManager} connected to an in-process {@link EcuEmulator} rather than a serial
+ * port.  The link is modelled as a serial line at a configurable baud rate: each byte, in either
+ * direction, takes ten bit times to cross, responses become readable one byte at a time as they
+ * would arrive, and the ECU takes a configurable turnaround time to start responding once a
+ * request has arrived.
+ * <p/>
+ * Errors can be injected by dropping whole responses or corrupting one bit of a response, each
+ * with a configurable probability.  A seeded random number generator makes the injected errors
+ * repeatable.
+ *
+ * @author David Valeri
+ */
+public class EmulatedSocketManager implements SocketManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EmulatedSocketManager.class);
+
+    public static final int DEFAULT_BAUD_RATE = 115200;
+
+    public static final long DEFAULT_READ_TIMEOUT = 2000;
+
+    private static final int BITS_PER_BYTE = 10;
+
+    private final EcuEmulator emulator;
+    private final Random random;
+
+    private final Object lock = new Object();
+    private final LinkedList<Response> responses = new LinkedList<Response>();
+    private final InputStream inputStream = new LinkInputStream();
+    private final OutputStream outputStream = new LinkOutputStream();
+
+    private volatile long byteNanos = byteNanos(DEFAULT_BAUD_RATE);
+    private volatile long turnaroundNanos;
+    private volatile double dropRate;
+    private volatile double corruptionRate;
+    private volatile long readTimeout = DEFAULT_READ_TIMEOUT;
+
+    private boolean connected;
+    private long txFreeNanos;
+    private long rxFreeNanos;
+
+    private long bytesReceived;
+    private long bytesSent;
+    private long droppedCount;
+    private long corruptedCount;
+
+    public EmulatedSocketManager(EcuEmulator emulator) {
+        this(emulator, new Random(0));
+    }
+
+    /**
+     * @param emulator the ECU at the other end of the link
+     * @param random the source of randomness for error injection
+     */
+    public EmulatedSocketManager(EcuEmulator emulator, Random random) {
+        this.emulator = emulator;
+        this.random = random;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        synchronized (lock) {
+            responses.clear();
+            emulator.reset();
+            txFreeNanos = 0;
+            rxFreeNanos = 0;
+            connected = true;
+        }
+        LOG.debug("Connected to {}.", emulator);
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        synchronized (lock) {
+            connected = false;
+            responses.clear();
+            lock.notifyAll();
+        }
+        LOG.debug("Disconnected from {}.", emulator);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return outputStream;
+    }
+
+    public EcuEmulator getEmulator() {
+        return emulator;
+    }
+
+    /**
+     * Sets the baud rate of the emulated serial line.
+     */
+    public void setBaudRate(int baudRate) {
+        if (baudRate <= 0) {
+            throw new IllegalArgumentException("baudRate must be positive.");
+        }
+        byteNanos = byteNanos(baudRate);
+    }
+
+    /**
+     * Sets the time the ECU takes to start responding once a request has arrived.
+     */
+    public void setTurnaroundMicros(long turnaroundMicros) {
+        turnaroundNanos = turnaroundMicros * 1000;
+    }
+
+    /**
+     * Sets the probability, from 0 to 1, that a response is never sent.
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * Sets the probability, from 0 to 1, that one bit of a response is flipped.
+     */
+    public void setCorruptionRate(double corruptionRate) {
+        this.corruptionRate = corruptionRate;
+    }
+
+    /**
+     * Sets how long a read blocks waiting for data before failing with a
+     * {@link SocketTimeoutException}, or 0 to block indefinitely.
+     */
+    public void setReadTimeout(long readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public long getBytesReceived() {
+        synchronized (lock) {
+            return bytesReceived;
+        }
+    }
+
+    public long getBytesSent() {
+        synchronized (lock) {
+            return bytesSent;
+        }
+    }
+
+    /**
+     * Returns the number of responses dropped by error injection.
+     */
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return droppedCount;
+        }
+    }
+
+    /**
+     * Returns the number of responses corrupted by error injection.
+     */
+    public long getCorruptedCount() {
+        synchronized (lock) {
+            return corruptedCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("EmulatedSocketManager [emulator=");
+        builder.append(emulator);
+        builder.append(", byteNanos=");
+        builder.append(byteNanos);
+        builder.append(", turnaroundNanos=");
+        builder.append(turnaroundNanos);
+        builder.append(", dropRate=");
+        builder.append(dropRate);
+        builder.append(", corruptionRate=");
+        builder.append(corruptionRate);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    private static long byteNanos(int baudRate) {
+        return BITS_PER_BYTE * 1000000000L / baudRate;
+    }
+
+    /**
+     * Passes bytes to the emulator and queues the responses, timed as if the bytes had been
+     * sent over the line.
+     */
+    private void send(byte[] data, int offset, int length) throws IOException {
+        synchronized (lock) {
+            if (!connected) {
+                throw new IOException("Not connected.");
+            }
+
+            final long now = System.nanoTime();
+            final long byteNanos = this.byteNanos;
+            txFreeNanos = Math.max(now, txFreeNanos) + length * byteNanos;
+            bytesReceived += length;
+
+            final List<byte[]> replies = emulator.receive(data, offset, length);
+            for (byte[] reply : replies) {
+                if (dropRate > 0 && random.nextDouble() < dropRate) {
+                    droppedCount++;
+                    continue;
+                }
+
+                if (corruptionRate > 0 && reply.length > 0 && random.nextDouble() < corruptionRate) {
+                    reply[random.nextInt(reply.length)] ^= 1 << random.nextInt(8);
+                    corruptedCount++;
+                }
+
+                final long start = Math.max(txFreeNanos + turnaroundNanos, rxFreeNanos);
+                rxFreeNanos = start + reply.length * byteNanos;
+                responses.add(new Response(reply, start, byteNanos));
+            }
+
+            if (!replies.isEmpty()) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes that have arrived and not been read.  Must be called while
+     * holding {@link #lock}.
+     */
+    private int getAvailable(long now) {
+        int available = 0;
+        for (Response response : responses) {
+            final int arrived = response.getArrived(now);
+            available += arrived - response.position;
+            if (arrived < response.bytes.length) {
+                break;
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Copies up to {@code length} bytes that have arrived into {@code buffer}, blocking until at
+     * least one has.
+     *
+     * @return the number of bytes copied or -1 if disconnected
+     */
+    private int receive(byte[] buffer, int offset, int length) throws IOException {
+        synchronized (lock) {
+            final long timeout = readTimeout;
+            final long deadline = System.nanoTime() + timeout * 1000000;
+
+            while (true) {
+                if (!connected) {
+                    return -1;
+                }
+
+                final long now = System.nanoTime();
+                int copied = 0;
+                while (!responses.isEmpty() && copied < length) {
+                    final Response response = responses.getFirst();
+                    final int count = Math.min(response.getArrived(now) - response.position,
+                            length - copied);
+                    System.arraycopy(response.bytes, response.position, buffer, offset + copied, count);
+                    response.position += count;
+                    copied += count;
+
+                    if (response.position == response.bytes.length) {
+                        responses.removeFirst();
+                    } else {
+                        break;
+                    }
+                }
+
+                if (copied > 0) {
+                    bytesSent += copied;
+                    return copied;
+                }
+
+                long waitNanos = responses.isEmpty() ? Long.MAX_VALUE
+                        : responses.getFirst().getNextArrival() - now;
+                if (timeout > 0) {
+                    if (now >= deadline) {
+                        throw new SocketTimeoutException("No data from emulator within "
+                                + timeout + " ms.");
+                    }
+                    waitNanos = Math.min(waitNanos, deadline - now);
+                }
+
+                try {
+                    if (waitNanos == Long.MAX_VALUE) {
+                        lock.wait();
+                    } else {
+                        lock.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading from emulator.", e);
+                }
+            }
+        }
+    }
+
+    private final class LinkInputStream extends InputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            synchronized (lock) {
+                return receive(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return receive(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (lock) {
+                return getAvailable(System.nanoTime());
+            }
+        }
+    }
+
+    private final class LinkOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            send(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            send(b, off, len);
+        }
+    }
+
+    /**
+     * A response on its way across the line.
+     */
+    private static final class Response {
+        private final byte[] bytes;
+        private final long start;
+        private final long byteNanos;
+        private int position;
+
+        public Response(byte[] bytes, long start, long byteNanos) {
+            this.bytes = bytes;
+            this.start = start;
+            this.byteNanos = byteNanos;
+        }
+
+        /**
+         * Returns the number of bytes of the response that have arrived by {@code now}.
+         */
+        public int getArrived(long now) {
+            if (now <= start) {
+                return 0;
+            }
+            return (int) Math.min(bytes.length, (now - start) / byteNanos);
+        }
+
+        /**
+         * Returns the time the byte after those already read arrives.
+         */
+        public long getNextArrival() {
+            return start + (position + 1) * byteNanos;
+        }
+    }
+}
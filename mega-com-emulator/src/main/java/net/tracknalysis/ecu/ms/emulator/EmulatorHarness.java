@@ -0,0 +1,227 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tracknalysis.common.notification.NotificationListener;
+import net.tracknalysis.ecu.ms.ChannelSnapshot;
+import net.tracknalysis.ecu.ms.ChannelSnapshotListener;
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.FilePageCache;
+import net.tracknalysis.ecu.ms.Megasquirt;
+import net.tracknalysis.ecu.ms.MegasquirtNotificationType;
+import net.tracknalysis.ecu.ms.PageCache;
+import net.tracknalysis.ecu.ms.PageLoadTiming;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+import net.tracknalysis.ecu.ms.log.NoOpLog;
+
+/**
+ * Drives a {@link Megasquirt} against an {@link EcuEmulator} and measures connect time, polling
+ * throughput and the number of logging failures.  Runnable from the command line:
+ * 
+ * <pre>
+ * EmulatorHarness &lt;signature | file.frd&gt; [seconds] [baud rate] [drop rate] [corruption rate]
+ *     [page cache directory]
+ * </pre>
+ * 
+ * When given an FRD file, the firmware is taken from the file and its records are served in a
+ * loop.  Otherwise synthetic frames are served.  Running twice with the same page cache
+ * directory compares a cold connect with one that takes the constants from the cache.
+ *
+ * @author David Valeri
+ */
+public class EmulatorHarness {
+
+    private final EmulatedSocketManager socketManager;
+
+    private PageCache pageCache;
+
+    private long connectNanos;
+    private List<PageLoadTiming> constantsLoadTimings = Collections.emptyList();
+    private long pollNanos;
+    private long sampleCount;
+    private int loggingFailures;
+
+    public EmulatorHarness(EmulatedSocketManager socketManager) {
+        this.socketManager = socketManager;
+    }
+
+    /**
+     * Sets the page cache used by the Megasquirt, or {@code null} to read every page from the
+     * emulator.
+     */
+    public void setPageCache(PageCache pageCache) {
+        this.pageCache = pageCache;
+    }
+
+    /**
+     * Connects, polls for {@code duration} and disconnects.
+     *
+     * @throws IllegalStateException if the Megasquirt does not connect or disconnect within 30
+     *             seconds
+     */
+    public void run(long duration, TimeUnit unit) throws InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final AtomicLong samples = new AtomicLong();
+        final int[] failures = new int[1];
+
+        final Megasquirt ms = new Megasquirt(new MsIoManager(socketManager),
+                new DefaultTableManager(), new NoOpLog(),
+                new DefaultMsConfiguration(Collections.<String>emptySet()), null);
+        ms.setPageCache(pageCache);
+
+        ms.addListener(new NotificationListener<MegasquirtNotificationType>() {
+            @Override
+            public void handleNotification(MegasquirtNotificationType type, Object body) {
+                switch (type) {
+                    case CONNECTED:
+                        connected.countDown();
+                        break;
+                    case CONNECTION_FAILED:
+                    case DISCONNECTED:
+                        connected.countDown();
+                        disconnected.countDown();
+                        break;
+                    case LOGGING_FAILED:
+                        synchronized (failures) {
+                            failures[0]++;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+
+        ms.addChannelSnapshotListener(new ChannelSnapshotListener() {
+            @Override
+            public void onSnapshot(ChannelSnapshot snapshot) {
+                samples.incrementAndGet();
+            }
+        });
+
+        final long start = System.nanoTime();
+        ms.start();
+        if (!connected.await(30, TimeUnit.SECONDS) || !ms.isConnected()) {
+            ms.stop();
+            throw new IllegalStateException("Failed to connect to " + socketManager.getEmulator() + ".");
+        }
+        connectNanos = System.nanoTime() - start;
+        constantsLoadTimings = ms.getConstantsLoadTimings();
+
+        final long pollStart = System.nanoTime();
+        ms.startLogging();
+        unit.sleep(duration);
+        sampleCount = samples.get();
+        pollNanos = System.nanoTime() - pollStart;
+
+        ms.stop();
+        if (!disconnected.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Failed to disconnect from "
+                    + socketManager.getEmulator() + ".");
+        }
+
+        synchronized (failures) {
+            loggingFailures = failures[0];
+        }
+    }
+
+    /**
+     * Returns the time from start until connected, including signature discovery and loading
+     * constants.
+     */
+    public long getConnectMillis() {
+        return connectNanos / 1000000;
+    }
+
+    /**
+     * Returns the time taken to read and decode each page of constants on connect.
+     */
+    public List<PageLoadTiming> getConstantsLoadTimings() {
+        return constantsLoadTimings;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public double getSamplesPerSecond() {
+        return pollNanos == 0 ? 0 : sampleCount * 1e9 / pollNanos;
+    }
+
+    /**
+     * Returns the number of times logging gave up after repeated errors.
+     */
+    public int getLoggingFailures() {
+        return loggingFailures;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: EmulatorHarness <signature | file.frd> [seconds] "
+                    + "[baud rate] [drop rate] [corruption rate] [page cache directory]");
+            System.exit(1);
+        }
+
+        final EcuEmulator emulator;
+        if (args[0].toLowerCase().endsWith(".frd")) {
+            final FrdFrameSource frames = new FrdFrameSource(new File(args[0]));
+            emulator = new EcuEmulator(frames.getFirmware());
+            emulator.setFrameSource(frames);
+        } else {
+            emulator = new EcuEmulator(args[0]);
+        }
+
+        final EmulatedSocketManager socketManager = new EmulatedSocketManager(emulator);
+        if (args.length > 2) {
+            socketManager.setBaudRate(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            socketManager.setDropRate(Double.parseDouble(args[3]));
+        }
+        if (args.length > 4) {
+            socketManager.setCorruptionRate(Double.parseDouble(args[4]));
+        }
+
+        final EmulatorHarness harness = new EmulatorHarness(socketManager);
+        if (args.length > 5) {
+            harness.setPageCache(new FilePageCache(new File(args[5])));
+        }
+        harness.run(args.length > 1 ? Long.parseLong(args[1]) : 10, TimeUnit.SECONDS);
+
+        System.out.println("Emulator:          " + emulator);
+        System.out.println("Connect time:      " + harness.getConnectMillis() + " ms");
+        System.out.println("Page reads:        " + emulator.getPageReadCount());
+        for (PageLoadTiming timing : harness.getConstantsLoadTimings()) {
+            System.out.printf("Page %-3d           fetch %.1f ms, decode %.1f ms%n",
+                    timing.getPageNo(), timing.getFetchNanos() / 1e6, timing.getDecodeNanos() / 1e6);
+        }
+        System.out.println("Samples:           " + harness.getSampleCount());
+        System.out.printf("Samples/second:    %.1f%n", harness.getSamplesPerSecond());
+        System.out.println("Logging failures:  " + harness.getLoggingFailures());
+        System.out.println("Dropped responses: " + socketManager.getDroppedCount());
+        System.out.println("Corrupt responses: " + socketManager.getCorruptedCount());
+        System.out.println("Discarded bytes:   " + emulator.getDiscardedCount());
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+/**
+ * Supplies the OCH blocks returned by an {@link EcuEmulator}.
+ *
+ * @author David Valeri
+ */
+public interface FrameSource {
+
+    /**
+     * Returns the length of the frames produced by this source.
+     */
+    int getBlockSize();
+
+    /**
+     * Writes the next frame into {@code frame}.  If {@code frame} is longer than
+     * {@link #getBlockSize()}, the remaining bytes are left untouched.  If shorter, the frame is
+     * truncated.
+     */
+    void nextFrame(byte[] frame);
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.tracknalysis.ecu.ms.log.FRDLogReader;
+
+/**
+ * Replays the OCH blocks recorded in an FRD log, starting over from the first record after the
+ * last.
+ *
+ * @author David Valeri
+ */
+public class FrdFrameSource implements FrameSource {
+
+    private final FRDLogReader reader;
+    private final byte[] record;
+    private int nextRecord;
+
+    public FrdFrameSource(File file) throws IOException {
+        this(new FRDLogReader(file));
+    }
+
+    public FrdFrameSource(FRDLogReader reader) {
+        if (reader.getRecordCount() == 0) {
+            throw new IllegalArgumentException("FRD file " + reader.getFile() + " has no records.");
+        }
+
+        this.reader = reader;
+        record = new byte[reader.getBlockSize()];
+    }
+
+    /**
+     * Returns the signature of the firmware the log was recorded from.
+     */
+    public String getFirmware() {
+        return reader.getFirmware();
+    }
+
+    @Override
+    public int getBlockSize() {
+        return record.length;
+    }
+
+    @Override
+    public synchronized void nextFrame(byte[] frame) {
+        reader.getOchBuffer(nextRecord, record);
+        System.arraycopy(record, 0, frame, 0, Math.min(record.length, frame.length));
+
+        nextRecord++;
+        if (nextRecord == reader.getRecordCount()) {
+            nextRecord = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("FrdFrameSource [file=");
+        builder.append(reader.getFile());
+        builder.append(", nextRecord=");
+        builder.append(nextRecord);
+        builder.append("]");
+        return builder.toString();
+    }
+}
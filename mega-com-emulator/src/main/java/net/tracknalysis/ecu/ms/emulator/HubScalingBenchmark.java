@@ -0,0 +1,212 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tracknalysis.ecu.ms.ChannelScheduler;
+import net.tracknalysis.ecu.ms.ChannelSnapshot;
+import net.tracknalysis.ecu.ms.ChannelSnapshotListener;
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.Megasquirt;
+import net.tracknalysis.ecu.ms.MegasquirtHub;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+import net.tracknalysis.ecu.ms.log.NoOpLog;
+
+/**
+ * Measures how the total number of samples polled per second scales with the number of
+ * emulated ECU sessions, comparing sessions on a {@link MegasquirtHub} with sessions that each
+ * have their own command thread.  Runnable from the command line:
+ * 
+ * <pre>
+ * HubScalingBenchmark &lt;signature&gt; [seconds] [baud rate] [hub threads] [session count ...]
+ * </pre>
+ * 
+ * Each session talks to its own emulator over its own emulated line, as separate ECUs on
+ * separate ports would.  Sessions are connected before polling starts, so connect time is not
+ * measured.
+ * <p/>
+ * A second hub run gives each session a {@link ChannelScheduler} polling every channel at
+ * {@link #SCHEDULED_RATE} per second, so sessions spend most of their time waiting for the next
+ * poll to be due.  Those waits must not occupy pool threads, so the hub should reach the target
+ * total rate for as many sessions as the link allows.
+ *
+ * @author David Valeri
+ */
+public class HubScalingBenchmark {
+
+    /**
+     * The rate, in polls per second, of each session in the scheduled run.
+     */
+    public static final double SCHEDULED_RATE = 20;
+
+    private final String signature;
+    private final int baudRate;
+
+    public HubScalingBenchmark(String signature, int baudRate) {
+        this.signature = signature;
+        this.baudRate = baudRate;
+    }
+
+    /**
+     * Polls {@code sessionCount} sessions on a hub with {@code threadCount} threads for
+     * {@code duration} and returns the total samples per second.
+     */
+    public double runHub(int sessionCount, int threadCount, long duration, TimeUnit unit)
+            throws Exception {
+        return runHub(sessionCount, threadCount, 0, duration, unit);
+    }
+
+    /**
+     * Polls {@code sessionCount} sessions on a hub with {@code threadCount} threads for
+     * {@code duration} and returns the total samples per second.  If {@code targetRate} is
+     * positive, each session polls every channel at that rate through a {@link ChannelScheduler}
+     * rather than as fast as it can.
+     */
+    public double runHub(int sessionCount, int threadCount, double targetRate, long duration,
+            TimeUnit unit) throws Exception {
+        final MegasquirtHub hub = new MegasquirtHub(threadCount);
+        final List<Megasquirt> sessions = new ArrayList<Megasquirt>(sessionCount);
+        for (int i = 0; i < sessionCount; i++) {
+            sessions.add(hub.createSession(newIoManager(), new DefaultTableManager(),
+                    new NoOpLog(), new DefaultMsConfiguration(Collections.<String>emptySet()),
+                    null));
+        }
+
+        try {
+            return poll(sessions, targetRate, duration, unit);
+        } finally {
+            hub.shutdown(30, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Polls {@code sessionCount} sessions, each with its own command thread, for
+     * {@code duration} and returns the total samples per second.
+     */
+    public double runDedicated(int sessionCount, long duration, TimeUnit unit) throws Exception {
+        final List<Megasquirt> sessions = new ArrayList<Megasquirt>(sessionCount);
+        for (int i = 0; i < sessionCount; i++) {
+            sessions.add(new Megasquirt(newIoManager(), new DefaultTableManager(), new NoOpLog(),
+                    new DefaultMsConfiguration(Collections.<String>emptySet()), null));
+        }
+
+        try {
+            return poll(sessions, 0, duration, unit);
+        } finally {
+            for (Megasquirt ms : sessions) {
+                ms.stop();
+            }
+            // Keep the threads of these sessions out of the next measurement.
+            for (Megasquirt ms : sessions) {
+                while (ms.getState() != Megasquirt.MegasquirtState.DISCONNECTED) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    private double poll(List<Megasquirt> sessions, double targetRate, long duration,
+            TimeUnit unit) throws InterruptedException {
+        final AtomicLong samples = new AtomicLong();
+        final ChannelSnapshotListener listener = new ChannelSnapshotListener() {
+            @Override
+            public void onSnapshot(ChannelSnapshot snapshot) {
+                samples.incrementAndGet();
+            }
+        };
+
+        for (Megasquirt ms : sessions) {
+            ms.start();
+        }
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        for (Megasquirt ms : sessions) {
+            while (!ms.isConnected()) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("Failed to connect " + sessions.size()
+                            + " sessions to " + signature + ".");
+                }
+                Thread.sleep(10);
+            }
+        }
+
+        for (Megasquirt ms : sessions) {
+            if (targetRate > 0) {
+                final ChannelScheduler scheduler = new ChannelScheduler(baudRate, 0);
+                scheduler.addGroup("all", targetRate,
+                        Arrays.asList(ms.getEcuImplementation().getOutputChannelNames()));
+                ms.setChannelScheduler(scheduler);
+            }
+            ms.addChannelSnapshotListener(listener);
+            ms.startLogging();
+        }
+
+        // Let every session reach its polling rate before measuring.
+        Thread.sleep(500);
+        final long startSamples = samples.get();
+        final long start = System.nanoTime();
+        unit.sleep(duration);
+        final long count = samples.get() - startSamples;
+        final long nanos = System.nanoTime() - start;
+
+        return count * 1e9 / nanos;
+    }
+
+    private MsIoManager newIoManager() throws Exception {
+        final EmulatedSocketManager socketManager =
+                new EmulatedSocketManager(new EcuEmulator(signature));
+        socketManager.setBaudRate(baudRate);
+        return new MsIoManager(socketManager);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: HubScalingBenchmark <signature> [seconds] [baud rate] "
+                    + "[hub threads] [session count ...]");
+            System.exit(1);
+        }
+
+        final long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+        final int baudRate = args.length > 2 ? Integer.parseInt(args[2])
+                : EmulatedSocketManager.DEFAULT_BAUD_RATE;
+        final int threadCount = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        final List<Integer> sessionCounts = new ArrayList<Integer>();
+        for (int i = 4; i < args.length; i++) {
+            sessionCounts.add(Integer.parseInt(args[i]));
+        }
+        if (sessionCounts.isEmpty()) {
+            Collections.addAll(sessionCounts, 1, 2, 4, 8, 16);
+        }
+
+        final HubScalingBenchmark benchmark = new HubScalingBenchmark(args[0], baudRate);
+        System.out.printf("%8s %18s %18s %18s %18s %18s%n", "Sessions", "Dedicated total/s",
+                "Hub total/s", "Hub per session/s", "Scheduled target/s", "Hub scheduled/s");
+        for (int sessionCount : sessionCounts) {
+            final double dedicated = benchmark.runDedicated(sessionCount, seconds, TimeUnit.SECONDS);
+            final double hub = benchmark.runHub(sessionCount, threadCount, seconds, TimeUnit.SECONDS);
+            final double scheduled = benchmark.runHub(sessionCount, threadCount, SCHEDULED_RATE,
+                    seconds, TimeUnit.SECONDS);
+            System.out.printf("%8d %18.1f %18.1f %18.1f %18.1f %18.1f%n", sessionCount, dedicated,
+                    hub, hub / sessionCount, SCHEDULED_RATE * sessionCount, scheduled);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import net.tracknalysis.ecu.ms.common.Constant;
+import net.tracknalysis.ecu.ms.page.ChunkWriteBuilder;
+import net.tracknalysis.ecu.ms.page.DirtyRangeCoalescer;
+import net.tracknalysis.ecu.ms.page.PageChunk;
+import net.tracknalysis.ecu.ms.page.PageImage;
+
+/**
+ * Compares the bytes sent and the link time taken to write typical tuning edits of a page
+ * holding a 16x16 U08 VE table and a 16x16 S16 spark table, planned four ways:
+ * <ul>
+ * <li>value: one command per changed byte,</li>
+ * <li>runs: one command per run of changed bytes,</li>
+ * <li>coalesced: runs merged across gaps cheaper to resend than another command, as
+ * {@code Megasquirt.writePage} does, and</li>
+ * <li>page: the whole page, as burning all constants does.</li>
+ * </ul>
+ * Link time is the bytes sent at the baud rate plus the inter-write delay between commands.
+ * Plan time is the measured time to apply the edit through {@link PageImage#setConstant} and
+ * plan and build the commands.  Runnable from the command line:
+ * 
+ * <pre>
+ * PageWriteBenchmark [baud rate] [inter-write delay ms]
+ * </pre>
+ *
+ * @author David Valeri
+ */
+public class PageWriteBenchmark {
+
+    private static final int PAGE_SIZE = 1024;
+    private static final int TABLE_SIZE = 16;
+    private static final int REPETITIONS = 2000;
+
+    private static final Constant VE_TABLE = new Constant(1, "veTable", "array", "U08", 0,
+            "[16x16]", "%", 1, 0, 0, 255, 0);
+    private static final Constant ADVANCE_TABLE = new Constant(1, "advanceTable", "array", "S16",
+            256, "[16x16]", "deg", 0.1, 0, -10, 90, 1);
+
+    private static final String TEMPLATE = "w\\x00\\x04%2o%2c%v";
+
+    private static final String[] EDITS = {"one cell", "4x4 block", "VE +2%", "10% of cells"};
+
+    private final ChunkWriteBuilder builder = new ChunkWriteBuilder(TEMPLATE, null);
+    private final int baudRate;
+    private final int interWriteDelay;
+    private final byte[] page = new byte[PAGE_SIZE];
+
+    public PageWriteBenchmark(int baudRate, int interWriteDelay) {
+        this.baudRate = baudRate;
+        this.interWriteDelay = interWriteDelay;
+
+        final PageImage image = new PageImage(1, page);
+        for (int i = 0; i < TABLE_SIZE * TABLE_SIZE; i++) {
+            image.setConstant(VE_TABLE, i, 40 + i % 60);
+            image.setConstant(ADVANCE_TABLE, i, 10 + (i % 30) * 0.5);
+        }
+        image.takeDirty(page);
+    }
+
+    /**
+     * Applies edit {@code edit} to a fresh image of the page.
+     */
+    PageImage edit(int edit) {
+        final PageImage image = new PageImage(1, page);
+        switch (edit) {
+            case 0:
+                image.setConstant(VE_TABLE, 5 * TABLE_SIZE + 7, 99);
+                break;
+            case 1:
+                for (int row = 6; row < 10; row++) {
+                    for (int column = 4; column < 8; column++) {
+                        image.setConstant(ADVANCE_TABLE, row * TABLE_SIZE + column, 33.5);
+                    }
+                }
+                break;
+            case 2:
+                for (int i = 0; i < TABLE_SIZE * TABLE_SIZE; i++) {
+                    image.setConstant(VE_TABLE, i, Math.round((40 + i % 60) * 1.02));
+                }
+                break;
+            default:
+                final Random random = new Random(edit);
+                for (int i = 0; i < TABLE_SIZE * TABLE_SIZE / 10; i++) {
+                    image.setConstant(ADVANCE_TABLE, random.nextInt(TABLE_SIZE * TABLE_SIZE),
+                            random.nextInt(400) / 10d);
+                }
+                break;
+        }
+        return image;
+    }
+
+    /**
+     * Returns the commands, bytes sent, link time in milliseconds and mean plan time in
+     * microseconds of writing edit {@code edit} with the given plan.
+     */
+    double[] measure(int edit, int mergeGap, int maxChunkSize, boolean wholePage) {
+        long bytes = 0;
+        int commands = 0;
+        final long start = System.nanoTime();
+        for (int repetition = 0; repetition < REPETITIONS; repetition++) {
+            final PageImage image = edit(edit);
+            final byte[] contents = new byte[PAGE_SIZE];
+            final BitSet dirty = image.takeDirty(contents);
+            if (wholePage) {
+                dirty.set(0, PAGE_SIZE);
+            }
+
+            final List<PageChunk> chunks = DirtyRangeCoalescer.coalesce(dirty, mergeGap,
+                    maxChunkSize);
+            bytes = 0;
+            for (PageChunk chunk : chunks) {
+                bytes += builder.build(chunk.getOffset(), contents, chunk.getOffset(),
+                        chunk.getCount()).length;
+            }
+            commands = chunks.size();
+        }
+        final double planMicros = (System.nanoTime() - start) / 1000d / REPETITIONS;
+
+        final double linkMillis = bytes * 10 * 1000d / baudRate
+                + Math.max(0, commands - 1) * interWriteDelay;
+        return new double[] {commands, bytes, linkMillis, planMicros};
+    }
+
+    public static void main(String[] args) {
+        final int baudRate = args.length > 0 ? Integer.parseInt(args[0])
+                : EmulatedSocketManager.DEFAULT_BAUD_RATE;
+        final int interWriteDelay = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final PageWriteBenchmark benchmark = new PageWriteBenchmark(baudRate, interWriteDelay);
+        final int mergeGap = DirtyRangeCoalescer.getMergeGap(benchmark.builder.getOverhead(),
+                interWriteDelay, baudRate);
+        final int maxChunkSize = DirtyRangeCoalescer.DEFAULT_MAX_CHUNK_SIZE;
+
+        System.out.printf("Merge gap %d bytes at %d baud with %d ms between writes.%n", mergeGap,
+                baudRate, interWriteDelay);
+        System.out.printf("%-13s %-10s %8s %8s %10s %10s%n", "Edit", "Plan", "Commands", "Bytes",
+                "Link ms", "Plan us");
+        for (int edit = 0; edit < EDITS.length; edit++) {
+            // Run each plan twice, reporting the second, so that plan times are compiled.
+            print(EDITS[edit], "value", benchmark.measure(edit, 0, 1, false),
+                    benchmark.measure(edit, 0, 1, false));
+            print(EDITS[edit], "runs", benchmark.measure(edit, 0, maxChunkSize, false),
+                    benchmark.measure(edit, 0, maxChunkSize, false));
+            print(EDITS[edit], "coalesced", benchmark.measure(edit, mergeGap, maxChunkSize, false),
+                    benchmark.measure(edit, mergeGap, maxChunkSize, false));
+            print(EDITS[edit], "page", benchmark.measure(edit, 0, maxChunkSize, true),
+                    benchmark.measure(edit, 0, maxChunkSize, true));
+        }
+    }
+
+    private static void print(String edit, String plan, double[] warmup, double[] result) {
+        System.out.printf("%-13s %-10s %8.0f %8.0f %10.1f %10.1f%n", edit, plan, result[0],
+                result[1], result[2], result[3]);
+    }
+}
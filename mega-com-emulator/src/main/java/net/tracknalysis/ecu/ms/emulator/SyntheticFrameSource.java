@@ -0,0 +1,68 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+/**
+ * Generates frames in which each byte follows a triangle wave between 0 and 255 with its own
+ * period, so that every channel changes smoothly and no two channels move in step.  The output
+ * depends only on the number of frames generated, making runs repeatable.
+ *
+ * @author David Valeri
+ */
+public class SyntheticFrameSource implements FrameSource {
+
+    /**
+     * The period, in frames, of the first byte.  Each following byte's period is one frame
+     * longer.
+     */
+    private static final int BASE_PERIOD = 64;
+
+    private final int blockSize;
+    private long frameCount;
+
+    public SyntheticFrameSource(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public synchronized void nextFrame(byte[] frame) {
+        final int length = Math.min(blockSize, frame.length);
+        for (int i = 0; i < length; i++) {
+            final int period = BASE_PERIOD + i;
+            final int phase = (int) ((frameCount + i * 7) % period);
+            final int half = period / 2;
+            final int level = phase < half ? phase : period - phase;
+            frame[i] = (byte) (level * 255 / half);
+        }
+        frameCount++;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("SyntheticFrameSource [blockSize=");
+        builder.append(blockSize);
+        builder.append(", frameCount=");
+        builder.append(frameCount);
+        builder.append("]");
+        return builder.toString();
+    }
+}
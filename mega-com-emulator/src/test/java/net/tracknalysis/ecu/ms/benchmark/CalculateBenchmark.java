@@ -0,0 +1,160 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.ecu.ms.AbstractMsController;
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.common.LogRowBuffer;
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+import net.tracknalysis.ecu.ms.emulator.SyntheticFrameSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per sample cost of the generated {@link MsEcu#calculate(byte[])},
+ * {@link MsEcu#calculate(byte[], double[])} and {@link MsEcu#getLogRow(LogRowBuffer)}, fed with
+ * synthetic frames.  Flags and constants are left at their defaults.
+ * <p/>
+ * The {@link SyntheticDefinition}, roughly the size of a current MS3 definition, is generated and
+ * measured unless {@link #signature} names a registered definition.  Generating it requires a
+ * JDK.
+ *
+ * @author David Valeri
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalculateBenchmark {
+
+    private static final int FRAME_COUNT = 256;
+
+    @Param({""})
+    public String signature;
+
+    private File directory;
+    private MsEcu ecu;
+    private byte[][] frames;
+    private double[] values;
+    private final LogRowBuffer buffer = new LogRowBuffer();
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        final BenchmarkController controller = new BenchmarkController();
+        if (signature.length() > 0) {
+            ecu = MsEcuFactory.getInstance().getMegasquirt(signature, controller);
+        } else {
+            directory = File.createTempFile("synthetic", "");
+            directory.delete();
+            directory.mkdirs();
+            ecu = SyntheticDefinition.create(directory, controller);
+        }
+
+        final SyntheticFrameSource frameSource = new SyntheticFrameSource(ecu.getBlockSize());
+        frames = new byte[FRAME_COUNT][ecu.getBlockSize()];
+        for (byte[] frame : frames) {
+            frameSource.nextFrame(frame);
+        }
+        values = new double[ecu.getOutputChannelNames().length];
+        ecu.calculate(frames[0]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (directory != null) {
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    public MsEcu calculate() {
+        ecu.calculate(nextFrame());
+        return ecu;
+    }
+
+    @Benchmark
+    public double[] calculateValues() {
+        ecu.calculate(nextFrame(), values);
+        return values;
+    }
+
+    @Benchmark
+    public int getLogRow() {
+        buffer.reset();
+        ecu.getLogRow(buffer);
+        return buffer.length();
+    }
+
+    private byte[] nextFrame() {
+        final byte[] frame = frames[next];
+        next = (next + 1) % FRAME_COUNT;
+        return frame;
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Satisfies the generated definitions without an ECU.  Pages read as zeros.
+     */
+    private static final class BenchmarkController extends AbstractMsController {
+
+        private final long startTime = System.currentTimeMillis();
+
+        public BenchmarkController() {
+            super(new DefaultTableManager(), new DefaultMsConfiguration(Collections.<String>emptySet()));
+        }
+
+        @Override
+        public double timeNow() {
+            return (System.currentTimeMillis() - startTime) / 1000.0d;
+        }
+
+        @Override
+        public byte[] loadPage(int pageNo, int pageOffset, int pageSize, byte[] select,
+                byte[] read) throws IOException {
+            return new byte[pageSize];
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.ecu.ms.io.Crc32IoProtocolHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each CRC32 envelope operation, original copying implementation against the in-place one.
+ * The request cases wrap a 7 byte OCH read command, the response cases a block of
+ * {@link #blockSize} bytes.
+ *
+ * @author David Valeri
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Crc32Benchmark {
+
+    @Param({"212", "1024"})
+    public int blockSize;
+
+    private final LegacyCrc32IoProtocolHandler legacyHandler = new LegacyCrc32IoProtocolHandler();
+    private final Crc32IoProtocolHandler handler = new Crc32IoProtocolHandler();
+
+    private final byte[] command = new byte[] {'r', 0, 7, 0, 0, 0, (byte) 212};
+    private byte[] wrappedCommand;
+    private byte[] frame;
+    private byte[] naked;
+
+    @Setup
+    public void setUp() {
+        wrappedCommand = new byte[handler.getWrappedRequestLength(command.length)];
+        frame = OchPollBenchmark.response(blockSize);
+        naked = new byte[blockSize];
+    }
+
+    @Benchmark
+    public byte[] legacyWrapRequest() throws IOException {
+        return legacyHandler.wrapRequest(command);
+    }
+
+    @Benchmark
+    public byte[] wrapRequestInPlace() {
+        handler.wrapRequest(command, 0, command.length, wrappedCommand, 0);
+        return wrappedCommand;
+    }
+
+    @Benchmark
+    public boolean legacyCheck() {
+        return legacyHandler.check(frame);
+    }
+
+    @Benchmark
+    public boolean checkInPlace() {
+        return handler.check(frame, 0, frame.length);
+    }
+
+    @Benchmark
+    public byte[] legacyUnwrapResponse() throws IOException {
+        return legacyHandler.unwrapResponse(frame);
+    }
+
+    @Benchmark
+    public byte[] unwrapResponseInPlace() throws IOException {
+        handler.unwrapResponse(frame, 0, frame.length, naked, 0);
+        return naked;
+    }
+
+    @Benchmark
+    public ByteBuffer unwrapResponseView() throws IOException {
+        return handler.unwrapResponseView(frame, 0, frame.length);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.benchmark;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import net.tracknalysis.common.io.IoProtocolHandler;
+import net.tracknalysis.ecu.ms.io.Crc32Exception;
+
+/**
+ * The original, copying, implementation of {@link net.tracknalysis.ecu.ms.io.Crc32IoProtocolHandler}
+ * without logging, kept as the baseline for the benchmarks.
+ *
+ * @author David Valeri
+ */
+final class LegacyCrc32IoProtocolHandler implements IoProtocolHandler {
+
+    private final static int PAYLOAD_LENGTH = 2;
+    private final static int TYPE_LENGTH    = 1;
+    private final static int CRC32_LENGTH   = 4;
+
+    @Override
+    public byte[] wrapRequest(byte[] naked) throws IOException {
+        byte[] wrapped = new byte[getWrappedRequestLength(naked.length)];
+        wrapped[0] = 0;
+        wrapped[1] = (byte) naked.length;
+        System.arraycopy(naked, 0, wrapped, 2, naked.length);
+
+        CRC32 check = new CRC32();
+        check.update(naked);
+
+        long crc32value = check.getValue();
+        int crcIndex = wrapped.length - CRC32_LENGTH;
+        wrapped[crcIndex] = (byte) ((crc32value >> 24) & 0xff);
+        wrapped[crcIndex + 1] = (byte) ((crc32value >> 16) & 0xff);
+        wrapped[crcIndex + 2] = (byte) ((crc32value >> 8) & 0xff);
+        wrapped[crcIndex + 3] = (byte) ((crc32value >> 0) & 0xff);
+
+        return wrapped;
+    }
+
+    @Override
+    public int getWrappedRequestLength(int length) {
+        return PAYLOAD_LENGTH + CRC32_LENGTH + length;
+    }
+
+    @Override
+    public byte[] unwrapResponse(byte[] wrapped) throws IOException {
+        int notDataLength = PAYLOAD_LENGTH + TYPE_LENGTH + CRC32_LENGTH;
+
+        if (wrapped.length < notDataLength) {
+            return wrapped;
+        }
+
+        if (!check(wrapped)) {
+            throw new Crc32Exception();
+        }
+
+        byte[] naked = new byte[wrapped.length - notDataLength];
+        System.arraycopy(wrapped, 3, naked, 0, wrapped.length - notDataLength);
+        return naked;
+    }
+
+    @Override
+    public int getWrappedResponseLength(int length) {
+        return PAYLOAD_LENGTH + TYPE_LENGTH + CRC32_LENGTH + length;
+    }
+
+    public boolean check(byte[] wrapped) {
+        int notDataLength = PAYLOAD_LENGTH + CRC32_LENGTH;
+
+        if (wrapped.length < notDataLength) {
+            return true;
+        }
+
+        byte[] crc32 = new byte[CRC32_LENGTH];
+        System.arraycopy(wrapped, wrapped.length - CRC32_LENGTH, crc32, 0, CRC32_LENGTH);
+
+        byte[] data = new byte[wrapped.length - notDataLength];
+        System.arraycopy(wrapped, 2, data, 0, wrapped.length - notDataLength);
+
+        CRC32 check = new CRC32();
+        check.update(data);
+
+        long crc32value = check.getValue();
+        byte[] crcBytes = new byte[4];
+        crcBytes[0] = (byte) ((crc32value >> 24) & 0xff);
+        crcBytes[1] = (byte) ((crc32value >> 16) & 0xff);
+        crcBytes[2] = (byte) ((crc32value >> 8) & 0xff);
+        crcBytes[3] = (byte) ((crc32value >> 0) & 0xff);
+
+        return crc32[0] == crcBytes[0] && crc32[1] == crcBytes[1] && crc32[2] == crcBytes[2]
+                && crc32[3] == crcBytes[3];
+    }
+}
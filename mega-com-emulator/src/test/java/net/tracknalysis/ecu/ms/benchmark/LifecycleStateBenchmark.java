@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.tracknalysis.ecu.ms.Megasquirt.MegasquirtState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The lifecycle state check made by each pass of the poll loop and by
+ * {@code Megasquirt.isConnected()}.  The legacy methods take the read lock of a fair
+ * {@link ReentrantReadWriteLock}, as {@code Megasquirt} originally did, and the atomic methods
+ * read an {@link AtomicReference}, as it does now.  The contended groups run the poll loop
+ * check alongside three threads calling {@code isConnected()}, as UI and logging threads do.
+ *
+ * @author David Valeri
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LifecycleStateBenchmark {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private MegasquirtState lockedState = MegasquirtState.CONNECTED;
+
+    private final AtomicReference<MegasquirtState> state =
+            new AtomicReference<MegasquirtState>(MegasquirtState.CONNECTED);
+
+    @Benchmark
+    @Group("legacy")
+    public boolean legacyPollCheck() {
+        return legacyIsConnected();
+    }
+
+    @Benchmark
+    @Group("atomic")
+    public boolean atomicPollCheck() {
+        return atomicIsConnected();
+    }
+
+    @Benchmark
+    @Group("legacyContended")
+    @GroupThreads(1)
+    public boolean legacyContendedPollCheck() {
+        return legacyIsConnected();
+    }
+
+    @Benchmark
+    @Group("legacyContended")
+    @GroupThreads(3)
+    public boolean legacyContendedIsConnected() {
+        return legacyIsConnected();
+    }
+
+    @Benchmark
+    @Group("atomicContended")
+    @GroupThreads(1)
+    public boolean atomicContendedPollCheck() {
+        return atomicIsConnected();
+    }
+
+    @Benchmark
+    @Group("atomicContended")
+    @GroupThreads(3)
+    public boolean atomicContendedIsConnected() {
+        return atomicIsConnected();
+    }
+
+    private boolean legacyIsConnected() {
+        lock.readLock().lock();
+        try {
+            return lockedState == MegasquirtState.CONNECTED;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean atomicIsConnected() {
+        return state.get() == MegasquirtState.CONNECTED;
+    }
+}
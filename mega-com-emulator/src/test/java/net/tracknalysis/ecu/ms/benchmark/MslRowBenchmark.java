@@ -0,0 +1,174 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.ecu.ms.AbstractMsController;
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.common.LogRowBuffer;
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.ecu.EcuRegistry;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactoryException;
+import net.tracknalysis.ecu.ms.emulator.SyntheticFrameSource;
+import net.tracknalysis.ecu.ms.log.MslLog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MSL rows per second, formatted the original way through the {@link StringBuffer} based
+ * {@link MsEcu#getLogRow()} and a UTF-8 {@link String} conversion, and the current way through
+ * {@link MslLog#writeRow(MsEcu, LogRowBuffer, OutputStream)}.  Rows are written to a stream that
+ * discards them, so only formatting is measured.  Each operation formats the row of the next of
+ * {@link #FRAME_COUNT} synthetic frames, calculated up front.
+ * <p/>
+ * The definition with the most output channels is used unless {@link #signature} names one.
+ *
+ * @author David Valeri
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MslRowBenchmark {
+
+    private static final int FRAME_COUNT = 64;
+
+    @Param({""})
+    public String signature;
+
+    private final LogRowBuffer rowBuffer = new LogRowBuffer();
+    private final NullOutputStream out = new NullOutputStream();
+    private MsEcu[] ecus;
+    private int ecuIndex;
+
+    @Setup
+    public void setUp() throws Exception {
+        // One definition per frame so that formatting is not measured on a single set of values.
+        ecus = new MsEcu[FRAME_COUNT];
+        ecus[0] = createEcu(signature);
+        final SyntheticFrameSource frameSource =
+                new SyntheticFrameSource(ecus[0].getBlockSize());
+        final byte[] frame = new byte[ecus[0].getBlockSize()];
+        for (int i = 0; i < ecus.length; i++) {
+            if (i > 0) {
+                ecus[i] = MsEcuFactory.getInstance().getMegasquirt(ecus[0].getSignature(),
+                        new BenchmarkController());
+            }
+            frameSource.nextFrame(frame);
+            ecus[i].calculate(frame);
+        }
+    }
+
+    @Benchmark
+    public long stringRow() throws IOException {
+        out.write((nextEcu().getLogRow() + "\r\n").getBytes("UTF-8"));
+        return out.count;
+    }
+
+    @Benchmark
+    public long bufferRow() throws IOException {
+        MslLog.writeRow(nextEcu(), rowBuffer, out);
+        return out.count;
+    }
+
+    private MsEcu nextEcu() {
+        ecuIndex = (ecuIndex + 1) % ecus.length;
+        return ecus[ecuIndex];
+    }
+
+    private static MsEcu createEcu(String signature) throws MsEcuFactoryException {
+        final BenchmarkController controller = new BenchmarkController();
+        if (signature.length() > 0) {
+            return MsEcuFactory.getInstance().getMegasquirt(signature, controller);
+        }
+
+        final List<String> signatures = new ArrayList<String>(EcuRegistry.INSTANCE.getSignatures());
+        Collections.sort(signatures);
+        MsEcu widest = null;
+        for (String candidate : signatures) {
+            final MsEcu ecu = MsEcuFactory.getInstance().getMegasquirt(candidate, controller);
+            if (widest == null
+                    || ecu.getOutputChannelNames().length > widest.getOutputChannelNames().length) {
+                widest = ecu;
+            }
+        }
+        if (widest == null) {
+            throw new IllegalStateException("No ECU definitions are registered.");
+        }
+        return widest;
+    }
+
+    /**
+     * Counts and discards what is written to it.
+     */
+    private static final class NullOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * Satisfies the generated definitions without an ECU.  Pages read as zeros.
+     */
+    private static final class BenchmarkController extends AbstractMsController {
+
+        private final long startTime = System.currentTimeMillis();
+
+        public BenchmarkController() {
+            super(new DefaultTableManager(), new DefaultMsConfiguration(Collections.<String>emptySet()));
+        }
+
+        @Override
+        public double timeNow() {
+            return (System.currentTimeMillis() - startTime) / 1000.0d;
+        }
+
+        @Override
+        public byte[] loadPage(int pageNo, int pageOffset, int pageSize, byte[] select,
+                byte[] read) throws IOException {
+            return new byte[pageSize];
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import net.tracknalysis.ecu.ms.io.Crc32IoProtocolHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The client side of a CRC32 OCH poll, from a received frame to the block handed to
+ * {@code MsEcu.calculate}.  {@link #allocatingPoll()} is the original path, which allocated a
+ * block and a receive buffer per poll and unwrapped with the copying handler.
+ * {@link #reusedPoll()} is the current path, which receives into one frame and unwraps it in
+ * place into alternating blocks with the same call as {@code Megasquirt}.  Run with
+ * {@code -prof gc} to see the bytes allocated per poll.  {@code PollAllocationTest} measures the
+ * whole logging loop against the emulator.
+ *
+ * @author David Valeri
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OchPollBenchmark {
+
+    @Param({"212", "1024"})
+    public int blockSize;
+
+    private final LegacyCrc32IoProtocolHandler legacyHandler = new LegacyCrc32IoProtocolHandler();
+    private final Crc32IoProtocolHandler handler = new Crc32IoProtocolHandler();
+
+    private byte[] frame;
+    private byte[] frameBuffer;
+    private byte[][] blocks;
+    private int blockIndex;
+
+    @Setup
+    public void setUp() {
+        frame = response(blockSize);
+        frameBuffer = new byte[frame.length];
+        blocks = new byte[][] {new byte[blockSize], new byte[blockSize]};
+    }
+
+    @Benchmark
+    public byte[] allocatingPoll() throws IOException {
+        final byte[] block = new byte[blockSize];
+        final byte[] received = new byte[legacyHandler.getWrappedResponseLength(block.length)];
+        System.arraycopy(frame, 0, received, 0, received.length);
+        return legacyHandler.unwrapResponse(received);
+    }
+
+    @Benchmark
+    public byte[] reusedPoll() throws IOException {
+        System.arraycopy(frame, 0, frameBuffer, 0, frameBuffer.length);
+        blockIndex = (blockIndex + 1) % blocks.length;
+        final byte[] block = blocks[blockIndex];
+        handler.unwrapResponse(frameBuffer, 0, frameBuffer.length, block, 0);
+        return block;
+    }
+
+    /**
+     * Returns an OK response carrying {@code length} random bytes, as sent by the ECU.
+     */
+    static byte[] response(int length) {
+        final byte[] frame = new byte[length + 7];
+        frame[0] = (byte) ((length + 1) >> 8);
+        frame[1] = (byte) (length + 1);
+        frame[2] = 0;
+        final byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        System.arraycopy(payload, 0, frame, 3, length);
+
+        final CRC32 crc32 = new CRC32();
+        crc32.update(frame, 2, length + 1);
+        final long value = crc32.getValue();
+        frame[frame.length - 4] = (byte) (value >> 24);
+        frame[frame.length - 3] = (byte) (value >> 16);
+        frame[frame.length - 2] = (byte) (value >> 8);
+        frame[frame.length - 1] = (byte) value;
+        return frame;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.ecu.ms.AbstractMsController;
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.common.OutputChannel;
+import net.tracknalysis.ecu.ms.ecu.EcuRegistry;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactoryException;
+import net.tracknalysis.ecu.ms.emulator.SyntheticFrameSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One dashboard sample of {@link #channelCount} output channels, read reflectively as
+ * {@link OutputChannel#getValue()} did before the normaliser generated accessors, through the
+ * generated {@code getOutputChannelValue(int)} switch.  {@link #bulkRead()} reads every channel
+ * of the definition at once through {@link MsEcu#getOutputChannelValues(double[])}.  Multiply the time per operation by the sample
+ * rate, e.g. 50 Hz, for the cost per second.
+ * <p/>
+ * The definition with the most output channels is used unless {@link #signature} names one.
+ * Definitions with fewer channels than requested are read in full.
+ *
+ * @author David Valeri
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputChannelReadBenchmark {
+
+    @Param({""})
+    public String signature;
+
+    @Param({"200"})
+    public int channelCount;
+
+    private OutputChannel[] reflectiveChannels;
+    private OutputChannel[] generatedChannels;
+    private MsEcu ecu;
+    private double[] values;
+
+    @Setup
+    public void setUp() throws Exception {
+        ecu = createEcu(signature);
+
+        final byte[] frame = new byte[ecu.getBlockSize()];
+        new SyntheticFrameSource(frame.length).nextFrame(frame);
+        ecu.calculate(frame);
+
+        final List<OutputChannel> reflective = new ArrayList<OutputChannel>();
+        final List<OutputChannel> generated = new ArrayList<OutputChannel>();
+        for (String name : ecu.getOutputChannelNames()) {
+            if (generated.size() == channelCount) {
+                break;
+            }
+            final OutputChannel channel = ecu.getOutputChannelByName(name);
+            generated.add(channel);
+            // No index makes the channel look up and read its field reflectively.
+            reflective.add(new OutputChannel(channel.getName(), channel.getType(),
+                    channel.getOffset(), channel.getUnits(), channel.getScale(),
+                    channel.getTranslate(), channel.getSource()));
+        }
+
+        reflectiveChannels = reflective.toArray(new OutputChannel[reflective.size()]);
+        generatedChannels = generated.toArray(new OutputChannel[generated.size()]);
+        values = new double[ecu.getOutputChannelNames().length];
+    }
+
+    @Benchmark
+    public double reflectiveRead() {
+        double sum = 0;
+        for (OutputChannel channel : reflectiveChannels) {
+            sum += channel.getValue();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double generatedRead() {
+        double sum = 0;
+        for (OutputChannel channel : generatedChannels) {
+            sum += channel.getValue();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double[] bulkRead() {
+        ecu.getOutputChannelValues(values);
+        return values;
+    }
+
+    private static MsEcu createEcu(String signature) throws MsEcuFactoryException {
+        final BenchmarkController controller = new BenchmarkController();
+        if (signature.length() > 0) {
+            return MsEcuFactory.getInstance().getMegasquirt(signature, controller);
+        }
+
+        final List<String> signatures = new ArrayList<String>(EcuRegistry.INSTANCE.getSignatures());
+        Collections.sort(signatures);
+        MsEcu widest = null;
+        for (String candidate : signatures) {
+            final MsEcu ecu = MsEcuFactory.getInstance().getMegasquirt(candidate, controller);
+            if (widest == null
+                    || ecu.getOutputChannelNames().length > widest.getOutputChannelNames().length) {
+                widest = ecu;
+            }
+        }
+        if (widest == null) {
+            throw new IllegalStateException("No ECU definitions are registered.");
+        }
+        return widest;
+    }
+
+    /**
+     * Satisfies the generated definitions without an ECU.  Pages read as zeros.
+     */
+    private static final class BenchmarkController extends AbstractMsController {
+
+        private final long startTime = System.currentTimeMillis();
+
+        public BenchmarkController() {
+            super(new DefaultTableManager(), new DefaultMsConfiguration(Collections.<String>emptySet()));
+        }
+
+        @Override
+        public double timeNow() {
+            return (System.currentTimeMillis() - startTime) / 1000.0d;
+        }
+
+        @Override
+        public byte[] loadPage(int pageNo, int pageOffset, int pageSize, byte[] select,
+                byte[] read) throws IOException {
+            return new byte[pageSize];
+        }
+    }
+}
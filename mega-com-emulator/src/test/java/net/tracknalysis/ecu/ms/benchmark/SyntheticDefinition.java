@@ -0,0 +1,217 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import net.tracknalysis.ecu.ms.common.MsController;
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.normaliser.Normaliser;
+
+/**
+ * An INI file roughly the size of a current MS3 definition, for measuring the generated
+ * per-sample methods when no such INI is registered.  It has {@link #CHANNEL_COUNT} scalar output
+ * channels at random offsets, every {@link #PREPROCESSOR_INTERVAL}th of them declared in a
+ * preprocessor block, {@link #EXPRESSION_COUNT} expressions over the channels and earlier
+ * expressions, and a log entry for every other channel and expression.  The content is fixed by
+ * a seed, so every run measures the same definition.
+ * <p/>
+ * {@link #create(File, MsController)} runs the normaliser on the INI, compiles the generated
+ * class and loads it.  Run {@link #main(String[])} to write the INI alone, e.g. to generate it
+ * with the other INIs.
+ *
+ * @author David Valeri
+ */
+public final class SyntheticDefinition {
+
+    public static final String SIGNATURE = "MS3 Format Synthetic";
+
+    public static final int BLOCK_SIZE = 400;
+    public static final int CHANNEL_COUNT = 700;
+    public static final int EXPRESSION_COUNT = 300;
+    public static final int PREPROCESSOR_INTERVAL = 40;
+
+    private static final String FILE_NAME = "Synthetic.ini";
+    private static final String PACKAGE = "net.tracknalysis.ecu.ms.ecu";
+    private static final long SEED = 1;
+
+    private static final String[] TYPES = {"U08", "S16", "U16"};
+    private static final String[] SCALES = {"0.001", "0.010", "0.100", "1.000"};
+    private static final String[] TRANSLATES = {"-40.0", "0.0"};
+
+    private SyntheticDefinition() {
+    }
+
+    /**
+     * Writes the INI to {@code file}.
+     */
+    public static void write(File file) throws IOException {
+        final Random random = new Random(SEED);
+        final PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            writer.println("[MegaTune]");
+            writer.println("   queryCommand = \"Q\"");
+            writer.println("   signature = \"" + SIGNATURE + "\"");
+            writer.println();
+            writer.println("[Constants]");
+            writer.println("   pageActivationDelay = 50");
+            writer.println("   interWriteDelay = 5");
+            writer.println("   pageSize = 1024, 1024");
+            writer.println("   pageIdentifier = \"\\x00\\x04\", \"\\x00\\x05\"");
+            writer.println("   pageReadCommand = \"r\\x00\\x04%2o%2c\", \"r\\x00\\x05%2o%2c\"");
+            writer.println("   crc32CheckCommand = \"k\\x00\\x04\\x00\\x00\\x00\\x04\", "
+                    + "\"k\\x00\\x05\\x00\\x00\\x00\\x04\"");
+            writer.println("   pageValueWrite = \"w\\x00\\x04%2o%2c%v\", \"w\\x00\\x05%2o%2c%v\"");
+            writer.println("   pageChunkWrite = \"w\\x00\\x04%2o%2c%v\", \"w\\x00\\x05%2o%2c%v\"");
+            writer.println("page = 1");
+            writer.println("   nCylinders = bits, U08, 0, [0:3+1]");
+            writer.println("   reqFuel = scalar, U16, 2, \"ms\", 0.001, 0, 0, 25.5, 3");
+            writer.println("   veTable = array, U08, 4, [4x4], \"%\", 1.0, 0, 0, 255, 0");
+            writer.println("#if CELSIUS");
+            writer.println("   cltlim = scalar, S16, 20, \"C\", 0.1, 0, -40, 300, 1");
+            writer.println("#else");
+            writer.println("   cltlim = scalar, S16, 20, \"F\", 0.1, 0, -40, 570, 1");
+            writer.println("#endif");
+            writer.println("page = 2");
+            writer.println("   divider = scalar, U08, 0, \"\", 1, 0, 0, 255, 0");
+            writer.println("   rpmBins = array, U16, 2, [4], \"rpm\", 1.0, 0, 0, 15000, 0");
+            writer.println();
+            writer.println("[OutputChannels]");
+            writer.println("   ochGetCommand = \"r\\x00\\x07%2o%2c\"");
+            writer.println("   ochBlockSize = " + BLOCK_SIZE);
+            for (int i = 0; i < CHANNEL_COUNT; i++) {
+                final String type = TYPES[random.nextInt(TYPES.length)];
+                final int size = type.equals("U08") ? 1 : 2;
+                final String channel = "   ch" + i + " = scalar, " + type + ", "
+                        + random.nextInt(BLOCK_SIZE - size + 1) + ", \"u\", "
+                        + SCALES[random.nextInt(SCALES.length)] + ", "
+                        + TRANSLATES[random.nextInt(TRANSLATES.length)];
+                if (i % PREPROCESSOR_INTERVAL == 0) {
+                    writer.println("#if CELSIUS");
+                    writer.println(channel);
+                    writer.println("#else");
+                    writer.println(channel);
+                    writer.println("#endif");
+                } else {
+                    writer.println(channel);
+                }
+            }
+            for (int i = 0; i < EXPRESSION_COUNT; i++) {
+                writer.println("   ex" + i + " = { (" + operand(random, i) + " * 1.5 + "
+                        + operand(random, i) + ") / (" + operand(random, i) + " + 1) }");
+            }
+            writer.println();
+            writer.println("[Datalog]");
+            for (int i = 0; i < CHANNEL_COUNT; i += 2) {
+                writer.println("   entry = ch" + i + ", \"CH" + i + "\", float, \"%.1f\"");
+            }
+            for (int i = 0; i < EXPRESSION_COUNT; i += 2) {
+                writer.println("   entry = ex" + i + ", \"EX" + i + "\", float, \"%.1f\"");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Generates, compiles and loads the definition in {@code directory}, which should be empty.
+     * Compiling requires a JDK.  The class is loaded by a child of the class loader of this
+     * class, so it is not registered with {@code EcuRegistry}.
+     */
+    public static MsEcu create(File directory, MsController controller) throws Exception {
+        final File ini = new File(directory, FILE_NAME);
+        write(ini);
+        final File list = new File(directory, "generationList.txt");
+        final PrintWriter writer = new PrintWriter(new FileWriter(list));
+        try {
+            writer.println(FILE_NAME);
+        } finally {
+            writer.close();
+        }
+
+        final File sources = new File(directory, "src");
+        Normaliser.main(new String[] {list.getPath(), sources.getPath()});
+
+        final File[] generated = new File(sources, PACKAGE.replace('.', '/')).listFiles();
+        final List<String> arguments = new ArrayList<String>();
+        arguments.add("-nowarn");
+        arguments.add("-encoding");
+        arguments.add("Cp1252");
+        arguments.add("-classpath");
+        arguments.add(System.getProperty("java.class.path"));
+        arguments.add("-d");
+        final File classes = new File(directory, "classes");
+        classes.mkdirs();
+        arguments.add(classes.getPath());
+        String className = null;
+        for (File file : generated) {
+            if (!file.getName().equals("EcuRegistry.java")) {
+                arguments.add(file.getPath());
+                className = PACKAGE + "." + file.getName().replace(".java", "");
+            }
+        }
+        if (className == null) {
+            throw new IllegalStateException("The normaliser generated no definition from '"
+                    + ini.getAbsolutePath() + "'.");
+        }
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Compiling the synthetic definition requires a JDK.");
+        }
+        if (compiler.run(null, null, null, arguments.toArray(new String[arguments.size()])) != 0) {
+            throw new IllegalStateException("Error compiling the synthetic definition generated in '"
+                    + sources.getAbsolutePath() + "'.");
+        }
+
+        final URLClassLoader loader = new URLClassLoader(new URL[] {classes.toURI().toURL()},
+                SyntheticDefinition.class.getClassLoader());
+        return loader.loadClass(className).asSubclass(MsEcu.class)
+                .getConstructor(MsController.class).newInstance(controller);
+    }
+
+    /**
+     * Writes the INI to the file named by the first argument.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SyntheticDefinition <ini file>");
+            System.exit(1);
+        }
+        write(new File(args[0]));
+    }
+
+    /**
+     * Returns a random channel or, one time in five, an earlier expression.
+     */
+    private static String operand(Random random, int expression) {
+        if (expression > 0 && random.nextInt(5) == 0) {
+            return "ex" + random.nextInt(expression);
+        }
+        return "ch" + random.nextInt(CHANNEL_COUNT);
+    }
+}
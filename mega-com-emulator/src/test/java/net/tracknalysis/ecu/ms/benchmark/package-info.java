@@ -0,0 +1,27 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * JMH microbenchmarks.  Run them from the emulator module with:
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main \
+ *     -Dexec.args="[benchmark regex] [JMH options, e.g. -prof gc]"
+ * </pre>
+ * 
+ * Several benchmarks compare against copies of the original implementations so that the
+ * improvement stays measurable after the original code is gone.
+ */
+package net.tracknalysis.ecu.ms.benchmark;
@@ -0,0 +1,297 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.tracknalysis.common.io.IoManager;
+import net.tracknalysis.common.io.IoManagerResult;
+import net.tracknalysis.ecu.ms.AbstractMsController;
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+import net.tracknalysis.ecu.ms.io.CaptureIoManager;
+import net.tracknalysis.ecu.ms.io.Crc32Exception;
+import net.tracknalysis.ecu.ms.io.Crc32IoProtocolHandler;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+import net.tracknalysis.ecu.ms.io.ReplayIoManager;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Captures a session with an {@link EcuEmulator}, including an injected timeout and CRC failure,
+ * and checks that {@link ReplayIoManager} plays back the same calls, responses and errors.
+ *
+ * @author David Valeri
+ */
+public class CaptureReplayTest {
+
+    private static final long READ_TIMEOUT = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplayMatchesCapture() throws Exception {
+        final Session session = createSession();
+        final File file = folder.newFile("session.cap");
+
+        final EmulatedSocketManager socketManager = new EmulatedSocketManager(
+                new EcuEmulator(session.ecu.getSignature()), new Random(1));
+        socketManager.setBaudRate(10000000);
+        socketManager.setReadTimeout(READ_TIMEOUT);
+        final CaptureIoManager capture = new CaptureIoManager(new MsIoManager(socketManager), file);
+        final List<Outcome> captured = session.run(capture, socketManager);
+        capture.close();
+
+        assertEquals(SocketTimeoutException.class.getName(), captured.get(Session.TIMEOUT).error);
+        assertEquals(Crc32Exception.class.getName(), captured.get(Session.CRC_FAILURE).error);
+        assertEquals(1, socketManager.getDroppedCount());
+        assertEquals(1, socketManager.getCorruptedCount());
+        assertEquals(captured.size(), capture.getRecordCount());
+
+        final ReplayIoManager replay = new ReplayIoManager(file, false);
+        final List<Outcome> replayed = session.run(replay, null);
+
+        assertEquals(captured.size(), replayed.size());
+        for (int i = 0; i < captured.size(); i++) {
+            final Outcome expected = captured.get(i);
+            final Outcome actual = replayed.get(i);
+            assertEquals("Call " + i + ".", expected.call, actual.call);
+            assertEquals("Error of call " + i + ".", expected.error, actual.error);
+            assertArrayEquals("Response of call " + i + ".", expected.response, actual.response);
+        }
+        assertTrue(replay.isFinished());
+        assertEquals(0, replay.getDivergenceCount());
+    }
+
+    @Test
+    public void testReplayDetectsDivergence() throws Exception {
+        final Session session = createSession();
+        final File file = folder.newFile("session.cap");
+
+        final EmulatedSocketManager socketManager = new EmulatedSocketManager(
+                new EcuEmulator(session.ecu.getSignature()), new Random(1));
+        socketManager.setBaudRate(10000000);
+        socketManager.setReadTimeout(READ_TIMEOUT);
+        final CaptureIoManager capture = new CaptureIoManager(new MsIoManager(socketManager), file);
+        session.run(capture, socketManager);
+        capture.close();
+
+        final ReplayIoManager replay = new ReplayIoManager(file, false);
+        replay.connect();
+        replay.flushAll();
+
+        // Different bytes from the captured OCH request.
+        try {
+            replay.write(session.handler.wrapRequest(session.ecu.getSigCommand()), null);
+            fail("Expected the replay to diverge.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Replay diverged"));
+        }
+        assertEquals(1, replay.getDivergenceCount());
+
+        // A different call from the captured write.
+        try {
+            replay.disconnect();
+            fail("Expected the replay to diverge.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Replay diverged"));
+        }
+        assertEquals(2, replay.getDivergenceCount());
+
+        // Diverging calls are not consumed, so the captured call still replays.
+        assertEquals(2, replay.getReplayedCount());
+        replay.write(session.command, null);
+        assertEquals(3, replay.getReplayedCount());
+    }
+
+    private static Session createSession() throws Exception {
+        final String signature = EmulatorTestSupport.getSignature(true);
+        assumeTrue(new EcuEmulator(signature).isCrc32Protocol());
+        return new Session(MsEcuFactory.getInstance().getMegasquirt(signature,
+                new TestController()));
+    }
+
+    /**
+     * A fixed sequence of calls polling the OCH block, with a dropped and a corrupted response
+     * injected into the link, if there is one, at {@link #TIMEOUT} and {@link #CRC_FAILURE}.
+     */
+    private static final class Session {
+
+        static final int TIMEOUT = 5;
+        static final int CRC_FAILURE = 8;
+
+        private final MsEcu ecu;
+        private final Crc32IoProtocolHandler handler = new Crc32IoProtocolHandler();
+        private final byte[] command;
+        private final byte[] frame;
+
+        Session(MsEcu ecu) throws IOException {
+            this.ecu = ecu;
+            command = handler.wrapRequest(ecu.getOchCommand());
+            frame = new byte[handler.getWrappedResponseLength(ecu.getBlockSize())];
+        }
+
+        List<Outcome> run(IoManager ioManager, EmulatedSocketManager link) {
+            final List<Outcome> outcomes = new ArrayList<Outcome>();
+            outcomes.add(connect(ioManager));
+            outcomes.add(flush(ioManager));
+
+            outcomes.add(write(ioManager));
+            outcomes.add(read(ioManager));
+
+            if (link != null) {
+                link.setDropRate(1);
+            }
+            outcomes.add(write(ioManager));
+            outcomes.add(read(ioManager));
+            if (link != null) {
+                link.setDropRate(0);
+                link.setCorruptionRate(1);
+            }
+            outcomes.add(flush(ioManager));
+
+            outcomes.add(write(ioManager));
+            outcomes.add(unwrap(ioManager));
+            if (link != null) {
+                link.setCorruptionRate(0);
+            }
+
+            outcomes.add(write(ioManager));
+            outcomes.add(unwrap(ioManager));
+
+            outcomes.add(disconnect(ioManager));
+            return outcomes;
+        }
+
+        private Outcome connect(IoManager ioManager) {
+            final Outcome outcome = new Outcome("connect");
+            try {
+                ioManager.connect();
+            } catch (IOException e) {
+                outcome.error = e.getClass().getName();
+            }
+            return outcome;
+        }
+
+        private Outcome flush(IoManager ioManager) {
+            final Outcome outcome = new Outcome("flushAll");
+            try {
+                ioManager.flushAll();
+            } catch (IOException e) {
+                outcome.error = e.getClass().getName();
+            }
+            return outcome;
+        }
+
+        private Outcome write(IoManager ioManager) {
+            final Outcome outcome = new Outcome("write");
+            try {
+                ioManager.write(command, null);
+            } catch (IOException e) {
+                outcome.error = e.getClass().getName();
+            }
+            return outcome;
+        }
+
+        /**
+         * Reads the raw frame, as the poll loop does.
+         */
+        private Outcome read(IoManager ioManager) {
+            final Outcome outcome = new Outcome("read");
+            try {
+                final IoManagerResult result = ioManager.read(frame, READ_TIMEOUT, null);
+                outcome.response = result.getResult().clone();
+            } catch (IOException e) {
+                outcome.error = e.getClass().getName();
+            }
+            return outcome;
+        }
+
+        /**
+         * Reads the OCH block through the protocol handler, which fails on a CRC mismatch.
+         */
+        private Outcome unwrap(IoManager ioManager) {
+            final Outcome outcome = new Outcome("unwrap");
+            try {
+                final IoManagerResult result = ioManager.read(new byte[ecu.getBlockSize()],
+                        READ_TIMEOUT, handler);
+                outcome.response = result.getResult().clone();
+            } catch (IOException e) {
+                outcome.error = e.getClass().getName();
+            }
+            return outcome;
+        }
+
+        private Outcome disconnect(IoManager ioManager) {
+            final Outcome outcome = new Outcome("disconnect");
+            try {
+                ioManager.disconnect();
+            } catch (IOException e) {
+                outcome.error = e.getClass().getName();
+            }
+            return outcome;
+        }
+    }
+
+    private static final class Outcome {
+
+        private final String call;
+        private String error;
+        private byte[] response;
+
+        Outcome(String call) {
+            this.call = call;
+        }
+    }
+
+    /**
+     * Satisfies the firmware definition without an ECU.
+     */
+    private static final class TestController extends AbstractMsController {
+
+        public TestController() {
+            super(new DefaultTableManager(), new DefaultMsConfiguration(Collections.<String>emptySet()));
+        }
+
+        @Override
+        public double timeNow() {
+            return 0;
+        }
+
+        @Override
+        public byte[] loadPage(int pageNo, int pageOffset, int pageSize, byte[] select,
+                byte[] read) throws IOException {
+            return new byte[pageSize];
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.ecu.ms.PageLoadTiming;
+
+import org.junit.Test;
+
+/**
+ * Checks the per page timings reported for loading constants on connect.
+ *
+ * @author David Valeri
+ */
+public class ConstantsLoadTimingTest {
+
+    @Test
+    public void testTimingReportedForEachPage() throws Exception {
+        runConnect(EmulatorTestSupport.getSignature(false));
+    }
+
+    @Test
+    public void testCrc32TimingReportedForEachPage() throws Exception {
+        runConnect(EmulatorTestSupport.getSignature(true));
+    }
+
+    private void runConnect(String signature) throws Exception {
+        final EcuEmulator emulator = new EcuEmulator(signature);
+        final EmulatedSocketManager socketManager = new EmulatedSocketManager(emulator);
+        final EmulatorHarness harness = new EmulatorHarness(socketManager);
+        harness.run(0, TimeUnit.SECONDS);
+
+        final int[] pageNumbers = emulator.getPageNumbers();
+        final List<PageLoadTiming> timings = harness.getConstantsLoadTimings();
+        assertEquals("Timings for " + signature + ".", pageNumbers.length, timings.size());
+
+        long fetchNanos = 0;
+        for (int i = 0; i < pageNumbers.length; i++) {
+            final PageLoadTiming timing = timings.get(i);
+            assertEquals("Page number.", pageNumbers[i], timing.getPageNo());
+            assertTrue("Fetch time of " + timing + ".", timing.getFetchNanos() > 0);
+            assertTrue("Decode time of " + timing + ".", timing.getDecodeNanos() >= 0);
+            fetchNanos += timing.getFetchNanos();
+        }
+
+        // The pages cannot have been read faster than the emulated line carries them.
+        long pageBytes = 0;
+        for (int pageNo : pageNumbers) {
+            pageBytes += emulator.getPage(pageNo).length;
+        }
+        assertTrue("Fetch time " + fetchNanos + " ns for " + pageBytes + " bytes.",
+                fetchNanos >= pageBytes * 10 * 1000000000L / EmulatedSocketManager.DEFAULT_BAUD_RATE);
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.common.notification.NotificationListener;
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.Megasquirt;
+import net.tracknalysis.ecu.ms.MegasquirtNotificationType;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+import net.tracknalysis.ecu.ms.log.Log;
+import net.tracknalysis.ecu.ms.log.NoOpLog;
+import net.tracknalysis.ecu.ms.ecu.EcuRegistry;
+
+/**
+ * Helpers for tests that run a {@link Megasquirt} against an {@link EcuEmulator}.  The firmware
+ * definitions available depend on the INI files the build generated classes from, so tests are
+ * skipped when there are none.
+ *
+ * @author David Valeri
+ */
+final class EmulatorTestSupport {
+
+    static final long TIMEOUT_SECONDS = 30;
+
+    private EmulatorTestSupport() {
+    }
+
+    /**
+     * Returns the signature of a registered firmware definition, preferring one that uses the
+     * CRC32 protocol if {@code crc32} is true, or skips the calling test if there is none.
+     */
+    static String getSignature(boolean crc32) throws Exception {
+        final List<String> signatures = new ArrayList<String>(EcuRegistry.INSTANCE.getSignatures());
+        assumeTrue(!signatures.isEmpty());
+        Collections.sort(signatures);
+
+        for (String signature : signatures) {
+            if (new EcuEmulator(signature).isCrc32Protocol() == crc32) {
+                return signature;
+            }
+        }
+        return signatures.get(0);
+    }
+
+    static Megasquirt newMegasquirt(EmulatedSocketManager socketManager) {
+        return newMegasquirt(socketManager, new NoOpLog());
+    }
+
+    static Megasquirt newMegasquirt(EmulatedSocketManager socketManager, Log log) {
+        return new Megasquirt(new MsIoManager(socketManager), new DefaultTableManager(), log,
+                new DefaultMsConfiguration(Collections.<String>emptySet()), null);
+    }
+
+    /**
+     * Starts {@code ms} and waits for it to connect.
+     */
+    static void connect(Megasquirt ms) throws InterruptedException {
+        final CountDownLatch connected = await(ms, MegasquirtNotificationType.CONNECTED);
+        ms.start();
+        assertTrue("Failed to connect.", connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Stops {@code ms} and waits for it to disconnect.
+     */
+    static void disconnect(Megasquirt ms) throws InterruptedException {
+        final CountDownLatch disconnected = await(ms, MegasquirtNotificationType.DISCONNECTED);
+        ms.stop();
+        assertTrue("Failed to disconnect.", disconnected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Returns a latch released the first time {@code ms} sends {@code type}.
+     */
+    static CountDownLatch await(Megasquirt ms, final MegasquirtNotificationType type) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        ms.addListener(new NotificationListener<MegasquirtNotificationType>() {
+            @Override
+            public void handleNotification(MegasquirtNotificationType notificationType, Object body) {
+                if (notificationType == type) {
+                    latch.countDown();
+                }
+            }
+        });
+        return latch;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.Megasquirt;
+import net.tracknalysis.ecu.ms.MegasquirtHub;
+import net.tracknalysis.ecu.ms.MegasquirtNotificationType;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+import net.tracknalysis.ecu.ms.log.NoOpLog;
+
+import org.junit.Test;
+
+/**
+ * Runs several emulated ECU sessions on a {@link MegasquirtHub} and checks that shutting the hub
+ * down disconnects every session before the pool goes away.
+ *
+ * @author David Valeri
+ */
+public class MegasquirtHubTest {
+
+    private static final int SESSIONS = 3;
+
+    @Test
+    public void testShutdownDisconnectsPollingSessions() throws Exception {
+        final String signature = EmulatorTestSupport.getSignature(false);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final MegasquirtHub hub = new MegasquirtHub(executor);
+
+        final List<CountDownLatch> disconnects = new ArrayList<CountDownLatch>();
+        for (int i = 0; i < SESSIONS; i++) {
+            final Megasquirt ms = createSession(hub, signature);
+            EmulatorTestSupport.connect(ms);
+            ms.startLogging();
+            disconnects.add(EmulatorTestSupport.await(ms, MegasquirtNotificationType.DISCONNECTED));
+        }
+        assertEquals("Connected sessions.", SESSIONS, hub.getConnectedCount());
+
+        final List<Megasquirt> sessions = new ArrayList<Megasquirt>(hub.getSessions());
+        hub.shutdown(EmulatorTestSupport.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        for (int i = 0; i < SESSIONS; i++) {
+            // Counted down before shutdown returned, so no waiting is needed.
+            assertEquals("Session " + i + " disconnected.", 0, disconnects.get(i).getCount());
+            assertEquals("Session " + i + " state.", Megasquirt.MegasquirtState.DISCONNECTED,
+                    sessions.get(i).getState());
+        }
+        assertEquals("Sessions left.", 0, hub.getSessionCount());
+    }
+
+    @Test
+    public void testShutdownOwnedPoolAfterDisconnect() throws Exception {
+        final MegasquirtHub hub = new MegasquirtHub(1);
+        final Megasquirt idle = createSession(hub, EmulatorTestSupport.getSignature(false));
+        final Megasquirt connected = createSession(hub, EmulatorTestSupport.getSignature(false));
+        EmulatorTestSupport.connect(connected);
+        final CountDownLatch disconnected =
+                EmulatorTestSupport.await(connected, MegasquirtNotificationType.DISCONNECTED);
+
+        final long start = System.nanoTime();
+        hub.shutdown(EmulatorTestSupport.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        // The idle session sends no notification and must not hold up the shutdown.
+        assertTrue("Shutdown waited for the timeout.",
+                System.nanoTime() - start < TimeUnit.SECONDS.toNanos(EmulatorTestSupport.TIMEOUT_SECONDS));
+        assertEquals("Connected session disconnected.", 0, disconnected.getCount());
+        assertEquals(Megasquirt.MegasquirtState.DISCONNECTED, idle.getState());
+        assertEquals("Failed commands.", 0, hub.getFailedCommandCount());
+    }
+
+    private static Megasquirt createSession(MegasquirtHub hub, String signature)
+            throws Exception {
+        final EmulatedSocketManager socketManager =
+                new EmulatedSocketManager(new EcuEmulator(signature));
+        socketManager.setBaudRate(1000000);
+        return hub.createSession(new MsIoManager(socketManager), new DefaultTableManager(),
+                new NoOpLog(), new DefaultMsConfiguration(Collections.<String>emptySet()), null);
+    }
+}
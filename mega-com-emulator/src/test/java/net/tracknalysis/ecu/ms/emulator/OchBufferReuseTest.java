@@ -0,0 +1,82 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.ecu.ms.ChannelSnapshot;
+import net.tracknalysis.ecu.ms.ChannelSnapshotListener;
+import net.tracknalysis.ecu.ms.Megasquirt;
+
+import org.junit.Test;
+
+/**
+ * Checks that polling alternates between the OCH buffers allocated on connect rather than
+ * allocating a buffer per poll.
+ *
+ * @author David Valeri
+ */
+public class OchBufferReuseTest {
+
+    private static final int POLLS = 20;
+
+    @Test
+    public void testPollsReuseTwoBuffers() throws Exception {
+        runPolls(EmulatorTestSupport.getSignature(false));
+    }
+
+    @Test
+    public void testCrc32PollsReuseTwoBuffers() throws Exception {
+        runPolls(EmulatorTestSupport.getSignature(true));
+    }
+
+    private void runPolls(String signature) throws Exception {
+        final EcuEmulator emulator = new EcuEmulator(signature);
+        final EmulatedSocketManager socketManager = new EmulatedSocketManager(emulator);
+        socketManager.setBaudRate(1000000);
+        final Megasquirt ms = EmulatorTestSupport.newMegasquirt(socketManager);
+
+        final Map<byte[], Boolean> buffers = new IdentityHashMap<byte[], Boolean>();
+        final CountDownLatch polled = new CountDownLatch(POLLS);
+        ms.addChannelSnapshotListener(new ChannelSnapshotListener() {
+            @Override
+            public void onSnapshot(ChannelSnapshot snapshot) {
+                if (polled.getCount() > 0) {
+                    buffers.put(ms.getLogData(), Boolean.TRUE);
+                    polled.countDown();
+                }
+            }
+        });
+
+        EmulatorTestSupport.connect(ms);
+        try {
+            ms.startLogging();
+            assertTrue("Timed out polling.", polled.await(EmulatorTestSupport.TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS));
+        } finally {
+            EmulatorTestSupport.disconnect(ms);
+        }
+
+        assertEquals("Distinct OCH buffers used by " + POLLS + " polls of " + signature + ".",
+                2, buffers.size());
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.ecu.ms.FilePageCache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Connects twice to an emulated ECU sharing a page cache, checking that the second connect
+ * takes the constants from the cache once the ECU confirms their CRC.
+ *
+ * @author David Valeri
+ */
+public class PageCacheConnectTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCachedConnectSkipsPageReads() throws Exception {
+        final EcuEmulator emulator = newEmulator();
+        final FilePageCache cache = new FilePageCache(folder.newFolder("pages"));
+
+        connect(emulator, cache);
+        final long coldReads = emulator.getPageReadCount();
+        assertTrue("Cold connect read no pages.", coldReads > 0);
+        for (int pageNo : emulator.getPageNumbers()) {
+            assertArrayEquals("Cached page " + pageNo + ".", emulator.getPage(pageNo),
+                    cache.get(emulator.getSignature(), pageNo));
+        }
+
+        connect(emulator, cache);
+        assertEquals("Pages read by the cached connect.", coldReads, emulator.getPageReadCount());
+    }
+
+    @Test
+    public void testChangedPageIsReadAgain() throws Exception {
+        final EcuEmulator emulator = newEmulator();
+        final FilePageCache cache = new FilePageCache(folder.newFolder("pages"));
+
+        connect(emulator, cache);
+        final long coldReads = emulator.getPageReadCount();
+
+        final int pageNo = emulator.getPageNumbers()[0];
+        final byte[] page = emulator.getPage(pageNo);
+        page[0]++;
+        emulator.setPage(pageNo, page);
+
+        connect(emulator, cache);
+        assertTrue("Changed page was not read.", emulator.getPageReadCount() > coldReads);
+        assertArrayEquals("Recached page.", page, cache.get(emulator.getSignature(), pageNo));
+    }
+
+    /**
+     * Returns an emulator of CRC32 firmware, which has the page CRC command, with random page
+     * contents.
+     */
+    private static EcuEmulator newEmulator() throws Exception {
+        final EcuEmulator emulator = new EcuEmulator(EmulatorTestSupport.getSignature(true));
+        assumeTrue(emulator.isCrc32Protocol());
+
+        final Random random = new Random(1);
+        for (int pageNo : emulator.getPageNumbers()) {
+            final byte[] page = emulator.getPage(pageNo);
+            random.nextBytes(page);
+            emulator.setPage(pageNo, page);
+        }
+        return emulator;
+    }
+
+    private static void connect(EcuEmulator emulator, FilePageCache cache) throws Exception {
+        final EmulatedSocketManager socketManager = new EmulatedSocketManager(emulator);
+        socketManager.setBaudRate(1000000);
+        final EmulatorHarness harness = new EmulatorHarness(socketManager);
+        harness.setPageCache(cache);
+        harness.run(0, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.ecu.ms.AbstractMsController;
+import net.tracknalysis.ecu.ms.ChannelSnapshot;
+import net.tracknalysis.ecu.ms.ChannelSnapshotListener;
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.Megasquirt;
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+import net.tracknalysis.ecu.ms.io.Crc32IoProtocolHandler;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+
+import org.junit.Test;
+
+/**
+ * Measures the bytes the IO thread allocates per poll while logging over the CRC32 protocol
+ * against an {@link EcuEmulator}.  This covers the whole logging loop: waiting for the poll to
+ * be due, the OCH request and response, unwrapping in place, calculating, publishing the channel
+ * snapshot and writing the log.
+ * <p/>
+ * The emulator answers on the calling thread and, like the IO manager, allocates for each
+ * exchange, so the bytes allocated by the same exchange without a {@link Megasquirt} are
+ * measured first and subtracted.
+ *
+ * @author David Valeri
+ */
+public class PollAllocationTest {
+
+    private static final int WARMUP_POLLS = 2000;
+    private static final int POLLS = 2000;
+
+    /**
+     * Allows for escape analysis removing slightly different allocations from the exchange in
+     * the two measurements, which puts the difference within about 30 bytes of 0.  A snapshot
+     * and value array per poll, as before pooling, would exceed it.
+     */
+    private static final long MAX_BYTES_PER_POLL = 32;
+
+    @Test
+    public void testCrc32PollDoesNotAllocate() throws Exception {
+        final String signature = EmulatorTestSupport.getSignature(true);
+        assumeTrue(new EcuEmulator(signature).isCrc32Protocol());
+
+        final ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMxBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationMxBean =
+                (com.sun.management.ThreadMXBean) threadMxBean;
+        assumeTrue(allocationMxBean.isThreadAllocatedMemorySupported());
+        allocationMxBean.setThreadAllocatedMemoryEnabled(true);
+
+        final long exchangeBytes = measureExchange(signature, allocationMxBean);
+        final long pollBytes = measurePoll(signature, allocationMxBean);
+
+        assertTrue(signature + " allocated " + pollBytes + " bytes per poll, of which "
+                + exchangeBytes + " by the emulator and IO manager.",
+                pollBytes - exchangeBytes <= MAX_BYTES_PER_POLL);
+    }
+
+    /**
+     * Returns the bytes allocated per poll by the IO thread of a logging {@link Megasquirt}.
+     */
+    private long measurePoll(String signature, final com.sun.management.ThreadMXBean allocationMxBean)
+            throws Exception {
+        final EmulatedSocketManager socketManager =
+                new EmulatedSocketManager(new EcuEmulator(signature));
+        socketManager.setBaudRate(10000000);
+        final Megasquirt ms = EmulatorTestSupport.newMegasquirt(socketManager);
+
+        final long[] allocated = new long[2];
+        final CountDownLatch polled = new CountDownLatch(1);
+        ms.addChannelSnapshotListener(new ChannelSnapshotListener() {
+            private int polls;
+
+            @Override
+            public void onSnapshot(ChannelSnapshot snapshot) {
+                polls++;
+                if (polls == WARMUP_POLLS) {
+                    allocated[0] = allocationMxBean.getThreadAllocatedBytes(
+                            Thread.currentThread().getId());
+                } else if (polls == WARMUP_POLLS + POLLS) {
+                    allocated[1] = allocationMxBean.getThreadAllocatedBytes(
+                            Thread.currentThread().getId());
+                    polled.countDown();
+                }
+            }
+        });
+
+        EmulatorTestSupport.connect(ms);
+        try {
+            ms.startLogging();
+            assertTrue("Timed out polling.", polled.await(EmulatorTestSupport.TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS));
+        } finally {
+            EmulatorTestSupport.disconnect(ms);
+        }
+
+        return (allocated[1] - allocated[0]) / POLLS;
+    }
+
+    /**
+     * Returns the bytes allocated per OCH request and response by the emulator and IO manager
+     * alone, making the same calls as a poll on this thread.
+     */
+    private long measureExchange(String signature, com.sun.management.ThreadMXBean allocationMxBean)
+            throws Exception {
+        final MsEcu ecu = MsEcuFactory.getInstance().getMegasquirt(signature, new TestController());
+        final Crc32IoProtocolHandler handler = new Crc32IoProtocolHandler();
+        final byte[] command = handler.wrapRequest(ecu.getOchCommand());
+        final byte[] frame = new byte[handler.getWrappedResponseLength(ecu.getBlockSize())];
+
+        final EmulatedSocketManager socketManager =
+                new EmulatedSocketManager(new EcuEmulator(signature));
+        socketManager.setBaudRate(10000000);
+        final MsIoManager ioManager = new MsIoManager(socketManager);
+        ioManager.connect();
+        try {
+            for (int i = 0; i < WARMUP_POLLS; i++) {
+                ioManager.write(command, null);
+                ioManager.read(frame, 1000, null);
+            }
+
+            final long threadId = Thread.currentThread().getId();
+            final long before = allocationMxBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < POLLS; i++) {
+                ioManager.write(command, null);
+                ioManager.read(frame, 1000, null);
+            }
+            return (allocationMxBean.getThreadAllocatedBytes(threadId) - before) / POLLS;
+        } finally {
+            ioManager.disconnect();
+        }
+    }
+
+    /**
+     * Satisfies the firmware definition without an ECU.
+     */
+    private static final class TestController extends AbstractMsController {
+
+        public TestController() {
+            super(new DefaultTableManager(), new DefaultMsConfiguration(Collections.<String>emptySet()));
+        }
+
+        @Override
+        public double timeNow() {
+            return 0;
+        }
+
+        @Override
+        public byte[] loadPage(int pageNo, int pageOffset, int pageSize, byte[] select,
+                byte[] read) throws IOException {
+            return new byte[pageSize];
+        }
+    }
+}
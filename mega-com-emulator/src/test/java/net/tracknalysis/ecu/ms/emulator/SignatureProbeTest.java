@@ -0,0 +1,79 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.emulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.tracknalysis.ecu.ms.ecu.factory.DetectedSignature;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that probing for a known signature is not upset by bytes received before the probe
+ * and leaves none of its own behind.
+ *
+ * @author David Valeri
+ */
+public class SignatureProbeTest {
+
+    private static final byte[] QUERY_COMMAND = {'Q'};
+
+    private EcuEmulator emulator;
+    private EmulatedSocketManager socketManager;
+    private MsIoManager ioManager;
+
+    @Before
+    public void setUp() throws Exception {
+        emulator = new EcuEmulator(EmulatorTestSupport.getSignature(false));
+        socketManager = new EmulatedSocketManager(emulator);
+        ioManager = new MsIoManager(socketManager);
+        ioManager.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ioManager.disconnect();
+    }
+
+    @Test
+    public void testKnownSignatureConfirmedAfterStaleBytes() throws Exception {
+        // A query whose response was never read, as after a timed out read.
+        ioManager.write(QUERY_COMMAND);
+        Thread.sleep(50);
+
+        final DetectedSignature detected = MsEcuFactory.getInstance().detectSignature(ioManager,
+                emulator.getSignature(), QUERY_COMMAND);
+        assertTrue("Known signature not confirmed.", detected.isKnown());
+        assertEquals(emulator.getSignature(), detected.getSignature());
+        assertEquals("Bytes left unread.", 0, socketManager.getInputStream().available());
+    }
+
+    @Test
+    public void testTrailingBytesDiscarded() throws Exception {
+        final String signature = emulator.getSignature();
+
+        // The ECU sends one byte more than the expected signature.
+        MsEcuFactory.getInstance().detectSignature(ioManager,
+                signature.substring(0, signature.length() - 1), QUERY_COMMAND);
+        Thread.sleep(50);
+        assertEquals("Bytes left unread.", 0, socketManager.getInputStream().available());
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.jfr;
+
+import java.io.IOException;
+
+import net.tracknalysis.common.notification.NotificationListener;
+import net.tracknalysis.ecu.ms.Megasquirt;
+import net.tracknalysis.ecu.ms.MegasquirtInstrumentation;
+import net.tracknalysis.ecu.ms.MegasquirtNotificationType;
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.ecu.factory.DetectedSignature;
+import net.tracknalysis.ecu.ms.io.Crc32Exception;
+
+import jdk.jfr.Event;
+
+/**
+ * Emits JDK Flight Recorder events for the work done by a {@link Megasquirt}: OCH polls,
+ * calculation, log writes, page loads, signature probes, CRC failures and lifecycle transitions.
+ * Events are only built when their type is enabled in the running recording, so an idle
+ * recorder costs a check per call.
+ * <p/>
+ * Events for timed work are begun in the {@code ...Started} callbacks and handed back by the
+ * {@link Megasquirt} to the matching end callback, where they are ended and committed, so they
+ * carry the native JFR start time and duration and are subject to duration thresholds.
+ *
+ * @author David Valeri
+ */
+public class JfrInstrumentation implements MegasquirtInstrumentation,
+        NotificationListener<MegasquirtNotificationType> {
+
+    private final Megasquirt ms;
+    private final int instance;
+
+    private JfrInstrumentation(Megasquirt ms) {
+        this.ms = ms;
+        instance = ms.getInstanceNumber();
+    }
+
+    /**
+     * Starts emitting events for {@code ms}, replacing any instrumentation already set.
+     *
+     * @return the installed instrumentation
+     */
+    public static JfrInstrumentation install(Megasquirt ms) {
+        final JfrInstrumentation instrumentation = new JfrInstrumentation(ms);
+        ms.setInstrumentation(instrumentation);
+        ms.addListener(instrumentation);
+        return instrumentation;
+    }
+
+    /**
+     * Stops emitting events.
+     */
+    public void uninstall() {
+        if (ms.getInstrumentation() == this) {
+            ms.setInstrumentation(null);
+        }
+        ms.removeListener(this);
+    }
+
+    @Override
+    public Object ochPollStarted(Megasquirt ms, MsEcu ecu) {
+        return begin(new OchPollEvent());
+    }
+
+    @Override
+    public void ochPolled(Megasquirt ms, MsEcu ecu, Object context, int bytes, long durationNanos) {
+        final OchPollEvent event = (OchPollEvent) context;
+        if (event != null && end(event)) {
+            event.instance = instance;
+            event.ecuClass = getEcuClass(ecu);
+            event.bytes = bytes;
+            event.success = true;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void ochPollFailed(Megasquirt ms, MsEcu ecu, Object context, IOException error,
+            long durationNanos) {
+        final OchPollEvent event = (OchPollEvent) context;
+        if (event != null && end(event)) {
+            event.instance = instance;
+            event.ecuClass = getEcuClass(ecu);
+            event.success = false;
+            event.commit();
+        }
+
+        if (error instanceof Crc32Exception) {
+            final CrcFailureEvent crcEvent = new CrcFailureEvent();
+            if (crcEvent.isEnabled()) {
+                crcEvent.instance = instance;
+                crcEvent.ecuClass = getEcuClass(ecu);
+                crcEvent.commit();
+            }
+        }
+    }
+
+    @Override
+    public Object calculationStarted(Megasquirt ms, MsEcu ecu) {
+        return begin(new CalculateEvent());
+    }
+
+    @Override
+    public void calculated(Megasquirt ms, MsEcu ecu, Object context, long durationNanos) {
+        final CalculateEvent event = (CalculateEvent) context;
+        if (event != null && end(event)) {
+            event.instance = instance;
+            event.ecuClass = getEcuClass(ecu);
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object logWriteStarted(Megasquirt ms) {
+        return begin(new LogWriteEvent());
+    }
+
+    @Override
+    public void logWritten(Megasquirt ms, Object context, long durationNanos) {
+        final LogWriteEvent event = (LogWriteEvent) context;
+        if (event != null && end(event)) {
+            event.instance = instance;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object pageLoadStarted(Megasquirt ms, MsEcu ecu, int pageNo) {
+        return begin(new PageLoadEvent());
+    }
+
+    @Override
+    public void pageLoaded(Megasquirt ms, MsEcu ecu, Object context, int pageNo, int bytes,
+            boolean cached, long durationNanos) {
+        final PageLoadEvent event = (PageLoadEvent) context;
+        if (event != null && end(event)) {
+            event.instance = instance;
+            event.ecuClass = getEcuClass(ecu);
+            event.pageNo = pageNo;
+            event.bytes = bytes;
+            event.cached = cached;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object signatureDetectionStarted(Megasquirt ms) {
+        return begin(new SignatureProbeEvent());
+    }
+
+    @Override
+    public void signatureDetected(Megasquirt ms, Object context, DetectedSignature detected) {
+        final SignatureProbeEvent event = (SignatureProbeEvent) context;
+        if (event != null && end(event)) {
+            event.instance = instance;
+            event.signature = detected.getSignature();
+            event.known = detected.isKnown();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void handleNotification(MegasquirtNotificationType notificationType, Object body) {
+        final LifecycleEvent event = new LifecycleEvent();
+        if (event.isEnabled()) {
+            event.instance = instance;
+            event.transition = notificationType.name();
+            event.commit();
+        }
+    }
+
+    /**
+     * Begins {@code event} and returns it or returns null if its type is not enabled.
+     */
+    private static Event begin(Event event) {
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends {@code event} and returns true if it is to be committed, that is, if it exceeds
+     * the duration threshold of its type.
+     */
+    private static boolean end(Event event) {
+        event.end();
+        return event.shouldCommit();
+    }
+
+    private static String getEcuClass(MsEcu ecu) {
+        return ecu == null ? null : ecu.getClass().getName();
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A read of the OCH block, or of its due ranges, from the ECU.
+ *
+ * @author David Valeri
+ */
+@Name("net.tracknalysis.ecu.ms.OchPoll")
+@Label("OCH Poll")
+@Category({"Megasquirt"})
+@Description("A read of the OCH block, or of its due ranges, from the ECU.")
+class OchPollEvent extends Event {
+
+    @Label("Instance")
+    int instance;
+
+    @Label("ECU Class")
+    String ecuClass;
+
+    @Label("Bytes")
+    @DataAmount(DataAmount.BYTES)
+    int bytes;
+
+    @Label("Success")
+    boolean success;
+}
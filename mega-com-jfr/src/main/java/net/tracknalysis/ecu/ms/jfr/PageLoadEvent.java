@@ -0,0 +1,51 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A load of a page of constants, from the ECU or the page cache.
+ *
+ * @author David Valeri
+ */
+@Name("net.tracknalysis.ecu.ms.PageLoad")
+@Label("Page Load")
+@Category({"Megasquirt"})
+@Description("A load of a page of constants, from the ECU or the page cache.")
+class PageLoadEvent extends Event {
+
+    @Label("Instance")
+    int instance;
+
+    @Label("ECU Class")
+    String ecuClass;
+
+    @Label("Page")
+    int pageNo;
+
+    @Label("Bytes")
+    @DataAmount(DataAmount.BYTES)
+    int bytes;
+
+    @Label("Cached")
+    boolean cached;
+}
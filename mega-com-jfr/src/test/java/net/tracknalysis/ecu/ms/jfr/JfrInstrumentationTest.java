@@ -0,0 +1,104 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import net.tracknalysis.ecu.ms.DefaultMsConfiguration;
+import net.tracknalysis.ecu.ms.DefaultTableManager;
+import net.tracknalysis.ecu.ms.Megasquirt;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+import net.tracknalysis.ecu.ms.log.NoOpLog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author David Valeri
+ */
+public class JfrInstrumentationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTimedEventsUseNativeDuration() throws Exception {
+        final Megasquirt ms = new Megasquirt(new MsIoManager(null), new DefaultTableManager(),
+                new NoOpLog(), new DefaultMsConfiguration(Collections.<String>emptySet()), null);
+        final JfrInstrumentation instrumentation = JfrInstrumentation.install(ms);
+
+        final Recording recording = new Recording();
+        recording.enable(OchPollEvent.class).withThreshold(Duration.ZERO);
+        recording.enable(LogWriteEvent.class).withThreshold(Duration.ofSeconds(10));
+        recording.disable(CalculateEvent.class);
+        recording.start();
+
+        final long start = System.nanoTime();
+        final Object pollContext = instrumentation.ochPollStarted(ms, null);
+        Thread.sleep(20);
+        // The reported duration is deliberately wrong, the event times itself.
+        instrumentation.ochPolled(ms, null, pollContext, 212, 0);
+        final long elapsed = System.nanoTime() - start;
+
+        // Disabled, so nothing is begun.
+        final Object calculationContext = instrumentation.calculationStarted(ms, null);
+        instrumentation.calculated(ms, null, calculationContext, 0);
+
+        // Under the threshold, so begun but not committed.
+        final Object logContext = instrumentation.logWriteStarted(ms);
+        instrumentation.logWritten(ms, logContext, 0);
+
+        recording.stop();
+        final File file = folder.newFile("recording.jfr");
+        recording.dump(file.toPath());
+        recording.close();
+        instrumentation.uninstall();
+
+        assertNull(calculationContext);
+        assertTrue(logContext != null);
+
+        final List<RecordedEvent> polls = new ArrayList<RecordedEvent>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+            final String name = event.getEventType().getName();
+            assertTrue(name, !name.equals("net.tracknalysis.ecu.ms.Calculate")
+                    && !name.equals("net.tracknalysis.ecu.ms.LogWrite"));
+            if (name.equals("net.tracknalysis.ecu.ms.OchPoll")) {
+                polls.add(event);
+            }
+        }
+
+        assertEquals(1, polls.size());
+        final RecordedEvent poll = polls.get(0);
+        assertTrue(poll.getDuration().toMillis() >= 20);
+        assertTrue(poll.getDuration().toNanos() <= elapsed);
+        assertEquals(212, poll.getInt("bytes"));
+        assertTrue(poll.getBoolean("success"));
+        assertEquals(ms.getInstanceNumber(), poll.getInt("instance"));
+    }
+}
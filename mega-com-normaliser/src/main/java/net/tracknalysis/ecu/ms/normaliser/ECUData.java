@@ -58,11 +58,13 @@ public class ECUData
     private ArrayList<String> pageIdentifiers;
     private ArrayList<String> pageActivateCommands;
     private ArrayList<String> pageReadCommands;
+    private ArrayList<String> crc32CheckCommands;
     private List<String> pageValueWrites;
     private List<String> pageChunkWrites;
     private String signatureDeclaration;
     private String queryCommandStr;
     private String ochGetCommandStr;
+    private String ochRangeCommandStr;
     private String ochBlockSizeStr;
     private ArrayList<String> defaultGauges;
     private boolean isCRC32Protocol;
@@ -123,6 +125,7 @@ public class ECUData
         pageActivateCommands = new ArrayList<String>();
         pageValueWrites = new ArrayList<String>();
         pageChunkWrites = new ArrayList<String>();
+        crc32CheckCommands = new ArrayList<String>();
         pageIdentifiers = new ArrayList<String>();
         tableDefs = new ArrayList<TableTracker>();
         curveDefs = new ArrayList<CurveTracker>();
@@ -288,6 +291,16 @@ public class ECUData
         this.pageReadCommands = pageReadCommands;
     }
 
+    public ArrayList<String> getCrc32CheckCommands()
+    {
+        return crc32CheckCommands;
+    }
+
+    public void setCrc32CheckCommands(ArrayList<String> crc32CheckCommands)
+    {
+        this.crc32CheckCommands = crc32CheckCommands;
+    }
+
     public List<String> getPageValueWrites()
     {
         return pageValueWrites;
@@ -338,6 +351,21 @@ public class ECUData
         this.ochGetCommandStr = ochGetCommandStr;
     }
 
+    /**
+     * Returns the Java expression, in terms of {@code offset} and {@code count}, building the OCH
+     * command for a range of the OCH block or {@code null} if the firmware does not support
+     * ranged OCH reads.
+     */
+    public String getOchRangeCommandStr()
+    {
+        return ochRangeCommandStr;
+    }
+
+    public void setOchRangeCommandStr(String ochRangeCommandStr)
+    {
+        this.ochRangeCommandStr = ochRangeCommandStr;
+    }
+
     public String getOchBlockSizeStr()
     {
         return ochBlockSizeStr;
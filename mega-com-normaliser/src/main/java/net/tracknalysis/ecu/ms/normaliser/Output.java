@@ -19,6 +19,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,6 +35,12 @@ public class Output
 {
     static final String        TAB          = "    ";
     private static final int   MAX_LINES    = 100;
+    /**
+     * The estimated bytecode size, in bytes, above which the methods called for every sample are split.  HotSpot
+     * never compiles a method larger than its HugeMethodLimit of 8000 bytes, so this leaves room for the
+     * estimate to be off.
+     */
+    private static final int   MAX_METHOD_BYTES = 4000;
     private static Set<String> alwaysInt    = new HashSet<String>(Arrays.asList(new String[] {}));
     private static Set<String> alwaysDouble = new HashSet<String>(Arrays.asList(new String[] { "pulseWidth", "throttle",
             "accDecEnrich", "accDecEnrichPcnt", "accEnrichPcnt", "accEnrichMS", "decEnrichPcnt", "decEnrichMS", "time",
@@ -226,8 +233,18 @@ public class Output
 
     }
 
+    /**
+     * Outputs the output channel registration and a switch based accessor for the channel values so that
+     * reading a channel does not need reflection. Each distinct channel name gets a stable index, in order of
+     * first appearance, that is shared by all preprocessor branches declaring the channel.
+     * 
+     * @param ecuData
+     * @param writer
+     */
     static void outputOutputChannels(ECUData ecuData, PrintWriter writer)
     {
+        Map<String, Integer> indices = getOutputChannelIndices(ecuData);
+        
         writer.println(TAB + "public void initOutputChannels()");
         writer.println(TAB + "{");
 
@@ -239,11 +256,116 @@ public class Output
             }
             else
             {
-                writer.println(TAB + TAB + "registerOutputChannel( new " + op.toString() + ");");
+                OutputChannel indexed = new OutputChannel(op.getName(), op.getType(), op.getOffset(), op.getUnits(),
+                        op.getScale(), op.getTranslate(), null, indices.get(op.getName()));
+                writer.println(TAB + TAB + "registerOutputChannel( new " + indexed.toString() + ");");
+            }
+        }
+        
+        writer.println(TAB + "}");
+        
+        // Split the switch into contiguous index ranges, as with the other per sample methods
+        List<List<Map.Entry<String, Integer>>> switches = new ArrayList<List<Map.Entry<String, Integer>>>();
+        List<Map.Entry<String, Integer>> cases = new ArrayList<Map.Entry<String, Integer>>();
+        int switchSize = 0;
+        for (Map.Entry<String, Integer> entry : indices.entrySet())
+        {
+            // Plus the jump table entry
+            int caseSize = estimateBytecodeSize("return " + entry.getKey() + ";") + 4;
+            if (!cases.isEmpty() && switchSize + caseSize > MAX_METHOD_BYTES)
+            {
+                switches.add(cases);
+                cases = new ArrayList<Map.Entry<String, Integer>>();
+                switchSize = 0;
+            }
+            cases.add(entry);
+            switchSize += caseSize;
+        }
+        switches.add(cases);
+
+        writer.println(TAB + "@Override");
+        writer.println(TAB + "public double getOutputChannelValue(int index)");
+        writer.println(TAB + "{");
+        if (switches.size() == 1)
+        {
+            outputOutputChannelSwitch(cases, writer);
+        }
+        else
+        {
+            for (int i = 1; i < switches.size(); i++)
+            {
+                writer.println(TAB + TAB + "if (index < " + switches.get(i).get(0).getValue() + ")");
+                writer.println(TAB + TAB + "{");
+                writer.println(TAB + TAB + TAB + "return getOutputChannelValue" + i + "(index);");
+                writer.println(TAB + TAB + "}");
+            }
+            writer.println(TAB + TAB + "return getOutputChannelValue" + switches.size() + "(index);");
+        }
+        writer.println(TAB + "}");
+
+        if (switches.size() > 1)
+        {
+            for (int i = 1; i <= switches.size(); i++)
+            {
+                writer.println(TAB + "private double getOutputChannelValue" + i + "(int index)");
+                writer.println(TAB + "{");
+                outputOutputChannelSwitch(switches.get(i - 1), writer);
+                writer.println(TAB + "}");
             }
         }
         
+        List<String> names = new ArrayList<String>();
+        for (String name : indices.keySet())
+        {
+            names.add("\"" + name + "\"");
+        }
+        writer.println(TAB + "private static final String[] OUTPUT_CHANNEL_NAMES = {" + StringUtils.join(names, ",") + "};");
+        writer.println(TAB + "@Override");
+        writer.println(TAB + "public String[] getOutputChannelNames()");
+        writer.println(TAB + "{");
+        writer.println(TAB + TAB + "return OUTPUT_CHANNEL_NAMES;");
         writer.println(TAB + "}");
+        
+        List<String> assignments = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : indices.entrySet())
+        {
+            assignments.add("values[" + entry.getValue() + "] = " + entry.getKey() + ";");
+        }
+        writer.println(TAB + "@Override");
+        outputSplitMethod("public void getOutputChannelValues(double[] values)", null, assignments, null,
+                "getOutputChannelValues", "double[] values", "values", writer);
+    }
+    
+    private static void outputOutputChannelSwitch(List<Map.Entry<String, Integer>> cases, PrintWriter writer)
+    {
+        writer.println(TAB + TAB + "switch (index)");
+        writer.println(TAB + TAB + "{");
+        for (Map.Entry<String, Integer> entry : cases)
+        {
+            writer.println(TAB + TAB + "case " + entry.getValue() + ":");
+            writer.println(TAB + TAB + TAB + "return " + entry.getKey() + ";");
+        }
+        writer.println(TAB + TAB + "default:");
+        writer.println(TAB + TAB + TAB + "return 0;");
+        writer.println(TAB + TAB + "}");
+    }
+
+    /**
+     * Returns the index of each distinct output channel name, in order of first appearance.
+     * 
+     * @param ecuData
+     */
+    static Map<String, Integer> getOutputChannelIndices(ECUData ecuData)
+    {
+        Map<String, Integer> indices = new LinkedHashMap<String, Integer>();
+        for (OutputChannel op : ecuData.getOutputChannels())
+        {
+            if (!op.getType().equals("PREPROC") && !indices.containsKey(op.getName()))
+            {
+                indices.put(op.getName(), indices.size());
+            }
+        }
+        return indices;
     }
     
     static void outputPackageAndIncludes(ECUData ecuData, PrintWriter writer)
@@ -353,15 +475,17 @@ public class Output
     static void outputRTCalcs(ECUData ecuData, PrintWriter writer)
     {
         writer.println("    @Override");
-        writer.println("    public void calculate(byte[] ochBuffer)");
-        writer.println("    {");
-        writer.println("        logData = ochBuffer;");
-        for (String defn : ecuData.getRuntime())
+        outputSplitMethod("public void calculate(byte[] ochBuffer)", "logData = ochBuffer;", ecuData.getRuntime(),
+                null, "calculate", "byte[] ochBuffer", "ochBuffer", writer);
+
+        List<String> statements = new ArrayList<String>(ecuData.getRuntime());
+        for (Map.Entry<String, Integer> entry : getOutputChannelIndices(ecuData).entrySet())
         {
-            writer.println(TAB + TAB + defn);
-            // System.out.println(defn);
+            statements.add("values[" + entry.getValue() + "] = " + entry.getKey() + ";");
         }
-        writer.println(TAB + "}");
+        writer.println(TAB + "@Override");
+        outputSplitMethod("public void calculate(byte[] ochBuffer, double[] values)", "logData = ochBuffer;",
+                statements, null, "calculateValues", "byte[] ochBuffer, double[] values", "ochBuffer, values", writer);
     }
 
     static void outputLogInfo(ECUData ecuData, PrintWriter writer)
@@ -376,19 +500,238 @@ public class Output
         }
         writer.println(TAB + TAB + "return b.toString();\n" + TAB + "}\n");
         writer.println(TAB + "@Override");
-        writer.println(TAB + "public String getLogRow()");
+        outputSplitMethod("public String getLogRow()", "StringBuffer b = new StringBuffer();",
+                ecuData.getLogRecord(), "return b.toString();", "appendLogRow", "StringBuffer b", "b", writer);
+        writer.println(TAB + "@Override");
+        outputSplitMethod("public void getLogRow(LogRowBuffer b)", null, ecuData.getLogRecord(), null,
+                "appendLogRow", "LogRowBuffer b", "b", writer);
+        writer.println(TAB + "public byte[] getLogData()");
         writer.println(TAB + "{");
-        writer.println(TAB + TAB + "StringBuffer b = new StringBuffer();");
+        writer.println(TAB + TAB + "return logData;");
+        writer.println(TAB + "}\n");
+    }
 
-        for (String record : ecuData.getLogRecord())
+    /**
+     * Outputs a method that is called for every sample. HotSpot will not JIT compile a method that is too big, so a
+     * body whose estimated bytecode size exceeds {@link #MAX_METHOD_BYTES} is moved into numbered private methods,
+     * each called in turn with {@code arguments}. As with the constants, a body is only ever split between top level
+     * statements so that preprocessor blocks are not broken up.
+     * 
+     * @param signature
+     *            the signature of the method
+     * @param prologue
+     *            the statement, if any, to output before the body
+     * @param statements
+     *            the body
+     * @param epilogue
+     *            the statement, if any, to output after the body
+     * @param partName
+     *            the name the numbered methods are derived from
+     * @param partParameters
+     *            the parameter list of the numbered methods
+     * @param arguments
+     *            the argument list passed to the numbered methods
+     * @param writer
+     */
+    static void outputSplitMethod(String signature, String prologue, List<String> statements, String epilogue,
+            String partName, String partParameters, String arguments, PrintWriter writer)
+    {
+        List<List<String>> parts = splitStatements(statements, MAX_METHOD_BYTES);
+
+        writer.println(TAB + signature);
+        writer.println(TAB + "{");
+        if (prologue != null)
         {
-            writer.println(TAB + TAB + record);
+            writer.println(TAB + TAB + prologue);
+        }
+        if (parts.size() == 1)
+        {
+            for (String statement : parts.get(0))
+            {
+                writer.println(TAB + TAB + statement);
+            }
+        }
+        else
+        {
+            for (int i = 1; i <= parts.size(); i++)
+            {
+                writer.println(TAB + TAB + partName + i + "(" + arguments + ");");
+            }
+        }
+        if (epilogue != null)
+        {
+            writer.println(TAB + TAB + epilogue);
         }
-        writer.println(TAB + TAB + "return b.toString();\n" + TAB + "}\n");
-        writer.println(TAB + "public byte[] getLogData()");
-        writer.println(TAB + "{");
-        writer.println(TAB + TAB + "return logData;");
         writer.println(TAB + "}\n");
+
+        if (parts.size() > 1)
+        {
+            for (int i = 1; i <= parts.size(); i++)
+            {
+                writer.println(TAB + "private void " + partName + i + "(" + partParameters + ")");
+                writer.println(TAB + "{");
+                for (String statement : parts.get(i - 1))
+                {
+                    writer.println(TAB + TAB + statement);
+                }
+                writer.println(TAB + "}\n");
+            }
+        }
+    }
+
+    /**
+     * Groups {@code statements} into runs whose estimated bytecode size does not exceed {@code maxBytes}, only
+     * breaking between statements that are outside of any braces. A single run may still exceed {@code maxBytes}
+     * if it is one large statement or preprocessor block. Always returns at least one, possibly empty, run.
+     * 
+     * @param statements
+     * @param maxBytes
+     */
+    static List<List<String>> splitStatements(List<String> statements, int maxBytes)
+    {
+        List<List<String>> parts = new ArrayList<List<String>>();
+        List<String> part = new ArrayList<String>();
+        int size = 0;
+        int bracketNesting = 0;
+        for (String statement : statements)
+        {
+            int statementSize = estimateBytecodeSize(statement);
+            if (bracketNesting == 0 && !part.isEmpty() && size + statementSize > maxBytes)
+            {
+                parts.add(part);
+                part = new ArrayList<String>();
+                size = 0;
+            }
+
+            part.add(statement);
+            size += statementSize;
+            bracketNesting += getBracketDelta(statement);
+        }
+        parts.add(part);
+        return parts;
+    }
+
+    /**
+     * Returns a deliberately generous estimate of the bytecode javac produces for {@code statement}. Every field
+     * or variable is costed as a field access, every literal as a constant pool load, every call as an invoke and
+     * every operator or cast as one instruction.
+     * 
+     * @param statement
+     */
+    static int estimateBytecodeSize(String statement)
+    {
+        int size = 0;
+        int length = statement.length();
+        int i = 0;
+        while (i < length)
+        {
+            char c = statement.charAt(i);
+            if (Character.isJavaIdentifierStart(c))
+            {
+                int start = i;
+                while (i < length && Character.isJavaIdentifierPart(statement.charAt(i)))
+                {
+                    i++;
+                }
+                int next = skipWhitespace(statement, i);
+                char following = next < length ? statement.charAt(next) : ' ';
+                if (following == '(')
+                {
+                    // invoke, plus loading this for our own helpers
+                    size += 4;
+                }
+                else if (following == '.' && Character.isUpperCase(statement.charAt(start)))
+                {
+                    // Class name qualifying a static call
+                }
+                else
+                {
+                    // aload_0 and getfield or putfield
+                    size += 4;
+                }
+            }
+            else if (Character.isDigit(c) || (c == '.' && i + 1 < length && Character.isDigit(statement.charAt(i + 1))))
+            {
+                while (i < length && (Character.isLetterOrDigit(statement.charAt(i)) || statement.charAt(i) == '.'))
+                {
+                    i++;
+                }
+                size += 3;
+            }
+            else if (c == '"' || c == '\'')
+            {
+                i = skipLiteral(statement, i);
+                size += 3;
+            }
+            else
+            {
+                if ("+-*/%<>=!&|^~?".indexOf(c) >= 0)
+                {
+                    size++;
+                }
+                i++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of opening braces less the number of closing braces in {@code statement}, ignoring any
+     * in string or character literals.
+     * 
+     * @param statement
+     */
+    static int getBracketDelta(String statement)
+    {
+        int delta = 0;
+        int length = statement.length();
+        int i = 0;
+        while (i < length)
+        {
+            char c = statement.charAt(i);
+            if (c == '"' || c == '\'')
+            {
+                i = skipLiteral(statement, i);
+                continue;
+            }
+            if (c == '{')
+            {
+                delta++;
+            }
+            else if (c == '}')
+            {
+                delta--;
+            }
+            i++;
+        }
+        return delta;
+    }
+
+    private static int skipWhitespace(String s, int i)
+    {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i)))
+        {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the index just past the string or character literal starting at {@code start}.
+     */
+    private static int skipLiteral(String s, int start)
+    {
+        char quote = s.charAt(start);
+        int i = start + 1;
+        while (i < s.length() && s.charAt(i) != quote)
+        {
+            if (s.charAt(i) == '\\')
+            {
+                i++;
+            }
+            i++;
+        }
+        return i + 1;
     }
 
     static void outputLoadConstants(ECUData ecuData, PrintWriter writer)
@@ -407,10 +750,6 @@ public class Output
                 }
                 pageNo = c.getPage();
                 pageNumbers.add(pageNo);
-                writer.println(TAB + "public void loadConstantsPage" + pageNo + "() throws IOException");
-                writer.println(TAB + "{");
-                writer.println(TAB + TAB + "byte[] pageBuffer = null;");
-
                 int pageSize = Integer.parseInt(ecuData.getPageSizes().get(pageNo - 1).trim());
                 String activateCommand = null;
                 if (pageNo - 1 < ecuData.getPageActivateCommands().size())
@@ -423,7 +762,18 @@ public class Output
                     readCommand = ecuData.getPageReadCommands().get(pageNo - 1);
                 }
 
+                writer.println(TAB + "public void loadConstantsPage" + pageNo + "() throws IOException");
+                writer.println(TAB + "{");
+                writer.println(TAB + TAB + "decodeConstantsPage" + pageNo + "(fetchConstantsPage" + pageNo + "());");
+                writer.println(TAB + "}");
+                writer.println(TAB + "private byte[] fetchConstantsPage" + pageNo + "() throws IOException");
+                writer.println(TAB + "{");
+                writer.println(TAB + TAB + "byte[] pageBuffer = null;");
                 outputLoadPage(ecuData, pageNo, 0, pageSize, activateCommand, readCommand, writer);
+                writer.println(TAB + TAB + "return pageBuffer;");
+                writer.println(TAB + "}");
+                writer.println(TAB + "private void decodeConstantsPage" + pageNo + "(byte[] pageBuffer)");
+                writer.println(TAB + "{");
             }
             // getScalar(String bufferName,String name, String dataType, String
             // offset, String scale, String numOffset)
@@ -477,6 +827,48 @@ public class Output
         }
         writer.println(TAB + TAB + "refreshFlags();");
         writer.println(TAB + "}");
+
+        String pages = "";
+        for (int i : pageNumbers)
+        {
+            pages += (pages.length() > 0 ? "," : "") + i;
+        }
+        writer.println(TAB + "@Override");
+        writer.println(TAB + "public int[] getConstantPages()");
+        writer.println(TAB + "{");
+        writer.println(TAB + TAB + "return new int[]{" + pages + "};");
+        writer.println(TAB + "}");
+
+        writer.println(TAB + "@Override");
+        writer.println(TAB + "public byte[] fetchConstantsPage(int pageNo) throws IOException");
+        writer.println(TAB + "{");
+        writer.println(TAB + TAB + "switch (pageNo)");
+        writer.println(TAB + TAB + "{");
+        for (int i : pageNumbers)
+        {
+            writer.println(TAB + TAB + "case " + i + ":");
+            writer.println(TAB + TAB + TAB + "return fetchConstantsPage" + i + "();");
+        }
+        writer.println(TAB + TAB + "default:");
+        writer.println(TAB + TAB + TAB + "throw new IllegalArgumentException(\"No constants on page \" + pageNo);");
+        writer.println(TAB + TAB + "}");
+        writer.println(TAB + "}");
+
+        writer.println(TAB + "@Override");
+        writer.println(TAB + "public void decodeConstantsPage(int pageNo, byte[] pageBuffer)");
+        writer.println(TAB + "{");
+        writer.println(TAB + TAB + "switch (pageNo)");
+        writer.println(TAB + TAB + "{");
+        for (int i : pageNumbers)
+        {
+            writer.println(TAB + TAB + "case " + i + ":");
+            writer.println(TAB + TAB + TAB + "decodeConstantsPage" + i + "(pageBuffer);");
+            writer.println(TAB + TAB + TAB + "break;");
+        }
+        writer.println(TAB + TAB + "default:");
+        writer.println(TAB + TAB + TAB + "throw new IllegalArgumentException(\"No constants on page \" + pageNo);");
+        writer.println(TAB + TAB + "}");
+        writer.println(TAB + "}");
     }
 
     private static String generateLoadArray(ECUData ecuData, Constant c)
@@ -548,6 +940,14 @@ public class Output
             pageValueWriteOutput += TAB + TAB + "pageValueWrites.add(" + pageValueWrite + ");\n";
         }
         
+        String pageCrcCommandOutput = "";
+        for (int i = 0; i < ecuData.getCrc32CheckCommands().size() && i < ecuData.getPageSizes().size(); i++)
+        {
+            int pageSize = Integer.parseInt(ecuData.getPageSizes().get(i).trim());
+            pageCrcCommandOutput += TAB + TAB + "case " + (i + 1) + ":\n" + TAB + TAB + TAB + "return "
+                    + processStringToBytes(ecuData, ecuData.getCrc32CheckCommands().get(i), 0, pageSize, i + 1) + ";\n";
+        }
+
         String pageChunkWriteOutput = "";
         
         for (String pageChunkWrite : ecuData.getPageChunkWrites())
@@ -559,6 +959,9 @@ public class Output
                 + "return signature;\n" + "}\n" + TAB + "@Override\n" + TAB + "public byte[] getOchCommand()\n" + TAB + "{\n" + TAB
                 + TAB + "return this.ochGetCommand;\n" + TAB + "}\n" +
 
+                TAB + "@Override\n" + TAB + "public byte[] getOchCommand(int offset, int count)\n" + TAB + "{\n" + TAB
+                + TAB + "return " + ecuData.getOchRangeCommandStr() + ";\n" + TAB + "}\n" +
+
                 TAB + "@Override\n" + TAB + "public byte[] getSigCommand()\n" + TAB + "{\n" + TAB + TAB
                 + "return this.queryCommand;\n" + TAB + "}\n" +
 
@@ -587,6 +990,17 @@ public class Output
                 "\n" + TAB + TAB + "return pageChunkWrites;\n" +
                 TAB + "}\n" +
                 
+                TAB + "@Override\n" +
+                TAB + "public byte[] getPageCrcCommand(int pageNo)\n" +
+                TAB + "{\n" +
+                TAB + TAB + "switch (pageNo)\n" +
+                TAB + TAB + "{\n" +
+                            pageCrcCommandOutput +
+                TAB + TAB + "default:\n" +
+                TAB + TAB + TAB + "return null;\n" +
+                TAB + TAB + "}\n" +
+                TAB + "}\n" +
+                
                 TAB + "@Override\n" +
                 TAB + "public List<String> getPageIdentifiers()\n" +
                 TAB + "{\n" +
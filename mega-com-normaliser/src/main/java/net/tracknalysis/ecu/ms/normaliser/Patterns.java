@@ -37,6 +37,7 @@ public class Patterns
     static Pattern signature           = Pattern.compile("\\s*signature\\s*=\\s*\"(.*)\".*");
     static Pattern byteSignature       = Pattern.compile("\\s*signature\\s*=\\s*(\\d*).*");
     static Pattern ochGetCommand       = Pattern.compile("\\s*ochGetCommand\\s*=\\s*\"(.*)\".*");
+    static Pattern ochRangePlaceHolder = Pattern.compile("%2?([oc])");
     static Pattern ochBlockSize        = Pattern.compile("\\s*ochBlockSize\\s*=\\s*(\\d*).*");
     static Pattern pageActivationDelay = Pattern.compile("\\s*pageActivationDelay\\s*=\\s*(\\d*).*");
     static Pattern interWriteDelay     = Pattern.compile("\\s*interWriteDelay\\s*=\\s*(\\d*).*");
@@ -58,6 +59,7 @@ public class Patterns
     static Pattern pageReadCommand     = Pattern.compile("\\s*pageReadCommand\\s*=\\s*(.*)");
     static Pattern pageValueWrite      = Pattern.compile("\\s*pageValueWrite\\s*=\\s*(.*)");
     static Pattern pageChunkWrite      = Pattern.compile("\\s*pageChunkWrite\\s*=\\s*(.*)");
+    static Pattern crc32CheckCommand   = Pattern.compile("\\s*crc32CheckCommand\\s*=\\s*(.*)");
     
     /*
      * Constant
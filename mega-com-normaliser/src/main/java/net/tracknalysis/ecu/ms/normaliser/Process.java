@@ -249,6 +249,7 @@ public class Process
             if (och.length() > 1)
             {
                 int[] value = {0};
+                ecuData.setOchRangeCommandStr(processOchRangeCommand(ecuData, och));
                 och = MSUtils.hexStringToBytes(ecuData.getPageIdentifiers(), och, 0, 0, value, 0);
             }
             else
@@ -294,6 +295,50 @@ public class Process
         return false;
     }
 
+    /**
+     * Translates an OCH command containing offset and count place holders into a Java expression
+     * that builds the command for any {@code offset} and {@code count}.
+     * 
+     * @param ecuData
+     * @param och the OCH command from the ini
+     * @return the expression or null if the command lacks either place holder
+     */
+    static String processOchRangeCommand(ECUData ecuData, String och)
+    {
+        Matcher m = Patterns.ochRangePlaceHolder.matcher(och);
+        List<String> parts = new ArrayList<String>();
+        boolean offset = false;
+        boolean count = false;
+        int start = 0;
+        int[] value = {0};
+        
+        while (m.find())
+        {
+            if (m.start() > start)
+            {
+                parts.add(MSUtils.hexStringToBytes(ecuData.getPageIdentifiers(), och.substring(start, m.start()), 0, 0, value, 0));
+            }
+            
+            String name = m.group(1).equals("o") ? "offset" : "count";
+            offset |= name.equals("offset");
+            count |= name.equals("count");
+            parts.add("(byte) (" + name + " >> 8),(byte) " + name);
+            start = m.end();
+        }
+        
+        if (!offset || !count)
+        {
+            return null;
+        }
+        
+        if (start < och.length())
+        {
+            parts.add(MSUtils.hexStringToBytes(ecuData.getPageIdentifiers(), och.substring(start), 0, 0, value, 0));
+        }
+        
+        return "new byte[]{" + StringUtils.join(parts, ",") + "}";
+    }
+
     static void processLogEntry(ECUData ecuData, String line)
     {
         line = removeComments(line);
@@ -463,6 +508,15 @@ public class Process
             String[] list = values.split(",");
             ecuData.setPageReadCommands(new ArrayList<String>(Arrays.asList(list)));
         }
+
+        Matcher crc32CheckCommandM = Patterns.crc32CheckCommand.matcher(line);
+        if (crc32CheckCommandM.matches())
+        {
+            String values = StringUtils.remove(crc32CheckCommandM.group(1), ' ');
+            values = StringUtils.remove(values, '"');
+            String[] list = values.split(",");
+            ecuData.setCrc32CheckCommands(new ArrayList<String>(Arrays.asList(list)));
+        }
         
         Matcher pageValueWriteM = Patterns.pageValueWrite.matcher(line);
         if (pageValueWriteM.matches())
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.normaliser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author David Valeri
+ */
+public class OutputTest {
+
+    /**
+     * The estimated size of {@link #ASSIGNMENT}: two fields, an operator, a literal and the
+     * assignment.
+     */
+    private static final int ASSIGNMENT_SIZE = 13;
+    private static final String ASSIGNMENT = "x = a + 1;";
+
+    // Preprocessor directives as Process translates them.
+    private static final String IF_A = "if (A)\n        {";
+    private static final String IF_B = "if (B)\n        {";
+    private static final String ELSE = "}\n        else\n        {";
+    private static final String END_IF = "}";
+
+    @Test
+    public void testEstimateBytecodeSize() {
+        assertEquals(ASSIGNMENT_SIZE, Output.estimateBytecodeSize(ASSIGNMENT));
+        // The class qualifying a static call is free.
+        assertEquals(8, Output.estimateBytecodeSize("Math.abs(x)"));
+        // A literal costs the same whatever it contains.
+        assertEquals(4 + 4 + 3, Output.estimateBytecodeSize("b.append(\"a + b(c) = 1\");"));
+        assertEquals(4 + 4 + 3, Output.estimateBytecodeSize("b.append('+');"));
+    }
+
+    @Test
+    public void testBracketDeltaIgnoresLiterals() {
+        assertEquals(1, Output.getBracketDelta(IF_A));
+        assertEquals(0, Output.getBracketDelta(ELSE));
+        assertEquals(-1, Output.getBracketDelta(END_IF));
+        assertEquals(0, Output.getBracketDelta("b.append(\"{\");"));
+        assertEquals(0, Output.getBracketDelta("b.append(\"}}\");"));
+        assertEquals(0, Output.getBracketDelta("b.append('{');"));
+        // An escaped quote does not end the literal.
+        assertEquals(0, Output.getBracketDelta("b.append(\"\\\"{\");"));
+        assertEquals(1, Output.getBracketDelta("if (s.equals(\"}\"))\n        {"));
+    }
+
+    @Test
+    public void testSplitsOnlyBetweenTopLevelStatements() {
+        final List<String> statements = new ArrayList<String>();
+        statements.add(ASSIGNMENT);
+        statements.add(IF_A);
+        statements.add(ASSIGNMENT);
+        statements.add(IF_B);
+        statements.add(ASSIGNMENT);
+        statements.add("b.append(\"}\");");
+        statements.add(ELSE);
+        statements.add(ASSIGNMENT);
+        statements.add(END_IF);
+        statements.add(ASSIGNMENT);
+        statements.add(ELSE);
+        statements.add(ASSIGNMENT);
+        statements.add(END_IF);
+        statements.add(ASSIGNMENT);
+
+        // Small enough that every top level statement would be a part of its own.
+        final List<List<String>> parts = Output.splitStatements(statements, ASSIGNMENT_SIZE);
+
+        assertEquals(3, parts.size());
+        assertEquals(Arrays.asList(ASSIGNMENT), parts.get(0));
+        assertEquals(statements.subList(1, statements.size() - 1), parts.get(1));
+        assertEquals(Arrays.asList(ASSIGNMENT), parts.get(2));
+        assertBalanced(parts);
+    }
+
+    @Test
+    public void testKeepsOversizeBlockWhole() {
+        final List<String> block = new ArrayList<String>();
+        block.add(IF_A);
+        for (int i = 0; i < 100; i++) {
+            block.add(ASSIGNMENT);
+        }
+        block.add(END_IF);
+
+        final List<String> statements = new ArrayList<String>();
+        statements.addAll(Collections.nCopies(3, ASSIGNMENT));
+        statements.addAll(block);
+        statements.addAll(Collections.nCopies(3, ASSIGNMENT));
+
+        final List<List<String>> parts = Output.splitStatements(statements,
+                10 * ASSIGNMENT_SIZE);
+
+        // The block starts while the first part has room, so it stays there, whole, and the
+        // part grows well past the limit.
+        assertEquals(2, parts.size());
+        assertEquals(statements.subList(0, 3 + block.size()), parts.get(0));
+        assertEquals(Collections.nCopies(3, ASSIGNMENT), parts.get(1));
+        assertBalanced(parts);
+    }
+
+    @Test
+    public void testSplitEmptyBody() {
+        final List<List<String>> parts = Output.splitStatements(Collections.<String>emptyList(),
+                ASSIGNMENT_SIZE);
+
+        assertEquals(1, parts.size());
+        assertTrue(parts.get(0).isEmpty());
+    }
+
+    @Test
+    public void testOutputSplitMethod() {
+        // Over the limit as a whole, but one block.
+        final List<String> statements = new ArrayList<String>();
+        statements.add(IF_A);
+        statements.addAll(Collections.nCopies(400, ASSIGNMENT));
+        statements.add(END_IF);
+        statements.addAll(Collections.nCopies(10, ASSIGNMENT));
+
+        final StringWriter out = new StringWriter();
+        final PrintWriter writer = new PrintWriter(out);
+        Output.outputSplitMethod("public void calculate(byte[] ochBuffer)", "logData = ochBuffer;",
+                statements, null, "calculate", "byte[] ochBuffer", "ochBuffer", writer);
+        writer.flush();
+        final String source = out.toString();
+
+        assertTrue(source, source.contains("logData = ochBuffer;\n"));
+        assertTrue(source, source.contains("calculate1(ochBuffer);\n"));
+        assertTrue(source, source.contains("calculate2(ochBuffer);\n"));
+        assertTrue(source, !source.contains("calculate3"));
+        assertTrue(source, source.contains("private void calculate1(byte[] ochBuffer)"));
+        // The whole block lands in the first part.
+        final String first = source.substring(source.indexOf("private void calculate1"),
+                source.indexOf("private void calculate2"));
+        assertEquals(400, count(first, ASSIGNMENT));
+        assertTrue(first, first.contains("if (A)"));
+    }
+
+    private static void assertBalanced(List<List<String>> parts) {
+        for (List<String> part : parts) {
+            int delta = 0;
+            for (String statement : part) {
+                delta += Output.getBracketDelta(statement);
+            }
+            assertEquals(part.toString(), 0, delta);
+        }
+    }
+
+    private static int count(String s, String sub) {
+        int count = 0;
+        for (int i = s.indexOf(sub); i >= 0; i = s.indexOf(sub, i + sub.length())) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import net.tracknalysis.ecu.ms.common.MSUtils;
+import net.tracknalysis.ecu.ms.common.MsController;
+
+/**
+ * Base {@link MsController} containing the operations that do not depend on communicating with
+ * a Megasquirt, so that generated ECU definitions can be driven both by a live {@link Megasquirt}
+ * and by offline tooling.
+ *
+ * @author David Smith
+ * @author David Valeri
+ */
+public abstract class AbstractMsController implements MsController {
+
+    private final TableManager tableManager;
+    private final MsConfiguration configuration;
+
+    protected AbstractMsController(TableManager tableManager, MsConfiguration configuration) {
+        this.tableManager = tableManager;
+        this.configuration = configuration;
+    }
+
+    @Override
+    public int table(final double d1, final String name) {
+    	return tableManager.table((int) d1, name);
+    }
+    
+    @Override
+    public double tempCvt(final double t) {
+    	if (configuration.isSet("CELCIUS")) {
+            return (t - 32.0d) * 5.0d / 9.0d;
+        } else {
+            return t;
+        }
+    }
+    
+    @Override
+    public double round(final double v) {
+        return Math.floor((v * 100) + .5) / 100;
+    }
+    
+    @Override
+    public boolean isSet(final String name) {
+        return configuration.isSet(name);
+    }
+    
+    @Override
+	public int[][] loadByteArray(final byte[] pageBuffer, final int offset,
+			final int width, final int height, final boolean signed) {
+		final int[][] destination = new int[width][height];
+		int index = offset;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final int value = signed ? MSUtils.getSignedByte(
+						pageBuffer, index) : MSUtils.getByte(
+						pageBuffer, index);
+				destination[x][y] = value;
+				index = index + 1;
+			}
+		}
+		return destination;
+	}
+
+	@Override
+	public int[] loadByteVector(final byte[] pageBuffer, final int offset,
+			final int width, final boolean signed) {
+		final int[] destination = new int[width];
+		int index = offset;
+		for (int x = 0; x < width; x++) {
+			final int value = signed ? MSUtils.getSignedByte(
+					pageBuffer, index) : MSUtils.getByte(pageBuffer,
+					index);
+			destination[x] = value;
+			index = index + 1;
+		}
+
+		return destination;
+	}
+
+	@Override
+	public int[][] loadWordArray(final byte[] pageBuffer, final int offset,
+			final int width, final int height, final boolean signed) {
+		final int[][] destination = new int[width][height];
+		int index = offset;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final int value = signed ? MSUtils.getSignedWord(
+						pageBuffer, index) : MSUtils.getWord(
+						pageBuffer, index);
+				destination[x][y] = value;
+				index = index + 2;
+			}
+		}
+
+		return destination;
+	}
+
+	@Override
+	public int[] loadWordVector(final byte[] pageBuffer, final int offset,
+			final int width, final boolean signed) {
+		final int[] destination = new int[width];
+		int index = offset;
+		for (int x = 0; x < width; x++) {
+			final int value = signed ? MSUtils.getSignedWord(
+					pageBuffer, index) : MSUtils.getWord(pageBuffer,
+					index);
+			destination[x] = value;
+			index = index + 2;
+		}
+
+		return destination;
+	}
+
+	protected TableManager getTableManager() {
+		return tableManager;
+	}
+
+	protected MsConfiguration getConfiguration() {
+		return configuration;
+	}
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.util.Arrays;
+
+import net.tracknalysis.common.io.IoManagerResult;
+
+/**
+ * Learns the round trip time of OCH requests and page reads to a Megasquirt from the timing
+ * recorded in {@link IoManagerResult}s and derives read timeouts from it, so that a lost frame
+ * costs a few multiples of the observed round trip rather than a fixed conservative constant.
+ * <p/>
+ * Until {@link #getWarmupSamples()} round trips have been observed, and after each failure, OCH
+ * timeouts fall back towards the conservative defaults.  Page timeouts are learnt only from page
+ * reads, as the time an ECU takes to answer a page read, for example from flash, says little
+ * about how quickly it answers an OCH request.  Until {@link #PAGE_WARMUP_READS} page reads have
+ * been observed, and after a failed page read, page reads use {@link #DEFAULT_PAGE_TIMEOUT}.
+ * Timeouts never exceed the defaults.
+ * <p/>
+ * Samples must be recorded from a single thread, typically the IO thread.  The derived values
+ * may be read from any thread.
+ *
+ * @author David Valeri
+ */
+public class AdaptiveTimingController {
+
+    /**
+     * The slack, beyond the inter-write delay, historically allowed for an OCH read.  Also the
+     * upper bound of the adaptive slack.
+     */
+    public static final long DEFAULT_OCH_SLACK = 500;
+
+    /**
+     * The timeout historically used for page reads.  Also the upper bound of the adaptive page
+     * timeout.
+     */
+    public static final long DEFAULT_PAGE_TIMEOUT = 2000;
+
+    /**
+     * The number of successful page reads to observe before adapting the page timeout.
+     */
+    public static final int PAGE_WARMUP_READS = 2;
+
+    private static final int DEFAULT_WINDOW_SIZE = 128;
+    private static final int DEFAULT_WARMUP_SAMPLES = 16;
+    private static final double DEFAULT_MARGIN = 2.0d;
+    private static final long MIN_OCH_SLACK = 20;
+    private static final long MIN_PAGE_TIMEOUT = 500;
+    private static final double POLL_RATE_SMOOTHING = 0.1d;
+
+    private final long[] window;
+    private final long[] sorted;
+    private final int warmupSamples;
+    private final double margin;
+
+    private int sampleCount;
+    private int nextSample;
+    private int consecutiveFailures;
+    private long lastPollTime;
+    private double smoothedPollInterval;
+    private int pageReadCount;
+    private long slowestPageRoundTrip;
+    private double slowestPageMillisPerByte;
+    private boolean pageFailed;
+
+    private volatile long p50;
+    private volatile long p99;
+    private volatile long ochSlack = DEFAULT_OCH_SLACK;
+    private volatile double bytesPerMilli;
+    private volatile double achievedPollRate;
+
+    /**
+     * The slowest page round trip in milliseconds or 0 if page timeouts are not adapting.
+     */
+    private volatile long pageTimeoutBase;
+
+    /**
+     * The slowest per byte time of a page read in milliseconds per byte.
+     */
+    private volatile double pageMillisPerByte;
+
+    public AdaptiveTimingController() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_WARMUP_SAMPLES, DEFAULT_MARGIN);
+    }
+
+    /**
+     * @param windowSize the number of most recent round trips percentiles are calculated over
+     * @param warmupSamples the number of round trips to observe before adapting
+     * @param margin the multiple of the 99th percentile round trip allowed before timing out
+     */
+    public AdaptiveTimingController(int windowSize, int warmupSamples, double margin) {
+        if (windowSize < 1 || warmupSamples < 1 || warmupSamples > windowSize) {
+            throw new IllegalArgumentException("Invalid window size or warmup sample count.");
+        }
+        if (margin < 1) {
+            throw new IllegalArgumentException("margin must be at least 1.");
+        }
+
+        window = new long[windowSize];
+        sorted = new long[windowSize];
+        this.warmupSamples = warmupSamples;
+        this.margin = margin;
+    }
+
+    /**
+     * Forgets all observations, for example because a different ECU has been connected.
+     */
+    public void reset() {
+        sampleCount = 0;
+        nextSample = 0;
+        consecutiveFailures = 0;
+        lastPollTime = 0;
+        smoothedPollInterval = 0;
+        pageReadCount = 0;
+        slowestPageRoundTrip = 0;
+        slowestPageMillisPerByte = 0;
+        pageFailed = false;
+        pageTimeoutBase = 0;
+        p50 = 0;
+        p99 = 0;
+        ochSlack = DEFAULT_OCH_SLACK;
+        bytesPerMilli = 0;
+        achievedPollRate = 0;
+    }
+
+    /**
+     * Records a successful OCH round trip.
+     *
+     * @param request the result of sending the request
+     * @param response the result of reading the response, may be the same as {@code request}
+     * @param responseLength the number of bytes read
+     */
+    public void recordOchSuccess(IoManagerResult request, IoManagerResult response, int responseLength) {
+        final long roundTrip = Math.max(0, response.getRequestRxEndTime() - request.getRequestTxStartTime());
+
+        window[nextSample] = roundTrip;
+        nextSample = (nextSample + 1) % window.length;
+        if (sampleCount < window.length) {
+            sampleCount++;
+        }
+        consecutiveFailures = 0;
+
+        final long now = response.getRequestRxEndTime();
+        if (lastPollTime != 0 && now > lastPollTime) {
+            final long interval = now - lastPollTime;
+            smoothedPollInterval = smoothedPollInterval == 0
+                    ? interval
+                    : smoothedPollInterval + POLL_RATE_SMOOTHING * (interval - smoothedPollInterval);
+            achievedPollRate = 1000d / smoothedPollInterval;
+        }
+        lastPollTime = now;
+
+        if (sampleCount >= warmupSamples) {
+            updatePercentiles();
+            if (p50 > 0) {
+                bytesPerMilli = (double) responseLength / p50;
+            }
+        }
+
+        ochSlack = calculateOchSlack();
+    }
+
+    /**
+     * Records a failed OCH round trip.  Each consecutive failure doubles the slack, up to
+     * {@link #DEFAULT_OCH_SLACK}, in case the link has become slower.
+     */
+    public void recordOchFailure() {
+        consecutiveFailures++;
+        lastPollTime = 0;
+        ochSlack = calculateOchSlack();
+    }
+
+    /**
+     * Returns the timeout to use when reading an OCH response.
+     *
+     * @param interWriteDelay the inter-write delay of the ECU
+     */
+    public long getOchTimeout(int interWriteDelay) {
+        return interWriteDelay + ochSlack;
+    }
+
+    /**
+     * Records a successful page read.
+     *
+     * @param request the result of sending the last command of the read
+     * @param response the result of reading the page
+     * @param pageSize the number of bytes read
+     */
+    public void recordPageSuccess(IoManagerResult request, IoManagerResult response, int pageSize) {
+        final long roundTrip = Math.max(0, response.getRequestRxEndTime() - request.getRequestTxStartTime());
+
+        pageReadCount++;
+        pageFailed = false;
+        slowestPageRoundTrip = Math.max(slowestPageRoundTrip, roundTrip);
+        if (pageSize > 0) {
+            slowestPageMillisPerByte = Math.max(slowestPageMillisPerByte, (double) roundTrip / pageSize);
+        }
+
+        updatePageTimeout();
+    }
+
+    /**
+     * Records a failed page read, after which page reads use {@link #DEFAULT_PAGE_TIMEOUT} until
+     * the next successful one.
+     */
+    public void recordPageFailure() {
+        pageFailed = true;
+        updatePageTimeout();
+    }
+
+    /**
+     * Returns the timeout to use when reading a page of {@code pageSize} bytes, or a response of
+     * {@code pageSize} bytes that the ECU derives from a page, derived from the page reads
+     * observed so far.
+     */
+    public long getPageTimeout(int pageSize) {
+        final long base = pageTimeoutBase;
+        if (base <= 0) {
+            return DEFAULT_PAGE_TIMEOUT;
+        }
+
+        // The slowest round trip covers any fixed latency of the ECU, the per byte time covers
+        // pages larger than those observed.
+        final long expected = Math.max(base, (long) Math.ceil(pageSize * pageMillisPerByte));
+        final long timeout = (long) (expected * margin) + MIN_OCH_SLACK;
+        return Math.max(MIN_PAGE_TIMEOUT, Math.min(DEFAULT_PAGE_TIMEOUT, timeout));
+    }
+
+    /**
+     * Returns the observed throughput of OCH responses in bytes per millisecond or 0 if no round
+     * trip has been observed.  Round trips include the request and any fixed latency of the ECU,
+     * so this underestimates the raw link rate.
+     */
+    public double getBytesPerMilli() {
+        return bytesPerMilli;
+    }
+
+    /**
+     * Returns the median OCH round trip in milliseconds or 0 if still warming up.
+     */
+    public long getMedianRoundTrip() {
+        return p50;
+    }
+
+    /**
+     * Returns the 99th percentile OCH round trip in milliseconds or 0 if still warming up.
+     */
+    public long getP99RoundTrip() {
+        return p99;
+    }
+
+    /**
+     * Returns the exponentially smoothed rate at which OCH responses are being received, in
+     * polls per second, or 0 if unknown.
+     */
+    public double getAchievedPollRate() {
+        return achievedPollRate;
+    }
+
+    public int getWarmupSamples() {
+        return warmupSamples;
+    }
+
+    private void updatePercentiles() {
+        System.arraycopy(window, 0, sorted, 0, sampleCount);
+        Arrays.sort(sorted, 0, sampleCount);
+        p50 = sorted[(sampleCount - 1) / 2];
+        p99 = sorted[(int) Math.ceil(sampleCount * 0.99d) - 1];
+    }
+
+    private void updatePageTimeout() {
+        if (pageFailed || pageReadCount < PAGE_WARMUP_READS) {
+            pageTimeoutBase = 0;
+        } else {
+            pageMillisPerByte = slowestPageMillisPerByte;
+            pageTimeoutBase = Math.max(1, slowestPageRoundTrip);
+        }
+    }
+
+    private long calculateOchSlack() {
+        long slack;
+        if (sampleCount < warmupSamples) {
+            slack = DEFAULT_OCH_SLACK;
+        } else {
+            slack = Math.max(MIN_OCH_SLACK, (long) (p99 * margin));
+        }
+
+        for (int i = 0; i < consecutiveFailures && slack < DEFAULT_OCH_SLACK; i++) {
+            slack *= 2;
+        }
+
+        return Math.min(DEFAULT_OCH_SLACK, slack);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("AdaptiveTimingController [p50=");
+        builder.append(p50);
+        builder.append(", p99=");
+        builder.append(p99);
+        builder.append(", ochSlack=");
+        builder.append(ochSlack);
+        builder.append(", achievedPollRate=");
+        builder.append(achievedPollRate);
+        builder.append("]");
+        return builder.toString();
+    }
+}
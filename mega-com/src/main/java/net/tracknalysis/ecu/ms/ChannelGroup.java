@@ -0,0 +1,142 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A set of output channels polled at a common target rate by a {@link ChannelScheduler}.
+ *
+ * @author David Valeri
+ */
+public final class ChannelGroup {
+
+    private static final double RATE_SMOOTHING = 0.1d;
+
+    private final String name;
+    private final Set<String> channels;
+    private final double targetRate;
+    private final long periodNanos;
+    private final int bit;
+
+    /**
+     * Bytes read and the fixed overhead of the requests needed to read this group alone, or -1
+     * if not yet known.  Only accessed from the IO thread.
+     */
+    int byteCount = -1;
+    long overheadNanos = -1;
+    long nextDueNanos;
+    private long lastPollNanos;
+    private double smoothedIntervalNanos;
+
+    private volatile double achievedRate;
+    private volatile long pollCount;
+
+    ChannelGroup(String name, double targetRate, Collection<String> channels, int bit) {
+        if (targetRate <= 0) {
+            throw new IllegalArgumentException("targetRate must be positive.");
+        }
+
+        this.name = name;
+        this.targetRate = targetRate;
+        this.channels = Collections.unmodifiableSet(new LinkedHashSet<String>(channels));
+        this.periodNanos = (long) (1000000000d / targetRate);
+        this.bit = bit;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Set<String> getChannels() {
+        return channels;
+    }
+
+    /**
+     * Returns the requested rate in polls per second.
+     */
+    public double getTargetRate() {
+        return targetRate;
+    }
+
+    /**
+     * Returns the exponentially smoothed rate at which the group has actually been polled, in
+     * polls per second, or 0 if unknown.
+     */
+    public double getAchievedRate() {
+        return achievedRate;
+    }
+
+    /**
+     * Returns the number of times the group has been polled.
+     */
+    public long getPollCount() {
+        return pollCount;
+    }
+
+    long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    int getBit() {
+        return bit;
+    }
+
+    void reset(long nowNanos) {
+        byteCount = -1;
+        overheadNanos = -1;
+        nextDueNanos = nowNanos;
+        lastPollNanos = 0;
+        smoothedIntervalNanos = 0;
+        achievedRate = 0;
+    }
+
+    void recordPoll(long nowNanos) {
+        if (lastPollNanos != 0) {
+            final long interval = nowNanos - lastPollNanos;
+            smoothedIntervalNanos = smoothedIntervalNanos == 0
+                    ? interval
+                    : smoothedIntervalNanos + RATE_SMOOTHING * (interval - smoothedIntervalNanos);
+            if (smoothedIntervalNanos > 0) {
+                achievedRate = 1000000000d / smoothedIntervalNanos;
+            }
+        }
+        lastPollNanos = nowNanos;
+        pollCount++;
+
+        // Schedule from the deadline rather than now so that the long term rate holds, but do
+        // not try to catch up on missed polls.
+        nextDueNanos = Math.max(nextDueNanos + periodNanos, nowNanos);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("ChannelGroup [name=");
+        builder.append(name);
+        builder.append(", targetRate=");
+        builder.append(targetRate);
+        builder.append(", achievedRate=");
+        builder.append(achievedRate);
+        builder.append(", channels=");
+        builder.append(channels);
+        builder.append("]");
+        return builder.toString();
+    }
+}
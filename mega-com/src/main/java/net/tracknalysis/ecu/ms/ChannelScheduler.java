@@ -0,0 +1,350 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.io.Crc32IoProtocolHandler;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls groups of output channels at individual target rates.  Each poll, the groups whose
+ * deadline has passed are selected earliest deadline first until the estimated serial time of
+ * their ranged OCH reads exceeds the poll budget, the period of the fastest group.  Groups that
+ * do not fit keep their deadline and are favoured on the next poll.
+ * <p/>
+ * The serial time of a read is estimated from the baud rate, at ten bits per byte, plus the
+ * overhead of each request on the link: the inter-write delay of the ECU and the pause
+ * {@link MsIoManager} makes while writing a command in two parts, 200 ms for each ranged read on
+ * MS2.  Links with further latency, such as Bluetooth adapters, may add a fixed overhead per
+ * request.  A group is costed as a read of the whole OCH block when that is cheaper, as
+ * {@link Megasquirt} then reads it that way.
+ * <p/>
+ * Groups may be added from any thread.  Scheduling methods are only called from the Megasquirt
+ * IO thread.
+ *
+ * @author David Valeri
+ *
+ * @see Megasquirt#setChannelScheduler(ChannelScheduler)
+ */
+public class ChannelScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChannelScheduler.class);
+
+    /**
+     * The maximum number of groups.  Bounds the number of distinct read plans a Megasquirt
+     * caches, one per combination of groups.
+     */
+    public static final int MAX_GROUPS = 12;
+
+    public static final int DEFAULT_BAUD_RATE = 115200;
+
+    private final long nanosPerByte;
+    private final double bytesPerMilli;
+    private final long extraRequestOverheadNanos;
+    private final Crc32IoProtocolHandler crc32ProtocolHandler = new Crc32IoProtocolHandler();
+
+    private volatile ChannelGroup[] groups = new ChannelGroup[0];
+
+    /**
+     * Incremented each time {@link #groups} changes.
+     */
+    private volatile int version;
+
+    /**
+     * The ECU definition the group costs were computed for.  Only accessed from the IO thread.
+     */
+    private MsEcu preparedEcu;
+    private int preparedVersion;
+
+    /**
+     * Scratch space for ordering due groups.  Only accessed from the IO thread.
+     */
+    private ChannelGroup[] due = new ChannelGroup[0];
+
+    public ChannelScheduler() {
+        this(DEFAULT_BAUD_RATE, 0);
+    }
+
+    /**
+     * @param baudRate the baud rate of the serial link
+     * @param extraRequestOverheadNanos the estimated cost of a request beyond the delays of the
+     *            ECU and the IO manager, in nanoseconds
+     */
+    public ChannelScheduler(int baudRate, long extraRequestOverheadNanos) {
+        if (baudRate <= 0) {
+            throw new IllegalArgumentException("baudRate must be positive.");
+        }
+        if (extraRequestOverheadNanos < 0) {
+            throw new IllegalArgumentException("extraRequestOverheadNanos must not be negative.");
+        }
+
+        this.nanosPerByte = 10L * 1000 * 1000 * 1000 / baudRate;
+        this.bytesPerMilli = baudRate / 10000d;
+        this.extraRequestOverheadNanos = extraRequestOverheadNanos;
+    }
+
+    /**
+     * Adds a group of channels to poll at {@code targetRate}.
+     *
+     * @param name the name of the group, used for reporting
+     * @param targetRate the requested rate in polls per second
+     * @param channelNames the names of the output channels in the group
+     *
+     * @return the new group, from which the achieved rate may be read
+     */
+    public synchronized ChannelGroup addGroup(String name, double targetRate,
+            Collection<String> channelNames) {
+        final ChannelGroup[] current = groups;
+        if (current.length == MAX_GROUPS) {
+            throw new IllegalStateException("No more than " + MAX_GROUPS + " groups may be scheduled.");
+        }
+
+        final ChannelGroup group = new ChannelGroup(name, targetRate, channelNames, current.length);
+        final ChannelGroup[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = group;
+        groups = updated;
+        version++;
+        return group;
+    }
+
+    /**
+     * Returns the groups in the order they were added.
+     */
+    public List<ChannelGroup> getGroups() {
+        return Collections.unmodifiableList(Arrays.asList(groups));
+    }
+
+    /**
+     * Returns the union of the channels of all groups.
+     */
+    public Set<String> getChannels() {
+        final Set<String> channels = new LinkedHashSet<String>();
+        for (ChannelGroup group : groups) {
+            channels.addAll(group.getChannels());
+        }
+        return channels;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("ChannelScheduler [nanosPerByte=");
+        builder.append(nanosPerByte);
+        builder.append(", extraRequestOverheadNanos=");
+        builder.append(extraRequestOverheadNanos);
+        builder.append(", groups=");
+        builder.append(Arrays.toString(groups));
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * Returns the number that changes each time a group is added.
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the mask with the bit of every group set.
+     */
+    int getAllGroupsMask() {
+        return (1 << groups.length) - 1;
+    }
+
+    /**
+     * Computes the cost of each group for {@code ecu} and makes all groups due immediately.
+     * Called when the ECU definition or the groups change.
+     */
+    void prepare(MsEcu ecu, long nowNanos) {
+        final ChannelGroup[] current = groups;
+        preparedEcu = ecu;
+        preparedVersion = version;
+        due = new ChannelGroup[current.length];
+        
+        final byte[] blockCommand = getCommandAsSent(ecu, ecu.getOchCommand());
+
+        for (ChannelGroup group : current) {
+            group.reset(nowNanos);
+
+            final List<OchRange> ranges = OchRangePlanner.plan(ecu, group.getChannels(),
+                    OchRangePlanner.DEFAULT_MERGE_GAP);
+            if (ranges != null) {
+                final byte[][] commands = new byte[ranges.size()][];
+                int bytes = 0;
+                long overhead = 0;
+                for (int i = 0; i < commands.length; i++) {
+                    final OchRange range = ranges.get(i);
+                    commands[i] = getCommandAsSent(ecu,
+                            ecu.getOchCommand(range.getOffset(), range.getCount()));
+                    bytes += range.getCount();
+                    overhead += getRequestOverheadNanos(ecu, commands[i]);
+                }
+                
+                if (OchRangePlanner.isRangedReadCheaper(ranges, commands, ecu.getBlockSize(),
+                        blockCommand, bytesPerMilli)) {
+                    group.byteCount = bytes;
+                    group.overheadNanos = overhead;
+                    continue;
+                }
+            }
+            
+            // Reading the group means reading the whole block.
+            group.byteCount = ecu.getBlockSize();
+            group.overheadNanos = getRequestOverheadNanos(ecu, blockCommand);
+        }
+
+        LOG.debug("Prepared {} for {}.", this, ecu.getSignature());
+    }
+
+    /**
+     * Returns true if the groups must be prepared for {@code ecu} before scheduling.
+     */
+    boolean isPrepareRequired(MsEcu ecu) {
+        return ecu != preparedEcu || version != preparedVersion;
+    }
+
+    /**
+     * Selects the groups to read on this poll.
+     *
+     * @return a mask with the bit of each selected group set, 0 if no group is due
+     */
+    int selectDueGroups(long nowNanos) {
+        final ChannelGroup[] current = groups;
+        if (current.length != due.length) {
+            // A group was added since the last preparation; wait for it.
+            return 0;
+        }
+
+        int dueCount = 0;
+        long budget = Long.MAX_VALUE;
+        for (ChannelGroup group : current) {
+            budget = Math.min(budget, group.getPeriodNanos());
+            if (nowNanos - group.nextDueNanos >= 0) {
+                // Insertion sort by deadline, there are only a handful of groups.
+                int i = dueCount++;
+                while (i > 0 && due[i - 1].nextDueNanos - group.nextDueNanos > 0) {
+                    due[i] = due[i - 1];
+                    i--;
+                }
+                due[i] = group;
+            }
+        }
+
+        int mask = 0;
+        long cost = 0;
+        for (int i = 0; i < dueCount; i++) {
+            final ChannelGroup group = due[i];
+            final long groupCost = getCost(group);
+            if (mask != 0 && cost + groupCost > budget) {
+                break;
+            }
+            cost += groupCost;
+            mask |= 1 << group.getBit();
+        }
+
+        Arrays.fill(due, 0, dueCount, null);
+        return mask;
+    }
+
+    /**
+     * Returns the nanoseconds until the next group is due, 0 if one is already due.
+     */
+    long getNanosUntilDue(long nowNanos) {
+        long wait = Long.MAX_VALUE;
+        for (ChannelGroup group : groups) {
+            wait = Math.min(wait, Math.max(0, group.nextDueNanos - nowNanos));
+        }
+        return wait;
+    }
+
+    /**
+     * Records that the groups in {@code mask} were read at {@code nowNanos}.
+     */
+    void recordPoll(int mask, long nowNanos) {
+        for (ChannelGroup group : groups) {
+            if ((mask & (1 << group.getBit())) != 0) {
+                group.recordPoll(nowNanos);
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the channels of the groups in {@code mask}.
+     */
+    Set<String> getChannels(int mask) {
+        final Set<String> channels = new LinkedHashSet<String>();
+        for (ChannelGroup group : groups) {
+            if ((mask & (1 << group.getBit())) != 0) {
+                channels.addAll(group.getChannels());
+            }
+        }
+        return channels;
+    }
+
+    /**
+     * Returns the names of the groups in {@code mask}, for logging.
+     */
+    List<String> getGroupNames(int mask) {
+        final List<String> names = new ArrayList<String>();
+        for (ChannelGroup group : groups) {
+            if ((mask & (1 << group.getBit())) != 0) {
+                names.add(group.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the estimated serial time to read {@code group} on its own.
+     */
+    long getCost(ChannelGroup group) {
+        return group.overheadNanos + group.byteCount * nanosPerByte;
+    }
+
+    /**
+     * Returns the overhead of sending {@code command}, excluding the transfer of its response.
+     */
+    private long getRequestOverheadNanos(MsEcu ecu, byte[] command) {
+        return (ecu.getInterWriteDelay() + MsIoManager.getWriteDelay(command)) * 1000L * 1000
+                + extraRequestOverheadNanos;
+    }
+
+    /**
+     * Returns {@code command} as written to the link, wrapped in a CRC32 envelope if the ECU
+     * uses one.
+     */
+    private byte[] getCommandAsSent(MsEcu ecu, byte[] command) {
+        if (!ecu.isCRC32Protocol()) {
+            return command;
+        }
+
+        final byte[] wrapped = new byte[crc32ProtocolHandler.getWrappedRequestLength(command.length)];
+        crc32ProtocolHandler.wrapRequest(command, 0, command.length, wrapped, 0);
+        return wrapped;
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tracknalysis.ecu.ms.common.MsEcu;
+
+/**
+ * A dense, columnar view of the value of every output channel at one poll of a {@link Megasquirt}.
+ * Values are indexed by the stable channel index assigned by the normaliser so that consumers can
+ * resolve the index of the channels they care about once and then read them without boxing,
+ * string building or map lookups.
+ * <p/>
+ * Snapshots are preallocated by a {@link ChannelSnapshotPool} and filled in place by the thread
+ * that owns the pool, so that a poll allocates nothing.  The owning thread, and so a
+ * {@link ChannelSnapshotListener}, may read a snapshot directly.  As a snapshot is reused once the
+ * pool wraps around, any other thread must read it with {@link #copyTo(double[])}, which retries
+ * until it has copied values that all come from the same poll.
+ *
+ * @author David Valeri
+ */
+public final class ChannelSnapshot {
+    
+    private final String[] names;
+    private final Map<String, Integer> indices;
+    private final double[] values;
+    
+    /**
+     * Incremented before and after each fill, so odd while the values are being written.
+     */
+    private final AtomicLong version = new AtomicLong();
+    
+    private long timestamp;
+    private long sequence;
+    
+    /**
+     * Creates an empty snapshot for channels with the given names, indexed by channel index.
+     * All values are 0 and the sequence is 0.
+     */
+    public ChannelSnapshot(String[] names) {
+        this.names = names.clone();
+        this.values = new double[names.length];
+        
+        Map<String, Integer> indexMap = new HashMap<String, Integer>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            indexMap.put(names[i], i);
+        }
+        this.indices = Collections.unmodifiableMap(indexMap);
+    }
+    
+    /**
+     * Creates an empty snapshot sharing the channel names and index of {@code template}.
+     */
+    ChannelSnapshot(ChannelSnapshot template) {
+        this.names = template.names;
+        this.indices = template.indices;
+        this.values = new double[names.length];
+    }
+    
+    /**
+     * Calculates the output channels of {@code ecu} from {@code ochBuffer} directly into this
+     * snapshot.  Only called by the thread that owns the pool.
+     *
+     * @param ecu the ECU to calculate with, must have the same channels as this snapshot
+     * @param ochBuffer the runtime data to calculate from
+     * @param sequence the sequence of the poll
+     * @param timestamp the time at which the values were received in milliseconds since
+     *            January 1, 1970 00:00:00 UTC
+     */
+    void calculate(MsEcu ecu, byte[] ochBuffer, long sequence, long timestamp) {
+        // Atomic increments are full fences, so no value is written before the version is odd
+        // or after it is even again.
+        version.incrementAndGet();
+        try {
+            ecu.calculate(ochBuffer, values);
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+        } finally {
+            version.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Returns the number of channels in the snapshot.
+     */
+    public int getChannelCount() {
+        return values.length;
+    }
+    
+    /**
+     * Returns the name of the channel with the given index.
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+    
+    /**
+     * Returns the index of the channel with the given name or -1 if there is no such channel.
+     */
+    public int getIndex(String name) {
+        Integer index = indices.get(name);
+        return index == null ? -1 : index.intValue();
+    }
+    
+    /**
+     * Returns the value of the channel with the given index.  Only consistent with the other
+     * values on the thread that fills the snapshot; use {@link #copyTo(double[])} elsewhere.
+     */
+    public double getValue(int index) {
+        return values[index];
+    }
+    
+    /**
+     * Returns the time at which the values were received in milliseconds since January 1, 1970
+     * 00:00:00 UTC.  Only consistent with the values on the thread that fills the snapshot.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    /**
+     * Returns the number of polls that led to the values in this snapshot, 0 for an empty
+     * snapshot.  Only consistent with the values on the thread that fills the snapshot; use the
+     * result of {@link #copyTo(double[])} elsewhere.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+    
+    /**
+     * Copies the values of this snapshot into {@code target} without allocating.  Safe to call
+     * from any thread; if the snapshot is refilled during the copy, the copy is repeated so that
+     * every value in {@code target} comes from the same poll.
+     *
+     * @param target an array at least as long as the number of channels in this snapshot
+     *
+     * @return the sequence of the poll the copied values come from
+     */
+    public long copyTo(double[] target) {
+        while (true) {
+            final long before = version.get();
+            if ((before & 1) == 0) {
+                final long copiedSequence = sequence;
+                System.arraycopy(values, 0, target, 0, values.length);
+                // Unlike a volatile read, a compare and set cannot be reordered ahead of the copy.
+                if (version.compareAndSet(before, before)) {
+                    return copiedSequence;
+                }
+            }
+            Thread.yield();
+        }
+    }
+}
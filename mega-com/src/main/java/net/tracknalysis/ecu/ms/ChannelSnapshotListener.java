@@ -0,0 +1,33 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+/**
+ * Receives a {@link ChannelSnapshot} for each poll of a {@link Megasquirt}.
+ *
+ * @author David Valeri
+ */
+public interface ChannelSnapshotListener {
+
+    /**
+     * Called on the IO thread after each poll.  Implementations should return quickly.  The
+     * snapshot may be read directly during the call but is refilled by a later poll, so copy
+     * the values with {@link ChannelSnapshot#copyTo(double[])} to retain them.
+     *
+     * @param snapshot the snapshot of the current output channel values
+     */
+    void onSnapshot(ChannelSnapshot snapshot);
+}
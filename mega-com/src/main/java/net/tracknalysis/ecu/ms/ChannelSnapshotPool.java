@@ -0,0 +1,82 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import net.tracknalysis.ecu.ms.common.MsEcu;
+
+/**
+ * A fixed ring of preallocated {@link ChannelSnapshot}s that one thread fills in turn, one per
+ * poll, and publishes as the latest snapshot.  With the default of two snapshots, the latest
+ * snapshot is not written again until the poll after next, so readers on other threads rarely
+ * need to retry {@link ChannelSnapshot#copyTo(double[])}.
+ *
+ * @author David Valeri
+ */
+public final class ChannelSnapshotPool {
+    
+    public static final int DEFAULT_SIZE = 2;
+    
+    private final ChannelSnapshot[] snapshots;
+    private volatile ChannelSnapshot latest;
+    private int next;
+    private long sequence;
+    
+    public ChannelSnapshotPool(String[] names) {
+        this(names, DEFAULT_SIZE);
+    }
+    
+    /**
+     * Creates a pool of {@code size} empty snapshots for channels with the given names.
+     */
+    public ChannelSnapshotPool(String[] names, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Size must be at least 1.");
+        }
+        snapshots = new ChannelSnapshot[size];
+        snapshots[0] = new ChannelSnapshot(names);
+        for (int i = 1; i < size; i++) {
+            snapshots[i] = new ChannelSnapshot(snapshots[0]);
+        }
+        latest = snapshots[size - 1];
+    }
+    
+    /**
+     * Returns the most recently published snapshot, an empty snapshot if nothing has been
+     * published yet.
+     */
+    public ChannelSnapshot getLatest() {
+        return latest;
+    }
+    
+    /**
+     * Calculates the output channels of {@code ecu} from {@code ochBuffer} into the next snapshot
+     * in the pool and publishes it as the latest.  Must only be called by one thread at a time.
+     *
+     * @param ecu the ECU to calculate with, must have the channels of the pool
+     * @param ochBuffer the runtime data to calculate from
+     * @param timestamp the time at which the values were received in milliseconds since
+     *            January 1, 1970 00:00:00 UTC
+     *
+     * @return the published snapshot
+     */
+    public ChannelSnapshot calculate(MsEcu ecu, byte[] ochBuffer, long timestamp) {
+        final ChannelSnapshot snapshot = snapshots[next];
+        next = next + 1 == snapshots.length ? 0 : next + 1;
+        snapshot.calculate(ecu, ochBuffer, ++sequence, timestamp);
+        latest = snapshot;
+        return snapshot;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation storing one file per page, named after the signature and page number, in a
+ * directory on the file system.  Pages are written to a temporary file and renamed into place so
+ * that a failure part way through never leaves a truncated page behind.
+ *
+ * @author David Valeri
+ */
+public class FilePageCache implements PageCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FilePageCache.class);
+
+    private static final String PAGE_EXTENSION = ".page";
+
+    private final File directory;
+
+    public FilePageCache(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized byte[] get(String signature, int pageNo) throws IOException {
+        final File file = getFile(signature, pageNo);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        final byte[] page = new byte[(int) file.length()];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(page);
+        } finally {
+            in.close();
+        }
+
+        LOG.debug("Read cached page {} from '{}'.", pageNo, file.getAbsolutePath());
+        return page;
+    }
+
+    @Override
+    public synchronized void put(String signature, int pageNo, byte[] page) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create page cache directory '"
+                    + directory.getAbsolutePath() + "'.");
+        }
+
+        final File file = getFile(signature, pageNo);
+        final File tempFile = new File(directory, file.getName() + ".tmp");
+
+        final FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(page);
+        } finally {
+            out.close();
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace cached page '" + file.getAbsolutePath() + "'.");
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to rename '" + tempFile.getAbsolutePath() + "' to '"
+                    + file.getAbsolutePath() + "'.");
+        }
+
+        LOG.debug("Cached page {} in '{}'.", pageNo, file.getAbsolutePath());
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("FilePageCache [directory=");
+        builder.append(directory);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * Returns the file for a page, replacing characters of the signature that are not safe in
+     * file names.
+     */
+    private File getFile(String signature, int pageNo) {
+        final StringBuilder name = new StringBuilder(signature.length() + 16);
+        for (int i = 0; i < signature.length(); i++) {
+            final char c = signature.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-') {
+                name.append(c);
+            } else {
+                name.append('_');
+            }
+        }
+        name.append('-').append(pageNo).append(PAGE_EXTENSION);
+        return new File(directory, name.toString());
+    }
+}
@@ -20,15 +20,30 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
 
 import net.tracknalysis.common.io.IoManager;
 import net.tracknalysis.common.io.IoManagerResult;
 import net.tracknalysis.common.io.IoProtocolHandler;
-import net.tracknalysis.common.io.command.DefaultIoCommandManager;
 import net.tracknalysis.common.io.command.IoCommand;
 import net.tracknalysis.common.io.command.IoCommandManager;
 import net.tracknalysis.common.notification.DefaultNotificationListenerManager;
@@ -36,13 +51,22 @@ import net.tracknalysis.common.notification.NotificationListener;
 import net.tracknalysis.common.notification.NotificationListenerManager;
 import net.tracknalysis.common.notification.NotificationListenerRegistry;
 import net.tracknalysis.ecu.ms.common.Constant;
-import net.tracknalysis.ecu.ms.common.MSUtils;
-import net.tracknalysis.ecu.ms.common.MsController;
+import net.tracknalysis.ecu.ms.common.LogRowBuffer;
 import net.tracknalysis.ecu.ms.common.MsEcu;
 import net.tracknalysis.ecu.ms.common.OutputChannel;
+import net.tracknalysis.ecu.ms.ecu.factory.DetectedSignature;
 import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+import net.tracknalysis.ecu.ms.io.CommandPriority;
 import net.tracknalysis.ecu.ms.io.Crc32IoProtocolHandler;
+import net.tracknalysis.ecu.ms.io.PrioritizedIoCommand;
+import net.tracknalysis.ecu.ms.io.PriorityIoCommandManager;
+import net.tracknalysis.ecu.ms.io.ScheduledIoCommandManager;
 import net.tracknalysis.ecu.ms.log.Log;
+import net.tracknalysis.ecu.ms.page.ChunkWriteBuilder;
+import net.tracknalysis.ecu.ms.page.DirtyRangeCoalescer;
+import net.tracknalysis.ecu.ms.page.PageChunk;
+import net.tracknalysis.ecu.ms.page.PageImage;
+import net.tracknalysis.ecu.ms.page.PageWriteResult;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,7 +79,7 @@ import org.slf4j.LoggerFactory;
  * @author David Smith
  * @author David Valeri
  */
-public class Megasquirt implements MsController,
+public class Megasquirt extends AbstractMsController implements
 		NotificationListenerRegistry<MegasquirtNotificationType> {
 	
 	/**
@@ -66,17 +90,20 @@ public class Megasquirt implements MsController,
     };    
     
     private static final Logger LOG = LoggerFactory.getLogger(Megasquirt.class);
-    private static final Crc32IoProtocolHandler MS_CRC32_PROTOCOL_HANDLER = new Crc32IoProtocolHandler();
     private static final AtomicInteger MEGASQUIRT_INSTANCE_COUNTER = new AtomicInteger();
+    private static final Crc32IoProtocolHandler MS_CRC32_PROTOCOL_HANDLER = new Crc32IoProtocolHandler();
+	
 	
     private final NotificationListenerManager<MegasquirtNotificationType> notificationListenerManager =
     		new DefaultNotificationListenerManager<MegasquirtNotificationType>(
     				MegasquirtNotificationType.DISCONNECTED, null);
     
     /**
-     * The current lifecycle state.
+     * The current lifecycle state.  Only the IO command thread moves the state on from
+     * {@link MegasquirtState#CONNECTING}, so readers never need to lock.
      */
-    private volatile MegasquirtState currentState = MegasquirtState.DISCONNECTED;
+    private final AtomicReference<MegasquirtState> currentState =
+    		new AtomicReference<MegasquirtState>(MegasquirtState.DISCONNECTED);
     
     /**
      * Flag indicating if we are logging.
@@ -99,29 +126,169 @@ public class Megasquirt implements MsController,
      */
     private volatile String trueSignature = "Unknown";
     
+    /**
+     * The signature reported by the Megasquirt firmware we are communicating with.
+     */
+    private volatile String reportedSignature;
+    
+    /**
+     * Store of page images validated against the ECU on connect or {@code null} to always read
+     * pages from the ECU.
+     */
+    private volatile PageCache pageCache;
+    
+    /**
+     * Store of the last signature seen on {@link #signaturePort} or {@code null} to always run
+     * full signature discovery.
+     */
+    private volatile SignatureCache signatureCache;
+    
+    private volatile String signaturePort;
+    
+    private volatile long signatureDetectionNanos;
+    
+    /**
+     * Timings of the pages read the last time the constants were loaded.
+     */
+    private volatile List<PageLoadTiming> constantsLoadTimings = Collections.emptyList();
+    
+    /**
+     * Images of the pages loaded from the ECU, by page number.
+     */
+    private final ConcurrentMap<Integer, PageImage> pageImages = new ConcurrentHashMap<Integer, PageImage>();
+    
     /**
      * Milliseconds from epoch when the current logging session started.
      */
     private volatile long logStartTime;
     
+    /**
+     * Pair of OCH buffers that are alternated between polls so that the buffer most recently
+     * handed to {@link MsEcu#calculate(byte[])} is not overwritten by the read that follows it.
+     * Only accessed from the IO command thread.
+     */
+    private byte[][] ochBuffers;
+    
+    /**
+     * Index into {@link #ochBuffers} of the buffer used by the last poll.
+     */
+    private int ochBufferIndex;
+    
+    /**
+     * Receive buffer for the CRC32 enveloped OCH response or {@code null} if the
+     * firmware does not use the CRC32 protocol.
+     */
+    private byte[] ochFrameBuffer;
+    
+    /**
+     * The OCH command, pre-wrapped for the CRC32 protocol, or {@code null} if the
+     * firmware does not use the CRC32 protocol.
+     */
+    private byte[] wrappedOchCommand;
+    
+    /**
+     * The names of the output channels consumers need or {@code null} to read the whole OCH block.
+     */
+    private volatile Set<String> ochSubscription;
+    
+    /**
+     * Incremented each time {@link #ochSubscription} changes.
+     */
+    private volatile int ochSubscriptionVersion;
+    
+    /**
+     * The value of {@link #ochSubscriptionVersion} that {@link #ochReadPlan} was computed for.
+     * Only accessed from the IO command thread.
+     */
+    private int ochReadPlanVersion;
+    
+    /**
+     * The ranged reads that satisfy the current subscription or {@code null} if the whole OCH
+     * block must be read.  Only accessed from the IO command thread.
+     */
+    private OchReadPlan ochReadPlan;
+    
+    /**
+     * True once the OCH buffers hold a complete block that ranged reads can patch.  Only accessed
+     * from the IO command thread.
+     */
+    private boolean ochImageValid;
+    
+    /**
+     * Polls groups of channels at individual rates or {@code null} to poll every channel on each
+     * poll.
+     */
+    private volatile ChannelScheduler channelScheduler;
+    
+    /**
+     * The scheduler that {@link #scheduledReadPlans} were created for.  Only accessed from the IO
+     * command thread.
+     */
+    private ChannelScheduler preparedScheduler;
+    
+    /**
+     * Ranged read plans indexed by the mask of scheduled groups they read, created on first use.
+     * Only accessed from the IO command thread.
+     */
+    private OchReadPlan[] scheduledReadPlans;
+    private boolean[] scheduledReadPlansCreated;
+    
+    /**
+     * The mask of the groups selected for the current poll.  Only accessed from the IO command
+     * thread.
+     */
+    private int scheduledMask;
+    
+    /**
+     * Preallocated snapshots of the output channel values, filled by each calculation of the
+     * runtime vars.
+     */
+    private volatile ChannelSnapshotPool channelSnapshots;
+    
+    /**
+     * Listeners notified of each snapshot.  Replaced on modification so that notification
+     * from the IO thread neither locks nor allocates.
+     */
+    private volatile ChannelSnapshotListener[] channelSnapshotListeners = new ChannelSnapshotListener[0];
+    
+    /**
+     * Learns the OCH round trip time and derives read timeouts from it.
+     */
+    private final AdaptiveTimingController timingController = new AdaptiveTimingController();
+    
+    private final MegasquirtMetrics metrics = new MegasquirtMetrics(timingController);
+    
+    /**
+     * Receives timings of the work done or {@code null} if not instrumented.
+     */
+    private volatile MegasquirtInstrumentation instrumentation;
+    
     private final IoCommandManager ioCommandManager;
     private final IoManager ioManager;
     private final Log log;
-    private final TableManager tableManager;
-    private final MsConfiguration configuration;
     private final File debugLogDirectory;
     private final int instanceNumber;
     
-    private final ReadWriteLock currentStateLock = new ReentrantReadWriteLock(true);
-    
     public Megasquirt(IoManager ioManager, TableManager tableManager,
             Log logManager, MsConfiguration configuration, File debugLogDirectory) {
+        this(ioManager, tableManager, logManager, configuration, debugLogDirectory,
+                new PriorityIoCommandManager(ioManager));
+    }
+    
+    /**
+     * Creates an instance whose IO commands are executed by {@code ioCommandManager}, which
+     * must execute them one at a time and in order.
+     * 
+     * @see MegasquirtHub
+     */
+    public Megasquirt(IoManager ioManager, TableManager tableManager,
+            Log logManager, MsConfiguration configuration, File debugLogDirectory,
+            IoCommandManager ioCommandManager) {
+        super(tableManager, configuration);
         this.ioManager = ioManager;
-    	this.tableManager = tableManager;
         this.log = logManager;
-        this.configuration = configuration;
         this.debugLogDirectory = debugLogDirectory;
-        ioCommandManager = new DefaultIoCommandManager(ioManager);
+        this.ioCommandManager = ioCommandManager;
         instanceNumber = MEGASQUIRT_INSTANCE_COUNTER.getAndIncrement();
     }
     
@@ -134,14 +301,11 @@ public class Megasquirt implements MsController,
      * Use notifications to receive status updates.  Does nothing if already started.
      */
     public void start() {
-    	currentStateLock.readLock().lock();
-    	try {
-	    	if (currentState == MegasquirtState.DISCONNECTED) {
-		    	ioCommandManager.start();
-		    	ioCommandManager.enqueue(new ConnectIoCommand());
-	    	}
-    	} finally {
-    		currentStateLock.readLock().unlock();
+    	// A redundant connect command is harmless as only one can move the state on from
+    	// DISCONNECTED.
+    	if (currentState.get() == MegasquirtState.DISCONNECTED) {
+	    	ioCommandManager.start();
+	    	ioCommandManager.enqueue(new ConnectIoCommand());
     	}
     }
 
@@ -158,31 +322,74 @@ public class Megasquirt implements MsController,
     	}	
     }
 
+    /**
+     * Queues {@code command} for execution on the IO command thread with the given latency
+     * class.  With a priority aware command manager, such as the default
+     * {@link PriorityIoCommandManager}, interactive and bulk commands run ahead of polling.
+     * 
+     * @param command
+     *            the command to execute
+     * @param priority
+     *            the latency class of the command
+     * 
+     * @return true if the command was queued
+     * 
+     * @throws IllegalStateException
+     *             if not started
+     */
+    public boolean submit(final IoCommand command, final CommandPriority priority) {
+    	return ioCommandManager.enqueue(new PrioritizedIoCommand() {
+			@Override
+			public void execute(IoManager ioManager) {
+				command.execute(ioManager);
+			}
+			
+			@Override
+			public CommandPriority getPriority() {
+				return priority;
+			}
+			
+			@Override
+			public String toString() {
+				return command.toString();
+			}
+		});
+    }
+    
+    /**
+     * Returns the manager executing the IO commands of this instance.
+     */
+    public IoCommandManager getIoCommandManager() {
+    	return ioCommandManager;
+    }
+
     /**
      * Returns true if we're connected to an ECU, false otherwise.
      */
     public boolean isConnected() {
-    	currentStateLock.readLock().lock();
-    	try {
-    		return (currentState == MegasquirtState.CONNECTED);
-    	} finally {
-    		currentStateLock.readLock().unlock();
-    	}
+    	return currentState.get() == MegasquirtState.CONNECTED;
+    }
+    
+    /**
+     * Returns the current lifecycle state.
+     */
+    public MegasquirtState getState() {
+    	return currentState.get();
     }
     
     /**
      * Enables logging, if connected.  Logging is disabled by default.
      */
-    public void startLogging() {
-    	currentStateLock.writeLock().lock();
-    	try {
-	        if (!logging && currentState == MegasquirtState.CONNECTED) {
-	        	logging = true;
-	        	ioCommandManager.enqueue(new LogRuntimeVarsCommand());
-	        }
-    	} finally {
-    		currentStateLock.writeLock().unlock();
-    	}
+    public synchronized void startLogging() {
+        if (!logging && currentState.get() == MegasquirtState.CONNECTED) {
+        	logging = true;
+        	try {
+        		ioCommandManager.enqueue(new LogRuntimeVarsCommand());
+        	} catch (IllegalStateException e) {
+        		// Disconnected in the meantime.
+        		logging = false;
+        	}
+        }
     }
 
     /**
@@ -203,114 +410,51 @@ public class Megasquirt implements MsController,
 	// MSControllerInterface Methods
 	//////////////////////////////////////////////////////////////////////////////////////
     
-    @Override
-    public int table(final double d1, final String name) {
-    	return tableManager.table((int) d1, name);
-    }
-    
-    @Override
-    public double tempCvt(final double t) {
-    	if (configuration.isSet("CELCIUS")) {
-            return (t - 32.0d) * 5.0d / 9.0d;
-        } else {
-            return t;
-        }
-    }
-    
     @Override
     public double timeNow() {
         return (System.currentTimeMillis() - logStartTime) / 1000.0d;
     }
     
-    @Override
-    public double round(final double v) {
-        return Math.floor((v * 100) + .5) / 100;
-    }
-    
-    @Override
-    public boolean isSet(final String name) {
-        return configuration.isSet(name);
-    }
-    
     @Override
 	public byte[] loadPage(final int pageNo, final int pageOffset,
 			final int pageSize, final byte[] select, final byte[] read) throws IOException {
 
+		final long start = System.nanoTime();
+		final MegasquirtInstrumentation instrumentation = this.instrumentation;
+		final Object instrumentationContext = instrumentation == null ? null
+				: instrumentation.pageLoadStarted(this, ecuImplementation, pageNo);
+		final PageCache cache = pageCache;
+		final byte[] crcCommand = cache == null || pageOffset != 0 ? null
+				: ecuImplementation.getPageCrcCommand(pageNo);
+		
+		if (crcCommand != null) {
+			final byte[] cached = getCachedPage(cache, pageNo, pageSize, crcCommand);
+			if (cached != null) {
+				LOG.debug("Loaded constants from cached page {}.", pageNo);
+				pageImages.put(pageNo, new PageImage(pageNo, cached));
+				onPageLoaded(instrumentation, instrumentationContext, pageNo, cached.length, true, start);
+				return cached;
+			}
+		}
+		
 		final byte[] buffer = new byte[pageSize];
 		
 		LOG.debug("Loading constants from page {}.", pageNo);
 		getPage(ioManager, ecuImplementation, buffer, select, read);
 		logPageToFile(pageNo, buffer);
+		pageImages.put(pageNo, new PageImage(pageNo, buffer));
 		LOG.debug("Loaded constants from page {}.", pageNo);
 		
-		return buffer;
-	}
-    
-    @Override
-	public int[][] loadByteArray(final byte[] pageBuffer, final int offset,
-			final int width, final int height, final boolean signed) {
-		final int[][] destination = new int[width][height];
-		int index = offset;
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				final int value = signed ? MSUtils.getSignedByte(
-						pageBuffer, index) : MSUtils.getByte(
-						pageBuffer, index);
-				destination[x][y] = value;
-				index = index + 1;
-			}
-		}
-		return destination;
-	}
-
-	@Override
-	public int[] loadByteVector(final byte[] pageBuffer, final int offset,
-			final int width, final boolean signed) {
-		final int[] destination = new int[width];
-		int index = offset;
-		for (int x = 0; x < width; x++) {
-			final int value = signed ? MSUtils.getSignedByte(
-					pageBuffer, index) : MSUtils.getByte(pageBuffer,
-					index);
-			destination[x] = value;
-			index = index + 1;
-		}
-
-		return destination;
-	}
-
-	@Override
-	public int[][] loadWordArray(final byte[] pageBuffer, final int offset,
-			final int width, final int height, final boolean signed) {
-		final int[][] destination = new int[width][height];
-		int index = offset;
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				final int value = signed ? MSUtils.getSignedWord(
-						pageBuffer, index) : MSUtils.getWord(
-						pageBuffer, index);
-				destination[x][y] = value;
-				index = index + 2;
+		if (crcCommand != null) {
+			try {
+				cache.put(reportedSignature, pageNo, buffer);
+			} catch (IOException e) {
+				LOG.warn("Megasquirt " + instanceNumber + ": Error caching page " + pageNo + ".", e);
 			}
 		}
-
-		return destination;
-	}
-
-	@Override
-	public int[] loadWordVector(final byte[] pageBuffer, final int offset,
-			final int width, final boolean signed) {
-		final int[] destination = new int[width];
-		int index = offset;
-		for (int x = 0; x < width; x++) {
-			final int value = signed ? MSUtils.getSignedWord(
-					pageBuffer, index) : MSUtils.getWord(pageBuffer,
-					index);
-			destination[x] = value;
-			index = index + 2;
-		}
-
-		return destination;
+		
+		onPageLoaded(instrumentation, instrumentationContext, pageNo, buffer.length, false, start);
+		return buffer;
 	}
     
 	//////////////////////////////////////////////////////////////////////////////////////
@@ -345,6 +489,14 @@ public class Megasquirt implements MsController,
 	// General Public Methods
 	//////////////////////////////////////////////////////////////////////////////////////
 	
+	/**
+	 * Returns the generated definition of the connected firmware or {@code null} if not yet
+	 * connected.  Its runtime vars are updated by the IO thread on each poll.
+	 */
+	public MsEcu getEcuImplementation() {
+		return ecuImplementation;
+	}
+	
 	public String getLogHeader() {
 		return ecuImplementation.getLogHeader();
 	}
@@ -353,9 +505,278 @@ public class Megasquirt implements MsController,
 		return ecuImplementation.getLogRow();
 	}
 	
+	/**
+	 * Appends the log row for the current runtime vars to {@code buffer}.
+	 * 
+	 * @see MsEcu#getLogRow(LogRowBuffer)
+	 */
+	public void getLogRow(LogRowBuffer buffer) {
+		ecuImplementation.getLogRow(buffer);
+	}
+	
 	public byte[] getLogData() {
 		return ecuImplementation.getLogData();
 	}
+	
+	/**
+	 * Returns the snapshot of output channel values from the most recent poll or {@code null} if
+	 * not yet connected.  Snapshots are reused by later polls, so read the values with
+	 * {@link ChannelSnapshot#copyTo(double[])} and call again or register a
+	 * {@link ChannelSnapshotListener} for later values.
+	 */
+	public ChannelSnapshot getChannelSnapshot() {
+		final ChannelSnapshotPool channelSnapshots = this.channelSnapshots;
+		return channelSnapshots == null ? null : channelSnapshots.getLatest();
+	}
+	
+	/**
+	 * Returns the link and polling metrics of this instance.
+	 * 
+	 * @see MetricsJmxExporter
+	 */
+	public MegasquirtMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets the instrumentation that receives timings of polling, calculation, log writes, page
+	 * loads and signature detection.
+	 * 
+	 * @param instrumentation
+	 *            the instrumentation to use or {@code null} for none
+	 */
+	public void setInstrumentation(MegasquirtInstrumentation instrumentation) {
+		this.instrumentation = instrumentation;
+	}
+	
+	public MegasquirtInstrumentation getInstrumentation() {
+		return instrumentation;
+	}
+	
+	/**
+	 * Returns the number distinguishing this instance from others in the same JVM.
+	 */
+	public int getInstanceNumber() {
+		return instanceNumber;
+	}
+	
+	/**
+	 * Returns the controller deriving read timeouts from observed round trip times, including
+	 * the achieved poll rate.
+	 */
+	public AdaptiveTimingController getTimingController() {
+		return timingController;
+	}
+	
+	/**
+	 * Restricts polling to the bytes of the OCH block needed to decode {@code channelNames}, using
+	 * ranged OCH reads where the firmware supports them.  Channels outside of the subscription
+	 * keep the value from the last complete read.  If the firmware does not support ranged reads,
+	 * a channel is computed from other channels or ranged reads would not be cheaper, the whole
+	 * block continues to be read.
+	 * 
+	 * @param channelNames
+	 *            the names of the channels to read or {@code null} to read all channels
+	 */
+	public synchronized void setOchSubscription(Collection<String> channelNames) {
+		ochSubscription = channelNames == null ? null : Collections
+				.unmodifiableSet(new HashSet<String>(channelNames));
+		ochSubscriptionVersion++;
+	}
+	
+	/**
+	 * Returns the names of the channels subscribed to or {@code null} if all channels are read.
+	 */
+	public Set<String> getOchSubscription() {
+		return ochSubscription;
+	}
+	
+	/**
+	 * Polls the groups of {@code scheduler} at their target rates rather than reading every
+	 * channel on each poll.  Takes precedence over {@link #setOchSubscription(Collection)}.  Each
+	 * poll reads only the groups that are due, using ranged OCH reads where the firmware supports
+	 * them, and waits while no group is due.
+	 * 
+	 * @param scheduler
+	 *            the scheduler to use or {@code null} to read all channels on each poll
+	 */
+	public void setChannelScheduler(ChannelScheduler scheduler) {
+		channelScheduler = scheduler;
+	}
+	
+	public ChannelScheduler getChannelScheduler() {
+		return channelScheduler;
+	}
+	
+	/**
+	 * Sets the cache of page images used to skip reading pages when loading constants.  A cached
+	 * page is only used if the CRC the ECU reports for the page matches the CRC of the cached
+	 * image, which requires firmware that supports page CRCs.  Pages read from the ECU are
+	 * written back to the cache.
+	 * 
+	 * @param pageCache
+	 *            the cache to use or {@code null} to always read pages from the ECU
+	 */
+	public void setPageCache(PageCache pageCache) {
+		this.pageCache = pageCache;
+	}
+	
+	public PageCache getPageCache() {
+		return pageCache;
+	}
+	
+	/**
+	 * Sets the cache of signatures used to skip full signature discovery on connect.  The ECU is
+	 * first asked for the signature last seen on {@code port} using the query command that
+	 * produced it, falling back to full discovery if the ECU returns anything else.  Signatures
+	 * found by full discovery are written back to the cache.
+	 * 
+	 * @param signatureCache
+	 *            the cache to use or {@code null} to always run full discovery
+	 * @param port
+	 *            the name identifying the port the ECU is connected to, for example the serial
+	 *            device or Bluetooth address
+	 */
+	public void setSignatureCache(SignatureCache signatureCache, String port) {
+		this.signatureCache = signatureCache;
+		this.signaturePort = port;
+	}
+	
+	public SignatureCache getSignatureCache() {
+		return signatureCache;
+	}
+	
+	/**
+	 * Returns the time taken to determine the ECU's signature during the last connect, in
+	 * nanoseconds.
+	 */
+	public long getSignatureDetectionNanos() {
+		return signatureDetectionNanos;
+	}
+	
+	/**
+	 * Returns the image of page {@code pageNo} as last loaded from the ECU, including any edits
+	 * not yet written, or {@code null} if the page has not been loaded.
+	 * 
+	 * @see #writePage(PageImage)
+	 */
+	public PageImage getPageImage(int pageNo) {
+		return pageImages.get(pageNo);
+	}
+	
+	/**
+	 * Writes the changed bytes of {@code image} to the ECU's RAM, coalescing them into the
+	 * fewest chunk writes.  The page is not burned to flash.  Must be called on the IO command
+	 * thread, for example from a command passed to {@link #submit(IoCommand, CommandPriority)}.
+	 * If a write fails, the bytes not yet written are marked as changed again.
+	 * 
+	 * @param image
+	 *            the page to write
+	 * 
+	 * @return the number of commands and bytes sent and the time taken
+	 * 
+	 * @throws IOException
+	 *             if not connected, the firmware does not define page writes or there is an
+	 *             error writing
+	 */
+	public PageWriteResult writePage(PageImage image) throws IOException {
+		final MsEcu ecu = ecuImplementation;
+		if (ecu == null) {
+			throw new IOException("Not connected.");
+		}
+		
+		final int pageNo = image.getPageNo();
+		final List<String> chunkWrites = ecu.getPageChunkWrites();
+		final List<String> valueWrites = ecu.getPageValueWrites();
+		final List<String> pageIdentifiers = ecu.getPageIdentifiers();
+		
+		String template = null;
+		if (pageNo - 1 < chunkWrites.size()) {
+			template = chunkWrites.get(pageNo - 1);
+		} else if (pageNo - 1 < valueWrites.size()) {
+			template = valueWrites.get(pageNo - 1);
+		}
+		if (template == null) {
+			throw new IOException("Firmware " + ecu.getSignature() + " does not define writes for page "
+					+ pageNo + ".");
+		}
+		
+		final ChunkWriteBuilder builder = new ChunkWriteBuilder(template,
+				pageNo - 1 < pageIdentifiers.size() ? pageIdentifiers.get(pageNo - 1) : null);
+		final boolean crc32 = ecu.isCRC32Protocol();
+		final int framing = crc32 ? MS_CRC32_PROTOCOL_HANDLER.getWrappedRequestLength(0) : 0;
+		final int mergeGap = DirtyRangeCoalescer.getMergeGap(builder.getOverhead() + framing,
+				ecu.getInterWriteDelay(), ChannelScheduler.DEFAULT_BAUD_RATE);
+		final int maxChunkSize = builder.isCountSupported() ? DirtyRangeCoalescer.DEFAULT_MAX_CHUNK_SIZE : 1;
+		
+		final long start = System.nanoTime();
+		final byte[] contents = new byte[image.getSize()];
+		final BitSet dirty = image.takeDirty(contents);
+		final List<PageChunk> chunks = DirtyRangeCoalescer.coalesce(dirty, mergeGap, maxChunkSize);
+		
+		int dataBytes = 0;
+		int bytesSent = 0;
+		int written = 0;
+		try {
+			for (PageChunk chunk : chunks) {
+				if (written > 0 && ecu.getInterWriteDelay() > 0) {
+					Thread.sleep(ecu.getInterWriteDelay());
+				}
+				
+				final byte[] command = builder.build(chunk.getOffset(), contents, chunk.getOffset(),
+						chunk.getCount());
+				ioManager.write(command, getProtocolHandler());
+				if (crc32) {
+					readWriteAcknowledgement(ecu);
+				}
+				
+				written++;
+				dataBytes += chunk.getCount();
+				bytesSent += command.length + framing;
+			}
+		} catch (InterruptedException e) {
+			markUnwritten(image, chunks, written);
+			throw new IOException("Interrupted during page write.", e);
+		} catch (IOException e) {
+			markUnwritten(image, chunks, written);
+			throw e;
+		}
+		
+		final PageWriteResult result = new PageWriteResult(pageNo, chunks.size(), dataBytes, bytesSent,
+				System.nanoTime() - start);
+		LOG.debug("Megasquirt {}: Wrote {} changed bytes of page {}: {}.", new Object[] {
+				instanceNumber, dirty.cardinality(), pageNo, result});
+		return result;
+	}
+	
+	/**
+	 * Returns the time spent reading and decoding each page the last time the constants were
+	 * loaded, empty if they have not been loaded.
+	 */
+	public List<PageLoadTiming> getConstantsLoadTimings() {
+		return constantsLoadTimings;
+	}
+	
+	public synchronized void addChannelSnapshotListener(ChannelSnapshotListener listener) {
+		ChannelSnapshotListener[] current = channelSnapshotListeners;
+		ChannelSnapshotListener[] updated = new ChannelSnapshotListener[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = listener;
+		channelSnapshotListeners = updated;
+	}
+	
+	public synchronized void removeChannelSnapshotListener(ChannelSnapshotListener listener) {
+		ChannelSnapshotListener[] current = channelSnapshotListeners;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == listener) {
+				ChannelSnapshotListener[] updated = new ChannelSnapshotListener[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				channelSnapshotListeners = updated;
+				return;
+			}
+		}
+	}
     
 	/**
 	 * Helper function to know if a constant name exists.
@@ -489,18 +910,50 @@ public class Megasquirt implements MsController,
 	
 	//////////////////////////////////////////////
 	
+	private void onPageLoaded(MegasquirtInstrumentation instrumentation, Object instrumentationContext,
+			int pageNo, int bytes, boolean cached, long startNanos) {
+		if (instrumentation != null) {
+			instrumentation.pageLoaded(this, ecuImplementation, instrumentationContext, pageNo, bytes,
+					cached, System.nanoTime() - startNanos);
+		}
+	}
+	
+	/**
+	 * Calculates the output channels from {@code ochBuffer} into the next channel snapshot,
+	 * timing the calculation if instrumented.
+	 *
+	 * @return the published snapshot
+	 */
+	private ChannelSnapshot calculate(MsEcu ecu, byte[] ochBuffer) {
+		final MegasquirtInstrumentation instrumentation = this.instrumentation;
+		final long timestamp = System.currentTimeMillis();
+		if (instrumentation == null) {
+			return channelSnapshots.calculate(ecu, ochBuffer, timestamp);
+		} else {
+			final Object instrumentationContext = instrumentation.calculationStarted(this, ecu);
+			final long start = System.nanoTime();
+			final ChannelSnapshot snapshot = channelSnapshots.calculate(ecu, ochBuffer, timestamp);
+			instrumentation.calculated(this, ecu, instrumentationContext, System.nanoTime() - start);
+			return snapshot;
+		}
+	}
+	
 	private void onConnecting() {
 		LOG.debug("Megasquirt {}: Connecting.", instanceNumber);
-		currentState = MegasquirtState.CONNECTING;
 		notificationListenerManager.sendNotification(MegasquirtNotificationType.CONNECTING);
 	}
 	
 	private void onConnected() {
 		LOG.debug("Megasquirt {}: Connected.", instanceNumber);
-		currentState = MegasquirtState.CONNECTED;
+		currentState.set(MegasquirtState.CONNECTED);
 		notificationListenerManager.sendNotification(MegasquirtNotificationType.CONNECTED);
 	}
 	
+	private void onConstantsLoaded() {
+		LOG.debug("Megasquirt {}: Loaded constants.", instanceNumber);
+		notificationListenerManager.sendNotification(MegasquirtNotificationType.CONSTANTS_LOADED);
+	}
+	
 	private void onConnectionFailed(Exception e) {
 		LOG.error("Megasquirt " + instanceNumber + ": Connection failed with exception.", e);
 		notificationListenerManager.sendNotification(MegasquirtNotificationType.CONNECTION_FAILED);
@@ -533,13 +986,13 @@ public class Megasquirt implements MsController,
 	
 	private void onDisconnecting() {
 		LOG.debug("Megasquirt {}: Disconnecting.", instanceNumber);
-		currentState = MegasquirtState.DISCONNECTING;
+		currentState.set(MegasquirtState.DISCONNECTING);
 		notificationListenerManager.sendNotification(MegasquirtNotificationType.DISCONNECTING);
 	}
 	
 	private void onDisconnected() {
 		LOG.debug("Megasquirt {}: Disconnected.", instanceNumber);
-		currentState = MegasquirtState.DISCONNECTED;
+		currentState.set(MegasquirtState.DISCONNECTED);
 		notificationListenerManager.sendNotification(MegasquirtNotificationType.DISCONNECTED);
 	}
 
@@ -555,6 +1008,70 @@ public class Megasquirt implements MsController,
     	}
     }
     
+	/**
+	 * Reads and checks the response the CRC32 protocol sends for a write.
+	 */
+	private void readWriteAcknowledgement(MsEcu ecu) throws IOException {
+		final byte[] frame = new byte[MS_CRC32_PROTOCOL_HANDLER.getWrappedResponseLength(0)];
+		ioManager.read(frame, timingController.getOchTimeout(ecu.getInterWriteDelay()), null);
+		if (!MS_CRC32_PROTOCOL_HANDLER.check(frame)) {
+			throw new IOException("Corrupt response to page write.");
+		}
+		// The type field follows the two byte length; 0 acknowledges a write.
+		if (frame[2] != 0) {
+			throw new IOException("ECU rejected page write with code " + (frame[2] & 0xFF) + ".");
+		}
+	}
+	
+	private static void markUnwritten(PageImage image, List<PageChunk> chunks, int written) {
+		for (int i = written; i < chunks.size(); i++) {
+			image.markDirty(chunks.get(i));
+		}
+	}
+	
+	/**
+	 * Returns the cached image of a page if the ECU reports the same CRC for the page, otherwise
+	 * {@code null}.
+	 * 
+	 * @param cache
+	 *            the cache to read from
+	 * @param pageNo
+	 *            the page number, numbered from 1
+	 * @param pageSize
+	 *            the size of the page
+	 * @param crcCommand
+	 *            the command to read the CRC of the page
+	 */
+	private byte[] getCachedPage(PageCache cache, int pageNo, int pageSize, byte[] crcCommand) {
+		try {
+			final byte[] cached = cache.get(reportedSignature, pageNo);
+			if (cached == null || cached.length != pageSize) {
+				return null;
+			}
+			
+			ioManager.flushAll();
+			final byte[] response = ioManager.writeAndRead(crcCommand, new byte[4],
+					timingController.getPageTimeout(4), getProtocolHandler()).getResult();
+			final long ecuCrc = ((response[0] & 0xFFL) << 24) | ((response[1] & 0xFFL) << 16)
+					| ((response[2] & 0xFFL) << 8) | (response[3] & 0xFFL);
+			
+			final CRC32 crc = new CRC32();
+			crc.update(cached);
+			
+			if (crc.getValue() != ecuCrc) {
+				LOG.debug("Cached page {} is stale, CRC {} but ECU reports {}.", new Object[] {
+						pageNo, crc.getValue(), ecuCrc});
+				return null;
+			}
+			
+			return cached;
+		} catch (IOException e) {
+			LOG.warn("Megasquirt " + instanceNumber + ": Error validating cached page " + pageNo
+					+ ".  Reading the page from the ECU.", e);
+			return null;
+		}
+	}
+	
     /**
 	 * Read a page of constants from the Megasquirt into a byte buffer. MS1 uses a
 	 * select/read combo, MS2 just does a read.
@@ -581,9 +1098,10 @@ public class Megasquirt implements MsController,
 		try {
 			ioManager.flushAll();
 
+			IoManagerResult request = null;
 			final long delay = ecuImplementation.getPageActivationDelay();
 			if (pageSelectCommand != null) {
-				ioManager.write(pageSelectCommand, getProtocolHandler());
+				request = ioManager.write(pageSelectCommand, getProtocolHandler());
 
 				if (delay > 0) {
 					Thread.sleep(delay);
@@ -591,15 +1109,21 @@ public class Megasquirt implements MsController,
 			}
 
 			if (pageReadCommand != null) {
-				ioManager.write(pageReadCommand, getProtocolHandler());
+				request = ioManager.write(pageReadCommand, getProtocolHandler());
 				if (delay > 0) {
 					Thread.sleep(delay);
 				}
 			}
 
-			ioManager.read(pageBuffer, 2000, getProtocolHandler());
+			final IoManagerResult response = ioManager.read(pageBuffer,
+					timingController.getPageTimeout(pageBuffer.length), getProtocolHandler());
+			timingController.recordPageSuccess(request == null ? response : request, response,
+					pageBuffer.length);
 		} catch (InterruptedException e) {
 			throw new IOException("Interrupted during page retrieval.", e);
+		} catch (IOException e) {
+			timingController.recordPageFailure();
+			throw e;
 		}
 	}
     
@@ -645,13 +1169,35 @@ public class Megasquirt implements MsController,
     	}
     }
     
+    /**
+     * Precomputed commands and response buffers for the ranged OCH reads of a subscription.
+     */
+    private static final class OchReadPlan {
+    	private final OchRange[] ranges;
+    	private final byte[][] commands;
+    	private final byte[][] responses;
+    	
+    	OchReadPlan(int size) {
+    		ranges = new OchRange[size];
+    		commands = new byte[size][];
+    		responses = new byte[size][];
+    	}
+    }
+    
     /**
      * Base IO command class containing common IO operations.
      */
     private abstract class AbstractIoCommand implements IoCommand {
     	
     	/**
-		 * Get the current variables from the ECU.
+    	 * The longest the IO thread waits for a scheduled group to become due before letting other
+    	 * commands run.
+    	 */
+    	private static final long MAX_POLL_IDLE_NANOS = 10L * 1000 * 1000;
+    	
+    	/**
+		 * Get the current variables from the ECU.  The returned buffer is one of the
+		 * pre-allocated {@link #ochBuffers} and remains valid until the poll after next.
 		 * 
 		 * @param ioManager
 		 *            the IO manager to use for performing IO operations
@@ -659,32 +1205,311 @@ public class Megasquirt implements MsController,
 		 *            the implementation class for the Megasquirt firmware in
 		 *            use
 		 * 
+		 * @return the OCH buffer containing the current variables
+		 * 
 		 * @throws IOException
 		 *             if there is an error processing the request
 		 */
-		protected IoManagerResult getRuntimeVars(IoManager ioManager,
+		protected byte[] getRuntimeVars(IoManager ioManager,
 				MsEcu ecuImplementation) throws IOException {
-			final byte[] buffer = new byte[ecuImplementation.getBlockSize()];
+			ochBufferIndex = (ochBufferIndex + 1) % ochBuffers.length;
+			final byte[] buffer = ochBuffers[ochBufferIndex];
 
-			int delay = ecuImplementation.getInterWriteDelay();
-			delay += 500;
+			final long timeout = timingController.getOchTimeout(ecuImplementation.getInterWriteDelay());
+			final MegasquirtInstrumentation instrumentation = Megasquirt.this.instrumentation;
+			final Object instrumentationContext = instrumentation == null ? null
+					: instrumentation.ochPollStarted(Megasquirt.this, ecuImplementation);
+			final long pollStart = System.nanoTime();
+			final ChannelScheduler scheduler = channelScheduler;
+			final OchReadPlan plan = getOchReadPlan(ecuImplementation, scheduler, pollStart);
 
-			IoManagerResult result = ioManager.writeAndRead(
-					ecuImplementation.getOchCommand(), buffer, delay,
-					getProtocolHandler());
-			return result;
+			int bytesRead;
+			try {
+				if (plan != null) {
+					// Start from the previous image and patch in the subscribed ranges.
+					System.arraycopy(ochBuffers[(ochBufferIndex + 1) % ochBuffers.length], 0,
+							buffer, 0, buffer.length);
+					bytesRead = readOchRanges(ioManager, plan, buffer, timeout);
+				} else if (ochFrameBuffer != null) {
+					// Read the raw envelope and unwrap it in place rather than letting the
+					// protocol handler allocate a wrapped and an unwrapped copy on every poll.
+					IoManagerResult request = ioManager.write(wrappedOchCommand, null);
+					IoManagerResult response = ioManager.read(ochFrameBuffer, timeout, null);
+					MS_CRC32_PROTOCOL_HANDLER.unwrapResponse(ochFrameBuffer, 0, ochFrameBuffer.length, buffer, 0);
+					timingController.recordOchSuccess(request, response, ochFrameBuffer.length);
+					metrics.recordTransfer(request, response);
+					bytesRead = ochFrameBuffer.length;
+				} else {
+					IoManagerResult result = ioManager.writeAndRead(
+							ecuImplementation.getOchCommand(), buffer, timeout, null);
+					timingController.recordOchSuccess(result, result, buffer.length);
+					metrics.recordTransfer(result, result);
+					final byte[] data = result.getResult();
+					if (data != buffer) {
+						System.arraycopy(data, 0, buffer, 0, Math.min(data.length, buffer.length));
+					}
+					bytesRead = buffer.length;
+				}
+			} catch (IOException e) {
+				ochImageValid = false;
+				timingController.recordOchFailure();
+				metrics.recordPollFailure(e);
+				if (instrumentation != null) {
+					instrumentation.ochPollFailed(Megasquirt.this, ecuImplementation, instrumentationContext, e,
+							System.nanoTime() - pollStart);
+				}
+				throw e;
+			}
+			
+			ochImageValid = true;
+			final long pollNanos = System.nanoTime() - pollStart;
+			metrics.recordPoll(pollNanos);
+			if (instrumentation != null) {
+				instrumentation.ochPolled(Megasquirt.this, ecuImplementation, instrumentationContext, bytesRead,
+						pollNanos);
+			}
+			
+			if (scheduler != null && scheduler == preparedScheduler) {
+				// A whole block read serves every group.
+				scheduler.recordPoll(plan == null ? scheduler.getAllGroupsMask() : scheduledMask,
+						pollStart);
+			}
+			
+			return buffer;
+		}
+		
+		/**
+		 * Returns the time until a group of the channel scheduler is due.
+		 * 
+		 * @return 0 if a poll is due, always the case without a channel scheduler
+		 */
+		protected long getNanosUntilPollDue(MsEcu ecuImplementation) {
+			final ChannelScheduler scheduler = channelScheduler;
+			if (scheduler == null || !ochImageValid) {
+				return 0;
+			}
+			
+			prepareScheduler(ecuImplementation, scheduler, System.nanoTime());
+			return scheduler.getNanosUntilDue(System.nanoTime());
+		}
+		
+		/**
+		 * Puts {@code command} back in the queue to run once the next poll is due in
+		 * {@code wait} nanoseconds.  A {@link ScheduledIoCommandManager} holds the command on
+		 * its timer, leaving the thread free for other commands, or other sessions on a shared
+		 * pool.  Other managers have a thread of their own, which waits here for a bounded time.
+		 * 
+		 * @return true if the command was enqueued
+		 * 
+		 * @throws IllegalStateException if the command manager is stopped
+		 */
+		protected boolean enqueueWhenDue(IoCommand command, long wait) {
+			if (wait > 0) {
+				if (ioCommandManager instanceof ScheduledIoCommandManager) {
+					return ((ScheduledIoCommandManager) ioCommandManager).enqueue(command, wait,
+							TimeUnit.NANOSECONDS);
+				}
+				LockSupport.parkNanos(Math.min(wait, MAX_POLL_IDLE_NANOS));
+			}
+			return ioCommandManager.enqueue(command);
+		}
+		
+		/**
+		 * Performs the ranged reads of {@code plan}, writing the results into {@code buffer} at
+		 * their offsets in the OCH block.
+		 * 
+		 * @return the number of bytes read
+		 */
+		private int readOchRanges(IoManager ioManager, OchReadPlan plan, byte[] buffer,
+				long timeout) throws IOException {
+			IoManagerResult first = null;
+			IoManagerResult last = null;
+			int length = 0;
+			
+			for (int i = 0; i < plan.ranges.length; i++) {
+				final byte[] response = plan.responses[i];
+				
+				if (ochFrameBuffer != null) {
+					final IoManagerResult request = ioManager.write(plan.commands[i], null);
+					last = ioManager.read(response, timeout, null);
+					MS_CRC32_PROTOCOL_HANDLER.unwrapResponse(response, 0, response.length, buffer,
+							plan.ranges[i].getOffset());
+					if (first == null) {
+						first = request;
+					}
+				} else {
+					last = ioManager.writeAndRead(plan.commands[i], response, timeout, null);
+					System.arraycopy(last.getResult(), 0, buffer, plan.ranges[i].getOffset(),
+							plan.ranges[i].getCount());
+					if (first == null) {
+						first = last;
+					}
+				}
+				
+				length += response.length;
+			}
+			
+			timingController.recordOchSuccess(first, last, length);
+			metrics.recordTransfer(first, last);
+			return length;
+		}
+		
+		/**
+		 * Returns the plan of ranged reads for the due groups of {@code scheduler}, or for the
+		 * current subscription if there is no scheduler, or {@code null} if the whole OCH block
+		 * must be read.  The whole block is always read until a complete image has been read.
+		 */
+		private OchReadPlan getOchReadPlan(MsEcu ecuImplementation, ChannelScheduler scheduler,
+				long nowNanos) throws IOException {
+			if (!ochImageValid) {
+				return null;
+			}
+			
+			if (scheduler != null) {
+				prepareScheduler(ecuImplementation, scheduler, nowNanos);
+				
+				final int mask = scheduler.selectDueGroups(nowNanos);
+				scheduledMask = mask;
+				if (mask == 0) {
+					return null;
+				}
+				
+				if (!scheduledReadPlansCreated[mask]) {
+					scheduledReadPlans[mask] = createOchReadPlan(ecuImplementation,
+							scheduler.getChannels(mask));
+					scheduledReadPlansCreated[mask] = true;
+					LOG.debug("Megasquirt {}: Planned reads for scheduled groups {}.", instanceNumber,
+							scheduler.getGroupNames(mask));
+				}
+				
+				return scheduledReadPlans[mask];
+			}
+			
+			final int version = ochSubscriptionVersion;
+			if (version != ochReadPlanVersion) {
+				final Set<String> subscription = ochSubscription;
+				ochReadPlan = subscription == null ? null : createOchReadPlan(ecuImplementation,
+						subscription);
+				ochReadPlanVersion = version;
+			}
+			
+			return ochReadPlan;
+		}
+		
+		/**
+		 * Prepares {@code scheduler} for the current implementation and discards the cached plans
+		 * if it is new or its groups changed.
+		 */
+		private void prepareScheduler(MsEcu ecuImplementation, ChannelScheduler scheduler,
+				long nowNanos) {
+			if (scheduler != preparedScheduler || scheduler.isPrepareRequired(ecuImplementation)) {
+				scheduler.prepare(ecuImplementation, nowNanos);
+				final int planCount = scheduler.getAllGroupsMask() + 1;
+				scheduledReadPlans = new OchReadPlan[planCount];
+				scheduledReadPlansCreated = new boolean[planCount];
+				preparedScheduler = scheduler;
+			}
+		}
+		
+		private OchReadPlan createOchReadPlan(MsEcu ecuImplementation, Set<String> subscription)
+				throws IOException {
+			final List<OchRange> ranges = OchRangePlanner.plan(ecuImplementation, subscription,
+					OchRangePlanner.DEFAULT_MERGE_GAP);
+			
+			if (ranges == null) {
+				LOG.info("Megasquirt {}: Subscribed channels cannot be read with ranged OCH reads.  "
+						+ "Reading the whole OCH block.", instanceNumber);
+				return null;
+			}
+			
+			final OchReadPlan plan = new OchReadPlan(ranges.size());
+			for (int i = 0; i < plan.ranges.length; i++) {
+				final OchRange range = ranges.get(i);
+				final byte[] command = ecuImplementation.getOchCommand(range.getOffset(), range.getCount());
+				
+				plan.ranges[i] = range;
+				if (ochFrameBuffer != null) {
+					plan.commands[i] = MS_CRC32_PROTOCOL_HANDLER.wrapRequest(command);
+					plan.responses[i] = new byte[MS_CRC32_PROTOCOL_HANDLER.getWrappedResponseLength(range.getCount())];
+				} else {
+					plan.commands[i] = command;
+					plan.responses[i] = new byte[range.getCount()];
+				}
+			}
+			
+			// Price bytes at no less than the serial link rate so that the bytes saved are not
+			// overstated against the pause MsIoManager makes while writing MS2 commands.
+			final byte[] blockCommand = ochFrameBuffer != null
+					? wrappedOchCommand : ecuImplementation.getOchCommand();
+			final double bytesPerMilli = Math.max(timingController.getBytesPerMilli(),
+					OchRangePlanner.SERIAL_BYTES_PER_MILLI);
+			if (!OchRangePlanner.isRangedReadCheaper(ranges, plan.commands,
+					ecuImplementation.getBlockSize(), blockCommand, bytesPerMilli)) {
+				LOG.info("Megasquirt {}: Ranged OCH reads are not cheaper for the subscribed channels.  "
+						+ "Reading the whole OCH block.", instanceNumber);
+				return null;
+			}
+			
+			LOG.info("Megasquirt {}: Reading subscribed channels with OCH ranges {}.", instanceNumber, ranges);
+			return plan;
+		}
+		
+		/**
+		 * Allocates the buffers used by {@link #getRuntimeVars(IoManager, MsEcu)} for the
+		 * current implementation so that polling does not allocate.
+		 * 
+		 * @throws IOException
+		 *             if there is an error preparing the OCH command
+		 */
+		protected void initialiseOchBuffers(MsEcu ecuImplementation) throws IOException {
+			final int blockSize = ecuImplementation.getBlockSize();
+			ochBuffers = new byte[][] {new byte[blockSize], new byte[blockSize]};
+			ochBufferIndex = 0;
+			
+			if (ecuImplementation.isCRC32Protocol()) {
+				ochFrameBuffer = new byte[MS_CRC32_PROTOCOL_HANDLER.getWrappedResponseLength(blockSize)];
+				wrappedOchCommand = MS_CRC32_PROTOCOL_HANDLER.wrapRequest(ecuImplementation.getOchCommand());
+			} else {
+				ochFrameBuffer = null;
+				wrappedOchCommand = null;
+			}
+			
+			ochImageValid = false;
+			ochReadPlan = null;
+			ochReadPlanVersion = ochSubscriptionVersion - 1;
+			preparedScheduler = null;
+			
+			channelSnapshots = new ChannelSnapshotPool(ecuImplementation.getOutputChannelNames());
+		}
+		
+		/**
+		 * Notifies the snapshot listeners of the snapshot calculated from the most recent poll.
+		 */
+		protected void notifyChannelSnapshotListeners(ChannelSnapshot snapshot) {
+			final ChannelSnapshotListener[] listeners = channelSnapshotListeners;
+			for (int i = 0; i < listeners.length; i++) {
+				try {
+					listeners[i].onSnapshot(snapshot);
+				} catch (RuntimeException e) {
+					LOG.warn("Megasquirt " + instanceNumber + ": Channel snapshot listener failed.", e);
+				}
+			}
 		}
     }
     
     /**
      * Command to connect to the Megasquirt and initialize state.
      */
-    private class ConnectIoCommand extends AbstractIoCommand implements IoCommand {
+    private class ConnectIoCommand extends AbstractIoCommand implements PrioritizedIoCommand {
+    	@Override
+    	public CommandPriority getPriority() {
+    		return CommandPriority.INTERACTIVE;
+    	}
+    	
 		@Override
 		public void execute(IoManager ioManager) {
-			currentStateLock.writeLock().lock();
 			try {
-				if (currentState == MegasquirtState.DISCONNECTED) {
+				if (currentState.compareAndSet(MegasquirtState.DISCONNECTED, MegasquirtState.CONNECTING)) {
 	                onConnecting();
 	                ioManager.connect();
 	
@@ -695,7 +1520,9 @@ public class Megasquirt implements MsController,
 	                }
 	                
 	            	ioManager.flushAll();
+	            	timingController.reset();
 	                initialiseImplementation(ioManager);
+	                initialiseOchBuffers(ecuImplementation);
 	                
 					/*
 					 * Make sure we have calculated runtime vars at least once
@@ -705,15 +1532,16 @@ public class Megasquirt implements MsController,
 					 * as {clthighlim} in curves that need to have their value
 					 * assigned before being used.
 					 */
-	                final IoManagerResult result = getRuntimeVars(ioManager, ecuImplementation);
-	                ecuImplementation.calculate(result.getResult());
+	                notifyChannelSnapshotListeners(
+	                		calculate(ecuImplementation, getRuntimeVars(ioManager, ecuImplementation)));
 	
 	                ecuImplementation.refreshFlags();
 	
 	                if (!constantsLoaded) {
 	                    // Only do this once so reconnects are quicker
-	                    ecuImplementation.loadConstants();
+	                    loadConstants(ecuImplementation);
 	                    constantsLoaded = true;
+	                    onConstantsLoaded();
 	                }
 	                
 	                onConnected();
@@ -722,11 +1550,72 @@ public class Megasquirt implements MsController,
             	ecuImplementation = null;
             	onConnectionFailed(e);
             	onDisconnected();
-        	} finally {
-        		currentStateLock.writeLock().unlock();
         	}
 		}
 		
+		/**
+		 * Loads the constants page by page, decoding each page on a separate thread while the
+		 * next page is read from the ECU.
+		 * 
+		 * @throws IOException
+		 *             if there is an error reading or decoding a page
+		 */
+		private void loadConstants(final MsEcu ecuImplementation) throws IOException {
+			final int[] pages = ecuImplementation.getConstantPages();
+			final List<Future<PageLoadTiming>> decodes = new ArrayList<Future<PageLoadTiming>>(pages.length);
+			final List<PageLoadTiming> timings = new ArrayList<PageLoadTiming>(pages.length);
+			final long start = System.nanoTime();
+			
+			final ExecutorService decoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Megasquirt-" + instanceNumber + "-constants");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			
+			try {
+				for (final int pageNo : pages) {
+					final long fetchStart = System.nanoTime();
+					final byte[] pageBuffer = ecuImplementation.fetchConstantsPage(pageNo);
+					final long fetchNanos = System.nanoTime() - fetchStart;
+					
+					decodes.add(decoder.submit(new Callable<PageLoadTiming>() {
+						@Override
+						public PageLoadTiming call() {
+							final long decodeStart = System.nanoTime();
+							ecuImplementation.decodeConstantsPage(pageNo, pageBuffer);
+							return new PageLoadTiming(pageNo, fetchNanos, System.nanoTime() - decodeStart);
+						}
+					}));
+				}
+				
+				// Waiting on the futures also makes the decoded constants visible to this thread.
+				for (Future<PageLoadTiming> decode : decodes) {
+					timings.add(decode.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while decoding constants.", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IOException("Error decoding constants.", e.getCause());
+			} finally {
+				decoder.shutdown();
+			}
+			
+			ecuImplementation.refreshFlags();
+			constantsLoadTimings = Collections.unmodifiableList(timings);
+			
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Megasquirt {}: Loaded {} constants pages in {} ms: {}.", new Object[] {
+						instanceNumber, pages.length, (System.nanoTime() - start) / 1000000, timings});
+			}
+		}
+		
 		/**
 	     * Probes the ECU for the firmware signature and instantiates the current implementation
 	     * class to talk to the ECU.
@@ -737,7 +1626,43 @@ public class Megasquirt implements MsController,
 	    	LOG.debug("Checking your ECU.");
 
 	    	MsEcuFactory factory = MsEcuFactory.getInstance();
-	    	String signature = factory.getSignature(ioManager);
+	    	final SignatureCache cache = signatureCache;
+	    	final String port = signaturePort;
+	    	
+	    	String knownSignature = null;
+	    	byte[] knownQueryCommand = null;
+	    	if (cache != null) {
+	    		try {
+	    			knownSignature = cache.getSignature(port);
+	    			knownQueryCommand = cache.getQueryCommand(port);
+	    		} catch (IOException e) {
+	    			LOG.warn("Megasquirt " + instanceNumber + ": Error reading signature cache.", e);
+	    		}
+	    	}
+	    	
+	    	final MegasquirtInstrumentation instrumentation = Megasquirt.this.instrumentation;
+	    	final Object instrumentationContext = instrumentation == null ? null
+	    			: instrumentation.signatureDetectionStarted(Megasquirt.this);
+	    	DetectedSignature detected = factory.detectSignature(ioManager, knownSignature,
+	    			knownQueryCommand);
+	    	String signature = detected.getSignature();
+	    	reportedSignature = signature;
+	    	signatureDetectionNanos = detected.getDetectionNanos();
+	    	
+	    	LOG.debug("Megasquirt {}: Detected signature in {} ms.", instanceNumber,
+	    			detected.getDetectionNanos() / 1000000);
+	    	if (instrumentation != null) {
+	    		instrumentation.signatureDetected(Megasquirt.this, instrumentationContext, detected);
+	    	}
+	    	
+	    	if (cache != null && !detected.isKnown()) {
+	    		try {
+	    			cache.put(port, signature, detected.getQueryCommand());
+	    		} catch (IOException e) {
+	    			LOG.warn("Megasquirt " + instanceNumber + ": Error writing signature cache.", e);
+	    		}
+	    	}
+	    	
 	    	ecuImplementation = factory.getMegasquirt(signature, Megasquirt.this);
 	    	
 			if (!signature.equals(ecuImplementation.getSignature())) {
@@ -755,42 +1680,35 @@ public class Megasquirt implements MsController,
     /**
      * Command to disconnect from the Megasquirt.
      */
-    private class DisconnectCommand implements IoCommand {
+    private class DisconnectCommand implements PrioritizedIoCommand {
+    	@Override
+    	public CommandPriority getPriority() {
+    		return CommandPriority.INTERACTIVE;
+    	}
+    	
     	@Override
     	public void execute(IoManager ioManager) {
-    		currentStateLock.writeLock().lock();
-    		try {
-    			if (log.isLogging()) {
-    				onLoggingStopping();
-                    logging = false;
-                    
-	                try {
-	                    log.stop();
-	                } catch (Exception e) {
-	                    LOG.error("Megasquirt " + instanceNumber + ": Error stopping log.", e);
-	                }
-	                
-	                onLoggingStopped();
+			if (log.isLogging()) {
+				onLoggingStopping();
+                logging = false;
+                
+                try {
+                    log.stop();
+                } catch (Exception e) {
+                    LOG.error("Megasquirt " + instanceNumber + ": Error stopping log.", e);
                 }
+                
+                onLoggingStopped();
+            }
 
-    			onDisconnecting();
-	    		ecuImplementation = null;
-	    		// Need to do this in another thread since this command is being executed in the thread
-	    		// that is trying to be stopped by ioCommandManager.stop(); 
-	    		Thread t = new Thread() {
-	    			public void run() {
-	    				currentStateLock.writeLock().lock();
-	    				try {
-	    					ioCommandManager.stop();
-	    				} finally {
-	    					onDisconnected();
-	    					currentStateLock.writeLock().unlock();
-	    				}
-	    			};
-	    		};
-	    		t.run();
+			onDisconnecting();
+    		ecuImplementation = null;
+    		try {
+    			// Called from the command thread itself, so the manager must not wait for
+    			// the running command.
+    			ioCommandManager.stop();
     		} finally {
-    			currentStateLock.writeLock().unlock();
+    			onDisconnected();
     		}
     	}
     }
@@ -798,81 +1716,94 @@ public class Megasquirt implements MsController,
     /**
      * Command to log runtime variables.
      */
-    private class LogRuntimeVarsCommand extends AbstractIoCommand implements IoCommand {
+    private class LogRuntimeVarsCommand extends AbstractIoCommand implements PrioritizedIoCommand {
     	private int consecutiveErrors = 0;
     	
+    	@Override
+    	public CommandPriority getPriority() {
+    		return CommandPriority.POLL;
+    	}
+    	
     	@Override
     	public void execute(IoManager ioManager) {
     		
-    		currentStateLock.readLock().lock();
-    		try {
-    			if (currentState == MegasquirtState.CONNECTED) {
-		    		if (logging) {
-		    			if (!log.isLogging()) {
-		    				// Start the log if not already done.  If this fails, stop logging.
-		    				try {
-				            	onLoggingStarting();
-				            	logStartTime = System.currentTimeMillis();
-				                log.start();
-				                onLoggingStarted();
-				            } catch (Exception e) {
-				            	onLoggingFailed(e);
-				                logging = false;
-				            }
-		    			}
-		    		}
-		    		
-		    		if (logging) {
-		    			// If the log is already started, and we are still logging.
-						try {
-							final IoManagerResult result = getRuntimeVars(ioManager, ecuImplementation);
-							ecuImplementation.calculate(result.getResult());
+    		if (currentState.get() == MegasquirtState.CONNECTED) {
+	    		if (logging) {
+	    			if (!log.isLogging()) {
+	    				// Start the log if not already done.  If this fails, stop logging.
+	    				try {
+			            	onLoggingStarting();
+			            	logStartTime = System.currentTimeMillis();
+			                log.start();
+			                onLoggingStarted();
+			            } catch (Exception e) {
+			            	onLoggingFailed(e);
+			                logging = false;
+			            }
+	    			}
+	    		}
+	    		
+	    		if (logging) {
+	    			// If the log is already started, and we are still logging.
+					try {
+						long wait = getNanosUntilPollDue(ecuImplementation);
+						if (wait == 0) {
+							notifyChannelSnapshotListeners(
+									calculate(ecuImplementation, getRuntimeVars(ioManager, ecuImplementation)));
+							final MegasquirtInstrumentation instrumentation = Megasquirt.this.instrumentation;
+							final Object instrumentationContext = instrumentation == null ? null
+									: instrumentation.logWriteStarted(Megasquirt.this);
+							final long logStart = System.nanoTime();
 							log.write(Megasquirt.this);
-							// Put us back in the queue to execute again since we are still logging.
-							try {
-								if (!ioCommandManager.enqueue(this)) {
-									LOG.error("Megasquirt {}: Error enquing log runtime vars command.  Stopping logging.");
-									logging = false;
-								}
-							} catch (IllegalStateException e) {
+							final long logNanos = System.nanoTime() - logStart;
+							metrics.recordLogWrite(logNanos);
+							if (instrumentation != null) {
+								instrumentation.logWritten(Megasquirt.this, instrumentationContext, logNanos);
+							}
+							wait = getNanosUntilPollDue(ecuImplementation);
+						}
+						// Put us back in the queue to execute again since we are still logging.
+						try {
+							if (!enqueueWhenDue(this, wait)) {
+								LOG.error("Megasquirt {}: Error enquing log runtime vars command.  Stopping logging.");
 								logging = false;
 							}
-						} catch (Exception e) {
-							consecutiveErrors++;
-							
-							if (consecutiveErrors > 5) {
-								onLoggingFailed(e);
+						} catch (IllegalStateException e) {
+							logging = false;
+						}
+					} catch (Exception e) {
+						consecutiveErrors++;
+						
+						if (consecutiveErrors > 5) {
+							onLoggingFailed(e);
+							logging = false;
+						} else {
+							LOG.warn("Megasquirt " + instanceNumber + ": Error logging runtime vars.", e);
+							// Put us back in the queue to execute again since we are still logging.
+							try {
+								ioCommandManager.enqueue(this);
+							} catch (IllegalStateException e2) {
 								logging = false;
-							} else {
-								LOG.warn("Megasquirt " + instanceNumber + ": Error logging runtime vars.", e);
-								// Put us back in the queue to execute again since we are still logging.
-								try {
-									ioCommandManager.enqueue(this);
-								} catch (IllegalStateException e2) {
-									logging = false;
-								}
 							}
 						}
-		        	} 
-		    		
-		    		if (!logging) {
-		    			// Either we were told to stop logging or something went wrong so we need to stop logging.
-		        		onLoggingStopping();
-		                logging = false;
-		                
-		                if (log.isLogging()) {
-			                try {
-			                    log.stop();
-			                } catch (Exception e) {
-			                    LOG.error("Megasquirt " + instanceNumber + ": Error stopping log.", e);
-			                }
+					}
+	        	} 
+	    		
+	    		if (!logging) {
+	    			// Either we were told to stop logging or something went wrong so we need to stop logging.
+	        		onLoggingStopping();
+	                logging = false;
+	                
+	                if (log.isLogging()) {
+		                try {
+		                    log.stop();
+		                } catch (Exception e) {
+		                    LOG.error("Megasquirt " + instanceNumber + ": Error stopping log.", e);
 		                }
-		                
-		                onLoggingStopped();
-		        	}
-    			}
-    		} finally {
-    			currentStateLock.readLock().unlock();
+	                }
+	                
+	                onLoggingStopped();
+	        	}
     		}
     	}
     }
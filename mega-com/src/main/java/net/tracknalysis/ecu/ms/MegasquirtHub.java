@@ -0,0 +1,263 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tracknalysis.common.io.IoManager;
+import net.tracknalysis.common.notification.NotificationListener;
+import net.tracknalysis.ecu.ms.io.SerialIoCommandManager;
+import net.tracknalysis.ecu.ms.log.Log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs several {@link Megasquirt} sessions on a small shared pool of threads instead of one
+ * command thread per session.  Each session's commands run one at a time and in order on a
+ * {@link SerialIoCommandManager}, so sessions remain isolated from each other while sharing
+ * threads.
+ * <p/>
+ * Serial IO blocks the pool thread running it, so the number of sessions that can poll at the
+ * same time is bounded by the size of the pool.  A session whose channel scheduler has no group
+ * due waits on the hub's timer thread, not on a pool thread.
+ *
+ * @author David Valeri
+ */
+public class MegasquirtHub {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MegasquirtHub.class);
+
+    private static final AtomicInteger HUB_INSTANCE_COUNTER = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final ScheduledExecutorService timer;
+    private final List<Megasquirt> sessions = new CopyOnWriteArrayList<Megasquirt>();
+    private final Map<Megasquirt, SerialIoCommandManager> commandManagers =
+            new ConcurrentHashMap<Megasquirt, SerialIoCommandManager>();
+
+    /**
+     * Creates a hub with its own pool of {@code threadCount} daemon threads.
+     */
+    public MegasquirtHub(int threadCount) {
+        final int hubNumber = HUB_INSTANCE_COUNTER.getAndIncrement();
+        this.executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MegasquirtHub-" + hubNumber + "-"
+                        + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.ownsExecutor = true;
+        this.timer = createTimer(hubNumber);
+    }
+
+    /**
+     * Creates a hub running sessions on {@code executor}.  The executor is not shut down by
+     * {@link #shutdown()}.
+     */
+    public MegasquirtHub(ExecutorService executor) {
+        this.executor = executor;
+        this.ownsExecutor = false;
+        this.timer = createTimer(HUB_INSTANCE_COUNTER.getAndIncrement());
+    }
+
+    /**
+     * Creates a session for the ECU reached through {@code ioManager}.  The session is not
+     * started.
+     *
+     * @see Megasquirt#Megasquirt(IoManager, TableManager, Log, MsConfiguration, File)
+     */
+    public Megasquirt createSession(IoManager ioManager, TableManager tableManager,
+            Log logManager, MsConfiguration configuration, File debugLogDirectory) {
+        final SerialIoCommandManager commandManager = new SerialIoCommandManager(ioManager, executor,
+                timer, SerialIoCommandManager.DEFAULT_BATCH_SIZE);
+        final Megasquirt megasquirt = new Megasquirt(ioManager, tableManager, logManager,
+                configuration, debugLogDirectory, commandManager);
+
+        commandManagers.put(megasquirt, commandManager);
+        sessions.add(megasquirt);
+        return megasquirt;
+    }
+
+    /**
+     * Stops and forgets a session created by this hub.  The session disconnects asynchronously
+     * on the pool, sending {@link MegasquirtNotificationType#DISCONNECTED} when done.
+     */
+    public void removeSession(Megasquirt megasquirt) {
+        if (sessions.remove(megasquirt)) {
+            megasquirt.stop();
+            commandManagers.remove(megasquirt);
+        }
+    }
+
+    public List<Megasquirt> getSessions() {
+        return Collections.unmodifiableList(sessions);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns the number of sessions currently connected.
+     */
+    public int getConnectedCount() {
+        int connected = 0;
+        for (Megasquirt megasquirt : sessions) {
+            if (megasquirt.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Returns the sum of the achieved poll rates of all sessions, in samples per second.
+     */
+    public double getAggregatePollRate() {
+        double rate = 0;
+        for (Megasquirt megasquirt : sessions) {
+            rate += megasquirt.getTimingController().getAchievedPollRate();
+        }
+        return rate;
+    }
+
+    /**
+     * Returns the number of IO commands executed by all sessions.
+     */
+    public long getExecutedCommandCount() {
+        long count = 0;
+        for (SerialIoCommandManager commandManager : commandManagers.values()) {
+            count += commandManager.getExecutedCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of IO commands of all sessions that threw an exception.
+     */
+    public long getFailedCommandCount() {
+        long count = 0;
+        for (SerialIoCommandManager commandManager : commandManagers.values()) {
+            count += commandManager.getFailedCount();
+        }
+        return count;
+    }
+
+    /**
+     * Stops all sessions and waits for them to disconnect before, if the hub created it, shutting
+     * down the pool.  Sessions disconnect by running a command on the pool, so shutting it down
+     * first would reject those commands.  The hub's timer is always shut down.  {@code timeout}
+     * bounds the whole shutdown.
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        final List<Megasquirt> stopping = new ArrayList<Megasquirt>(sessions);
+        final List<DisconnectListener> listeners = new ArrayList<DisconnectListener>(stopping.size());
+        for (Megasquirt megasquirt : stopping) {
+            final DisconnectListener listener = new DisconnectListener();
+            megasquirt.addListener(listener);
+            listeners.add(listener);
+
+            final SerialIoCommandManager commandManager = commandManagers.get(megasquirt);
+            removeSession(megasquirt);
+
+            // A session that was never started, or has already disconnected, sends nothing.
+            if (!commandManager.isStarted()
+                    && megasquirt.getState() == Megasquirt.MegasquirtState.DISCONNECTED) {
+                listener.disconnected.countDown();
+            }
+        }
+
+        try {
+            for (int i = 0; i < stopping.size(); i++) {
+                if (!listeners.get(i).disconnected.await(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS)) {
+                    LOG.warn("Timed out waiting for Megasquirt {} of {} to disconnect.",
+                            stopping.get(i).getInstanceNumber(), this);
+                }
+            }
+        } finally {
+            for (int i = 0; i < stopping.size(); i++) {
+                stopping.get(i).removeListener(listeners.get(i));
+            }
+        }
+
+        timer.shutdownNow();
+
+        if (ownsExecutor) {
+            executor.shutdown();
+            if (!executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                LOG.warn("Timed out waiting for the sessions of {} to stop.", this);
+            }
+        }
+    }
+
+    private static ScheduledExecutorService createTimer(final int hubNumber) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MegasquirtHub-" + hubNumber + "-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("MegasquirtHub [sessionCount=");
+        builder.append(sessions.size());
+        builder.append(", ownsExecutor=");
+        builder.append(ownsExecutor);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    private static final class DisconnectListener implements
+            NotificationListener<MegasquirtNotificationType> {
+
+        private final CountDownLatch disconnected = new CountDownLatch(1);
+
+        @Override
+        public void handleNotification(MegasquirtNotificationType notificationType, Object body) {
+            if (notificationType == MegasquirtNotificationType.DISCONNECTED) {
+                disconnected.countDown();
+            }
+        }
+    }
+}
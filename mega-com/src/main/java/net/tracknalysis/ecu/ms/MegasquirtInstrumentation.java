@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.io.IOException;
+
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.ecu.factory.DetectedSignature;
+
+/**
+ * Receives timings of the work done by a {@link Megasquirt}, for example to emit profiling
+ * events.  Set with {@link Megasquirt#setInstrumentation(MegasquirtInstrumentation)}.  Methods
+ * other than those for page loads and signature detection are called from the polling loop on
+ * the IO thread and must return quickly.  Without instrumentation set, nothing is timed on its
+ * behalf.
+ * <p/>
+ * Each unit of work is reported twice: a {@code ...Started} method is called before the work
+ * starts and the matching method after it ends, on the same thread.  The object returned by the
+ * start method, for example a profiling event that has begun, is passed back to the end method
+ * so that no state need be kept between the calls.  The end method is not called if the work
+ * fails other than as described.
+ * <p/>
+ * Lifecycle transitions are available as {@link MegasquirtNotificationType} notifications.
+ *
+ * @author David Valeri
+ */
+public interface MegasquirtInstrumentation {
+
+    /**
+     * Called before the OCH block, or the due ranges of it, is read.
+     *
+     * @return the context passed to {@link #ochPolled} or {@link #ochPollFailed}, may be null
+     */
+    Object ochPollStarted(Megasquirt ms, MsEcu ecu);
+
+    /**
+     * Called after the OCH block, or the due ranges of it, has been read.
+     *
+     * @param context the result of {@link #ochPollStarted}
+     * @param bytes the number of bytes read, including any CRC32 envelopes
+     * @param durationNanos the time taken by the read
+     */
+    void ochPolled(Megasquirt ms, MsEcu ecu, Object context, int bytes, long durationNanos);
+
+    /**
+     * Called after reading the OCH block failed.
+     *
+     * @param context the result of {@link #ochPollStarted}
+     * @param error the cause of the failure, a {@link net.tracknalysis.ecu.ms.io.Crc32Exception}
+     *            for a CRC failure
+     * @param durationNanos the time until the failure
+     */
+    void ochPollFailed(Megasquirt ms, MsEcu ecu, Object context, IOException error,
+            long durationNanos);
+
+    /**
+     * Called before the output channels are calculated from a newly read OCH block.
+     *
+     * @return the context passed to {@link #calculated}, may be null
+     */
+    Object calculationStarted(Megasquirt ms, MsEcu ecu);
+
+    /**
+     * Called after the output channels have been calculated from a newly read OCH block.
+     *
+     * @param context the result of {@link #calculationStarted}
+     */
+    void calculated(Megasquirt ms, MsEcu ecu, Object context, long durationNanos);
+
+    /**
+     * Called before a record is written to the log.
+     *
+     * @return the context passed to {@link #logWritten}, may be null
+     */
+    Object logWriteStarted(Megasquirt ms);
+
+    /**
+     * Called after a record has been written to the log.
+     *
+     * @param context the result of {@link #logWriteStarted}
+     */
+    void logWritten(Megasquirt ms, Object context, long durationNanos);
+
+    /**
+     * Called before a page of constants is loaded.
+     *
+     * @return the context passed to {@link #pageLoaded}, may be null
+     */
+    Object pageLoadStarted(Megasquirt ms, MsEcu ecu, int pageNo);
+
+    /**
+     * Called after a page of constants has been loaded.
+     *
+     * @param context the result of {@link #pageLoadStarted}
+     * @param cached true if the page came from the page cache rather than being read
+     */
+    void pageLoaded(Megasquirt ms, MsEcu ecu, Object context, int pageNo, int bytes,
+            boolean cached, long durationNanos);
+
+    /**
+     * Called before the signature of the ECU is probed on connect.
+     *
+     * @return the context passed to {@link #signatureDetected}, may be null
+     */
+    Object signatureDetectionStarted(Megasquirt ms);
+
+    /**
+     * Called after the signature of the ECU has been determined on connect.
+     *
+     * @param context the result of {@link #signatureDetectionStarted}
+     */
+    void signatureDetected(Megasquirt ms, Object context, DetectedSignature detected);
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.io.InterruptedIOException;
+
+import net.tracknalysis.common.io.IoManagerResult;
+import net.tracknalysis.ecu.ms.io.Crc32Exception;
+import net.tracknalysis.ecu.ms.io.WaitTimeHistogram;
+
+/**
+ * Health of the link to, and the polling of, one {@link Megasquirt}.  Records poll round trip,
+ * transmit, receive and log write latency histograms, counts of timeouts, CRC failures and other
+ * IO errors, and the current and longest streaks of consecutive failed polls.  Available
+ * in-process from {@link Megasquirt#getMetrics()} and over JMX through
+ * {@link MetricsJmxExporter}.
+ * <p/>
+ * Transmit and receive latencies come from the timestamps of the {@link IoManagerResult}s of each
+ * poll and so have millisecond resolution.  Round trip and log write latencies are measured in
+ * nanoseconds.
+ *
+ * @author David Valeri
+ */
+public class MegasquirtMetrics implements MegasquirtMetricsMXBean {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final WaitTimeHistogram roundTrip = new WaitTimeHistogram();
+    private final WaitTimeHistogram tx = new WaitTimeHistogram();
+    private final WaitTimeHistogram rx = new WaitTimeHistogram();
+    private final WaitTimeHistogram logWrite = new WaitTimeHistogram();
+
+    private final AdaptiveTimingController timingController;
+
+    private long pollCount;
+    private long timeoutCount;
+    private long crcErrorCount;
+    private long ioErrorCount;
+    private int consecutiveErrors;
+    private int maxConsecutiveErrors;
+
+    MegasquirtMetrics(AdaptiveTimingController timingController) {
+        this.timingController = timingController;
+    }
+
+    /**
+     * Records a successful poll.
+     */
+    synchronized void recordPoll(long roundTripNanos) {
+        roundTrip.record(roundTripNanos);
+        pollCount++;
+        consecutiveErrors = 0;
+    }
+
+    /**
+     * Records the transmit time of {@code request} and the receive time of {@code response},
+     * which may be the same.
+     */
+    void recordTransfer(IoManagerResult request, IoManagerResult response) {
+        tx.record((request.getRequestTxEndTime() - request.getRequestTxStartTime())
+                * NANOS_PER_MILLI);
+        rx.record((response.getRequestRxEndTime() - response.getRequestRxStartTime())
+                * NANOS_PER_MILLI);
+    }
+
+    /**
+     * Records a failed poll.
+     */
+    synchronized void recordPollFailure(Exception e) {
+        if (e instanceof Crc32Exception) {
+            crcErrorCount++;
+        } else if (e instanceof InterruptedIOException) {
+            timeoutCount++;
+        } else {
+            ioErrorCount++;
+        }
+
+        consecutiveErrors++;
+        maxConsecutiveErrors = Math.max(maxConsecutiveErrors, consecutiveErrors);
+    }
+
+    void recordLogWrite(long nanos) {
+        logWrite.record(nanos);
+    }
+
+    public WaitTimeHistogram getRoundTripHistogram() {
+        return roundTrip;
+    }
+
+    public WaitTimeHistogram getTxHistogram() {
+        return tx;
+    }
+
+    public WaitTimeHistogram getRxHistogram() {
+        return rx;
+    }
+
+    public WaitTimeHistogram getLogWriteHistogram() {
+        return logWrite;
+    }
+
+    @Override
+    public synchronized long getPollCount() {
+        return pollCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Timeouts are failures reported as an {@link InterruptedIOException}, such as a
+     * {@link java.net.SocketTimeoutException}.
+     */
+    @Override
+    public synchronized long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    @Override
+    public synchronized long getCrcErrorCount() {
+        return crcErrorCount;
+    }
+
+    @Override
+    public synchronized long getIoErrorCount() {
+        return ioErrorCount;
+    }
+
+    @Override
+    public synchronized double getCrcErrorRate() {
+        final long total = pollCount + timeoutCount + crcErrorCount + ioErrorCount;
+        return total == 0 ? 0 : (double) crcErrorCount / total;
+    }
+
+    @Override
+    public synchronized int getConsecutiveErrors() {
+        return consecutiveErrors;
+    }
+
+    @Override
+    public synchronized int getMaxConsecutiveErrors() {
+        return maxConsecutiveErrors;
+    }
+
+    @Override
+    public double getAchievedPollRate() {
+        return timingController.getAchievedPollRate();
+    }
+
+    @Override
+    public long getRoundTripP50Micros() {
+        return roundTrip.getPercentileMicros(50);
+    }
+
+    @Override
+    public long getRoundTripP99Micros() {
+        return roundTrip.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getRoundTripMaxMicros() {
+        return roundTrip.getMaxNanos() / 1000;
+    }
+
+    @Override
+    public long getTxP99Micros() {
+        return tx.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getRxP99Micros() {
+        return rx.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getLogWriteP50Micros() {
+        return logWrite.getPercentileMicros(50);
+    }
+
+    @Override
+    public long getLogWriteP99Micros() {
+        return logWrite.getPercentileMicros(99);
+    }
+
+    @Override
+    public synchronized void reset() {
+        roundTrip.reset();
+        tx.reset();
+        rx.reset();
+        logWrite.reset();
+        pollCount = 0;
+        timeoutCount = 0;
+        crcErrorCount = 0;
+        ioErrorCount = 0;
+        consecutiveErrors = 0;
+        maxConsecutiveErrors = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("MegasquirtMetrics [pollCount=");
+        builder.append(pollCount);
+        builder.append(", timeoutCount=");
+        builder.append(timeoutCount);
+        builder.append(", crcErrorCount=");
+        builder.append(crcErrorCount);
+        builder.append(", ioErrorCount=");
+        builder.append(ioErrorCount);
+        builder.append(", maxConsecutiveErrors=");
+        builder.append(maxConsecutiveErrors);
+        builder.append(", roundTrip=");
+        builder.append(roundTrip);
+        builder.append(", logWrite=");
+        builder.append(logWrite);
+        builder.append("]");
+        return builder.toString();
+    }
+}
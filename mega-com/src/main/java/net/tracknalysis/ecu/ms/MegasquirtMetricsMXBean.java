@@ -0,0 +1,64 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+/**
+ * Management interface of {@link MegasquirtMetrics}, exported by {@link MetricsJmxExporter}.
+ * Latencies are reported in microseconds as the upper bound of the histogram bucket holding the
+ * percentile.
+ *
+ * @author David Valeri
+ */
+public interface MegasquirtMetricsMXBean {
+
+    long getPollCount();
+
+    long getTimeoutCount();
+
+    long getCrcErrorCount();
+
+    long getIoErrorCount();
+
+    /**
+     * Returns the fraction of polls, from 0 to 1, that failed a CRC check.
+     */
+    double getCrcErrorRate();
+
+    int getConsecutiveErrors();
+
+    int getMaxConsecutiveErrors();
+
+    /**
+     * Returns the smoothed rate of successful polls, in polls per second.
+     */
+    double getAchievedPollRate();
+
+    long getRoundTripP50Micros();
+
+    long getRoundTripP99Micros();
+
+    long getRoundTripMaxMicros();
+
+    long getTxP99Micros();
+
+    long getRxP99Micros();
+
+    long getLogWriteP50Micros();
+
+    long getLogWriteP99Micros();
+
+    void reset();
+}
@@ -35,7 +35,12 @@ public enum MegasquirtNotificationType implements NotificationType {
 	LOGGING_STOPPED,
 	LOGGING_FAILED,
 	DISCONNECTING,
-	DISCONNECTED;
+	DISCONNECTED,
+	/**
+	 * Sent once the constants have been loaded while connecting.  Per page timings are
+	 * available from {@link Megasquirt#getConstantsLoadTimings()}.
+	 */
+	CONSTANTS_LOADED;
 
 	private static final Map<Integer, MegasquirtNotificationType> intToTypeMap = 
 			new HashMap<Integer, MegasquirtNotificationType>();
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the {@link MegasquirtMetrics} of {@link Megasquirt} instances with an
+ * {@link MBeanServer}, by default the platform server, under
+ * {@code net.tracknalysis.ecu.ms:type=Megasquirt,instance=<instance number>}.  Kept apart from
+ * {@link Megasquirt} so that platforms without JMX never load it.
+ *
+ * @author David Valeri
+ */
+public class MetricsJmxExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsJmxExporter.class);
+
+    public static final String DOMAIN = "net.tracknalysis.ecu.ms";
+
+    private final MBeanServer server;
+    private final Map<Megasquirt, ObjectName> names = new HashMap<Megasquirt, ObjectName>();
+
+    public MetricsJmxExporter() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public MetricsJmxExporter(MBeanServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Registers the metrics of {@code ms}, replacing any existing registration under the same
+     * name.
+     *
+     * @return the name the metrics are registered under
+     *
+     * @throws JMException if the metrics cannot be registered
+     */
+    public synchronized ObjectName export(Megasquirt ms) throws JMException {
+        final ObjectName name = new ObjectName(DOMAIN + ":type=Megasquirt,instance="
+                + ms.getInstanceNumber());
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(ms.getMetrics(), name);
+        names.put(ms, name);
+
+        LOG.debug("Exported metrics of Megasquirt {} as {}.", ms.getInstanceNumber(), name);
+        return name;
+    }
+
+    /**
+     * Removes the registration of the metrics of {@code ms}.  Does nothing if not exported.
+     */
+    public synchronized void unexport(Megasquirt ms) {
+        final ObjectName name = names.remove(ms);
+        if (name != null) {
+            unregister(name);
+        }
+    }
+
+    /**
+     * Removes all registrations made by this exporter.
+     */
+    public synchronized void unexportAll() {
+        for (ObjectName name : names.values()) {
+            unregister(name);
+        }
+        names.clear();
+    }
+
+    private void unregister(ObjectName name) {
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            LOG.warn("Error unregistering " + name + ".", e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+/**
+ * A contiguous range of bytes of the OCH block.
+ *
+ * @author David Valeri
+ */
+public final class OchRange implements Comparable<OchRange> {
+
+    private final int offset;
+    private final int count;
+
+    public OchRange(int offset, int count) {
+        this.offset = offset;
+        this.count = count;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the offset just past the end of the range.
+     */
+    public int getEnd() {
+        return offset + count;
+    }
+
+    @Override
+    public int compareTo(OchRange other) {
+        return offset < other.offset ? -1 : (offset == other.offset ? 0 : 1);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * offset + count;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof OchRange)) {
+            return false;
+        }
+        OchRange other = (OchRange) obj;
+        return offset == other.offset && count == other.count;
+    }
+
+    @Override
+    public String toString() {
+        return "OchRange [offset=" + offset + ", count=" + count + "]";
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.common.OutputChannel;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the byte ranges of the OCH block that must be read to decode a set of output
+ * channels.  Ranges separated by a gap of no more than the merge gap are merged, as the cost of
+ * the extra request outweighs the cost of reading the unused bytes.
+ *
+ * @author David Valeri
+ */
+public final class OchRangePlanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OchRangePlanner.class);
+
+    /**
+     * Default merge gap, roughly the size of a ranged request and its framing.
+     */
+    public static final int DEFAULT_MERGE_GAP = 16;
+
+    /**
+     * The rate of a 115200 baud serial link, the fastest the Megasquirt supports, in bytes per
+     * millisecond.
+     */
+    public static final double SERIAL_BYTES_PER_MILLI = 11.52d;
+
+    /**
+     * Hidden in utility class.
+     */
+    private OchRangePlanner() {
+    }
+
+    /**
+     * Plans the ranges to read to decode {@code channelNames}.
+     *
+     * @param ecu the ECU definition to plan for
+     * @param channelNames the names of the channels to read
+     * @param mergeGap the largest gap between ranges that is read rather than split
+     *
+     * @return the ranges ordered by offset or {@code null} if the channels cannot be read with
+     *         ranged reads, because the firmware does not support them, a channel is unknown or a
+     *         channel is computed from other channels
+     */
+    public static List<OchRange> plan(MsEcu ecu, Collection<String> channelNames, int mergeGap) {
+        if (ecu.getOchCommand(0, 1) == null) {
+            LOG.debug("Firmware {} does not support ranged OCH reads.", ecu.getSignature());
+            return null;
+        }
+
+        final List<OchRange> ranges = new ArrayList<OchRange>(channelNames.size());
+
+        for (String name : channelNames) {
+            final OutputChannel channel = ecu.getOutputChannelByName(name);
+            if (channel == null) {
+                LOG.debug("Unknown output channel {}.", name);
+                return null;
+            }
+
+            final int size = getSize(channel.getType());
+            if (channel.getOffset() < 0 || size < 0) {
+                LOG.debug("Output channel {} is not read directly from the OCH block.", name);
+                return null;
+            }
+
+            ranges.add(new OchRange(channel.getOffset(), size));
+        }
+
+        Collections.sort(ranges);
+
+        final List<OchRange> merged = new ArrayList<OchRange>(ranges.size());
+        OchRange current = null;
+        for (OchRange range : ranges) {
+            if (current == null) {
+                current = range;
+            } else if (range.getOffset() <= current.getEnd() + mergeGap) {
+                current = new OchRange(current.getOffset(),
+                        Math.max(current.getEnd(), range.getEnd()) - current.getOffset());
+            } else {
+                merged.add(current);
+                current = range;
+            }
+        }
+
+        if (current != null) {
+            merged.add(current);
+        }
+
+        return merged;
+    }
+
+    /**
+     * Returns true if reading {@code ranges} is expected to take less time than reading the whole
+     * OCH block.  Each command costs its response, its framing, taken to be
+     * {@link #DEFAULT_MERGE_GAP} bytes, and any pause {@link MsIoManager} makes while writing it.
+     * The pause dominates on MS2, where each ranged read is written in two parts 200 ms apart.
+     *
+     * @param ranges the ranges to read
+     * @param rangeCommands the commands reading each of {@code ranges}, as sent
+     * @param blockSize the size of the OCH block
+     * @param blockCommand the command reading the whole OCH block, as sent
+     * @param bytesPerMilli the rate of the link
+     */
+    public static boolean isRangedReadCheaper(List<OchRange> ranges, byte[][] rangeCommands,
+            int blockSize, byte[] blockCommand, double bytesPerMilli) {
+        double rangedMillis = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            rangedMillis += estimateReadMillis(ranges.get(i).getCount(), rangeCommands[i],
+                    bytesPerMilli);
+        }
+
+        return rangedMillis < estimateReadMillis(blockSize, blockCommand, bytesPerMilli);
+    }
+
+    private static double estimateReadMillis(int count, byte[] command, double bytesPerMilli) {
+        return (count + DEFAULT_MERGE_GAP) / bytesPerMilli + MsIoManager.getWriteDelay(command);
+    }
+
+    /**
+     * Returns the size in bytes of an OCH value of {@code type} or -1 if unknown.
+     */
+    static int getSize(String type) {
+        if (type == null || type.length() < 3) {
+            return -1;
+        } else if (type.endsWith("08")) {
+            return 1;
+        } else if (type.endsWith("16")) {
+            return 2;
+        } else if (type.endsWith("32")) {
+            return 4;
+        } else {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.io.IOException;
+
+/**
+ * Persistent store of page images used by {@link Megasquirt} to skip reading pages from the
+ * ECU on connect.  Cached pages are only used after the ECU confirms, by CRC, that they match
+ * its own.
+ *
+ * @author David Valeri
+ */
+public interface PageCache {
+
+    /**
+     * Returns the cached image of a page or {@code null} if not cached.
+     *
+     * @param signature the signature reported by the ECU
+     * @param pageNo the page number, numbered from 1
+     */
+    byte[] get(String signature, int pageNo) throws IOException;
+
+    /**
+     * Stores the image of a page, replacing any existing image.
+     *
+     * @param signature the signature reported by the ECU
+     * @param pageNo the page number, numbered from 1
+     * @param page the page contents
+     */
+    void put(String signature, int pageNo, byte[] page) throws IOException;
+}
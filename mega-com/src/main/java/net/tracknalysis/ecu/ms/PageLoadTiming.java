@@ -0,0 +1,65 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+/**
+ * Time spent reading one page of constants from the ECU and decoding it.
+ *
+ * @author David Valeri
+ */
+public final class PageLoadTiming {
+
+    private final int pageNo;
+    private final long fetchNanos;
+    private final long decodeNanos;
+
+    public PageLoadTiming(int pageNo, long fetchNanos, long decodeNanos) {
+        this.pageNo = pageNo;
+        this.fetchNanos = fetchNanos;
+        this.decodeNanos = decodeNanos;
+    }
+
+    public int getPageNo() {
+        return pageNo;
+    }
+
+    /**
+     * Returns the nanoseconds spent reading the page, including page activation delays.
+     */
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    /**
+     * Returns the nanoseconds spent decoding the constants of the page.
+     */
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("PageLoadTiming [pageNo=");
+        builder.append(pageNo);
+        builder.append(", fetchNanos=");
+        builder.append(fetchNanos);
+        builder.append(", decodeNanos=");
+        builder.append(decodeNanos);
+        builder.append("]");
+        return builder.toString();
+    }
+}
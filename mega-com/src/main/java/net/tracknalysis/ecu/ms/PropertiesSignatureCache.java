@@ -0,0 +1,164 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation storing signatures in a properties file keyed by port.  Signatures and query
+ * commands are stored as hex so that terminating nulls and other control characters survive.
+ * The file is written to a temporary file and renamed into place so that a failure part way
+ * through never leaves a truncated file behind.
+ *
+ * @author David Valeri
+ */
+public class PropertiesSignatureCache implements SignatureCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PropertiesSignatureCache.class);
+
+    private static final String SIGNATURE_SUFFIX = ".signature";
+
+    private static final String QUERY_COMMAND_SUFFIX = ".queryCommand";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File file;
+
+    private Properties properties;
+
+    public PropertiesSignatureCache(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized String getSignature(String port) throws IOException {
+        final byte[] signature = decode(getProperties().getProperty(port + SIGNATURE_SUFFIX));
+        return signature == null ? null
+                : new String(signature, MsEcuFactory.SIGNATURE_ENCODING);
+    }
+
+    @Override
+    public synchronized byte[] getQueryCommand(String port) throws IOException {
+        return decode(getProperties().getProperty(port + QUERY_COMMAND_SUFFIX));
+    }
+
+    @Override
+    public synchronized void put(String port, String signature, byte[] queryCommand)
+            throws IOException {
+        final Properties properties = getProperties();
+        properties.setProperty(port + SIGNATURE_SUFFIX, encode(signature.getBytes(MsEcuFactory.SIGNATURE_ENCODING)));
+        properties.setProperty(port + QUERY_COMMAND_SUFFIX, encode(queryCommand));
+
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create signature cache directory '"
+                    + parent.getAbsolutePath() + "'.");
+        }
+
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final OutputStream out = new FileOutputStream(tempFile);
+        try {
+            properties.store(out, "Megasquirt signatures by port");
+        } finally {
+            out.close();
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace signature cache '" + file.getAbsolutePath()
+                    + "'.");
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to rename '" + tempFile.getAbsolutePath() + "' to '"
+                    + file.getAbsolutePath() + "'.");
+        }
+
+        LOG.debug("Cached signature for port '{}' in '{}'.", port, file.getAbsolutePath());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("PropertiesSignatureCache [file=");
+        builder.append(file);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * Returns the cached properties, reading them from the file on first use.  Must be called
+     * while holding the lock on this instance.
+     */
+    private Properties getProperties() throws IOException {
+        if (properties == null) {
+            final Properties loaded = new Properties();
+            if (file.isFile()) {
+                final InputStream in = new FileInputStream(file);
+                try {
+                    loaded.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+            properties = loaded;
+        }
+        return properties;
+    }
+
+    private static String encode(byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(HEX_DIGITS[(b >> 4) & 0x0F]).append(HEX_DIGITS[b & 0x0F]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decodes a value written by {@link #encode(byte[])}, returning {@code null} if the value is
+     * missing or malformed.
+     */
+    private static byte[] decode(String value) {
+        if (value == null || value.length() % 2 != 0) {
+            return null;
+        }
+
+        final byte[] bytes = new byte[value.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = Character.digit(value.charAt(i * 2), 16);
+            final int low = Character.digit(value.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
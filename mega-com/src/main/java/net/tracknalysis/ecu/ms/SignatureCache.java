@@ -0,0 +1,51 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import java.io.IOException;
+
+/**
+ * Persistent store of the last signature seen on each port, used by {@link Megasquirt} to
+ * confirm the ECU with a single query on connect instead of running full discovery.
+ *
+ * @author David Valeri
+ */
+public interface SignatureCache {
+
+    /**
+     * Returns the last signature seen on a port or {@code null} if not cached.
+     *
+     * @param port the name identifying the port
+     */
+    String getSignature(String port) throws IOException;
+
+    /**
+     * Returns the query command that produced the last signature seen on a port or {@code null}
+     * if not cached.
+     *
+     * @param port the name identifying the port
+     */
+    byte[] getQueryCommand(String port) throws IOException;
+
+    /**
+     * Stores the signature seen on a port, replacing any existing entry.
+     *
+     * @param port the name identifying the port
+     * @param signature the signature exactly as returned by the ECU
+     * @param queryCommand the query command that produced the signature
+     */
+    void put(String port, String signature, byte[] queryCommand) throws IOException;
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.ecu.factory;
+
+/**
+ * The outcome of signature discovery by {@link MsEcuFactory#detectSignature}.
+ *
+ * @author David Valeri
+ */
+public final class DetectedSignature {
+
+    private final String signature;
+    private final byte[] queryCommand;
+    private final long detectionNanos;
+    private final boolean known;
+
+    public DetectedSignature(String signature, byte[] queryCommand, long detectionNanos,
+            boolean known) {
+        this.signature = signature;
+        this.queryCommand = queryCommand;
+        this.detectionNanos = detectionNanos;
+        this.known = known;
+    }
+
+    /**
+     * Returns the signature exactly as returned by the ECU.
+     */
+    public String getSignature() {
+        return signature;
+    }
+
+    /**
+     * Returns the query command that produced the signature.
+     */
+    public byte[] getQueryCommand() {
+        return queryCommand;
+    }
+
+    /**
+     * Returns the time from the start of discovery until the signature was confirmed.
+     */
+    public long getDetectionNanos() {
+        return detectionNanos;
+    }
+
+    /**
+     * Returns true if the signature was confirmed by the single probe for the previously known
+     * signature rather than by full discovery.
+     */
+    public boolean isKnown() {
+        return known;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("DetectedSignature [signature=");
+        builder.append(signature);
+        builder.append(", detectionMillis=");
+        builder.append(detectionNanos / 1000000);
+        builder.append(", known=");
+        builder.append(known);
+        builder.append("]");
+        return builder.toString();
+    }
+}
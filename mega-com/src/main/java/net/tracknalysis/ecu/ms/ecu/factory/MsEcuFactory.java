@@ -49,6 +49,22 @@ public abstract class MsEcuFactory {
     public static final List<byte[]> DEFAULT_QUERY_COMMANDS = Collections
             .unmodifiableList(Arrays.asList(new byte[] {'Q'}, new byte[] {'S'}));
     
+    /**
+     * The longest to wait for the ECU to return a previously known signature.
+     */
+    private static final long KNOWN_SIGNATURE_TIMEOUT = 250;
+    
+    /**
+     * The time to let any bytes the ECU sends after a known signature arrive before discarding
+     * them.
+     */
+    private static final long TRAILING_BYTES_DELAY = 20;
+    
+    /**
+     * The encoding of signatures on the wire.
+     */
+    public static final String SIGNATURE_ENCODING = "US-ASCII";
+    
     public static synchronized MsEcuFactory getInstance() {
         if (INSTANCE == null) {
             INSTANCE = new DefaultMsEcuFactory();
@@ -142,14 +158,103 @@ public abstract class MsEcuFactory {
      */
     public String getSignature(IoManager ioManager, int retryCount,
             List<byte[]> queryCommands) throws SignatureException, IOException {
+        DetectedSignature detected = discoverSignature(ioManager, retryCount, queryCommands,
+                System.nanoTime());
+        return detected == null ? null : detected.getSignature();
+    }
+    
+    /**
+     * Retrieves the signature of the Megasquirt connected through the IO manager, first
+     * probing for a previously known signature.  The probe sends {@code knownQueryCommand} once
+     * and reads exactly as many bytes as {@code knownSignature}, so it returns as soon as the
+     * signature has arrived rather than waiting for the ECU to fall silent.  If the ECU returns
+     * anything else, or nothing, full discovery as in {@link #getSignature(IoManager)} follows.
+     *
+     * @param ioManager the IO manager to use for querying the Megasquirt
+     * @param knownSignature
+     *            the signature last returned by the Megasquirt or {@code null} if unknown
+     * @param knownQueryCommand
+     *            the query command that returned {@code knownSignature} or {@code null} if
+     *            unknown
+     *
+     * @return the signature, the query command that produced it and the time taken
+     *
+     * @throws SignatureException if there is an error determining the signature
+     * @throws IOException if there is a communication error determining the Megasquirt signature
+     */
+    public DetectedSignature detectSignature(IoManager ioManager, String knownSignature,
+            byte[] knownQueryCommand) throws SignatureException, IOException {
+        final long start = System.nanoTime();
+        
+        if (knownSignature != null && knownQueryCommand != null) {
+            if (probeForSignature(ioManager, knownSignature, knownQueryCommand)) {
+                DetectedSignature detected = new DetectedSignature(knownSignature,
+                        knownQueryCommand, System.nanoTime() - start, true);
+                LOG.info("Confirmed known signature: {}.", detected);
+                return detected;
+            }
+            
+            LOG.info("ECU did not return known signature '{}'.  Discovering signature.",
+                    knownSignature);
+            ioManager.flushAll();
+        }
+        
+        return discoverSignature(ioManager, 20, DEFAULT_QUERY_COMMANDS, start);
+    }
+    
+    /**
+     * Returns true if the ECU responds to {@code queryCommand} with {@code expectedSignature}.
+     * Bytes already received are discarded before the probe, and any the ECU sends after the
+     * expected signature are discarded after it, so that neither is read as the response to
+     * another command.
+     */
+    protected boolean probeForSignature(IoManager ioManager, String expectedSignature,
+            byte[] queryCommand) throws IOException {
+        final byte[] expected = expectedSignature.getBytes(SIGNATURE_ENCODING);
+        final byte[] response = new byte[expected.length];
+        
+        ioManager.flushAll();
+        try {
+            ioManager.write(queryCommand);
+            ioManager.read(response, KNOWN_SIGNATURE_TIMEOUT, null);
+        } catch (IOException e) {
+            LOG.debug("Error probing for known signature.", e);
+            return false;
+        }
+        
+        delay(TRAILING_BYTES_DELAY);
+        ioManager.flushAll();
+        
+        return Arrays.equals(expected, response);
+    }
+    
+    private DetectedSignature discoverSignature(IoManager ioManager, int retryCount,
+            List<byte[]> queryCommands, long start) throws SignatureException, IOException {
+        
+        List<byte[]> commandsToUse = queryCommands;
+        if (commandsToUse == null) {
+            commandsToUse = DEFAULT_QUERY_COMMANDS;
+        }
+        
         int tryCounter = 0;
         Exception error = null;
-        String signature = null;
+        DetectedSignature detected = null;
         
-        while ((signature == null && retryCount == -1)
-                || (signature == null && tryCounter < retryCount)) {
+        while ((detected == null && retryCount == -1)
+                || (detected == null && tryCounter < retryCount)) {
             try {
-                signature = queryForSignature(ioManager, queryCommands);
+                for (byte[] command : commandsToUse) {
+                    try {
+                        String signature = queryForSignature(ioManager,
+                                Collections.singletonList(command));
+                        detected = new DetectedSignature(signature, command,
+                                System.nanoTime() - start, false);
+                        break;
+                    } catch (NoSignatureException e) {
+                        // No response to this command, try the next.
+                        error = e;
+                    }
+                }
             } catch (BootException e) {
                 LOG.info("ECU needs to boot.  Sending boot command.");
                 ioManager.write(BOOT_COMMAND);
@@ -159,16 +264,19 @@ public abstract class MsEcuFactory {
                 LOG.info("Received bad signature.", e);
                 error = e;
             }
-            // Add a little delay
-            delay(100);
+            
+            if (detected == null) {
+                // Add a little delay
+                delay(100);
+            }
             tryCounter++;
         }
         
-        if (signature == null && error != null) {
+        if (detected == null && error != null) {
             throw new SignatureException("Could not determine signature.", error);
         } else {
-        	LOG.info("Received signature: {}.", signature);
-            return signature;
+        	LOG.info("Received signature: {}.", detected);
+            return detected;
         }
     }
     
@@ -19,7 +19,7 @@ package net.tracknalysis.ecu.ms.ecu.factory;
  * Root exception for errors that occur in {@link MsEcuFactory}.
  * @author David Valeri
  */
-class MsEcuFactoryException extends Exception {
+public class MsEcuFactoryException extends Exception {
 
     private static final long serialVersionUID = 1L;
 
@@ -0,0 +1,265 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import net.tracknalysis.common.io.IoManager;
+import net.tracknalysis.common.io.IoManagerResult;
+import net.tracknalysis.common.io.IoProtocolHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decorates an {@link IoManager}, typically an {@link MsIoManager}, recording every call with
+ * its request, response, outcome and nanosecond timing to a capture file that
+ * {@link ReplayIoManager} can play back.  Responses are recorded as returned to the caller, so
+ * raw CRC32 envelopes read without a protocol handler are captured with any corruption intact.
+ * <p/>
+ * Calls that fail with an {@link IOException}, such as timeouts, are recorded along with the
+ * exception.  Records are buffered and the file is flushed on disconnect and
+ * {@link #close()}.
+ *
+ * @author David Valeri
+ */
+public class CaptureIoManager implements IoManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CaptureIoManager.class);
+
+    private final IoManager delegate;
+    private final File file;
+    private final DataOutputStream out;
+    private final long baseNanos = System.nanoTime();
+
+    private long recordCount;
+    private boolean closed;
+
+    /**
+     * @param delegate the IO manager to record calls to
+     * @param file the capture file to create, replacing any existing file
+     */
+    public CaptureIoManager(IoManager delegate, File file) throws IOException {
+        this.delegate = delegate;
+        this.file = file;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(CaptureRecord.MAGIC);
+        out.writeShort(CaptureRecord.VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    @Override
+    public void connect() throws IOException {
+        final CaptureRecord record = begin(CaptureRecord.CONNECT, null);
+        try {
+            delegate.connect();
+        } catch (IOException e) {
+            end(record, null, e);
+            throw e;
+        }
+        end(record, null, null);
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        final CaptureRecord record = begin(CaptureRecord.DISCONNECT, null);
+        try {
+            delegate.disconnect();
+        } catch (IOException e) {
+            end(record, null, e);
+            flush();
+            throw e;
+        }
+        end(record, null, null);
+        flush();
+    }
+
+    @Override
+    public void flushAll() throws IOException {
+        final CaptureRecord record = begin(CaptureRecord.FLUSH, null);
+        try {
+            delegate.flushAll();
+        } catch (IOException e) {
+            end(record, null, e);
+            throw e;
+        }
+        end(record, null, null);
+    }
+
+    @Override
+    public IoManagerResult write(byte[] command) throws IOException {
+        return write(command, null);
+    }
+
+    @Override
+    public IoManagerResult write(byte[] command, IoProtocolHandler protocolHandler)
+            throws IOException {
+        final CaptureRecord record = begin(CaptureRecord.WRITE, command);
+        record.protocolHandler = protocolHandler != null;
+        final IoManagerResult result;
+        try {
+            result = delegate.write(command, protocolHandler);
+        } catch (IOException e) {
+            end(record, null, e);
+            throw e;
+        }
+        end(record, null, null);
+        return result;
+    }
+
+    @Override
+    public IoManagerResult read(byte[] buffer, long timeout, IoProtocolHandler protocolHandler)
+            throws IOException {
+        final CaptureRecord record = begin(CaptureRecord.READ, null);
+        record.protocolHandler = protocolHandler != null;
+        record.timeout = (int) timeout;
+        final IoManagerResult result;
+        try {
+            result = delegate.read(buffer, timeout, protocolHandler);
+        } catch (IOException e) {
+            end(record, buffer.clone(), e);
+            throw e;
+        }
+        end(record, getResponse(result, buffer), null);
+        return result;
+    }
+
+    @Override
+    public IoManagerResult writeAndRead(byte[] command, long timeout) throws IOException {
+        final CaptureRecord record = begin(CaptureRecord.WRITE_AND_READ, command);
+        record.timeout = (int) timeout;
+        final IoManagerResult result;
+        try {
+            result = delegate.writeAndRead(command, timeout);
+        } catch (IOException e) {
+            end(record, null, e);
+            throw e;
+        }
+        end(record, getResponse(result, null), null);
+        return result;
+    }
+
+    @Override
+    public IoManagerResult writeAndRead(byte[] command, byte[] buffer, long timeout,
+            IoProtocolHandler protocolHandler) throws IOException {
+        final CaptureRecord record = begin(CaptureRecord.WRITE_AND_READ, command);
+        record.protocolHandler = protocolHandler != null;
+        record.timeout = (int) timeout;
+        final IoManagerResult result;
+        try {
+            result = delegate.writeAndRead(command, buffer, timeout, protocolHandler);
+        } catch (IOException e) {
+            end(record, buffer.clone(), e);
+            throw e;
+        }
+        end(record, getResponse(result, buffer), null);
+        return result;
+    }
+
+    /**
+     * Returns the number of calls recorded.
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Flushes and closes the capture file.  Calls made after closing are passed on but not
+     * recorded.
+     */
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.close();
+            LOG.debug("Closed capture '{}' after {} records.", file.getAbsolutePath(), recordCount);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("CaptureIoManager [delegate=");
+        builder.append(delegate);
+        builder.append(", file=");
+        builder.append(file);
+        builder.append(", recordCount=");
+        builder.append(recordCount);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    private CaptureRecord begin(byte type, byte[] request) {
+        final CaptureRecord record = new CaptureRecord();
+        record.type = type;
+        if (request != null) {
+            record.request = request.clone();
+        }
+        record.start = System.nanoTime() - baseNanos;
+        return record;
+    }
+
+    private synchronized void end(CaptureRecord record, byte[] response, IOException error) {
+        record.duration = System.nanoTime() - baseNanos - record.start;
+        record.response = response;
+        if (error != null) {
+            record.errorClass = error.getClass().getName();
+            record.errorMessage = error.getMessage();
+        }
+
+        if (closed) {
+            return;
+        }
+
+        try {
+            record.write(out);
+            recordCount++;
+        } catch (IOException e) {
+            // Don't fail the session because the capture could not be written.
+            LOG.error("Error writing capture '" + file.getAbsolutePath()
+                    + "'.  Capture stopped.", e);
+            closed = true;
+        }
+    }
+
+    private synchronized void flush() {
+        if (!closed) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                LOG.warn("Error flushing capture '" + file.getAbsolutePath() + "'.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the data returned by a read.
+     */
+    private static byte[] getResponse(IoManagerResult result, byte[] buffer) {
+        final byte[] data = result == null ? null : result.getResult();
+        if (data != null) {
+            return data.clone();
+        }
+        return buffer == null ? null : buffer.clone();
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * One call to an {@link net.tracknalysis.common.io.IoManager} as stored in a capture file
+ * written by {@link CaptureIoManager} and read by {@link ReplayIoManager}.
+ * <p/>
+ * A capture file starts with the 4 byte {@link #MAGIC}, a 2 byte {@link #VERSION} and the 8 byte
+ * wall clock time the capture started, in milliseconds.  Each record that follows is, in
+ * big-endian order:
+ * <pre>
+ * type            1 byte
+ * start           8 bytes, nanoseconds since the capture started
+ * duration        8 bytes, nanoseconds
+ * flags           1 byte, {@link #FLAG_PROTOCOL_HANDLER}, {@link #FLAG_ERROR}
+ * timeout         4 bytes, milliseconds, for reads
+ * request length  4 bytes, followed by the request
+ * response length 4 bytes, followed by the response, -1 if none
+ * error class     UTF-8 string, if {@link #FLAG_ERROR}
+ * error message   UTF-8 string, if {@link #FLAG_ERROR}
+ * </pre>
+ *
+ * @author David Valeri
+ */
+final class CaptureRecord {
+
+    static final int MAGIC = 0x4D534350;
+    static final int VERSION = 1;
+
+    static final byte CONNECT = 1;
+    static final byte DISCONNECT = 2;
+    static final byte FLUSH = 3;
+    static final byte WRITE = 4;
+    static final byte READ = 5;
+    static final byte WRITE_AND_READ = 6;
+
+    static final int FLAG_PROTOCOL_HANDLER = 0x01;
+    static final int FLAG_ERROR = 0x02;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    byte type;
+    long start;
+    long duration;
+    boolean protocolHandler;
+    int timeout;
+    byte[] request = EMPTY;
+    byte[] response;
+    String errorClass;
+    String errorMessage;
+
+    void write(DataOutput out) throws IOException {
+        out.writeByte(type);
+        out.writeLong(start);
+        out.writeLong(duration);
+        out.writeByte((protocolHandler ? FLAG_PROTOCOL_HANDLER : 0)
+                | (errorClass != null ? FLAG_ERROR : 0));
+        out.writeInt(timeout);
+        out.writeInt(request.length);
+        out.write(request);
+        if (response == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(response.length);
+            out.write(response);
+        }
+        if (errorClass != null) {
+            out.writeUTF(errorClass);
+            out.writeUTF(errorMessage == null ? "" : errorMessage);
+        }
+    }
+
+    static CaptureRecord read(DataInput in) throws IOException {
+        final CaptureRecord record = new CaptureRecord();
+        record.type = in.readByte();
+        record.start = in.readLong();
+        record.duration = in.readLong();
+        final int flags = in.readByte();
+        record.protocolHandler = (flags & FLAG_PROTOCOL_HANDLER) != 0;
+        record.timeout = in.readInt();
+        record.request = new byte[in.readInt()];
+        in.readFully(record.request);
+        final int responseLength = in.readInt();
+        if (responseLength >= 0) {
+            record.response = new byte[responseLength];
+            in.readFully(record.response);
+        }
+        if ((flags & FLAG_ERROR) != 0) {
+            record.errorClass = in.readUTF();
+            record.errorMessage = in.readUTF();
+        }
+        return record;
+    }
+
+    static String getTypeName(byte type) {
+        switch (type) {
+            case CONNECT:
+                return "connect";
+            case DISCONNECT:
+                return "disconnect";
+            case FLUSH:
+                return "flush";
+            case WRITE:
+                return "write";
+            case READ:
+                return "read";
+            case WRITE_AND_READ:
+                return "write and read";
+            default:
+                return "unknown (" + type + ")";
+        }
+    }
+}
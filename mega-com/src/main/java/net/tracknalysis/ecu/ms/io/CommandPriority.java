@@ -0,0 +1,41 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+/**
+ * Latency classes of IO commands, in the order they are served by a
+ * {@link PriorityCommandQueue}.
+ *
+ * @author David Valeri
+ */
+public enum CommandPriority {
+
+    /**
+     * Commands a user is waiting on, such as connecting or reading a value to display.
+     */
+    INTERACTIVE,
+
+    /**
+     * Larger transfers that are not time critical, such as reading or writing pages.  Commands
+     * that do not declare a priority are treated as bulk commands.
+     */
+    BULK,
+
+    /**
+     * Background polling of the runtime variables.
+     */
+    POLL;
+}
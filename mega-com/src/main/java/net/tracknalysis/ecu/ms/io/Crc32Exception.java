@@ -31,4 +31,8 @@ public class Crc32Exception extends IOException {
 	public Crc32Exception() {
 		super();
 	}
+	
+	public Crc32Exception(String message) {
+		super(message);
+	}
 }
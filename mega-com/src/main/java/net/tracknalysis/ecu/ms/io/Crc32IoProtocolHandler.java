@@ -16,6 +16,7 @@
 package net.tracknalysis.ecu.ms.io;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.zip.CRC32;
 
@@ -35,6 +36,11 @@ import net.tracknalysis.common.io.IoProtocolHandler;
  * interfaces and support use in a standard JRE.  Note that this protocol
  * is asymmetrical and that the response from the MS has an extra type field
  * in it that is not provided in the request. 
+ * <p/>
+ * In addition to the array based {@link IoProtocolHandler} methods, this class provides
+ * offset/length based methods that wrap, check and unwrap frames in place so that
+ * high rate polling does not need to copy each frame.  Instances hold no state and may be
+ * shared between threads.
  * 
  * @author David Smith
  * @author David Valeri
@@ -46,6 +52,11 @@ public class Crc32IoProtocolHandler implements IoProtocolHandler {
     private final static int PAYLOAD_LENGTH = 2;
     private final static int TYPE_LENGTH    = 1;
     private final static int CRC32_LENGTH   = 4;
+    
+    /**
+     * Offset of the payload within a wrapped response.
+     */
+    private final static int RESPONSE_PAYLOAD_OFFSET = PAYLOAD_LENGTH + TYPE_LENGTH;
 
     /**
      * Wrap an array of bytes into a CRC-32 validated array of bytes.
@@ -53,21 +64,31 @@ public class Crc32IoProtocolHandler implements IoProtocolHandler {
     @Override
     public byte[] wrapRequest(byte[] naked) throws IOException {
         byte[] wrapped = new byte[getWrappedRequestLength(naked.length)];
-        wrapped[0] = 0;
-        wrapped[1] = (byte) naked.length;
-        System.arraycopy(naked, 0, wrapped, 2, naked.length); // Copy wrapped into naked
-
-        CRC32 check = new CRC32();
-        check.update(naked);
+        wrapRequest(naked, 0, naked.length, wrapped, 0);
+        return wrapped;
+    }
+    
+    /**
+     * Wraps {@code length} bytes of {@code naked} starting at {@code offset} into
+     * {@code wrapped} starting at {@code wrappedOffset}.
+     *
+     * @param naked the buffer containing the request
+     * @param offset the offset of the request in {@code naked}
+     * @param length the length of the request
+     * @param wrapped the buffer to write the wrapped request into, must have at least
+     *            {@link #getWrappedRequestLength(int)} bytes available from {@code wrappedOffset}
+     * @param wrappedOffset the offset in {@code wrapped} to start writing at
+     *
+     * @return the number of bytes written to {@code wrapped}
+     */
+    public int wrapRequest(byte[] naked, int offset, int length, byte[] wrapped, int wrappedOffset) {
+        wrapped[wrappedOffset] = (byte) ((length >> 8) & 0xff);
+        wrapped[wrappedOffset + 1] = (byte) (length & 0xff);
+        System.arraycopy(naked, offset, wrapped, wrappedOffset + PAYLOAD_LENGTH, length);
 
-        long crc32value = check.getValue();
-        int crcIndex = wrapped.length - CRC32_LENGTH;
-        wrapped[crcIndex] = (byte) ((crc32value >> 24) & 0xff);
-        wrapped[crcIndex + 1] = (byte) ((crc32value >> 16) & 0xff);
-        wrapped[crcIndex + 2] = (byte) ((crc32value >> 8) & 0xff);
-        wrapped[crcIndex + 3] = (byte) ((crc32value >> 0) & 0xff);
+        writeCrc(computeCrc(naked, offset, length), wrapped, wrappedOffset + PAYLOAD_LENGTH + length);
 
-        return wrapped;
+        return getWrappedRequestLength(length);
     }
     
     @Override
@@ -75,6 +96,41 @@ public class Crc32IoProtocolHandler implements IoProtocolHandler {
     	return PAYLOAD_LENGTH + CRC32_LENGTH + length;  // Add 2 bytes for payload size and 4 bytes for CRC32
     }
 
+    /**
+     * Wraps {@code naked} into a response of {@code type} as the ECU sends it.  This is the
+     * counterpart of {@link #unwrapResponse(byte[])} for code answering requests, such as an
+     * emulator.
+     */
+    public byte[] wrapResponse(int type, byte[] naked) {
+        byte[] wrapped = new byte[getWrappedResponseLength(naked.length)];
+        wrapResponse(type, naked, 0, naked.length, wrapped, 0);
+        return wrapped;
+    }
+    
+    /**
+     * Wraps {@code length} bytes of {@code naked} starting at {@code offset} into a response of
+     * {@code type} in {@code wrapped} starting at {@code wrappedOffset}.
+     *
+     * @param wrapped the buffer to write the wrapped response into, must have at least
+     *            {@link #getWrappedResponseLength(int)} bytes available from {@code wrappedOffset}
+     *
+     * @return the number of bytes written to {@code wrapped}
+     */
+    public int wrapResponse(int type, byte[] naked, int offset, int length, byte[] wrapped,
+            int wrappedOffset) {
+        // The payload size and the CRC cover the type.
+        final int typedLength = TYPE_LENGTH + length;
+        wrapped[wrappedOffset] = (byte) ((typedLength >> 8) & 0xff);
+        wrapped[wrappedOffset + 1] = (byte) (typedLength & 0xff);
+        wrapped[wrappedOffset + PAYLOAD_LENGTH] = (byte) type;
+        System.arraycopy(naked, offset, wrapped, wrappedOffset + RESPONSE_PAYLOAD_OFFSET, length);
+
+        writeCrc(computeCrc(wrapped, wrappedOffset + PAYLOAD_LENGTH, typedLength), wrapped,
+                wrappedOffset + RESPONSE_PAYLOAD_OFFSET + length);
+
+        return getWrappedResponseLength(length);
+    }
+
     /**
      * Take a wrapped array of bytes and unwraps it while performing validation.
      * 
@@ -85,22 +141,76 @@ public class Crc32IoProtocolHandler implements IoProtocolHandler {
     @Override
     public byte[] unwrapResponse(byte[] wrapped) throws IOException
     {
-        int notDataLength = PAYLOAD_LENGTH + TYPE_LENGTH + CRC32_LENGTH;
-
-        if (wrapped.length < notDataLength) { 
+        if (wrapped.length < getWrappedResponseLength(0)) { 
         	// Bail out
             return wrapped;
         }
-        
-        if (!check(wrapped)) {
-        	throw new Crc32Exception();
-        }
 
-        byte[] naked = new byte[wrapped.length - notDataLength];
-        System.arraycopy(wrapped, 3, naked, 0, wrapped.length - notDataLength);
+        byte[] naked = new byte[wrapped.length - getWrappedResponseLength(0)];
+        unwrapResponse(wrapped, 0, wrapped.length, naked, 0);
         return naked;
     }
     
+    /**
+     * Take a wrapped array of bytes and unwraps it into {@code naked} while performing
+     * validation.  Unlike {@link #unwrapResponse(byte[])}, this method does not allocate
+     * and is intended for use in polling loops where the buffers are reused.
+     * 
+     * @param wrapped the wrapped array of bytes
+     * @param naked the buffer to copy the payload into, must be at least as large as the payload
+     *
+     * @throws Crc32Exception if the CRC does not match the payload
+     */
+    public void unwrapResponse(byte[] wrapped, byte[] naked) throws IOException {
+        if (wrapped.length < getWrappedResponseLength(0)) {
+            // Bail out
+            System.arraycopy(wrapped, 0, naked, 0, wrapped.length);
+            return;
+        }
+        
+        unwrapResponse(wrapped, 0, wrapped.length, naked, 0);
+    }
+    
+    /**
+     * Validates the wrapped response occupying {@code length} bytes of {@code frame} starting at
+     * {@code offset} and copies its payload into {@code naked} starting at {@code nakedOffset}.
+     *
+     * @return the length of the payload
+     *
+     * @throws Crc32Exception if the frame is too short to be a response or the CRC does not
+     *             match the payload
+     */
+    public int unwrapResponse(byte[] frame, int offset, int length, byte[] naked,
+            int nakedOffset) throws IOException {
+        
+        checkResponseLength(length);
+        if (!check(frame, offset, length)) {
+            throw new Crc32Exception();
+        }
+        
+        int payloadLength = length - getWrappedResponseLength(0);
+        System.arraycopy(frame, offset + RESPONSE_PAYLOAD_OFFSET, naked, nakedOffset, payloadLength);
+        return payloadLength;
+    }
+    
+    /**
+     * Validates the wrapped response occupying {@code length} bytes of {@code frame} starting at
+     * {@code offset} and returns a view of its payload.  The view shares content with
+     * {@code frame}, so it is only valid until {@code frame} is next written to.
+     *
+     * @throws Crc32Exception if the frame is too short to be a response or the CRC does not
+     *             match the payload
+     */
+    public ByteBuffer unwrapResponseView(byte[] frame, int offset, int length) throws IOException {
+        checkResponseLength(length);
+        if (!check(frame, offset, length)) {
+            throw new Crc32Exception();
+        }
+        
+        return ByteBuffer.wrap(frame, offset + RESPONSE_PAYLOAD_OFFSET,
+                length - getWrappedResponseLength(0)).slice();
+    }
+    
     @Override
     public int getWrappedResponseLength(int length) {
     	return PAYLOAD_LENGTH + TYPE_LENGTH + CRC32_LENGTH + length;
@@ -114,38 +224,35 @@ public class Crc32IoProtocolHandler implements IoProtocolHandler {
      * @return true if the checksum checks out
      */
     public boolean check(byte[] wrapped) {
+        return check(wrapped, 0, wrapped.length);
+    }
+    
+    /**
+     * Checks if the wrapped bytes occupying {@code length} bytes of {@code frame} starting
+     * at {@code offset} are valid based on CRC-32.  The check is performed in place.  As the
+     * CRC covers everything between the payload size and the CRC, this checks wrapped requests
+     * as well as responses.
+     *
+     * @return true if the checksum checks out
+     */
+    public boolean check(byte[] frame, int offset, int length) {
 
         // The type is included in the CRC calculation
         int notDataLength = PAYLOAD_LENGTH + CRC32_LENGTH;
 
         // Not enough data to do a check
-        if (wrapped.length < notDataLength)
+        if (length < notDataLength)
         {
             return true;
         }
 
-        // Extract crc32
-        byte[] crc32 = new byte[CRC32_LENGTH];
-        System.arraycopy(wrapped, wrapped.length - CRC32_LENGTH, crc32, 0, CRC32_LENGTH); // Copy crc32 from wrapped into crc32 bytes array
-
-        // Remove payload size, only keep the data
-        byte[] data = new byte[wrapped.length - notDataLength];
-        System.arraycopy(wrapped, 2, data, 0, wrapped.length - notDataLength);
-
-        // Generate CRC32 on data
-        CRC32 check = new CRC32();
-        check.update(data);
-
-        long crc32value = check.getValue();
-        // Copy the value into a byte buffer as sign changes can cause weirdness, just dodge that bullet.
-        byte[] crcBytes = new byte[4];
-        crcBytes[0] = (byte) ((crc32value >> 24) & 0xff);
-        crcBytes[1] = (byte) ((crc32value >> 16) & 0xff);
-        crcBytes[2] = (byte) ((crc32value >> 8) & 0xff);
-        crcBytes[3] = (byte) ((crc32value >> 0) & 0xff);
+        int crcIndex = offset + length - CRC32_LENGTH;
+        
+        // Generate CRC32 on data, skipping the payload size
+        long expected = computeCrc(frame, offset + PAYLOAD_LENGTH, length - notDataLength);
+        long received = readCrc(frame, crcIndex);
 
-        // Compare crc32 we generated from the data with what we got to see if it match
-        if (crc32[0] == crcBytes[0] && crc32[1] == crcBytes[1] && crc32[2] == crcBytes[2] && crc32[3] == crcBytes[3])
+        if (expected == received)
         {
             return true;
         }
@@ -153,14 +260,52 @@ public class Crc32IoProtocolHandler implements IoProtocolHandler {
         if (LOG.isDebugEnabled()) {
         	StringBuilder builder = new StringBuilder();
         	builder.append("CRC32 mismatch from MS3!: ")
-        			.append(Arrays.toString(wrapped)).append("/r/n")
-        			.append("CRC32 mismatch crc32: ").append(crc32[0]).append(" ==? ").append(crcBytes[0])
-        			.append("CRC32 mismatch crc32: ").append(crc32[1]).append(" ==? ").append(crcBytes[1])
-        			.append("CRC32 mismatch crc32: ").append(crc32[2]).append(" ==? ").append(crcBytes[2])
-        			.append("CRC32 mismatch crc32: ").append(crc32[3]).append(" ==? ").append(crcBytes[3]);
-        	
+        			.append(Arrays.toString(Arrays.copyOfRange(frame, offset, offset + length))).append(", ")
+        			.append("CRC32 mismatch crc32: ").append(received).append(" ==? ").append(expected);
+        	LOG.debug(builder.toString());
         }
         
         return false;
     }
+    
+    /**
+     * Rejects a response too short to hold the envelope, which {@link #check(byte[], int, int)}
+     * would otherwise pass.
+     */
+    private void checkResponseLength(int length) throws Crc32Exception {
+        if (length < getWrappedResponseLength(0)) {
+            throw new Crc32Exception("Response of " + length + " bytes is shorter than the "
+                    + getWrappedResponseLength(0) + " byte envelope.");
+        }
+    }
+    
+    /**
+     * Computes the CRC-32 of {@code length} bytes of {@code buffer} starting at {@code offset}.
+     */
+    private static long computeCrc(byte[] buffer, int offset, int length) {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(buffer, offset, length);
+        return crc32.getValue();
+    }
+    
+    /**
+     * Writes {@code crc32value} into {@code buffer} at {@code offset} in big-endian order.
+     */
+    private static void writeCrc(long crc32value, byte[] buffer, int offset) {
+        buffer[offset] = (byte) ((crc32value >> 24) & 0xff);
+        buffer[offset + 1] = (byte) ((crc32value >> 16) & 0xff);
+        buffer[offset + 2] = (byte) ((crc32value >> 8) & 0xff);
+        buffer[offset + 3] = (byte) ((crc32value >> 0) & 0xff);
+    }
+    
+    /**
+     * Reads the big-endian CRC-32 value stored in {@code buffer} at {@code offset}.  Reading it
+     * as an unsigned value dodges any sign weirdness when comparing to a computed value.
+     */
+    private static long readCrc(byte[] buffer, int offset) {
+        return ((long) (buffer[offset] & 0xff) << 24)
+                | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8)
+                | (buffer[offset + 3] & 0xff);
+    }
 }
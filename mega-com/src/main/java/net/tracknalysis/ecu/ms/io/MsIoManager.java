@@ -33,6 +33,11 @@ import net.tracknalysis.common.io.SocketManager;
  * @author David Valeri
  */
 public class MsIoManager extends DirectIoManager {
+	
+	/**
+	 * The pause, in milliseconds, between the two parts of a command written in two parts.
+	 */
+	public static final int SPLIT_WRITE_DELAY = 200;
 
 	public MsIoManager(SocketManager delegate) {
 		super(delegate);
@@ -55,16 +60,11 @@ public class MsIoManager extends DirectIoManager {
         result.setRequestTxStartTime(System.currentTimeMillis());
         synchronized (this) {
         	
-			if (bytesToSend.length == 7
-					&& (bytesToSend[0] == 'r' || bytesToSend[0] == 'w' || bytesToSend[0] == 'e')) {
-                // MS2 hack
-                byte[] select = new byte[3];
-                byte[] range = new byte[4];
-                System.arraycopy(bytesToSend, 0, select, 0, 3);
-                System.arraycopy(bytesToSend, 3, range, 0, 4);
-                os.write(select);
-                delay(200);
-                os.write(range);
+			if (isSplitCommand(bytesToSend)) {
+                // MS2 hack, write the select and range portions without copying them out
+                os.write(bytesToSend, 0, 3);
+                delay(SPLIT_WRITE_DELAY);
+                os.write(bytesToSend, 3, 4);
         	} else {
         		os.write(bytesToSend);
         	}
@@ -80,4 +80,19 @@ public class MsIoManager extends DirectIoManager {
         
         return result;
 	}
+	
+	/**
+	 * Returns the time, in milliseconds, that writing {@code command} spends paused between its
+	 * parts: {@link #SPLIT_WRITE_DELAY} for the MS2 read, write and burn commands, which are
+	 * written in two parts, and 0 otherwise.
+	 *
+	 * @param command the command as sent, after wrapping by any protocol handler
+	 */
+	public static int getWriteDelay(byte[] command) {
+		return isSplitCommand(command) ? SPLIT_WRITE_DELAY : 0;
+	}
+	
+	private static boolean isSplitCommand(byte[] bytes) {
+		return bytes.length == 7 && (bytes[0] == 'r' || bytes[0] == 'w' || bytes[0] == 'e');
+	}
 }
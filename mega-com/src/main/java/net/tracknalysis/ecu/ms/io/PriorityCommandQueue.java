@@ -0,0 +1,220 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import net.tracknalysis.common.io.command.IoCommand;
+
+/**
+ * Orders IO commands by {@link CommandPriority}: interactive commands before bulk commands
+ * before polls, and in order of arrival within a priority.  So that interactive and bulk work
+ * cannot starve polling, a queued poll is served first once the time since the last poll
+ * finished reaches the maximum poll gap.  Commands are assumed to be run one at a time by the
+ * caller of {@link #poll()}, so a poll is taken to have finished when the next command is
+ * requested.  Measuring from when the poll was served instead would promote every poll that
+ * takes longer than the gap, such as ranged MS2 reads, and starve all other work.
+ * <p/>
+ * The time each command waits in the queue is recorded in a histogram per priority.  Commands
+ * that do not implement {@link PrioritizedIoCommand} are treated as {@link CommandPriority#BULK}.
+ * <p/>
+ * Instances are thread safe.
+ *
+ * @author David Valeri
+ */
+public class PriorityCommandQueue {
+
+    public static final long DEFAULT_MAX_POLL_GAP_NANOS = 100L * 1000 * 1000;
+
+    private static final CommandPriority[] PRIORITIES = CommandPriority.values();
+
+    private final long maxPollGapNanos;
+
+    @SuppressWarnings("unchecked")
+    private final Queue<Entry>[] queues = new Queue[PRIORITIES.length];
+
+    private final WaitTimeHistogram[] histograms = new WaitTimeHistogram[PRIORITIES.length];
+
+    private int size;
+    private long lastPollNanos;
+    private boolean pollServed;
+    private long promotedCount;
+
+    public PriorityCommandQueue() {
+        this(DEFAULT_MAX_POLL_GAP_NANOS);
+    }
+
+    /**
+     * @param maxPollGapNanos the longest time between serving polls while other work is queued
+     */
+    public PriorityCommandQueue(long maxPollGapNanos) {
+        this.maxPollGapNanos = maxPollGapNanos;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            queues[i] = new ArrayDeque<Entry>();
+            histograms[i] = new WaitTimeHistogram();
+        }
+        lastPollNanos = System.nanoTime();
+    }
+
+    public synchronized void offer(IoCommand command) {
+        final CommandPriority priority = getPriority(command);
+        queues[priority.ordinal()].add(new Entry(command, System.nanoTime()));
+        size++;
+        notifyAll();
+    }
+
+    /**
+     * Returns the next command to execute or {@code null} if the queue is empty.
+     */
+    public synchronized IoCommand poll() {
+        final long now = System.nanoTime();
+        finishPoll(now);
+
+        if (size == 0) {
+            return null;
+        }
+
+        final Queue<Entry> polls = queues[CommandPriority.POLL.ordinal()];
+
+        if (!polls.isEmpty() && now - lastPollNanos >= maxPollGapNanos) {
+            if (size > polls.size()) {
+                promotedCount++;
+            }
+            return dispatch(CommandPriority.POLL, now);
+        }
+
+        for (CommandPriority priority : PRIORITIES) {
+            if (!queues[priority.ordinal()].isEmpty()) {
+                return dispatch(priority, now);
+            }
+        }
+
+        throw new IllegalStateException("Queue size is " + size + " but all queues are empty.");
+    }
+
+    /**
+     * Returns the next command to execute, waiting up to {@code timeoutNanos} for one to be
+     * queued.
+     *
+     * @return the command or {@code null} if none was queued in time
+     */
+    public synchronized IoCommand poll(long timeoutNanos) throws InterruptedException {
+        final long start = System.nanoTime();
+        finishPoll(start);
+        final long deadline = start + timeoutNanos;
+        long remaining = timeoutNanos;
+        while (size == 0 && remaining > 0) {
+            wait(remaining / 1000000, (int) (remaining % 1000000));
+            remaining = deadline - System.nanoTime();
+        }
+        return poll();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized void clear() {
+        for (Queue<Entry> queue : queues) {
+            queue.clear();
+        }
+        size = 0;
+    }
+
+    /**
+     * Wakes threads waiting in {@link #poll(long)}.
+     */
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * Returns the histogram of the time commands of {@code priority} waited to be served.
+     */
+    public WaitTimeHistogram getWaitTimeHistogram(CommandPriority priority) {
+        return histograms[priority.ordinal()];
+    }
+
+    /**
+     * Returns the number of times a poll was served ahead of higher priority commands to honour
+     * the maximum poll gap.
+     */
+    public synchronized long getPromotedCount() {
+        return promotedCount;
+    }
+
+    public long getMaxPollGapNanos() {
+        return maxPollGapNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("PriorityCommandQueue [size=");
+        builder.append(size);
+        builder.append(", maxPollGapNanos=");
+        builder.append(maxPollGapNanos);
+        builder.append(", promotedCount=");
+        builder.append(promotedCount);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * Records that the last poll served, if any, finished at {@code now}.
+     */
+    private void finishPoll(long now) {
+        if (pollServed) {
+            pollServed = false;
+            lastPollNanos = now;
+        }
+    }
+
+    private IoCommand dispatch(CommandPriority priority, long now) {
+        final Entry entry = queues[priority.ordinal()].remove();
+        size--;
+        histograms[priority.ordinal()].record(now - entry.enqueueNanos);
+        if (priority == CommandPriority.POLL) {
+            pollServed = true;
+        }
+        return entry.command;
+    }
+
+    private static CommandPriority getPriority(IoCommand command) {
+        if (command instanceof PrioritizedIoCommand) {
+            final CommandPriority priority = ((PrioritizedIoCommand) command).getPriority();
+            if (priority != null) {
+                return priority;
+            }
+        }
+        return CommandPriority.BULK;
+    }
+
+    private static final class Entry {
+        private final IoCommand command;
+        private final long enqueueNanos;
+
+        Entry(IoCommand command, long enqueueNanos) {
+            this.command = command;
+            this.enqueueNanos = enqueueNanos;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tracknalysis.common.io.IoManager;
+import net.tracknalysis.common.io.command.IoCommand;
+import net.tracknalysis.common.io.command.IoCommandManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes commands on a dedicated thread in the order given by a
+ * {@link PriorityCommandQueue}, so that interactive commands do not wait behind polls.
+ *
+ * @author David Valeri
+ */
+public class PriorityIoCommandManager implements IoCommandManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PriorityIoCommandManager.class);
+
+    private static final AtomicInteger INSTANCE_COUNTER = new AtomicInteger();
+
+    /**
+     * The longest the command thread waits before re-checking whether it has been stopped.
+     */
+    private static final long MAX_IDLE_NANOS = 100L * 1000 * 1000;
+
+    private final IoManager ioManager;
+    private final PriorityCommandQueue queue;
+    private final int instanceNumber = INSTANCE_COUNTER.getAndIncrement();
+
+    private volatile boolean running;
+
+    /**
+     * The current command thread.  A thread that is no longer current exits after its running
+     * command, even if the manager has since been restarted.
+     */
+    private volatile Thread thread;
+
+    public PriorityIoCommandManager(IoManager ioManager) {
+        this(ioManager, new PriorityCommandQueue());
+    }
+
+    public PriorityIoCommandManager(IoManager ioManager, PriorityCommandQueue queue) {
+        this.ioManager = ioManager;
+        this.queue = queue;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(new Runner(), "PriorityIoCommandManager-" + instanceNumber);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Discards queued commands and, unless called from a command, waits for the running command
+     * to finish.
+     */
+    @Override
+    public void stop() {
+        final Thread stopping;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopping = thread;
+            thread = null;
+        }
+
+        queue.clear();
+        queue.wakeUp();
+
+        if (stopping != Thread.currentThread()) {
+            try {
+                stopping.join();
+            } catch (InterruptedException e) {
+                LOG.warn("Interrupted while waiting for the command thread of {} to stop.", ioManager);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalStateException if not started
+     */
+    @Override
+    public boolean enqueue(IoCommand command) {
+        if (!running) {
+            throw new IllegalStateException("Not started.");
+        }
+
+        queue.offer(command);
+        return true;
+    }
+
+    /**
+     * Returns the queue, from which wait time histograms may be read.
+     */
+    public PriorityCommandQueue getQueue() {
+        return queue;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("PriorityIoCommandManager [instanceNumber=");
+        builder.append(instanceNumber);
+        builder.append(", running=");
+        builder.append(running);
+        builder.append(", queue=");
+        builder.append(queue);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    private final class Runner implements Runnable {
+
+        @Override
+        public void run() {
+            LOG.debug("Started command thread for {}.", ioManager);
+
+            while (running && thread == Thread.currentThread()) {
+                final IoCommand command;
+                try {
+                    command = queue.poll(MAX_IDLE_NANOS);
+                } catch (InterruptedException e) {
+                    LOG.warn("Command thread for {} interrupted, stopping.", ioManager);
+                    running = false;
+                    break;
+                }
+
+                if (command == null) {
+                    continue;
+                } else if (thread != Thread.currentThread()) {
+                    // Stopped and restarted while waiting, the command belongs to the new thread.
+                    if (running) {
+                        queue.offer(command);
+                    }
+                    break;
+                }
+
+                try {
+                    command.execute(ioManager);
+                } catch (RuntimeException e) {
+                    LOG.error("Error executing command " + command + " for " + ioManager + ".", e);
+                }
+            }
+
+            LOG.debug("Stopped command thread for {}.", ioManager);
+        }
+    }
+}
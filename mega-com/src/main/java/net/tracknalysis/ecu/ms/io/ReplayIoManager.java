@@ -0,0 +1,299 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.tracknalysis.common.io.IoManager;
+import net.tracknalysis.common.io.IoManagerResult;
+import net.tracknalysis.common.io.IoProtocolHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plays the calls recorded by {@link CaptureIoManager} back to a {@link net.tracknalysis.ecu.ms.Megasquirt}
+ * in place of a live connection.  Each call returns the recorded response, or throws the
+ * recorded error, of the next record.  Calls are expected in the recorded order.  A call of the
+ * wrong type, or a write of different bytes, means the session has diverged from the capture and
+ * fails with an {@link IOException}, as does a call after the last record.
+ * <p/>
+ * With original timing, each call returns no earlier than its recorded end time relative to the
+ * first call, reproducing the pacing of the captured session.  Otherwise calls return as fast as
+ * possible.
+ *
+ * @author David Valeri
+ */
+public class ReplayIoManager implements IoManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplayIoManager.class);
+
+    private final File file;
+    private final long captureStartTime;
+    private final List<CaptureRecord> records;
+    private final boolean originalTiming;
+
+    private int nextRecord;
+    private long baseNanos;
+    private long divergenceCount;
+
+    /**
+     * @param file the capture file to replay
+     * @param originalTiming true to reproduce the recorded timing, false to replay as fast as
+     *            possible
+     *
+     * @throws IOException if the file cannot be read or is not a capture file
+     */
+    public ReplayIoManager(File file, boolean originalTiming) throws IOException {
+        this.file = file;
+        this.originalTiming = originalTiming;
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != CaptureRecord.MAGIC) {
+                throw new IOException("'" + file.getAbsolutePath() + "' is not a capture file.");
+            }
+            final int version = in.readShort();
+            if (version != CaptureRecord.VERSION) {
+                throw new IOException("Unsupported capture version " + version + " in '"
+                        + file.getAbsolutePath() + "'.");
+            }
+            captureStartTime = in.readLong();
+
+            records = new ArrayList<CaptureRecord>();
+            while (true) {
+                try {
+                    records.add(CaptureRecord.read(in));
+                } catch (EOFException e) {
+                    // A capture cut short by a crash ends part way through a record.
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        LOG.debug("Loaded {} records from capture '{}'.", records.size(), file.getAbsolutePath());
+    }
+
+    @Override
+    public void connect() throws IOException {
+        replay(CaptureRecord.CONNECT, null, null);
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        replay(CaptureRecord.DISCONNECT, null, null);
+    }
+
+    @Override
+    public void flushAll() throws IOException {
+        replay(CaptureRecord.FLUSH, null, null);
+    }
+
+    @Override
+    public IoManagerResult write(byte[] command) throws IOException {
+        return write(command, null);
+    }
+
+    @Override
+    public IoManagerResult write(byte[] command, IoProtocolHandler protocolHandler)
+            throws IOException {
+        return replay(CaptureRecord.WRITE, command, null);
+    }
+
+    @Override
+    public IoManagerResult read(byte[] buffer, long timeout, IoProtocolHandler protocolHandler)
+            throws IOException {
+        return replay(CaptureRecord.READ, null, buffer);
+    }
+
+    @Override
+    public IoManagerResult writeAndRead(byte[] command, long timeout) throws IOException {
+        return replay(CaptureRecord.WRITE_AND_READ, command, null);
+    }
+
+    @Override
+    public IoManagerResult writeAndRead(byte[] command, byte[] buffer, long timeout,
+            IoProtocolHandler protocolHandler) throws IOException {
+        return replay(CaptureRecord.WRITE_AND_READ, command, buffer);
+    }
+
+    /**
+     * Returns the wall clock time the capture started, in milliseconds.
+     */
+    public long getCaptureStartTime() {
+        return captureStartTime;
+    }
+
+    public int getRecordCount() {
+        return records.size();
+    }
+
+    /**
+     * Returns the number of records replayed so far.
+     */
+    public synchronized int getReplayedCount() {
+        return nextRecord;
+    }
+
+    /**
+     * Returns true once every record has been replayed.
+     */
+    public synchronized boolean isFinished() {
+        return nextRecord == records.size();
+    }
+
+    /**
+     * Returns the number of calls that did not match the next record.
+     */
+    public synchronized long getDivergenceCount() {
+        return divergenceCount;
+    }
+
+    /**
+     * Starts the replay over from the first record.
+     */
+    public synchronized void rewind() {
+        nextRecord = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("ReplayIoManager [file=");
+        builder.append(file);
+        builder.append(", originalTiming=");
+        builder.append(originalTiming);
+        builder.append(", nextRecord=");
+        builder.append(nextRecord);
+        builder.append(", recordCount=");
+        builder.append(records.size());
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * Replays the next record, which must be of type {@code type}.
+     *
+     * @param command the bytes written by the call, if any
+     * @param buffer the buffer to copy the recorded response into, if any
+     */
+    private synchronized IoManagerResult replay(byte type, byte[] command, byte[] buffer)
+            throws IOException {
+        final long callStart = System.currentTimeMillis();
+
+        if (nextRecord == records.size()) {
+            throw new IOException("End of capture '" + file.getAbsolutePath() + "'.");
+        }
+
+        final CaptureRecord record = records.get(nextRecord);
+        if (record.type != type || (command != null && !Arrays.equals(command, record.request))) {
+            divergenceCount++;
+            throw new IOException("Replay diverged from capture at record " + nextRecord
+                    + ": expected " + CaptureRecord.getTypeName(record.type) + " of "
+                    + Arrays.toString(record.request) + " but got "
+                    + CaptureRecord.getTypeName(type) + " of " + Arrays.toString(command) + ".");
+        }
+
+        if (nextRecord == 0) {
+            baseNanos = System.nanoTime() - record.start;
+        }
+        nextRecord++;
+
+        if (originalTiming) {
+            awaitRecordEnd(record);
+        }
+
+        if (record.response != null && buffer != null) {
+            System.arraycopy(record.response, 0, buffer, 0,
+                    Math.min(record.response.length, buffer.length));
+        }
+
+        if (record.errorClass != null) {
+            throw createError(record);
+        }
+
+        final ReplayResult result;
+        if (buffer != null) {
+            result = new ReplayResult(buffer);
+        } else {
+            result = new ReplayResult(record.response == null ? null : record.response.clone());
+        }
+        final long callEnd = System.currentTimeMillis();
+        result.setRequestStartTime(callStart);
+        result.setRequestTxStartTime(callStart);
+        result.setRequestTxEndTime(callStart);
+        result.setRequestRxStartTime(callStart);
+        result.setRequestRxEndTime(callEnd);
+        result.setRequestEndTime(callEnd);
+        return result;
+    }
+
+    private void awaitRecordEnd(CaptureRecord record) throws IOException {
+        final long end = baseNanos + record.start + record.duration;
+        long remaining;
+        while ((remaining = end - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted during replay.", e);
+            }
+        }
+    }
+
+    /**
+     * Recreates the recorded error.  CRC failures and timeouts keep their type so that callers
+     * handle them as they did when captured.
+     */
+    private static IOException createError(CaptureRecord record) {
+        if (Crc32Exception.class.getName().equals(record.errorClass)) {
+            return new Crc32Exception();
+        } else if (SocketTimeoutException.class.getName().equals(record.errorClass)) {
+            return new SocketTimeoutException(record.errorMessage);
+        } else {
+            return new IOException(record.errorClass + ": " + record.errorMessage);
+        }
+    }
+
+    /**
+     * Result carrying the recorded response.
+     */
+    private static final class ReplayResult extends IoManagerResult {
+
+        private final byte[] response;
+
+        public ReplayResult(byte[] response) {
+            this.response = response;
+        }
+
+        @Override
+        public byte[] getResult() {
+            return response;
+        }
+    }
+}
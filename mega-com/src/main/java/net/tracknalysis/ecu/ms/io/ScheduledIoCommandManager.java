@@ -0,0 +1,40 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.common.io.command.IoCommand;
+import net.tracknalysis.common.io.command.IoCommandManager;
+
+/**
+ * An {@link IoCommandManager} that can enqueue a command after a delay without holding the
+ * thread that runs its commands in the meantime.
+ *
+ * @author David Valeri
+ */
+public interface ScheduledIoCommandManager extends IoCommandManager {
+
+    /**
+     * Enqueues {@code command} once {@code delay} has passed.  The command is discarded if the
+     * manager is stopped before then.
+     *
+     * @return true if the command was accepted for later execution
+     *
+     * @throws IllegalStateException if not started
+     */
+    boolean enqueue(IoCommand command, long delay, TimeUnit unit);
+}
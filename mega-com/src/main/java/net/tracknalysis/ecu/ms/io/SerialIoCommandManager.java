@@ -0,0 +1,331 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tracknalysis.common.io.IoManager;
+import net.tracknalysis.common.io.command.IoCommand;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the commands of one {@link IoManager} one at a time, in order, on a shared
+ * {@link Executor} rather than on a dedicated thread.  Several instances sharing a small pool can
+ * therefore serve many ECU sessions.  Commands of one instance never run concurrently and an
+ * exception thrown by a command is logged without affecting other instances.
+ * <p/>
+ * Commands are served in the order given by a {@link PriorityCommandQueue}.  After running
+ * {@link #DEFAULT_BATCH_SIZE} commands, or the configured batch size, the instance yields its pool
+ * thread so that sessions whose commands re-enqueue themselves, such as polling loops, cannot
+ * starve others.
+ * <p/>
+ * Commands enqueued with a delay wait on a timer rather than on a pool thread, so a polling loop
+ * that is not yet due releases its thread to other sessions.  The timer only enqueues; commands
+ * always run on the executor.
+ *
+ * @author David Valeri
+ */
+public class SerialIoCommandManager implements ScheduledIoCommandManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SerialIoCommandManager.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 16;
+
+    private final IoManager ioManager;
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final int batchSize;
+    private final PriorityCommandQueue queue = new PriorityCommandQueue();
+    private final Drainer drainer = new Drainer();
+
+    /**
+     * Incremented on each stop so that delayed commands from before the stop are discarded.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * Guards {@link #scheduled} and {@link #runner} and is signalled when a drain finishes.
+     */
+    private final Object lock = new Object();
+
+    private volatile boolean started;
+    private boolean scheduled;
+    private Thread runner;
+    private volatile long executedCount;
+    private volatile long failedCount;
+
+    public SerialIoCommandManager(IoManager ioManager, Executor executor) {
+        this(ioManager, executor, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param ioManager the IO manager passed to each command
+     * @param executor the executor running the commands
+     * @param batchSize the number of commands run before yielding the pool thread
+     */
+    public SerialIoCommandManager(IoManager ioManager, Executor executor, int batchSize) {
+        this(ioManager, executor, null, batchSize);
+    }
+
+    /**
+     * @param ioManager the IO manager passed to each command
+     * @param executor the executor running the commands
+     * @param timer the executor that enqueues delayed commands, or null to use a timer thread
+     *            shared by all instances
+     * @param batchSize the number of commands run before yielding the pool thread
+     */
+    public SerialIoCommandManager(IoManager ioManager, Executor executor,
+            ScheduledExecutorService timer, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive.");
+        }
+
+        this.ioManager = ioManager;
+        this.executor = executor;
+        this.timer = timer == null ? SharedTimer.INSTANCE : timer;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void start() {
+        started = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Discards queued commands and, unless called from a command of this instance, waits for
+     * the running command to finish.
+     */
+    @Override
+    public void stop() {
+        started = false;
+        generation.incrementAndGet();
+        queue.clear();
+
+        synchronized (lock) {
+            while (scheduled && runner != Thread.currentThread()) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    LOG.warn("Interrupted while waiting for commands of {} to finish.", ioManager);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalStateException if not started
+     */
+    @Override
+    public boolean enqueue(IoCommand command) {
+        if (!started) {
+            throw new IllegalStateException("Not started.");
+        }
+
+        queue.offer(command);
+        schedule();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalStateException if not started
+     */
+    @Override
+    public boolean enqueue(IoCommand command, long delay, TimeUnit unit) {
+        if (!started) {
+            throw new IllegalStateException("Not started.");
+        }
+
+        if (delay <= 0) {
+            return enqueue(command);
+        }
+
+        try {
+            timer.schedule(new DelayedEnqueue(command, generation.get()), delay, unit);
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOG.error("Timer rejected delayed command " + command + " of " + ioManager + ".", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of commands executed.
+     */
+    public long getExecutedCount() {
+        return executedCount;
+    }
+
+    /**
+     * Returns the number of commands that threw an exception.
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Returns the number of commands waiting to run.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the queue, from which wait time histograms may be read.
+     */
+    public PriorityCommandQueue getQueue() {
+        return queue;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("SerialIoCommandManager [ioManager=");
+        builder.append(ioManager);
+        builder.append(", started=");
+        builder.append(started);
+        builder.append(", executedCount=");
+        builder.append(executedCount);
+        builder.append(", failedCount=");
+        builder.append(failedCount);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * Submits the drainer unless it is already submitted or running.
+     */
+    private void schedule() {
+        synchronized (lock) {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+
+        try {
+            executor.execute(drainer);
+        } catch (RejectedExecutionException e) {
+            LOG.error("Executor rejected commands of " + ioManager + ".", e);
+            started = false;
+            queue.clear();
+            finishDrain();
+        }
+    }
+
+    private void finishDrain() {
+        synchronized (lock) {
+            scheduled = false;
+            runner = null;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Enqueues a delayed command unless the instance was stopped after it was delayed.
+     */
+    private final class DelayedEnqueue implements Runnable {
+
+        private final IoCommand command;
+        private final int generation;
+
+        DelayedEnqueue(IoCommand command, int generation) {
+            this.command = command;
+            this.generation = generation;
+        }
+
+        @Override
+        public void run() {
+            if (started && generation == SerialIoCommandManager.this.generation.get()) {
+                queue.offer(command);
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * The timer of instances not given one, created on first use.
+     */
+    private static final class SharedTimer {
+
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "SerialIoCommandManager-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Runs up to a batch of commands, then resubmits itself if more are queued.
+     */
+    private final class Drainer implements Runnable {
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                runner = Thread.currentThread();
+            }
+
+            try {
+                for (int i = 0; i < batchSize && started; i++) {
+                    final IoCommand command = queue.poll();
+                    if (command == null) {
+                        break;
+                    }
+
+                    try {
+                        command.execute(ioManager);
+                    } catch (RuntimeException e) {
+                        failedCount++;
+                        LOG.error("Error executing command " + command + " for " + ioManager + ".", e);
+                    }
+                    executedCount++;
+                }
+            } finally {
+                finishDrain();
+            }
+
+            // A command enqueued after the last poll above saw scheduled as true and relied on
+            // this check to run.
+            if (started && !queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
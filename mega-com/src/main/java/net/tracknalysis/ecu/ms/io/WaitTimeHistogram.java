@@ -0,0 +1,109 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of wait times with power of two microsecond buckets.  Bucket 0 counts waits under
+ * one microsecond and bucket {@code i} counts waits of {@code 2^(i-1)} up to {@code 2^i}
+ * microseconds, so percentiles are reported as the upper bound of their bucket.
+ *
+ * @author David Valeri
+ */
+public class WaitTimeHistogram {
+
+    private static final int BUCKET_COUNT = 40;
+
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public synchronized void record(long waitNanos) {
+        final long micros = Math.max(0, waitNanos / 1000);
+        final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[bucket]++;
+        count++;
+        totalNanos += waitNanos;
+        maxNanos = Math.max(maxNanos, waitNanos);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public synchronized long getMeanNanos() {
+        return count == 0 ? 0 : totalNanos / count;
+    }
+
+    /**
+     * Returns the upper bound, in microseconds, of the bucket holding the {@code percentile}th
+     * wait, or 0 if nothing has been recorded.
+     *
+     * @param percentile the percentile, from 0 to 100
+     */
+    public synchronized long getPercentileMicros(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(count * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns a copy of the bucket counts.
+     */
+    public synchronized long[] getBuckets() {
+        return buckets.clone();
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("WaitTimeHistogram [count=");
+        builder.append(count);
+        builder.append(", meanNanos=");
+        builder.append(getMeanNanos());
+        builder.append(", p50Micros=");
+        builder.append(getPercentileMicros(50));
+        builder.append(", p99Micros=");
+        builder.append(getPercentileMicros(99));
+        builder.append(", maxNanos=");
+        builder.append(maxNanos);
+        builder.append("]");
+        return builder.toString();
+    }
+}
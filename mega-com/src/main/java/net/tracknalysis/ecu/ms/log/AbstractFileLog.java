@@ -127,6 +127,50 @@ public abstract class AbstractFileLog implements FileLog {
         return out != null;
     }
     
+    /**
+     * Writes the header for {@code ms} to {@code buffer} instead of the log file.  Used by
+     * {@link AsyncFileLog} to format on the calling thread and write on its own.
+     */
+    final void encodeHeader(Megasquirt ms, OutputStream buffer) throws IOException {
+        writeHeader(ms, buffer);
+    }
+
+    /**
+     * Writes a record for {@code ms} to {@code buffer} instead of the log file.
+     *
+     * @see #encodeHeader(Megasquirt, OutputStream)
+     */
+    final void encodeRecord(Megasquirt ms, OutputStream buffer) throws IOException {
+        write(ms, buffer);
+    }
+
+    /**
+     * Writes a mark to {@code buffer} instead of the log file.
+     *
+     * @see #encodeHeader(Megasquirt, OutputStream)
+     */
+    final void encodeMark(String message, OutputStream buffer) throws IOException {
+        mark(message, buffer);
+    }
+
+    /**
+     * Writes previously encoded bytes to the log file if currently logging.
+     */
+    final synchronized void writeEncoded(byte[] bytes, int offset, int length) throws IOException {
+        if (out != null) {
+            out.write(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Flushes the log file if currently logging.
+     */
+    final synchronized void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
     protected abstract void mark(String message, OutputStream out) throws IOException;
     
     /**
@@ -147,6 +191,14 @@ public abstract class AbstractFileLog implements FileLog {
      */
     protected abstract String getFileExtension();
     
+    /**
+     * Opens the stream that the log is written to.  By default, a buffered stream to
+     * {@code logFile}.
+     */
+    protected OutputStream createOutputStream(File logFile) throws FileNotFoundException {
+        return new BufferedOutputStream(new FileOutputStream(logFile));
+    }
+    
     private void createLogFile() throws FileNotFoundException {
         String fileName = dateFormat.format(new Date(getStartTime()))
                 .toString() + "." + getFileExtension();
@@ -156,7 +208,7 @@ public abstract class AbstractFileLog implements FileLog {
         LOG.debug("Creating output stream to log file '{}'.",
                 logFile.getAbsolutePath());
         
-        out = new BufferedOutputStream(new FileOutputStream(logFile));
+        out = createOutputStream(logFile);
     }
 
     @Override
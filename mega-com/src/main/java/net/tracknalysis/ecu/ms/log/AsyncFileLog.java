@@ -0,0 +1,475 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.tracknalysis.common.notification.DefaultNotificationListenerManager;
+import net.tracknalysis.common.notification.NotificationListener;
+import net.tracknalysis.common.notification.NotificationListenerManager;
+import net.tracknalysis.common.notification.NotificationListenerRegistry;
+import net.tracknalysis.ecu.ms.Megasquirt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decouples an {@link AbstractFileLog} from the thread that calls {@link #write(Megasquirt)}.
+ * Records and marks are formatted on the calling thread into preallocated slots of a bounded
+ * ring buffer and written to the log file, in batches, by a dedicated writer thread.  A slow
+ * disk therefore never delays the caller, typically the Megasquirt IO thread.
+ * <p/>
+ * When the ring buffer is full, new samples are dropped rather than blocking the caller.  Drops
+ * and write failures are counted and reported via {@link AsyncLogNotificationType}
+ * notifications.  The latency of each sample, from the call to {@link #write(Megasquirt)} or
+ * {@link #mark(String)} until the writer thread hands it to the wrapped log, is also recorded.
+ * <p/>
+ * Producers are serialized by a lock rather than claiming slots with a compare and set.  The
+ * formatting state of the wrapped log has to be serialized regardless: an {@link MslLog} formats
+ * into a shared row buffer and numbers its marks, an {@link FRDLog} encodes each record into the
+ * one reused record of its body, and the header must be encoded before the first record.  The
+ * lock only covers formatting into a preallocated slot, never IO, and the writer thread never
+ * takes it, so it is uncontended unless several threads write to the same log at once.
+ *
+ * @author David Valeri
+ */
+public class AsyncFileLog implements FileLog, AsyncLog, NotificationListenerRegistry<AsyncLogNotificationType> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncFileLog.class);
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final int INITIAL_SLOT_SIZE = 512;
+
+    /**
+     * The longest the writer thread waits before re-checking the queue.
+     */
+    private static final long MAX_PARK_NANOS = 10L * 1000 * 1000;
+
+    private final NotificationListenerManager<AsyncLogNotificationType> notificationListenerManager =
+            new DefaultNotificationListenerManager<AsyncLogNotificationType>(
+                    AsyncLogNotificationType.SAMPLES_RESUMED, null);
+
+    private final AbstractFileLog delegate;
+    private final Slot[] slots;
+    private final int mask;
+
+    /**
+     * Sequence of the next slot to be published.  Only advanced by producers.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Sequence of the next slot to be written.  Only advanced by the writer thread.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Serializes producers and guards the formatting state of the delegate.  Never held by the
+     * writer thread.
+     */
+    private final Object producerLock = new Object();
+
+    private boolean wroteHeader;
+    private boolean dropping;
+    private volatile long droppedCount;
+    private volatile long writtenCount;
+    private volatile long writeFailedCount;
+    private volatile long totalLatencyNanos;
+    private volatile long maxLatencyNanos;
+
+    private volatile boolean started;
+    private volatile boolean running;
+    private volatile boolean writerWaiting;
+    private volatile Thread writerThread;
+
+    public AsyncFileLog(AbstractFileLog delegate) {
+        this(delegate, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param delegate the log to write to
+     * @param capacity the number of samples that may be queued, rounded up to a power of two
+     */
+    public AsyncFileLog(AbstractFileLog delegate, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+
+        this.delegate = delegate;
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        synchronized (producerLock) {
+            if (started) {
+                return;
+            }
+
+            delegate.start();
+            wroteHeader = false;
+            dropping = false;
+            running = true;
+
+            Thread thread = new Thread(new Writer(), "AsyncFileLog-" + delegate.getFileExtension());
+            thread.setDaemon(true);
+            writerThread = thread;
+            thread.start();
+
+            started = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Waits for the writer thread to drain the queue before stopping the wrapped log.
+     */
+    @Override
+    public void stop() throws IOException {
+        Thread thread;
+        synchronized (producerLock) {
+            if (!started) {
+                return;
+            }
+
+            started = false;
+            running = false;
+            thread = writerThread;
+            writerThread = null;
+        }
+
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for the writer thread of {} to finish.", delegate);
+            Thread.currentThread().interrupt();
+        }
+
+        delegate.stop();
+    }
+
+    @Override
+    public void write(Megasquirt ms) throws IOException {
+        final long start = System.nanoTime();
+        synchronized (producerLock) {
+            if (!started) {
+                return;
+            }
+
+            Slot slot = claim();
+            if (slot != null) {
+                slot.reset(start);
+                if (!wroteHeader) {
+                    delegate.encodeHeader(ms, slot);
+                    wroteHeader = true;
+                }
+                delegate.encodeRecord(ms, slot);
+                publish();
+            }
+        }
+    }
+
+    @Override
+    public void mark(String message) throws IOException {
+        final long start = System.nanoTime();
+        synchronized (producerLock) {
+            if (!started) {
+                return;
+            }
+
+            Slot slot = claim();
+            if (slot != null) {
+                slot.reset(start);
+                delegate.encodeMark(message, slot);
+                publish();
+            }
+        }
+    }
+
+    @Override
+    public void mark() throws IOException {
+        mark("No comment.");
+    }
+
+    @Override
+    public boolean isMarkSupported() {
+        return delegate.isMarkSupported();
+    }
+
+    @Override
+    public long getStartTime() {
+        return delegate.getStartTime();
+    }
+
+    @Override
+    public boolean isLogging() {
+        return started;
+    }
+
+    @Override
+    public String getLogFileAbsolutePath() {
+        return delegate.getLogFileAbsolutePath();
+    }
+
+    /**
+     * Returns the wrapped log.
+     */
+    public AbstractFileLog getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    @Override
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    @Override
+    public long getWriteFailedCount() {
+        return writeFailedCount;
+    }
+
+    @Override
+    public long getTotalLatencyNanos() {
+        return totalLatencyNanos;
+    }
+
+    @Override
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return (int) (head.get() - tail.get());
+    }
+
+    @Override
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    @Override
+    public void addListener(NotificationListener<AsyncLogNotificationType> listener) {
+        notificationListenerManager.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(NotificationListener<AsyncLogNotificationType> listener) {
+        notificationListenerManager.removeListener(listener);
+    }
+
+    @Override
+    public void addWeakReferenceListener(NotificationListener<AsyncLogNotificationType> listener) {
+        notificationListenerManager.addWeakReferenceListener(listener);
+    }
+
+    @Override
+    public void removeWeakReferenceListener(NotificationListener<AsyncLogNotificationType> listener) {
+        notificationListenerManager.removeWeakReferenceListener(listener);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("AsyncFileLog [delegate=");
+        builder.append(delegate);
+        builder.append(", capacity=");
+        builder.append(slots.length);
+        builder.append(", droppedCount=");
+        builder.append(droppedCount);
+        builder.append(", writtenCount=");
+        builder.append(writtenCount);
+        builder.append(", writeFailedCount=");
+        builder.append(writeFailedCount);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * Returns the next free slot or {@code null}, after recording the drop, if the queue is full.
+     * Must be called while holding {@link #producerLock}.
+     */
+    private Slot claim() {
+        final long sequence = head.get();
+        if (sequence - tail.get() >= slots.length) {
+            droppedCount++;
+            if (!dropping) {
+                dropping = true;
+                LOG.warn("Log queue full, dropping samples for {}.", delegate);
+                notificationListenerManager.sendNotification(AsyncLogNotificationType.SAMPLES_DROPPED);
+            }
+            return null;
+        }
+
+        if (dropping) {
+            dropping = false;
+            LOG.info("Log queue accepting samples again for {} after {} total drops.", delegate, droppedCount);
+            notificationListenerManager.sendNotification(AsyncLogNotificationType.SAMPLES_RESUMED);
+        }
+
+        return slots[(int) (sequence & mask)];
+    }
+
+    /**
+     * Makes the slot returned by the last call to {@link #claim()} visible to the writer thread.
+     * Must be called while holding {@link #producerLock}.
+     */
+    private void publish() {
+        head.lazySet(head.get() + 1);
+        if (writerWaiting) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Drains the ring buffer into the wrapped log, flushing once the queue is empty.
+     */
+    private final class Writer implements Runnable {
+
+        private boolean dirty;
+
+        @Override
+        public void run() {
+            LOG.debug("Started writer thread for {}.", delegate);
+
+            long sequence = tail.get();
+            while (true) {
+                final long available = head.get();
+
+                if (available == sequence) {
+                    if (dirty) {
+                        flush();
+                    }
+
+                    // Producers are stopped before running is cleared, so once it is clear
+                    // an empty queue stays empty.
+                    if (!running && head.get() == sequence) {
+                        break;
+                    }
+
+                    writerWaiting = true;
+                    if (head.get() == sequence && running) {
+                        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    }
+                    writerWaiting = false;
+                    continue;
+                }
+
+                for (; sequence < available; sequence++) {
+                    final Slot slot = slots[(int) (sequence & mask)];
+                    try {
+                        delegate.writeEncoded(slot.bytes, 0, slot.length);
+                    } catch (IOException e) {
+                        onWriteFailed(e);
+                    }
+                    final long latency = System.nanoTime() - slot.startNanos;
+                    tail.lazySet(sequence + 1);
+                    recordWritten(latency);
+                }
+                dirty = true;
+            }
+
+            LOG.debug("Stopped writer thread for {}.", delegate);
+        }
+
+        private void flush() {
+            try {
+                delegate.flush();
+            } catch (IOException e) {
+                onWriteFailed(e);
+            }
+            dirty = false;
+        }
+
+        /**
+         * Only the writer thread updates the counters, so plain increments are safe.
+         */
+        private void recordWritten(long latency) {
+            writtenCount++;
+            totalLatencyNanos += latency;
+            if (latency > maxLatencyNanos) {
+                maxLatencyNanos = latency;
+            }
+        }
+
+        private void onWriteFailed(IOException e) {
+            writeFailedCount++;
+            LOG.error("Error writing to log instance " + delegate + ".", e);
+            notificationListenerManager.sendNotification(AsyncLogNotificationType.WRITE_FAILED);
+        }
+    }
+
+    /**
+     * A reusable, growable buffer holding one formatted sample.
+     */
+    private static final class Slot extends OutputStream {
+
+        private byte[] bytes = new byte[INITIAL_SLOT_SIZE];
+        private int length;
+
+        /**
+         * The {@link System#nanoTime()} at which the sample was submitted.
+         */
+        private long startNanos;
+
+        void reset(long startNanos) {
+            length = 0;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(length + 1);
+            bytes[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(length + len);
+            System.arraycopy(b, off, bytes, length, len);
+            length += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                byte[] newBytes = new byte[Math.max(capacity, bytes.length * 2)];
+                System.arraycopy(bytes, 0, newBytes, 0, length);
+                bytes = newBytes;
+            }
+        }
+    }
+}
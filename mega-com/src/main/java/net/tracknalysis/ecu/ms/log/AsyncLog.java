@@ -0,0 +1,61 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.log;
+
+/**
+ * A {@link Log} that queues samples on the calling thread and hands them to a wrapped log on a
+ * thread of its own.  Exposes the statistics of that thread so that they can be reported with
+ * those of the calling thread, see {@link LogStatistics}.
+ *
+ * @author David Valeri
+ */
+public interface AsyncLog extends Log {
+
+    /**
+     * Returns the number of samples dropped because the queue was full.
+     */
+    long getDroppedCount();
+
+    /**
+     * Returns the number of samples handed to the wrapped log.
+     */
+    long getWrittenCount();
+
+    /**
+     * Returns the number of samples or flushes that the wrapped log failed on the writer thread.
+     */
+    long getWriteFailedCount();
+
+    /**
+     * Returns the total latency of the samples written so far, in nanoseconds.
+     */
+    long getTotalLatencyNanos();
+
+    /**
+     * Returns the highest latency of a sample written so far, in nanoseconds.
+     */
+    long getMaxLatencyNanos();
+
+    /**
+     * Returns the number of samples waiting to be written.
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns the number of samples that may be queued.
+     */
+    int getCapacity();
+}
@@ -0,0 +1,422 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import net.tracknalysis.common.notification.DefaultNotificationListenerManager;
+import net.tracknalysis.common.notification.NotificationListener;
+import net.tracknalysis.common.notification.NotificationListenerManager;
+import net.tracknalysis.common.notification.NotificationListenerRegistry;
+import net.tracknalysis.ecu.ms.ChannelSnapshot;
+import net.tracknalysis.ecu.ms.Megasquirt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decouples an arbitrary {@link Log} from the thread that calls {@link #write(Megasquirt)}.
+ * Each call to {@link #write(Megasquirt)} or {@link #mark(String)} claims a preallocated slot of
+ * a bounded ring buffer with a compare and set and returns; a dedicated thread then makes the
+ * same call on the wrapped log.  When the ring buffer is full, new samples are dropped rather
+ * than blocking the caller.  Drops and failures are counted and reported via
+ * {@link AsyncLogNotificationType} notifications, and the latency of each sample is recorded, as
+ * for an {@link AsyncFileLog}.
+ * <p/>
+ * Unlike an {@link AsyncFileLog}, nothing is formatted on the calling thread, so the wrapped log
+ * reads the {@link Megasquirt} on the writer thread, when the values may already be those of a
+ * later poll.  It must therefore only read state that is safe to read from another thread, such
+ * as the values copied from {@link Megasquirt#getChannelSnapshot()} with
+ * {@link ChannelSnapshot#copyTo(double[])}.  Logs that format the runtime vars of the ECU
+ * directly should extend {@link AbstractFileLog} and be wrapped in an {@link AsyncFileLog}.
+ *
+ * @author David Valeri
+ */
+public class AsyncLogAdapter implements AsyncLog, NotificationListenerRegistry<AsyncLogNotificationType> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncLogAdapter.class);
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The longest the writer thread waits before re-checking the queue.
+     */
+    private static final long MAX_PARK_NANOS = 10L * 1000 * 1000;
+
+    private static final int WRITE = 0;
+    private static final int MARK = 1;
+    private static final int MARK_WITH_MESSAGE = 2;
+
+    private final NotificationListenerManager<AsyncLogNotificationType> notificationListenerManager =
+            new DefaultNotificationListenerManager<AsyncLogNotificationType>(
+                    AsyncLogNotificationType.SAMPLES_RESUMED, null);
+
+    private final Log delegate;
+    private final int mask;
+
+    // Slot contents, indexed by sequence & mask.
+    private final int[] types;
+    private final Megasquirt[] sources;
+    private final String[] messages;
+    private final long[] startNanos;
+
+    /**
+     * The sequence plus one of the sample last published in each slot, so that the writer thread
+     * can tell a claimed slot from a published one.
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * Sequence of the next slot to be claimed.  Advanced by producers with a compare and set.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Sequence of the next slot to be written.  Only advanced by the writer thread.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicBoolean dropping = new AtomicBoolean();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile long writtenCount;
+    private volatile long writeFailedCount;
+    private volatile long totalLatencyNanos;
+    private volatile long maxLatencyNanos;
+
+    private volatile boolean started;
+    private volatile boolean running;
+    private volatile boolean writerWaiting;
+    private volatile Thread writerThread;
+
+    public AsyncLogAdapter(Log delegate) {
+        this(delegate, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param delegate the log to write to
+     * @param capacity the number of samples that may be queued, rounded up to a power of two
+     */
+    public AsyncLogAdapter(Log delegate, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+
+        this.delegate = delegate;
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        types = new int[size];
+        sources = new Megasquirt[size];
+        messages = new String[size];
+        startNanos = new long[size];
+        published = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (started) {
+            return;
+        }
+
+        delegate.start();
+        dropping.set(false);
+        running = true;
+
+        Thread thread = new Thread(new Writer(), "AsyncLogAdapter-" + delegate.getClass().getSimpleName());
+        thread.setDaemon(true);
+        writerThread = thread;
+        thread.start();
+
+        started = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Waits for the writer thread to drain the queue before stopping the wrapped log.  A sample
+     * submitted while stopping may be discarded.
+     */
+    @Override
+    public void stop() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+
+            started = false;
+            running = false;
+            thread = writerThread;
+            writerThread = null;
+        }
+
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for the writer thread of {} to finish.", delegate);
+            Thread.currentThread().interrupt();
+        }
+
+        delegate.stop();
+    }
+
+    @Override
+    public void write(Megasquirt ms) throws IOException {
+        submit(WRITE, ms, null);
+    }
+
+    @Override
+    public void mark(String message) throws IOException {
+        submit(MARK_WITH_MESSAGE, null, message);
+    }
+
+    @Override
+    public void mark() throws IOException {
+        submit(MARK, null, null);
+    }
+
+    @Override
+    public boolean isMarkSupported() {
+        return delegate.isMarkSupported();
+    }
+
+    @Override
+    public long getStartTime() {
+        return delegate.getStartTime();
+    }
+
+    @Override
+    public boolean isLogging() {
+        return started;
+    }
+
+    /**
+     * Returns the wrapped log.
+     */
+    public Log getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    @Override
+    public long getWriteFailedCount() {
+        return writeFailedCount;
+    }
+
+    @Override
+    public long getTotalLatencyNanos() {
+        return totalLatencyNanos;
+    }
+
+    @Override
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return (int) (head.get() - tail.get());
+    }
+
+    @Override
+    public int getCapacity() {
+        return types.length;
+    }
+
+    @Override
+    public void addListener(NotificationListener<AsyncLogNotificationType> listener) {
+        notificationListenerManager.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(NotificationListener<AsyncLogNotificationType> listener) {
+        notificationListenerManager.removeListener(listener);
+    }
+
+    @Override
+    public void addWeakReferenceListener(NotificationListener<AsyncLogNotificationType> listener) {
+        notificationListenerManager.addWeakReferenceListener(listener);
+    }
+
+    @Override
+    public void removeWeakReferenceListener(NotificationListener<AsyncLogNotificationType> listener) {
+        notificationListenerManager.removeWeakReferenceListener(listener);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("AsyncLogAdapter [delegate=");
+        builder.append(delegate);
+        builder.append(", capacity=");
+        builder.append(types.length);
+        builder.append(", droppedCount=");
+        builder.append(droppedCount.get());
+        builder.append(", writtenCount=");
+        builder.append(writtenCount);
+        builder.append(", writeFailedCount=");
+        builder.append(writeFailedCount);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    private void submit(int type, Megasquirt ms, String message) {
+        final long start = System.nanoTime();
+        if (!started) {
+            return;
+        }
+
+        final long sequence = claim();
+        if (sequence >= 0) {
+            final int index = (int) (sequence & mask);
+            types[index] = type;
+            sources[index] = ms;
+            messages[index] = message;
+            startNanos[index] = start;
+            published.lazySet(index, sequence + 1);
+            if (writerWaiting) {
+                LockSupport.unpark(writerThread);
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence of the claimed slot or -1, after recording the drop, if the queue is
+     * full.
+     */
+    private long claim() {
+        while (true) {
+            final long sequence = head.get();
+            if (sequence - tail.get() >= types.length) {
+                droppedCount.incrementAndGet();
+                if (dropping.compareAndSet(false, true)) {
+                    LOG.warn("Log queue full, dropping samples for {}.", delegate);
+                    notificationListenerManager.sendNotification(AsyncLogNotificationType.SAMPLES_DROPPED);
+                }
+                return -1;
+            }
+
+            if (head.compareAndSet(sequence, sequence + 1)) {
+                if (dropping.get() && dropping.compareAndSet(true, false)) {
+                    LOG.info("Log queue accepting samples again for {} after {} total drops.", delegate,
+                            droppedCount.get());
+                    notificationListenerManager.sendNotification(AsyncLogNotificationType.SAMPLES_RESUMED);
+                }
+                return sequence;
+            }
+        }
+    }
+
+    /**
+     * Drains the ring buffer into the wrapped log.
+     */
+    private final class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            LOG.debug("Started writer thread for {}.", delegate);
+
+            long sequence = tail.get();
+            while (true) {
+                final int index = (int) (sequence & mask);
+
+                if (published.get(index) != sequence + 1) {
+                    if (head.get() != sequence) {
+                        // Claimed but not yet published by the producer.
+                        Thread.yield();
+                        continue;
+                    }
+
+                    // Producers are stopped before running is cleared, so once it is clear
+                    // an empty queue stays empty.
+                    if (!running) {
+                        break;
+                    }
+
+                    writerWaiting = true;
+                    if (head.get() == sequence && running) {
+                        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    }
+                    writerWaiting = false;
+                    continue;
+                }
+
+                final Megasquirt ms = sources[index];
+                final String message = messages[index];
+                sources[index] = null;
+                messages[index] = null;
+                try {
+                    switch (types[index]) {
+                        case WRITE:
+                            delegate.write(ms);
+                            break;
+                        case MARK:
+                            delegate.mark();
+                            break;
+                        default:
+                            delegate.mark(message);
+                            break;
+                    }
+                } catch (IOException e) {
+                    onWriteFailed(e);
+                } catch (RuntimeException e) {
+                    onWriteFailed(e);
+                }
+                final long latency = System.nanoTime() - startNanos[index];
+                sequence++;
+                tail.lazySet(sequence);
+                recordWritten(latency);
+            }
+
+            LOG.debug("Stopped writer thread for {}.", delegate);
+        }
+
+        /**
+         * Only the writer thread updates the counters, so plain increments are safe.
+         */
+        private void recordWritten(long latency) {
+            writtenCount++;
+            totalLatencyNanos += latency;
+            if (latency > maxLatencyNanos) {
+                maxLatencyNanos = latency;
+            }
+        }
+
+        private void onWriteFailed(Exception e) {
+            writeFailedCount++;
+            LOG.error("Error writing to log instance " + delegate + ".", e);
+            notificationListenerManager.sendNotification(AsyncLogNotificationType.WRITE_FAILED);
+        }
+    }
+}
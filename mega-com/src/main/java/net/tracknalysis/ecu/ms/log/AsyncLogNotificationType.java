@@ -0,0 +1,64 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tracknalysis.common.notification.NotificationType;
+
+/**
+ * Notification types emitted by an {@link AsyncFileLog}.
+ *
+ * @author David Valeri
+ */
+public enum AsyncLogNotificationType implements NotificationType {
+	/**
+	 * Sent when a sample is dropped because the queue is full after a period with no drops.
+	 */
+	SAMPLES_DROPPED,
+	/**
+	 * Sent when a sample is accepted again after one or more samples were dropped.
+	 */
+	SAMPLES_RESUMED,
+	/**
+	 * Sent when the writer thread fails to write to the log file.
+	 */
+	WRITE_FAILED;
+
+	private static final Map<Integer, AsyncLogNotificationType> intToTypeMap = 
+			new HashMap<Integer, AsyncLogNotificationType>();
+    
+    static {
+        for (AsyncLogNotificationType type : AsyncLogNotificationType.values()) {
+            intToTypeMap.put(type.ordinal(), type);
+        }
+    }
+
+    public static AsyncLogNotificationType fromInt(int i) {
+    	AsyncLogNotificationType type = intToTypeMap.get(Integer.valueOf(i));
+        if (type == null) {
+            throw new IllegalArgumentException(
+                    "No enum const " + i);
+        }
+        return type;
+    }
+
+    @Override
+    public int getNotificationTypeId() {
+        return ordinal();
+    }	
+}
@@ -29,6 +29,18 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Default implementation of a composite log.
+ * <p/>
+ * In parallel mode, each wrapped log is given its own queue and writer thread, so a slow log does
+ * not delay the others or the caller.  An {@link AbstractFileLog} is wrapped in an
+ * {@link AsyncFileLog}, which formats each sample on the calling thread, where the runtime vars
+ * of the {@link Megasquirt} are consistent, and only writes it on the writer thread.  Any other
+ * log is wrapped in an {@link AsyncLogAdapter}, which calls {@link Log#write(Megasquirt)} on the
+ * writer thread, so such a log must read the values through
+ * {@link Megasquirt#getChannelSnapshot()}.
+ * <p/>
+ * In either mode, a failure in one wrapped log does not prevent writing to the others, and per
+ * log statistics, including write failures and drops on the writer threads, are available from
+ * {@link #getStatistics()}.
  *
  * @author David Valeri
  */
@@ -37,12 +49,48 @@ public class DefaultCompositeLog implements CompositeLog {
     private static final Logger LOG = LoggerFactory.getLogger(DefaultCompositeLog.class);
     
     private List<Log> logs = new ArrayList<Log>(2);
+    
+    /**
+     * The logs actually written to, parallel to {@link #logs}.
+     */
+    private final Log[] targets;
+    
+    /**
+     * Statistics for each log, parallel to {@link #logs}.
+     */
+    private final LogStatistics[] statistics;
+    
+    private final boolean parallel;
     private volatile long startTime = 0;
     
     public DefaultCompositeLog(Log... logs) {
+        this(false, logs);
+    }
+    
+    /**
+     * @param parallel true to give each wrapped log its own queue and writer thread
+     * @param logs the logs to wrap
+     */
+    public DefaultCompositeLog(boolean parallel, Log... logs) {
         if (logs != null) {
             this.logs.addAll(Arrays.asList(logs));
         }
+        
+        this.parallel = parallel;
+        targets = new Log[this.logs.size()];
+        statistics = new LogStatistics[this.logs.size()];
+        
+        for (int i = 0; i < targets.length; i++) {
+            Log log = this.logs.get(i);
+            if (parallel && log instanceof AbstractFileLog) {
+                targets[i] = new AsyncFileLog((AbstractFileLog) log);
+            } else if (parallel) {
+                targets[i] = new AsyncLogAdapter(log);
+            } else {
+                targets[i] = log;
+            }
+            statistics[i] = new LogStatistics(log, targets[i]);
+        }
     }
 
     /**
@@ -58,7 +106,7 @@ public class DefaultCompositeLog implements CompositeLog {
         startTime = System.currentTimeMillis();
         IOException exception = null;
         
-        for (Log log : logs) {
+        for (Log log : targets) {
             try {
                 log.start();
             } catch (IOException e) {
@@ -89,7 +137,7 @@ public class DefaultCompositeLog implements CompositeLog {
     public synchronized void stop() throws IOException {
         IOException exception = null;
         
-        for (Log log : logs) {
+        for (Log log : targets) {
             try {
                 log.stop();
             } catch (IOException e) {
@@ -117,7 +165,7 @@ public class DefaultCompositeLog implements CompositeLog {
     @Override
     public synchronized boolean isLogging() {
         boolean logging = false;
-        for (Log log : logs) {
+        for (Log log : targets) {
             if (log.isLogging()) {
                 logging = true;
             }
@@ -131,21 +179,45 @@ public class DefaultCompositeLog implements CompositeLog {
         return Collections.unmodifiableList(logs);
     }
 
+    /**
+     * Returns the write statistics of each wrapped log, in the order the logs were given.
+     */
+    public List<LogStatistics> getStatistics() {
+        return Collections.unmodifiableList(Arrays.asList(statistics));
+    }
+    
+    /**
+     * Returns true if wrapped logs are written on their own threads.
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
     @Override
     public synchronized void write(Megasquirt ms) {
-        for (Log log : logs) {
+        for (int i = 0; i < targets.length; i++) {
+            final Log log = targets[i];
+            final long start = System.nanoTime();
+            boolean failed = false;
+            
             try {
                 log.write(ms);
             } catch (IOException e) {
+                failed = true;
                 // TODO error handling
                 LOG.error("Error writing to log instance " + log + ".", e);
+            } catch (RuntimeException e) {
+                failed = true;
+                LOG.error("Error writing to log instance " + log + ".", e);
             }
+            
+            statistics[i].recordWrite(System.nanoTime() - start, failed);
         }
     }
 
     @Override
     public synchronized void mark() {
-        for (Log log : logs) {
+        for (Log log : targets) {
             try {
                 log.mark();
             } catch (IOException e) {
@@ -157,7 +229,7 @@ public class DefaultCompositeLog implements CompositeLog {
 
     @Override
     public synchronized void mark(String message) {
-        for (Log log : logs) {
+        for (Log log : targets) {
             try {
                 log.mark(message);
             } catch (IOException e) {
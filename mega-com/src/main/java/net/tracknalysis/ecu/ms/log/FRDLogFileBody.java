@@ -33,8 +33,16 @@ public class FRDLogFileBody {
         this.parent = p;
     }
 
+    /**
+     * Makes {@code ochBuffer} the current record.  The current record instance, and its buffer,
+     * is reused when the block size has not changed so that logging does not allocate per sample.
+     */
     public void addRecord(byte[] ochBuffer) {
-        currentRecord = new FRDLogFileRecord(this, ochBuffer);
+        if (currentRecord != null && currentRecord.getBytes().length == ochBuffer.length + 2) {
+            currentRecord.update(ochBuffer);
+        } else {
+            currentRecord = new FRDLogFileRecord(this, ochBuffer);
+        }
     }
 
     public FRDLogFileRecord getCurrentRecord() {
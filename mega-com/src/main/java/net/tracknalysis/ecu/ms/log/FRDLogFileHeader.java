@@ -15,6 +15,7 @@
  */
 package net.tracknalysis.ecu.ms.log;
 
+import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 
@@ -67,13 +68,14 @@ public class FRDLogFileHeader {
     public FRDLogFileHeader(FRDLogFile frdLogFile, FileInputStream is)
             throws IOException {
         this.parent = frdLogFile;
-        is.read(fileFormat);
-        is.read(formatVersion);
-        is.read(timeStamp);
-        is.read(firmware);
-        is.read(beginIndex);
-        is.read(outputLength);
-        blockSize = outputLength[0] << 8 + outputLength[1];
+        DataInputStream dis = new DataInputStream(is);
+        dis.readFully(fileFormat);
+        dis.readFully(formatVersion);
+        dis.readFully(timeStamp);
+        dis.readFully(firmware);
+        dis.readFully(beginIndex);
+        dis.readFully(outputLength);
+        blockSize = ((outputLength[0] & 0xff) << 8) | (outputLength[1] & 0xff);
     }
 
     public byte[] getHeaderRecord() {
@@ -15,6 +15,7 @@
  */
 package net.tracknalysis.ecu.ms.log;
 
+import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 
@@ -31,10 +32,7 @@ public class FRDLogFileRecord {
     public FRDLogFileRecord(FRDLogFileBody body, byte[] ochBuffer) {
         this.body = body;
         buffer = new byte[ochBuffer.length + 2];
-        buffer[0] = 1;
-        buffer[1] = (byte) (body.outpc++);
-        System.arraycopy(ochBuffer, 0, buffer, 2, ochBuffer.length);
-
+        update(ochBuffer);
     }
 
     public FRDLogFileRecord(FRDLogFileBody body, FileInputStream is)
@@ -42,7 +40,17 @@ public class FRDLogFileRecord {
         this.body = body;
         int blockSize = body.getParent().getHeader().getBlockSize();
         buffer = new byte[blockSize + 2];
-        is.read(buffer, 0, blockSize + 2);
+        new DataInputStream(is).readFully(buffer, 0, blockSize + 2);
+    }
+
+    /**
+     * Replaces the content of this record with {@code ochBuffer} and the next record counter
+     * value.  {@code ochBuffer} must be the same length as the buffer this record was created with.
+     */
+    void update(byte[] ochBuffer) {
+        buffer[0] = 1;
+        buffer[1] = (byte) (body.outpc++);
+        System.arraycopy(ochBuffer, 0, buffer, 2, ochBuffer.length);
     }
 
     public byte[] getBytes() {
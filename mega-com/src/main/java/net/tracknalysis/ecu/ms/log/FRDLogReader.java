@@ -0,0 +1,270 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Random access reader for FRD log files as written by {@link FRDLog}.  The file is memory
+ * mapped so that any record can be reached in constant time and OCH payloads can be handed out
+ * as views of the mapping without copying.
+ * <p/>
+ * Instances are not thread safe.  Buffers returned from {@link #getOchBuffer(int)} are
+ * independent views and may be used from any thread, even after the reader is
+ * {@link #close() closed}, as they keep the mapping alive.
+ *
+ * @author David Valeri
+ */
+public class FRDLogReader implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FRDLogReader.class);
+
+    /**
+     * Length of the header of the file in bytes.
+     */
+    public static final int HEADER_LENGTH = 81;
+
+    /**
+     * Length of the type and counter bytes that precede the OCH payload of each record.
+     */
+    public static final int RECORD_PREFIX_LENGTH = 2;
+
+    private static final byte[] FILE_FORMAT = { 0x46, 0x52, 0x44, 0x00, 0x00, 0x00 };
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FORMAT_VERSION_OFFSET = 6;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int FIRMWARE_OFFSET = 12;
+    private static final int FIRMWARE_LENGTH = 63;
+    private static final int BEGIN_INDEX_OFFSET = 75;
+    private static final int OUTPUT_LENGTH_OFFSET = 79;
+
+    private final File file;
+    private final ByteBuffer buffer;
+    
+    /**
+     * View of {@link #buffer} used for relative bulk copies.
+     */
+    private final ByteBuffer cursor;
+    private final long timestamp;
+    private final String firmware;
+    private final int beginIndex;
+    private final int blockSize;
+    private final int recordLength;
+    private final int recordCount;
+    private boolean closed;
+
+    /**
+     * Maps and validates the header of {@code file}.
+     *
+     * @throws IOException if the file cannot be read, is larger than 2GB or is not a
+     *             supported FRD file
+     */
+    public FRDLogReader(File file) throws IOException {
+        this.file = file;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("FRD file '" + file + "' is too large to map.");
+            }
+            if (size < HEADER_LENGTH) {
+                throw new IOException("FRD file '" + file + "' is too short to contain a header.");
+            }
+
+            // The mapping remains valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.BIG_ENDIAN);
+        } finally {
+            raf.close();
+        }
+
+        for (int i = 0; i < FILE_FORMAT.length; i++) {
+            if (buffer.get(i) != FILE_FORMAT[i]) {
+                throw new IOException("File '" + file + "' is not an FRD file.");
+            }
+        }
+
+        int formatVersion = buffer.getShort(FORMAT_VERSION_OFFSET) & 0xffff;
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("FRD file '" + file + "' has unsupported format version "
+                    + formatVersion + ".");
+        }
+
+        cursor = buffer.duplicate();
+
+        timestamp = (buffer.getInt(TIMESTAMP_OFFSET) & 0xffffffffL) * 1000L;
+
+        int firmwareLength = 0;
+        while (firmwareLength < FIRMWARE_LENGTH && buffer.get(FIRMWARE_OFFSET + firmwareLength) != 0) {
+            firmwareLength++;
+        }
+        byte[] firmwareBytes = new byte[firmwareLength];
+        for (int i = 0; i < firmwareLength; i++) {
+            firmwareBytes[i] = buffer.get(FIRMWARE_OFFSET + i);
+        }
+        firmware = new String(firmwareBytes, "ISO-8859-1");
+
+        beginIndex = buffer.getInt(BEGIN_INDEX_OFFSET);
+        if (beginIndex < HEADER_LENGTH || beginIndex > buffer.capacity()) {
+            throw new IOException("FRD file '" + file + "' has invalid begin index " + beginIndex + ".");
+        }
+
+        blockSize = buffer.getShort(OUTPUT_LENGTH_OFFSET) & 0xffff;
+        if (blockSize == 0) {
+            throw new IOException("FRD file '" + file + "' has a block size of 0.");
+        }
+
+        recordLength = blockSize + RECORD_PREFIX_LENGTH;
+        int bodyLength = buffer.capacity() - beginIndex;
+        recordCount = bodyLength / recordLength;
+
+        if (bodyLength % recordLength != 0) {
+            LOG.warn("FRD file '{}' ends with a partial record of {} bytes which will be ignored.",
+                    file, bodyLength % recordLength);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the time the log was started in milliseconds since January 1, 1970 00:00:00 UTC,
+     * with a resolution of one second.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the signature of the firmware the log was recorded from.
+     */
+    public String getFirmware() {
+        return firmware;
+    }
+
+    /**
+     * Returns the length of the OCH payload of each record.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns the number of complete records in the file.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the record type byte of the record at {@code index}.
+     */
+    public int getRecordType(int index) {
+        return buffer.get(getRecordOffset(index)) & 0xff;
+    }
+
+    /**
+     * Returns the rolling counter, from 0 to 255, of the record at {@code index}.
+     */
+    public int getRecordCounter(int index) {
+        return buffer.get(getRecordOffset(index) + 1) & 0xff;
+    }
+
+    /**
+     * Returns a read-only view of the OCH payload of the record at {@code index} without copying
+     * it.  The view's position is 0 and its limit is the block size.
+     */
+    public ByteBuffer getOchBuffer(int index) {
+        ByteBuffer view = buffer.duplicate();
+        int offset = getRecordOffset(index) + RECORD_PREFIX_LENGTH;
+        view.limit(offset + blockSize);
+        view.position(offset);
+        return view.slice();
+    }
+
+    /**
+     * Copies the OCH payload of the record at {@code index} into {@code ochBuffer}.
+     *
+     * @param ochBuffer a buffer at least as long as the block size
+     */
+    public void getOchBuffer(int index, byte[] ochBuffer) {
+        cursor.position(getRecordOffset(index) + RECORD_PREFIX_LENGTH);
+        cursor.get(ochBuffer, 0, blockSize);
+    }
+
+    /**
+     * Returns the number of records whose counter does not follow on from the counter of the
+     * previous record, indicating samples missing from the log.
+     */
+    public int countCounterGaps() {
+        int gaps = 0;
+        for (int i = 1; i < recordCount; i++) {
+            if (getRecordCounter(i) != ((getRecordCounter(i - 1) + 1) & 0xff)) {
+                gaps++;
+            }
+        }
+        return gaps;
+    }
+
+    /**
+     * Closes the reader, after which reading from it fails.  The mapping itself is released when
+     * it is garbage collected, once neither the reader nor any buffer returned from
+     * {@link #getOchBuffer(int)} references it.  Unmapping eagerly would turn a later read of
+     * such a buffer into a crash of the JVM rather than an exception.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private int getRecordOffset(int index) {
+        if (closed) {
+            throw new IllegalStateException("FRD file '" + file + "' is closed.");
+        }
+        if (index < 0 || index >= recordCount) {
+            throw new IndexOutOfBoundsException("Record " + index + " is out of range [0, "
+                    + recordCount + ").");
+        }
+        return beginIndex + index * recordLength;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("FRDLogReader [file=");
+        builder.append(file);
+        builder.append(", firmware=");
+        builder.append(firmware);
+        builder.append(", blockSize=");
+        builder.append(blockSize);
+        builder.append(", recordCount=");
+        builder.append(recordCount);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.log;
+
+/**
+ * Write statistics for one log wrapped by a {@link DefaultCompositeLog}.  Write times are measured
+ * on the thread calling {@link Log#write(net.tracknalysis.ecu.ms.Megasquirt)}, so for a log
+ * wrapped in an {@link AsyncLog} they cover formatting and queuing only.  Latencies, error and
+ * drop counts also cover the writer thread of such a log.
+ *
+ * @author David Valeri
+ */
+public final class LogStatistics {
+
+    private final Log log;
+    private final Log target;
+    private volatile long writeCount;
+    private volatile long errorCount;
+    private volatile long totalWriteNanos;
+    private volatile long maxWriteNanos;
+
+    LogStatistics(Log log, Log target) {
+        this.log = log;
+        this.target = target;
+    }
+
+    /**
+     * Records a write.  Only called while holding the lock of the owning composite.
+     */
+    void recordWrite(long nanos, boolean failed) {
+        writeCount++;
+        if (failed) {
+            errorCount++;
+        }
+        totalWriteNanos += nanos;
+        if (nanos > maxWriteNanos) {
+            maxWriteNanos = nanos;
+        }
+    }
+
+    /**
+     * Returns the log that the statistics are for, as it was given to the composite.
+     */
+    public Log getLog() {
+        return log;
+    }
+
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Returns the number of failed writes, on the calling thread or, for a log wrapped in an
+     * {@link AsyncLog}, on its writer thread.
+     */
+    public long getErrorCount() {
+        return errorCount + (target instanceof AsyncLog
+                ? ((AsyncLog) target).getWriteFailedCount() : 0);
+    }
+
+    public long getTotalWriteNanos() {
+        return totalWriteNanos;
+    }
+
+    public long getMaxWriteNanos() {
+        return maxWriteNanos;
+    }
+
+    public long getAverageWriteNanos() {
+        long count = writeCount;
+        return count == 0 ? 0 : totalWriteNanos / count;
+    }
+
+    /**
+     * Returns the average time from a call to write until the sample reached the log, in
+     * nanoseconds.  The same as {@link #getAverageWriteNanos()} for a log written synchronously.
+     */
+    public long getAverageLatencyNanos() {
+        if (target instanceof AsyncLog) {
+            final AsyncLog asyncLog = (AsyncLog) target;
+            final long count = asyncLog.getWrittenCount();
+            return count == 0 ? 0 : asyncLog.getTotalLatencyNanos() / count;
+        }
+        return getAverageWriteNanos();
+    }
+
+    /**
+     * Returns the highest time from a call to write until the sample reached the log, in
+     * nanoseconds.  The same as {@link #getMaxWriteNanos()} for a log written synchronously.
+     */
+    public long getMaxLatencyNanos() {
+        return target instanceof AsyncLog
+                ? ((AsyncLog) target).getMaxLatencyNanos() : maxWriteNanos;
+    }
+
+    /**
+     * Returns the number of samples dropped by the asynchronous queue of the log or 0 if the log
+     * is written synchronously.
+     */
+    public long getDroppedCount() {
+        return target instanceof AsyncLog ? ((AsyncLog) target).getDroppedCount() : 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("LogStatistics [log=");
+        builder.append(log);
+        builder.append(", writeCount=");
+        builder.append(writeCount);
+        builder.append(", errorCount=");
+        builder.append(getErrorCount());
+        builder.append(", droppedCount=");
+        builder.append(getDroppedCount());
+        builder.append(", averageWriteNanos=");
+        builder.append(getAverageWriteNanos());
+        builder.append(", maxWriteNanos=");
+        builder.append(maxWriteNanos);
+        builder.append(", averageLatencyNanos=");
+        builder.append(getAverageLatencyNanos());
+        builder.append(", maxLatencyNanos=");
+        builder.append(getMaxLatencyNanos());
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -20,6 +20,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import net.tracknalysis.ecu.ms.Megasquirt;
+import net.tracknalysis.ecu.ms.common.LogRowBuffer;
+import net.tracknalysis.ecu.ms.common.MsEcu;
 
 
 /**
@@ -33,7 +35,7 @@ public class MslLog extends AbstractFileLog {
     private static final String ENCODING = "UTF-8";
 
     private int markCounter = 1;
-    private StringBuilder sb = new StringBuilder();
+    private final LogRowBuffer rowBuffer = new LogRowBuffer();
 
     public MslLog(File logFolder) {
         super(logFolder);
@@ -43,23 +45,40 @@ public class MslLog extends AbstractFileLog {
     protected void writeHeader(Megasquirt ms, OutputStream out)
             throws IOException {
 
-        sb.setLength(0);
-
-        sb.append("\"").append(ms.getTrueSignature()).append("\"\r\n");
-        sb.append(ms.getLogHeader()).append("\r\n");
-
-        out.write(sb.toString().getBytes(ENCODING));
+        writeHeader(ms.getTrueSignature(), ms.getLogHeader(), out);
     }
 
     @Override
     protected void write(Megasquirt ms, OutputStream out) throws IOException {
 
-        sb.setLength(0);
-        sb.append(ms.getLogRow()).append("\r\n");
+        writeRow(ms.getEcuImplementation(), rowBuffer, out);
+    }
+
+    /**
+     * Writes the MSL header lines for the given firmware signature and log header.
+     */
+    public static void writeHeader(String signature, String logHeader, OutputStream out)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\"").append(signature).append("\"\r\n");
+        sb.append(logHeader).append("\r\n");
 
         out.write(sb.toString().getBytes(ENCODING));
     }
 
+    /**
+     * Writes the MSL row for the current runtime vars of {@code ecu} using {@code rowBuffer} as
+     * scratch space.
+     */
+    public static void writeRow(MsEcu ecu, LogRowBuffer rowBuffer, OutputStream out)
+            throws IOException {
+        rowBuffer.reset();
+        ecu.getLogRow(rowBuffer);
+        rowBuffer.append("\r\n");
+
+        rowBuffer.writeTo(out);
+    }
+
     @Override
     protected void mark(String msg, OutputStream out)
             throws IOException {
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.page;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds page write commands from a {@code pageChunkWrite} or {@code pageValueWrite} template
+ * of the firmware INI, as returned by {@code MsEcu.getPageChunkWrites()}.  The template is
+ * parsed once.  Supported elements are {@code \xHH} and {@code \0OO} escapes, {@code $tsCanId},
+ * {@code %2i} for the page identifier, {@code %o}/{@code %2o} for the offset, {@code %c}/
+ * {@code %2c} for the count and {@code %v} for the data.
+ *
+ * @author David Valeri
+ */
+public class ChunkWriteBuilder {
+
+    private static final int LITERAL = 0;
+    private static final int OFFSET = 1;
+    private static final int COUNT = 2;
+    private static final int VALUE = 3;
+
+    private final int[] kinds;
+    private final int[] widths;
+    private final byte[][] literals;
+    private final int overhead;
+    private final boolean countSupported;
+
+    /**
+     * @param template the command template
+     * @param pageIdentifier the page identifier substituted for {@code %2i}, as an escaped
+     *            string, or {@code null} if the template does not use it
+     */
+    public ChunkWriteBuilder(String template, String pageIdentifier) {
+        final List<Integer> kindList = new ArrayList<Integer>();
+        final List<Integer> widthList = new ArrayList<Integer>();
+        final List<byte[]> literalList = new ArrayList<byte[]>();
+        final ByteArrayOutputStream literal = new ByteArrayOutputStream();
+
+        final String s = template.replace("$tsCanId", "\\x00");
+        int fixed = 0;
+        boolean hasCount = false;
+
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                final char kind = s.charAt(i + 1);
+                final int radix = kind == '0' ? 8 : 16;
+                literal.write(Integer.parseInt(s.substring(i + 2, i + 4), radix));
+                i += 3;
+            } else if (c == '%' && i + 1 < s.length()) {
+                int width = 1;
+                char kind = s.charAt(++i);
+                if (kind == '2' && i + 1 < s.length()) {
+                    width = 2;
+                    kind = s.charAt(++i);
+                }
+
+                if (kind == 'i') {
+                    if (pageIdentifier == null) {
+                        throw new IllegalArgumentException("Template " + template
+                                + " requires a page identifier.");
+                    }
+                    final byte[] identifier = new ChunkWriteBuilder(pageIdentifier, null)
+                            .build(0, new byte[0], 0, 0);
+                    literal.write(identifier, 0, identifier.length);
+                    continue;
+                }
+
+                final int element;
+                if (kind == 'o') {
+                    element = OFFSET;
+                } else if (kind == 'c') {
+                    element = COUNT;
+                    hasCount = true;
+                } else if (kind == 'v') {
+                    element = VALUE;
+                    width = 0;
+                } else {
+                    throw new IllegalArgumentException("Unsupported element %" + kind
+                            + " in template " + template + ".");
+                }
+
+                if (literal.size() > 0) {
+                    addLiteral(kindList, widthList, literalList, literal);
+                }
+                kindList.add(element);
+                widthList.add(width);
+                literalList.add(null);
+                fixed += width;
+            } else {
+                literal.write((byte) c);
+            }
+        }
+
+        if (literal.size() > 0) {
+            addLiteral(kindList, widthList, literalList, literal);
+        }
+
+        kinds = new int[kindList.size()];
+        widths = new int[kinds.length];
+        literals = new byte[kinds.length][];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = kindList.get(i);
+            widths[i] = widthList.get(i);
+            literals[i] = literalList.get(i);
+            if (literals[i] != null) {
+                fixed += literals[i].length;
+            }
+        }
+
+        overhead = fixed;
+        countSupported = hasCount;
+    }
+
+    /**
+     * Returns the bytes a command sends in addition to its data.
+     */
+    public int getOverhead() {
+        return overhead;
+    }
+
+    /**
+     * Returns true if the template carries a count and can therefore write more than one byte
+     * per command.
+     */
+    public boolean isCountSupported() {
+        return countSupported;
+    }
+
+    /**
+     * Builds the command writing {@code count} bytes of {@code data}, starting at
+     * {@code dataOffset}, to {@code offset} in the page.
+     */
+    public byte[] build(int offset, byte[] data, int dataOffset, int count) {
+        final byte[] command = new byte[overhead + count];
+        int position = 0;
+
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+                case LITERAL:
+                    System.arraycopy(literals[i], 0, command, position, literals[i].length);
+                    position += literals[i].length;
+                    break;
+                case OFFSET:
+                    position = writeNumber(command, position, offset, widths[i]);
+                    break;
+                case COUNT:
+                    position = writeNumber(command, position, count, widths[i]);
+                    break;
+                default:
+                    System.arraycopy(data, dataOffset, command, position, count);
+                    position += count;
+                    break;
+            }
+        }
+
+        return command;
+    }
+
+    private static int writeNumber(byte[] command, int position, int value, int width) {
+        if (width == 2) {
+            command[position++] = (byte) (value >> 8);
+        }
+        command[position++] = (byte) value;
+        return position;
+    }
+
+    private static void addLiteral(List<Integer> kindList, List<Integer> widthList,
+            List<byte[]> literalList, ByteArrayOutputStream literal) {
+        kindList.add(LITERAL);
+        widthList.add(0);
+        literalList.add(literal.toByteArray());
+        literal.reset();
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.page;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Coalesces the changed bytes of a page into the fewest chunk writes.  Runs of changed bytes
+ * separated by no more than the merge gap are written as one chunk, unchanged bytes included, as
+ * resending a few bytes costs less than the framing and inter-write delay of another command.
+ *
+ * @author David Valeri
+ */
+public final class DirtyRangeCoalescer {
+
+    /**
+     * Default largest number of bytes written by one command.
+     */
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 128;
+
+    /**
+     * Hidden in utility class.
+     */
+    private DirtyRangeCoalescer() {
+    }
+
+    /**
+     * Returns the merge gap, in bytes, at which writing the gap costs as much as another
+     * command.
+     *
+     * @param commandOverhead the bytes a command sends in addition to its data
+     * @param interWriteDelay the delay between commands, in milliseconds
+     * @param baudRate the baud rate of the serial link
+     */
+    public static int getMergeGap(int commandOverhead, int interWriteDelay, int baudRate) {
+        // Ten bits per byte on the wire.
+        return commandOverhead + (int) ((long) interWriteDelay * baudRate / 10 / 1000);
+    }
+
+    /**
+     * Plans the chunks that write every changed byte.
+     *
+     * @param dirty the offsets of the changed bytes
+     * @param mergeGap the largest run of unchanged bytes written rather than split
+     * @param maxChunkSize the largest number of bytes written by one command
+     *
+     * @return the chunks ordered by offset
+     */
+    public static List<PageChunk> coalesce(BitSet dirty, int mergeGap, int maxChunkSize) {
+        if (maxChunkSize < 1) {
+            throw new IllegalArgumentException("maxChunkSize must be positive.");
+        }
+
+        final List<PageChunk> chunks = new ArrayList<PageChunk>();
+
+        int start = dirty.nextSetBit(0);
+        while (start >= 0) {
+            int end = dirty.nextClearBit(start);
+
+            // Absorb following runs while the gap is small and the chunk fits.
+            int next = dirty.nextSetBit(end);
+            while (next >= 0 && next - end <= mergeGap) {
+                final int nextEnd = dirty.nextClearBit(next);
+                if (nextEnd - start > maxChunkSize) {
+                    break;
+                }
+                end = nextEnd;
+                next = dirty.nextSetBit(end);
+            }
+
+            // Split runs longer than a chunk.
+            while (end - start > maxChunkSize) {
+                chunks.add(new PageChunk(start, maxChunkSize));
+                start += maxChunkSize;
+            }
+            chunks.add(new PageChunk(start, end - start));
+
+            start = next;
+        }
+
+        return chunks;
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.page;
+
+/**
+ * A contiguous range of bytes of a page, written with a single command.
+ *
+ * @author David Valeri
+ */
+public final class PageChunk {
+
+    private final int offset;
+    private final int count;
+
+    public PageChunk(int offset, int count) {
+        this.offset = offset;
+        this.count = count;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the offset just past the end of the chunk.
+     */
+    public int getEnd() {
+        return offset + count;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + offset + ", " + getEnd() + ")";
+    }
+}
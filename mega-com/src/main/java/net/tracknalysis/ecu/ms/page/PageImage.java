@@ -0,0 +1,260 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.page;
+
+import java.util.BitSet;
+
+import net.tracknalysis.ecu.ms.common.Constant;
+
+/**
+ * In-memory image of a page of constants that tracks which bytes were changed since the page
+ * was last written to the ECU.  Setters only mark bytes whose value actually changes, so setting
+ * a table to the values it already holds writes nothing.
+ * <p/>
+ * Values are stored big-endian, matching the Megasquirt.  Instances are thread safe.
+ *
+ * @author David Valeri
+ */
+public class PageImage {
+
+    private final int pageNo;
+    private final byte[] data;
+    private final BitSet dirty;
+
+    /**
+     * @param pageNo the page number, numbered from 1
+     * @param data the current contents of the page, copied
+     */
+    public PageImage(int pageNo, byte[] data) {
+        this.pageNo = pageNo;
+        this.data = data.clone();
+        this.dirty = new BitSet(data.length);
+    }
+
+    public int getPageNo() {
+        return pageNo;
+    }
+
+    public int getSize() {
+        return data.length;
+    }
+
+    /**
+     * Returns a copy of the contents of the page.
+     */
+    public synchronized byte[] getData() {
+        return data.clone();
+    }
+
+    public synchronized int getByte(int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    public synchronized void setByte(int offset, int value) {
+        set(offset, (byte) value);
+    }
+
+    public synchronized void setWord(int offset, int value) {
+        set(offset, (byte) (value >> 8));
+        set(offset + 1, (byte) value);
+    }
+
+    public synchronized void setLong(int offset, long value) {
+        set(offset, (byte) (value >> 24));
+        set(offset + 1, (byte) (value >> 16));
+        set(offset + 2, (byte) (value >> 8));
+        set(offset + 3, (byte) value);
+    }
+
+    /**
+     * Sets bits {@code bitLo} to {@code bitHi}, inclusive, of the byte at {@code offset},
+     * leaving the other bits unchanged.
+     */
+    public synchronized void setBits(int offset, int bitLo, int bitHi, int value) {
+        final int mask = ((1 << (bitHi - bitLo + 1)) - 1) << bitLo;
+        set(offset, (byte) ((data[offset] & ~mask) | ((value << bitLo) & mask)));
+    }
+
+    public synchronized void setBytes(int offset, byte[] values) {
+        for (int i = 0; i < values.length; i++) {
+            set(offset + i, values[i]);
+        }
+    }
+
+    /**
+     * Sets a scalar or bits constant from its value in user units.
+     *
+     * @throws IllegalArgumentException if the constant is on another page or its class or type
+     *             is not supported
+     */
+    public void setConstant(Constant constant, double value) {
+        setConstant(constant, 0, value);
+    }
+
+    /**
+     * Sets element {@code index} of an array constant, or a scalar or bits constant if
+     * {@code index} is 0, from its value in user units.  Bits constants only change their own
+     * bits of the byte holding them.
+     *
+     * @throws IllegalArgumentException if the constant is on another page or its class or type
+     *             is not supported
+     */
+    public synchronized void setConstant(Constant constant, int index, double value) {
+        if (constant.getPage() != pageNo) {
+            throw new IllegalArgumentException("Constant " + constant.getName() + " is on page "
+                    + constant.getPage() + ", not page " + pageNo + ".");
+        }
+
+        final String classType = constant.getClassType();
+        if ("bits".equals(classType)) {
+            if (index != 0) {
+                throw new IllegalArgumentException("Constant " + constant.getName()
+                        + " is not an array.");
+            }
+            setBitsConstant(constant, value);
+            return;
+        } else if (!"scalar".equals(classType) && !"array".equals(classType)) {
+            throw new IllegalArgumentException("Unsupported class " + classType
+                    + " for constant " + constant.getName() + ".");
+        }
+
+        final String type = constant.getType();
+        final int size = getSize(type);
+        if (size < 0) {
+            throw new IllegalArgumentException("Unsupported type " + type + " for constant "
+                    + constant.getName() + ".");
+        }
+
+        final double scale = constant.getScale() == 0 ? 1 : constant.getScale();
+        final long raw = Math.round(value / scale - constant.getTranslate());
+        final int offset = constant.getOffset() + index * size;
+
+        switch (size) {
+            case 1:
+                setByte(offset, (int) raw);
+                break;
+            case 2:
+                setWord(offset, (int) raw);
+                break;
+            default:
+                setLong(offset, raw);
+                break;
+        }
+    }
+
+    public synchronized boolean isDirty() {
+        return !dirty.isEmpty();
+    }
+
+    /**
+     * Returns the number of changed bytes.
+     */
+    public synchronized int getDirtyCount() {
+        return dirty.cardinality();
+    }
+
+    /**
+     * Returns a copy of the set of changed byte offsets.
+     */
+    public synchronized BitSet getDirty() {
+        return (BitSet) dirty.clone();
+    }
+
+    /**
+     * Marks the bytes of {@code chunk} as changed, for example because writing them failed.
+     */
+    public synchronized void markDirty(PageChunk chunk) {
+        dirty.set(chunk.getOffset(), chunk.getEnd());
+    }
+
+    /**
+     * Copies the contents and the changed byte offsets into the given arrays and clears the
+     * changed offsets, atomically with respect to the setters.
+     *
+     * @param contents receives the contents of the page
+     *
+     * @return the offsets that were changed
+     */
+    public synchronized BitSet takeDirty(byte[] contents) {
+        System.arraycopy(data, 0, contents, 0, data.length);
+        final BitSet taken = (BitSet) dirty.clone();
+        dirty.clear();
+        return taken;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("PageImage [pageNo=");
+        builder.append(pageNo);
+        builder.append(", size=");
+        builder.append(data.length);
+        builder.append(", dirtyCount=");
+        builder.append(dirty.cardinality());
+        builder.append("]");
+        return builder.toString();
+    }
+
+    private void set(int offset, byte value) {
+        if (data[offset] != value) {
+            data[offset] = value;
+            dirty.set(offset);
+        }
+    }
+
+    /**
+     * Sets a bits constant, whose shape is {@code [lo:hi]} or {@code [lo:hi+offset]} as read by
+     * {@code MSUtils.getBits}, where the offset is added to the stored bits to give the value.
+     */
+    private void setBitsConstant(Constant constant, double value) {
+        final String shape = constant.getShape();
+        final int bitLo;
+        final int bitHi;
+        final int bitOffset;
+        try {
+            final String[] bits = shape.substring(shape.indexOf('[') + 1, shape.indexOf(']'))
+                    .split(":");
+            final String[] hi = bits[1].split("\\+");
+            bitLo = Integer.parseInt(bits[0].trim());
+            bitHi = Integer.parseInt(hi[0].trim());
+            bitOffset = hi.length > 1 ? Integer.parseInt(hi[1].trim()) : 0;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid shape " + shape + " for bits constant "
+                    + constant.getName() + ".", e);
+        }
+
+        if (bitLo < 0 || bitHi < bitLo || bitHi > 7) {
+            throw new IllegalArgumentException("Bits " + shape + " of constant "
+                    + constant.getName() + " are not within one byte.");
+        }
+
+        setBits(constant.getOffset(), bitLo, bitHi, (int) Math.round(value) - bitOffset);
+    }
+
+    private static int getSize(String type) {
+        if (type == null) {
+            return -1;
+        } else if (type.endsWith("08")) {
+            return 1;
+        } else if (type.endsWith("16")) {
+            return 2;
+        } else if (type.endsWith("32")) {
+            return 4;
+        } else {
+            return -1;
+        }
+    }
+}
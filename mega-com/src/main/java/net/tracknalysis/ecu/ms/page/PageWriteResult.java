@@ -0,0 +1,85 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.page;
+
+/**
+ * Outcome of writing the changed bytes of a {@link PageImage} to the ECU.
+ *
+ * @author David Valeri
+ */
+public final class PageWriteResult {
+
+    private final int pageNo;
+    private final int chunkCount;
+    private final int dataBytes;
+    private final int bytesSent;
+    private final long elapsedNanos;
+
+    public PageWriteResult(int pageNo, int chunkCount, int dataBytes, int bytesSent,
+            long elapsedNanos) {
+        this.pageNo = pageNo;
+        this.chunkCount = chunkCount;
+        this.dataBytes = dataBytes;
+        this.bytesSent = bytesSent;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getPageNo() {
+        return pageNo;
+    }
+
+    /**
+     * Returns the number of write commands sent.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Returns the number of page bytes written, including unchanged bytes inside merged chunks.
+     */
+    public int getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * Returns the number of bytes sent, including command framing.
+     */
+    public int getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("PageWriteResult [pageNo=");
+        builder.append(pageNo);
+        builder.append(", chunkCount=");
+        builder.append(chunkCount);
+        builder.append(", dataBytes=");
+        builder.append(dataBytes);
+        builder.append(", bytesSent=");
+        builder.append(bytesSent);
+        builder.append(", elapsedNanos=");
+        builder.append(elapsedNanos);
+        builder.append("]");
+        return builder.toString();
+    }
+}
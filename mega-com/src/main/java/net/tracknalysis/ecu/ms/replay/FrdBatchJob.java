@@ -0,0 +1,54 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.replay;
+
+import java.io.IOException;
+
+/**
+ * A unit of work run by {@link FrdBatchProcessor} over each file of a batch.  The processor
+ * calls {@link #processFile(FrdReplay)} concurrently from multiple threads, each time with a
+ * replay holding its own {@link net.tracknalysis.ecu.ms.common.MsEcu} instance, and combines
+ * the per file results with {@link #merge(Object, Object)} on a single thread.
+ *
+ * @param <R> the type of the result of the job
+ *
+ * @author David Valeri
+ */
+public interface FrdBatchJob<R> {
+
+    /**
+     * Returns the result of a batch with no files.
+     */
+    R identity();
+
+    /**
+     * Processes one file.  Implementations must not share mutable state between calls without
+     * synchronization.
+     *
+     * @param replay a replay positioned at the first record of the file, which is closed when
+     *            this method returns
+     *
+     * @return the result for the file
+     *
+     * @throws IOException if there is an error processing the file
+     */
+    R processFile(FrdReplay replay) throws IOException;
+
+    /**
+     * Combines two results.
+     */
+    R merge(R left, R right);
+}
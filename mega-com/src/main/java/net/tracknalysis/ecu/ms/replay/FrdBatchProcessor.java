@@ -0,0 +1,156 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.replay;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.tracknalysis.ecu.ms.MsConfiguration;
+import net.tracknalysis.ecu.ms.TableManager;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+import net.tracknalysis.ecu.ms.log.FRDLogReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs an {@link FrdBatchJob} over many FRD files in parallel.  Each file is processed on a
+ * worker thread with its own {@link FrdReplay}, and therefore its own instance of the generated
+ * ECU definition, as those instances hold their state in mutable fields.  Results are merged on
+ * the calling thread as files complete.  A file that fails does not stop the batch.
+ * <p/>
+ * The {@link TableManager} and {@link MsConfiguration} are shared by all workers and must be
+ * safe for concurrent reads.
+ *
+ * @author David Valeri
+ */
+public class FrdBatchProcessor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FrdBatchProcessor.class);
+
+    private final TableManager tableManager;
+    private final MsConfiguration configuration;
+    private final MsEcuFactory ecuFactory;
+    private final int threadCount;
+
+    /**
+     * Creates a processor using one thread per available processor.
+     */
+    public FrdBatchProcessor(TableManager tableManager, MsConfiguration configuration) {
+        this(tableManager, configuration, MsEcuFactory.getInstance(),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    public FrdBatchProcessor(TableManager tableManager, MsConfiguration configuration,
+            MsEcuFactory ecuFactory, int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be positive.");
+        }
+
+        this.tableManager = tableManager;
+        this.configuration = configuration;
+        this.ecuFactory = ecuFactory;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Runs {@code job} over {@code files}, blocking until all files are processed.
+     *
+     * @throws InterruptedException if interrupted while waiting, in which case outstanding
+     *             files are abandoned
+     */
+    public <R> FrdBatchResult<R> process(Collection<File> files, final FrdBatchJob<R> job)
+            throws InterruptedException {
+
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final CompletionService<FileResult<R>> completionService =
+                new ExecutorCompletionService<FileResult<R>>(executor);
+        final Map<Future<FileResult<R>>, File> submitted =
+                new LinkedHashMap<Future<FileResult<R>>, File>();
+
+        R result = job.identity();
+        int fileCount = 0;
+        long recordCount = 0;
+        Map<File, Exception> failures = new LinkedHashMap<File, Exception>();
+
+        try {
+            for (final File file : files) {
+                submitted.put(completionService.submit(new Callable<FileResult<R>>() {
+                    @Override
+                    public FileResult<R> call() throws Exception {
+                        return processFile(file, job);
+                    }
+                }), file);
+            }
+
+            for (int i = 0; i < submitted.size(); i++) {
+                Future<FileResult<R>> future = completionService.take();
+                File file = submitted.get(future);
+
+                try {
+                    FileResult<R> fileResult = future.get();
+                    result = job.merge(result, fileResult.result);
+                    recordCount += fileResult.recordCount;
+                    fileCount++;
+                } catch (ExecutionException e) {
+                    Exception cause = e.getCause() instanceof Exception
+                            ? (Exception) e.getCause() : e;
+                    LOG.warn("Error processing FRD file '" + file + "'.", cause);
+                    failures.put(file, cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        FrdBatchResult<R> batchResult = new FrdBatchResult<R>(result, fileCount, recordCount,
+                System.nanoTime() - start, failures);
+        LOG.info("Processed FRD batch: {}.", batchResult);
+
+        return batchResult;
+    }
+
+    private <R> FileResult<R> processFile(File file, FrdBatchJob<R> job) throws Exception {
+        FRDLogReader reader = new FRDLogReader(file);
+        try {
+            FrdReplay replay = new FrdReplay(reader, tableManager, configuration, ecuFactory);
+            R result = job.processFile(replay);
+            return new FileResult<R>(result, replay.getNextRecord());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static final class FileResult<R> {
+        private final R result;
+        private final int recordCount;
+
+        FileResult(R result, int recordCount) {
+            this.result = result;
+            this.recordCount = recordCount;
+        }
+    }
+}
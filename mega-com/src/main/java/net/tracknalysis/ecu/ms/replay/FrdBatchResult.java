@@ -0,0 +1,108 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.replay;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The outcome of running an {@link FrdBatchJob} with an {@link FrdBatchProcessor}.
+ *
+ * @param <R> the type of the result of the job
+ *
+ * @author David Valeri
+ */
+public final class FrdBatchResult<R> {
+
+    private final R result;
+    private final int fileCount;
+    private final long recordCount;
+    private final long elapsedNanos;
+    private final Map<File, Exception> failures;
+
+    FrdBatchResult(R result, int fileCount, long recordCount, long elapsedNanos,
+            Map<File, Exception> failures) {
+        this.result = result;
+        this.fileCount = fileCount;
+        this.recordCount = recordCount;
+        this.elapsedNanos = elapsedNanos;
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Returns the merged result of all successfully processed files.
+     */
+    public R getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the number of files successfully processed.
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Returns the number of records replayed from successfully processed files.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns the files that could not be processed and the reason.
+     */
+    public Map<File, Exception> getFailures() {
+        return failures;
+    }
+
+    public double getFilesPerSecond() {
+        return perSecond(fileCount);
+    }
+
+    public double getRecordsPerSecond() {
+        return perSecond(recordCount);
+    }
+
+    private double perSecond(long count) {
+        return elapsedNanos == 0 ? 0 : count * 1000000000d / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("FrdBatchResult [fileCount=");
+        builder.append(fileCount);
+        builder.append(", recordCount=");
+        builder.append(recordCount);
+        builder.append(", failureCount=");
+        builder.append(failures.size());
+        builder.append(", elapsedNanos=");
+        builder.append(elapsedNanos);
+        builder.append(", filesPerSecond=");
+        builder.append(getFilesPerSecond());
+        builder.append(", recordsPerSecond=");
+        builder.append(getRecordsPerSecond());
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.replay;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.tracknalysis.ecu.ms.AbstractMsController;
+import net.tracknalysis.ecu.ms.ChannelSnapshot;
+import net.tracknalysis.ecu.ms.ChannelSnapshotListener;
+import net.tracknalysis.ecu.ms.ChannelSnapshotPool;
+import net.tracknalysis.ecu.ms.MsConfiguration;
+import net.tracknalysis.ecu.ms.TableManager;
+import net.tracknalysis.ecu.ms.common.LogRowBuffer;
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactoryException;
+import net.tracknalysis.ecu.ms.log.FRDLogReader;
+import net.tracknalysis.ecu.ms.log.MslLog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays the raw OCH buffers recorded in an FRD log through the generated {@link MsEcu} matching
+ * the firmware signature in the log, without a Megasquirt.  Computed channels are re-derived by
+ * {@link MsEcu#calculate(byte[])} for each record and can be consumed as
+ * {@link ChannelSnapshot}s or re-exported as MSL.
+ * <p/>
+ * FRD logs do not contain the constants of the Megasquirt, so channels that are calculated
+ * from constants use the defaults of the ECU definition.  FRD logs also do not contain a time
+ * per record, so {@link net.tracknalysis.ecu.ms.common.MsController#timeNow()} is synthesized from the record index and
+ * {@link #setRecordInterval(double)}.
+ * <p/>
+ * Instances are not thread safe.
+ *
+ * @author David Valeri
+ */
+public class FrdReplay {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FrdReplay.class);
+
+    private final FRDLogReader reader;
+    private final MsEcu ecu;
+    private final byte[] ochBuffer;
+    private final ChannelSnapshotPool snapshots;
+    private final LogRowBuffer rowBuffer = new LogRowBuffer();
+
+    private double recordInterval;
+    private int nextRecord;
+
+    public FrdReplay(FRDLogReader reader, TableManager tableManager, MsConfiguration configuration)
+            throws MsEcuFactoryException {
+        this(reader, tableManager, configuration, MsEcuFactory.getInstance());
+    }
+
+    /**
+     * Creates a replay of {@code reader} using the ECU definition that {@code factory} provides
+     * for the signature in the log.
+     *
+     * @throws MsEcuFactoryException if there is no ECU definition for the signature or it
+     *             cannot be constructed
+     */
+    public FrdReplay(FRDLogReader reader, TableManager tableManager, MsConfiguration configuration,
+            MsEcuFactory factory) throws MsEcuFactoryException {
+        this.reader = reader;
+        ecu = factory.getMegasquirt(reader.getFirmware(), new ReplayController(tableManager, configuration));
+
+        if (ecu.getBlockSize() != reader.getBlockSize()) {
+            LOG.warn("Block size {} of {} does not match block size {} of ECU definition {}.",
+                    new Object[] {reader.getBlockSize(), reader, ecu.getBlockSize(),
+                            ecu.getClass().getName()});
+        }
+
+        ecu.refreshFlags();
+        ochBuffer = new byte[Math.max(reader.getBlockSize(), ecu.getBlockSize())];
+        snapshots = new ChannelSnapshotPool(ecu.getOutputChannelNames());
+    }
+
+    /**
+     * Returns the ECU definition instance the records are replayed through.
+     */
+    public MsEcu getEcu() {
+        return ecu;
+    }
+
+    public FRDLogReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Returns the snapshot of the output channels of the most recently replayed record.
+     */
+    public ChannelSnapshot getChannelSnapshot() {
+        return snapshots.getLatest();
+    }
+
+    /**
+     * Returns the index of the next record to replay.
+     */
+    public int getNextRecord() {
+        return nextRecord;
+    }
+
+    /**
+     * Sets the index of the next record to replay.
+     */
+    public void seek(int record) {
+        if (record < 0 || record > reader.getRecordCount()) {
+            throw new IndexOutOfBoundsException("Record " + record + " is out of range [0, "
+                    + reader.getRecordCount() + "].");
+        }
+        nextRecord = record;
+    }
+
+    /**
+     * Sets the time in seconds between records used to synthesize the time of each record.
+     * Defaults to 0.
+     */
+    public void setRecordInterval(double recordInterval) {
+        this.recordInterval = recordInterval;
+    }
+
+    /**
+     * Replays the next record, updating the ECU definition and the channel snapshot.
+     *
+     * @return false if there are no more records
+     */
+    public boolean next() {
+        if (nextRecord >= reader.getRecordCount()) {
+            return false;
+        }
+
+        reader.getOchBuffer(nextRecord, ochBuffer);
+        snapshots.calculate(ecu, ochBuffer,
+                reader.getTimestamp() + (long) (getRecordTime(nextRecord) * 1000));
+        nextRecord++;
+        return true;
+    }
+
+    /**
+     * Replays all remaining records, notifying {@code listener} of each.
+     *
+     * @return the number of records replayed
+     */
+    public int replay(ChannelSnapshotListener listener) {
+        int count = 0;
+        while (next()) {
+            listener.onSnapshot(snapshots.getLatest());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Replays all remaining records, writing them to {@code out} in MSL format.
+     *
+     * @return the number of records replayed
+     *
+     * @throws IOException if there is an error writing to {@code out}
+     */
+    public int writeMsl(OutputStream out) throws IOException {
+        MslLog.writeHeader(reader.getFirmware(), ecu.getLogHeader(), out);
+
+        int count = 0;
+        while (next()) {
+            MslLog.writeRow(ecu, rowBuffer, out);
+            count++;
+        }
+        return count;
+    }
+
+    private double getRecordTime(int record) {
+        return record * recordInterval;
+    }
+
+    /**
+     * Controller for offline use.  Page data is not available.
+     */
+    private final class ReplayController extends AbstractMsController {
+
+        public ReplayController(TableManager tableManager, MsConfiguration configuration) {
+            super(tableManager, configuration);
+        }
+
+        @Override
+        public double timeNow() {
+            return getRecordTime(nextRecord);
+        }
+
+        @Override
+        public byte[] loadPage(int pageNo, int pageOffset, int pageSize, byte[] select,
+                byte[] read) throws IOException {
+            throw new IOException("Page " + pageNo + " is not available when replaying "
+                    + reader.getFile() + ".");
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import static org.junit.Assert.assertEquals;
+
+import net.tracknalysis.common.io.IoManagerResult;
+
+import org.junit.Test;
+
+/**
+ * @author David Valeri
+ */
+public class AdaptiveTimingControllerTest {
+
+    private final AdaptiveTimingController controller = new AdaptiveTimingController();
+
+    @Test
+    public void testPageTimeoutIgnoresOchRoundTrips() {
+        for (int i = 0; i < controller.getWarmupSamples(); i++) {
+            final long start = 1000 + i * 100;
+            controller.recordOchSuccess(result(start, start + 5), result(start, start + 5), 212);
+        }
+
+        // A fast OCH link says nothing about how quickly pages are read.
+        assertEquals(AdaptiveTimingController.DEFAULT_PAGE_TIMEOUT, controller.getPageTimeout(1024));
+    }
+
+    @Test
+    public void testPageTimeoutAdaptsAfterPageWarmup() {
+        for (int i = 0; i < AdaptiveTimingController.PAGE_WARMUP_READS - 1; i++) {
+            controller.recordPageSuccess(result(1000, 1300), result(1000, 1300), 1024);
+            assertEquals(AdaptiveTimingController.DEFAULT_PAGE_TIMEOUT,
+                    controller.getPageTimeout(1024));
+        }
+        controller.recordPageSuccess(result(2000, 2400), result(2000, 2400), 1024);
+
+        // Twice the slowest 400 ms read plus the minimum slack.
+        assertEquals(820, controller.getPageTimeout(1024));
+        // Twice the slowest per byte time for a larger page, within the default.
+        assertEquals(1620, controller.getPageTimeout(2048));
+        assertEquals(AdaptiveTimingController.DEFAULT_PAGE_TIMEOUT, controller.getPageTimeout(4096));
+    }
+
+    @Test
+    public void testPageTimeoutCoversLatencyOfSmallReads() {
+        for (int i = 0; i < AdaptiveTimingController.PAGE_WARMUP_READS; i++) {
+            controller.recordPageSuccess(result(1000, 1400), result(1000, 1400), 1024);
+        }
+
+        // A page CRC is 4 bytes, but the ECU may take as long to produce it as to send a page.
+        assertEquals(820, controller.getPageTimeout(4));
+    }
+
+    @Test
+    public void testPageTimeoutFloor() {
+        for (int i = 0; i < AdaptiveTimingController.PAGE_WARMUP_READS; i++) {
+            controller.recordPageSuccess(result(1000, 1010), result(1000, 1010), 1024);
+        }
+
+        assertEquals(500, controller.getPageTimeout(1024));
+    }
+
+    @Test
+    public void testPageFailureAndResetRestoreDefault() {
+        for (int i = 0; i < AdaptiveTimingController.PAGE_WARMUP_READS; i++) {
+            controller.recordPageSuccess(result(1000, 1400), result(1000, 1400), 1024);
+        }
+        controller.recordPageFailure();
+        assertEquals(AdaptiveTimingController.DEFAULT_PAGE_TIMEOUT, controller.getPageTimeout(1024));
+
+        controller.recordPageSuccess(result(2000, 2400), result(2000, 2400), 1024);
+        assertEquals(820, controller.getPageTimeout(1024));
+
+        controller.reset();
+        assertEquals(AdaptiveTimingController.DEFAULT_PAGE_TIMEOUT, controller.getPageTimeout(1024));
+    }
+
+    @Test
+    public void testOchTimeoutAdaptsAfterWarmup() {
+        for (int i = 0; i < controller.getWarmupSamples(); i++) {
+            final long start = 1000 + i * 100;
+            controller.recordOchSuccess(result(start, start + 30), result(start, start + 30), 212);
+        }
+
+        assertEquals(30, controller.getMedianRoundTrip());
+        assertEquals(10 + 60, controller.getOchTimeout(10));
+        assertEquals(10, controller.getAchievedPollRate(), 0.001);
+    }
+
+    private static IoManagerResult result(long txStart, long rxEnd) {
+        final IoManagerResult result = new IoManagerResult();
+        result.setRequestTxStartTime(txStart);
+        result.setRequestRxEndTime(rxEnd);
+        return result;
+    }
+}
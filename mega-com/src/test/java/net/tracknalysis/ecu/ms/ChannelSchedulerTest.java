@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.io.MsIoManager;
+
+import org.junit.Test;
+
+/**
+ * @author David Valeri
+ */
+public class ChannelSchedulerTest {
+
+    private static final long MILLIS = 1000L * 1000;
+
+    @Test
+    public void testRangedReadCostIncludesMs2SplitPause() throws Exception {
+        final MsEcu ecu = EcuTestSupport.create(false);
+        final byte[] command = ecu.getOchCommand(0, 1);
+        assumeTrue(command != null && MsIoManager.getWriteDelay(command) > 0);
+
+        final ChannelScheduler scheduler = new ChannelScheduler();
+        final ChannelGroup group = addGroup(scheduler, ecu, 1);
+        scheduler.prepare(ecu, 0);
+
+        assertTrue(scheduler.getCost(group) >= (MsIoManager.SPLIT_WRITE_DELAY
+                + ecu.getInterWriteDelay()) * MILLIS);
+    }
+
+    @Test
+    public void testCrc32ReadCostIsInterWriteDelayAndTransfer() throws Exception {
+        final MsEcu ecu = EcuTestSupport.create(true);
+
+        final ChannelScheduler scheduler = new ChannelScheduler(ChannelScheduler.DEFAULT_BAUD_RATE,
+                MILLIS);
+        final ChannelGroup group = addGroup(scheduler, ecu, 1);
+        scheduler.prepare(ecu, 0);
+
+        final long cost = scheduler.getCost(group);
+        assertTrue(cost > (ecu.getInterWriteDelay() + 1) * MILLIS);
+        // At most the whole block at 115200 baud on top of the overheads.
+        assertTrue(cost <= (ecu.getInterWriteDelay() + 1) * MILLIS
+                + ecu.getBlockSize() * 86806L + 86806L);
+    }
+
+    @Test
+    public void testGroupsPolledAtTheirTargetRates() throws Exception {
+        final MsEcu ecu = EcuTestSupport.create(true);
+        final List<String> channels = EcuTestSupport.getDirectChannels(ecu);
+        assumeTrue(channels.size() >= 2);
+
+        final ChannelScheduler scheduler = new ChannelScheduler();
+        final ChannelGroup fast = scheduler.addGroup("fast", 50,
+                Collections.singleton(channels.get(0)));
+        final ChannelGroup slow = scheduler.addGroup("slow", 1,
+                Collections.singleton(channels.get(channels.size() - 1)));
+
+        // Ten seconds of polling on a simulated clock, each poll taking its estimated time.
+        long now = 0;
+        scheduler.prepare(ecu, now);
+        while (now < 10000 * MILLIS) {
+            final int mask = scheduler.selectDueGroups(now);
+            if (mask == 0) {
+                now += scheduler.getNanosUntilDue(now);
+                continue;
+            }
+
+            long cost = 0;
+            if ((mask & (1 << fast.getBit())) != 0) {
+                cost += scheduler.getCost(fast);
+            }
+            if ((mask & (1 << slow.getBit())) != 0) {
+                cost += scheduler.getCost(slow);
+            }
+            now += cost;
+            scheduler.recordPoll(mask, now);
+        }
+
+        assertEquals(500, fast.getPollCount(), 2);
+        assertEquals(10, slow.getPollCount(), 1);
+        assertEquals(50, fast.getAchievedRate(), 1);
+        assertEquals(1, slow.getAchievedRate(), 0.1);
+    }
+
+    private static ChannelGroup addGroup(ChannelScheduler scheduler, MsEcu ecu, int channelCount) {
+        final List<String> channels = EcuTestSupport.getDirectChannels(ecu);
+        assumeTrue(channels.size() >= channelCount);
+        return scheduler.addGroup("group", 10, channels.subList(0, channelCount));
+    }
+}
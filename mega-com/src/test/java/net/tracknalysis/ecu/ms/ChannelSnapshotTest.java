@@ -0,0 +1,178 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import net.tracknalysis.ecu.ms.common.MsEcu;
+
+import org.junit.Test;
+
+/**
+ * @author David Valeri
+ */
+public class ChannelSnapshotTest {
+
+    @Test
+    public void testPoolReusesSnapshots() {
+        final ChannelSnapshotPool pool = new ChannelSnapshotPool(new String[] {"rpm", "map"});
+        final ChannelSnapshot empty = pool.getLatest();
+        assertSnapshot(empty, 0, 0, 0, 0);
+
+        final ChannelSnapshot first = pool.calculate(ecu(1000, 50), new byte[0], 1);
+        assertSame(first, pool.getLatest());
+        assertSnapshot(first, 1, 1, 1000, 50);
+        assertSnapshot(empty, 0, 0, 0, 0);
+
+        final ChannelSnapshot second = pool.calculate(ecu(2000, 75), new byte[0], 2);
+        assertSame(empty, second);
+        assertSnapshot(second, 2, 2, 2000, 75);
+        assertSnapshot(first, 1, 1, 1000, 50);
+
+        assertSame(first, pool.calculate(ecu(3000, 80), new byte[0], 3));
+        assertSnapshot(first, 3, 3, 3000, 80);
+        assertEquals(1, first.getIndex("map"));
+        assertEquals(-1, first.getIndex("tps"));
+        assertEquals("map", second.getName(1));
+    }
+
+    @Test
+    public void testCopyIsConsistentWhileFilling() throws Exception {
+        // A single snapshot is refilled by every poll, the worst case for a reader.
+        final ChannelSnapshotPool pool = new ChannelSnapshotPool(new String[] {"a", "b"}, 1);
+        final ChannelSnapshot snapshot = pool.getLatest();
+        final MsEcu ecu = sequenceEcu();
+
+        final Thread owner = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= 10000; i++) {
+                    pool.calculate(ecu, new byte[0], i);
+                }
+            }
+        };
+        owner.start();
+        final double[] copy = new double[2];
+        int copies = 0;
+        while (owner.isAlive()) {
+            final long sequence = snapshot.copyTo(copy);
+            // Every copied channel comes from the poll the copy reports.
+            assertEquals(sequence, (long) copy[0]);
+            assertEquals(sequence, (long) copy[1]);
+            copies++;
+        }
+        owner.join();
+
+        assertTrue(copies > 0);
+        assertEquals(10000, snapshot.copyTo(copy));
+        assertEquals(10000, (long) copy[1]);
+    }
+
+    @Test
+    public void testCalculateDoesNotAllocate() throws Exception {
+        final ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMxBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationMxBean =
+                (com.sun.management.ThreadMXBean) threadMxBean;
+        assumeTrue(allocationMxBean.isThreadAllocatedMemorySupported());
+        allocationMxBean.setThreadAllocatedMemoryEnabled(true);
+
+        for (String signature : EcuTestSupport.getSignatures()) {
+            final MsEcu ecu = EcuTestSupport.create(signature);
+            final ChannelSnapshotPool pool = new ChannelSnapshotPool(ecu.getOutputChannelNames());
+            final byte[] ochBuffer = new byte[ecu.getBlockSize()];
+            final long threadId = Thread.currentThread().getId();
+
+            // Warm up so that class loading and compilation are not counted.
+            for (int i = 0; i < 20000; i++) {
+                pool.calculate(ecu, ochBuffer, i);
+            }
+
+            final int iterations = 10000;
+            final long before = allocationMxBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < iterations; i++) {
+                pool.calculate(ecu, ochBuffer, i);
+            }
+            final long allocated = allocationMxBean.getThreadAllocatedBytes(threadId) - before;
+
+            assertEquals(signature + " allocated " + allocated + " bytes in " + iterations
+                    + " calculations.", 0, allocated);
+        }
+    }
+
+    private static void assertSnapshot(ChannelSnapshot snapshot, long sequence, long timestamp,
+            double rpm, double map) {
+        assertEquals(sequence, snapshot.getSequence());
+        assertEquals(timestamp, snapshot.getTimestamp());
+        assertEquals(rpm, snapshot.getValue(0), 0);
+        assertEquals(map, snapshot.getValue(1), 0);
+    }
+
+    /**
+     * Returns an ECU whose output channels have the given values.
+     */
+    private static MsEcu ecu(final double... values) {
+        return proxy(new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                checkCalculate(method, args);
+                System.arraycopy(values, 0, (double[]) args[1], 0, values.length);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns an ECU whose two output channels both hold the number of calculations so far,
+     * yielding between them so that a reader is likely to overlap a calculation.
+     */
+    private static MsEcu sequenceEcu() {
+        return proxy(new InvocationHandler() {
+            private int calculations;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                checkCalculate(method, args);
+                final double[] values = (double[]) args[1];
+                calculations++;
+                values[0] = calculations;
+                Thread.yield();
+                values[1] = calculations;
+                return null;
+            }
+        });
+    }
+
+    private static void checkCalculate(Method method, Object[] args) {
+        if (!method.getName().equals("calculate") || args.length != 2) {
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private static MsEcu proxy(InvocationHandler handler) {
+        return (MsEcu) Proxy.newProxyInstance(MsEcu.class.getClassLoader(),
+                new Class<?>[] {MsEcu.class}, handler);
+    }
+}
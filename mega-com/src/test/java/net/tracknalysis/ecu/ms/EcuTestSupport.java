@@ -0,0 +1,108 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.tracknalysis.ecu.ms.common.MsEcu;
+import net.tracknalysis.ecu.ms.common.OutputChannel;
+import net.tracknalysis.ecu.ms.ecu.EcuRegistry;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactory;
+import net.tracknalysis.ecu.ms.ecu.factory.MsEcuFactoryException;
+
+/**
+ * Creates instances of the generated ECU definitions for tests, without an ECU.
+ *
+ * @author David Valeri
+ */
+public final class EcuTestSupport {
+
+    /**
+     * Hidden in utility class.
+     */
+    private EcuTestSupport() {
+    }
+
+    /**
+     * Returns the registered signatures in sorted order, skipping the test if there are none.
+     */
+    public static List<String> getSignatures() {
+        final List<String> signatures = new ArrayList<String>(EcuRegistry.INSTANCE.getSignatures());
+        assumeTrue(!signatures.isEmpty());
+        Collections.sort(signatures);
+        return signatures;
+    }
+
+    public static MsEcu create(String signature) throws MsEcuFactoryException {
+        return MsEcuFactory.getInstance().getMegasquirt(signature, new TestController());
+    }
+
+    /**
+     * Returns the first registered definition using the given protocol, skipping the test if
+     * there is none.
+     */
+    public static MsEcu create(boolean crc32) throws MsEcuFactoryException {
+        for (String signature : getSignatures()) {
+            final MsEcu ecu = create(signature);
+            if (ecu.isCRC32Protocol() == crc32) {
+                return ecu;
+            }
+        }
+
+        assumeTrue(false);
+        return null;
+    }
+
+    /**
+     * Returns the names of the channels of {@code ecu} that are read directly from the OCH block.
+     */
+    public static List<String> getDirectChannels(MsEcu ecu) {
+        final List<String> names = new ArrayList<String>();
+        for (String name : ecu.getOutputChannelNames()) {
+            final OutputChannel channel = ecu.getOutputChannelByName(name);
+            if (channel.getOffset() >= 0 && OchRangePlanner.getSize(channel.getType()) > 0) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Satisfies the generated definitions without an ECU.  Pages read as zeros.
+     */
+    private static final class TestController extends AbstractMsController {
+
+        public TestController() {
+            super(new DefaultTableManager(), new DefaultMsConfiguration(Collections.<String>emptySet()));
+        }
+
+        @Override
+        public double timeNow() {
+            return 0;
+        }
+
+        @Override
+        public byte[] loadPage(int pageNo, int pageOffset, int pageSize, byte[] select,
+                byte[] read) throws IOException {
+            return new byte[pageSize];
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.tracknalysis.ecu.ms.io.Crc32IoProtocolHandler;
+
+import org.junit.Test;
+
+/**
+ * @author David Valeri
+ */
+public class OchRangePlannerTest {
+
+    private static final int BLOCK_SIZE = 212;
+
+    private final Crc32IoProtocolHandler handler = new Crc32IoProtocolHandler();
+
+    @Test
+    public void testSplitMs2CommandsOutweighSavedBytes() {
+        final List<OchRange> one = Arrays.asList(new OchRange(0, 4));
+        final List<OchRange> two = Arrays.asList(new OchRange(0, 4), new OchRange(100, 4));
+
+        // The whole block is read with a ranged command too, so one range costs the same pause.
+        assertTrue(OchRangePlanner.isRangedReadCheaper(one, commands(one), BLOCK_SIZE,
+                command(0, BLOCK_SIZE), OchRangePlanner.SERIAL_BYTES_PER_MILLI));
+        // A second pause of 200 ms costs far more than the 200 bytes saved.
+        assertFalse(OchRangePlanner.isRangedReadCheaper(two, commands(two), BLOCK_SIZE,
+                command(0, BLOCK_SIZE), OchRangePlanner.SERIAL_BYTES_PER_MILLI));
+        // Against a single byte command, even one split range is slower.
+        assertFalse(OchRangePlanner.isRangedReadCheaper(one, commands(one), BLOCK_SIZE,
+                new byte[] {'A'}, OchRangePlanner.SERIAL_BYTES_PER_MILLI));
+    }
+
+    @Test
+    public void testCrc32RangesCostOnlyBytes() throws Exception {
+        final List<OchRange> two = Arrays.asList(new OchRange(0, 4), new OchRange(100, 4));
+        final byte[][] commands = commands(two);
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = handler.wrapRequest(commands[i]);
+        }
+
+        assertTrue(OchRangePlanner.isRangedReadCheaper(two, commands, BLOCK_SIZE,
+                handler.wrapRequest(command(0, BLOCK_SIZE)), OchRangePlanner.SERIAL_BYTES_PER_MILLI));
+
+        final List<OchRange> whole = Arrays.asList(new OchRange(0, BLOCK_SIZE));
+        assertFalse(OchRangePlanner.isRangedReadCheaper(whole,
+                new byte[][] {handler.wrapRequest(command(0, BLOCK_SIZE))}, BLOCK_SIZE,
+                handler.wrapRequest(command(0, BLOCK_SIZE)), OchRangePlanner.SERIAL_BYTES_PER_MILLI));
+    }
+
+    private static byte[][] commands(List<OchRange> ranges) {
+        final byte[][] commands = new byte[ranges.size()][];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = command(ranges.get(i).getOffset(), ranges.get(i).getCount());
+        }
+        return commands;
+    }
+
+    /**
+     * Returns an MS2 style ranged OCH read.
+     */
+    private static byte[] command(int offset, int count) {
+        return new byte[] {'r', 0, 7, (byte) (offset >> 8), (byte) offset, (byte) (count >> 8),
+                (byte) count};
+    }
+}
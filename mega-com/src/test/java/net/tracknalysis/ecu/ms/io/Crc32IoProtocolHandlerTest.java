@@ -0,0 +1,222 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+/**
+ * @author David Valeri
+ */
+public class Crc32IoProtocolHandlerTest {
+
+    private final Crc32IoProtocolHandler handler = new Crc32IoProtocolHandler();
+
+    @Test
+    public void testWrapRequestMatchesCopyingWrap() throws Exception {
+        final byte[] naked = payload(7);
+        final byte[] expected = handler.wrapRequest(naked);
+        final byte[] wrapped = new byte[handler.getWrappedRequestLength(naked.length) + 3];
+
+        assertEquals(expected.length, handler.wrapRequest(naked, 0, naked.length, wrapped, 3));
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], wrapped[i + 3]);
+        }
+        assertTrue(handler.check(wrapped, 3, expected.length));
+    }
+
+    @Test
+    public void testWrapResponseMatchesEcu() throws Exception {
+        final byte[] payload = payload(212);
+        assertArrayEquals(response(payload), handler.wrapResponse(0, payload));
+
+        final byte[] wrapped = new byte[handler.getWrappedResponseLength(0) + 3];
+        assertEquals(wrapped.length - 3, handler.wrapResponse(0x83, new byte[0], 0, 0, wrapped, 3));
+        assertEquals((byte) 0x83, wrapped[5]);
+        assertTrue(handler.check(wrapped, 3, wrapped.length - 3));
+        assertEquals(0, handler.unwrapResponseView(wrapped, 3, wrapped.length - 3).remaining());
+    }
+
+    @Test
+    public void testUnwrapAtOffset() throws Exception {
+        final byte[] payload = payload(212);
+        final byte[] response = response(payload);
+        final byte[] frame = new byte[response.length + 5];
+        System.arraycopy(response, 0, frame, 5, response.length);
+        final byte[] naked = new byte[payload.length + 2];
+
+        assertEquals(payload.length, handler.unwrapResponse(frame, 5, response.length, naked, 2));
+        for (int i = 0; i < payload.length; i++) {
+            assertEquals(payload[i], naked[i + 2]);
+        }
+
+        final ByteBuffer view = handler.unwrapResponseView(frame, 5, response.length);
+        assertEquals(payload.length, view.remaining());
+        for (int i = 0; i < payload.length; i++) {
+            assertEquals(payload[i], view.get());
+        }
+    }
+
+    @Test
+    public void testUnwrapRejectsCorruptFrame() throws Exception {
+        final byte[] frame = response(payload(212));
+        frame[10] ^= 0x01;
+
+        assertFalse(handler.check(frame, 0, frame.length));
+        try {
+            handler.unwrapResponse(frame, 0, frame.length, new byte[212], 0);
+            fail();
+        } catch (Crc32Exception e) {
+            // Expected
+        }
+        try {
+            handler.unwrapResponseView(frame, 0, frame.length);
+            fail();
+        } catch (Crc32Exception e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testUnwrapRejectsShortFrame() throws Exception {
+        final byte[] frame = response(new byte[0]);
+
+        // Every truncation shorter than an empty response must be refused rather than
+        // yielding a negative payload length.
+        for (int length = 0; length < frame.length; length++) {
+            try {
+                handler.unwrapResponse(frame, 0, length, new byte[0], 0);
+                fail("Accepted " + length + " byte frame.");
+            } catch (Crc32Exception e) {
+                // Expected
+            }
+            try {
+                handler.unwrapResponseView(frame, 0, length);
+                fail("Accepted " + length + " byte frame.");
+            } catch (Crc32Exception e) {
+                // Expected
+            }
+        }
+
+        assertEquals(0, handler.unwrapResponse(frame, 0, frame.length, new byte[0], 0));
+        assertEquals(0, handler.unwrapResponseView(frame, 0, frame.length).remaining());
+    }
+
+    @Test
+    public void testUnwrapInPlaceDoesNotCopy() throws Exception {
+        final ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMxBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationMxBean =
+                (com.sun.management.ThreadMXBean) threadMxBean;
+        assumeTrue(allocationMxBean.isThreadAllocatedMemorySupported());
+        allocationMxBean.setThreadAllocatedMemoryEnabled(true);
+
+        final byte[] payload = payload(1024);
+        final byte[] frame = response(payload);
+        final byte[] naked = new byte[payload.length];
+        final long threadId = Thread.currentThread().getId();
+
+        // Warm up so that class loading and compilation are not counted.
+        for (int i = 0; i < 20000; i++) {
+            handler.unwrapResponse(frame, naked);
+        }
+
+        final int iterations = 10000;
+        final long before = allocationMxBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            handler.unwrapResponse(frame, naked);
+        }
+        final long allocated = allocationMxBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertArrayEquals(payload, naked);
+        // Escape analysis usually, but not always, removes the CRC32 created for each frame, so
+        // allow for it, but not for a copy of the payload.
+        assertTrue("Allocated " + allocated + " bytes in " + iterations + " unwraps.",
+                allocated < iterations * 64L);
+    }
+
+    @Test
+    public void testSharedBetweenThreads() throws Exception {
+        final int threadCount = 4;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final byte[] payload = payload(1024 + i);
+            final byte[] frame = response(payload);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final byte[] naked = new byte[payload.length];
+                    try {
+                        for (int j = 0; j < 5000; j++) {
+                            handler.unwrapResponse(frame, 0, frame.length, naked, 0);
+                            assertArrayEquals(payload, naked);
+                            assertTrue(handler.check(handler.wrapRequest(payload)));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    static byte[] payload(int length) {
+        final byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        return payload;
+    }
+
+    /**
+     * Builds an OK response as sent by the ECU, independently of the handler under test.
+     */
+    static byte[] response(byte[] payload) {
+        final byte[] frame = new byte[payload.length + 7];
+        frame[0] = (byte) ((payload.length + 1) >> 8);
+        frame[1] = (byte) (payload.length + 1);
+        frame[2] = 0;
+        System.arraycopy(payload, 0, frame, 3, payload.length);
+
+        final CRC32 crc32 = new CRC32();
+        crc32.update(frame, 2, payload.length + 1);
+        final long value = crc32.getValue();
+        frame[frame.length - 4] = (byte) (value >> 24);
+        frame[frame.length - 3] = (byte) (value >> 16);
+        frame[frame.length - 2] = (byte) (value >> 8);
+        frame[frame.length - 1] = (byte) value;
+        return frame;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.tracknalysis.common.io.IoManager;
+import net.tracknalysis.common.io.command.IoCommand;
+
+import org.junit.Test;
+
+/**
+ * @author David Valeri
+ */
+public class PriorityCommandQueueTest {
+
+    private static final long NEVER = Long.MAX_VALUE;
+
+    @Test
+    public void testServesByPriorityThenArrival() {
+        final PriorityCommandQueue queue = new PriorityCommandQueue(NEVER);
+        final IoCommand poll = new Command(CommandPriority.POLL);
+        final IoCommand bulk1 = new Command(CommandPriority.BULK);
+        final IoCommand plain = new IoCommand() {
+            @Override
+            public void execute(IoManager ioManager) {
+            }
+        };
+        final IoCommand interactive1 = new Command(CommandPriority.INTERACTIVE);
+        final IoCommand interactive2 = new Command(CommandPriority.INTERACTIVE);
+
+        queue.offer(poll);
+        queue.offer(bulk1);
+        queue.offer(plain);
+        queue.offer(interactive1);
+        queue.offer(interactive2);
+        assertEquals(5, queue.size());
+
+        assertSame(interactive1, queue.poll());
+        assertSame(interactive2, queue.poll());
+        assertSame(bulk1, queue.poll());
+        // Commands without a priority are bulk commands.
+        assertSame(plain, queue.poll());
+        assertSame(poll, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.getPromotedCount());
+    }
+
+    @Test
+    public void testPollPromotedAfterMaxPollGap() {
+        final PriorityCommandQueue queue = new PriorityCommandQueue(0);
+        final IoCommand poll = new Command(CommandPriority.POLL);
+        final IoCommand interactive = new Command(CommandPriority.INTERACTIVE);
+
+        queue.offer(interactive);
+        queue.offer(poll);
+
+        assertSame(poll, queue.poll());
+        assertSame(interactive, queue.poll());
+        assertEquals(1, queue.getPromotedCount());
+    }
+
+    @Test
+    public void testPollGapMeasuredFromEndOfPoll() throws Exception {
+        final PriorityCommandQueue queue = new PriorityCommandQueue(50L * 1000 * 1000);
+        final IoCommand poll = new Command(CommandPriority.POLL);
+        final IoCommand interactive1 = new Command(CommandPriority.INTERACTIVE);
+        final IoCommand interactive2 = new Command(CommandPriority.INTERACTIVE);
+
+        queue.offer(poll);
+        Thread.sleep(60);
+        assertSame(poll, queue.poll());
+
+        // A poll running for longer than the gap, as ranged MS2 reads do, re-enqueues itself.
+        queue.offer(interactive1);
+        queue.offer(interactive2);
+        queue.offer(poll);
+        Thread.sleep(60);
+
+        assertSame(interactive1, queue.poll());
+        Thread.sleep(60);
+        assertSame(poll, queue.poll());
+        assertEquals(1, queue.getPromotedCount());
+        assertSame(interactive2, queue.poll());
+    }
+
+    @Test
+    public void testWaitTimesRecordedPerPriority() throws Exception {
+        final PriorityCommandQueue queue = new PriorityCommandQueue(NEVER);
+        queue.offer(new Command(CommandPriority.POLL));
+        queue.offer(new Command(CommandPriority.INTERACTIVE));
+        Thread.sleep(20);
+        queue.poll();
+        queue.poll();
+
+        final WaitTimeHistogram interactive =
+                queue.getWaitTimeHistogram(CommandPriority.INTERACTIVE);
+        final WaitTimeHistogram polls = queue.getWaitTimeHistogram(CommandPriority.POLL);
+        assertEquals(1, interactive.getCount());
+        assertEquals(1, polls.getCount());
+        assertEquals(0, queue.getWaitTimeHistogram(CommandPriority.BULK).getCount());
+        assertTrue(interactive.toString(), interactive.getMaxNanos() >= 20000000L);
+        assertTrue(polls.toString(), polls.getMaxNanos() >= interactive.getMaxNanos());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        final WaitTimeHistogram histogram = new WaitTimeHistogram();
+        for (int i = 0; i < 99; i++) {
+            // 3 us falls in the 2-4 us bucket.
+            histogram.record(3000);
+        }
+        histogram.record(1000000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(4, histogram.getPercentileMicros(50));
+        assertEquals(4, histogram.getPercentileMicros(99));
+        assertEquals(1024, histogram.getPercentileMicros(100));
+        assertEquals(1000000, histogram.getMaxNanos());
+        assertEquals((99 * 3000 + 1000000) / 100, histogram.getMeanNanos());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(99));
+    }
+
+    private static final class Command implements PrioritizedIoCommand {
+
+        private final CommandPriority priority;
+
+        Command(CommandPriority priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public CommandPriority getPriority() {
+            return priority;
+        }
+
+        @Override
+        public void execute(IoManager ioManager) {
+        }
+    }
+}
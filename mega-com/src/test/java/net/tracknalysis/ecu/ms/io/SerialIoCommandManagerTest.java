@@ -0,0 +1,104 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tracknalysis.common.io.IoManager;
+import net.tracknalysis.common.io.command.IoCommand;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author David Valeri
+ */
+public class SerialIoCommandManagerTest {
+
+    private static final long DELAY_MILLIS = 200;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDelayedCommandDoesNotHoldPoolThread() throws Exception {
+        final SerialIoCommandManager delayed = new SerialIoCommandManager(null, executor);
+        final SerialIoCommandManager other = new SerialIoCommandManager(null, executor);
+        delayed.start();
+        other.start();
+
+        final long start = System.nanoTime();
+        final LatchCommand late = new LatchCommand();
+        final LatchCommand immediate = new LatchCommand();
+        assertTrue(delayed.enqueue(late, DELAY_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(other.enqueue(immediate));
+
+        // The only pool thread is free for the other instance while the delay runs.
+        assertTrue(immediate.ran.await(DELAY_MILLIS / 2, TimeUnit.MILLISECONDS));
+        assertEquals(1, late.ran.getCount());
+
+        assertTrue(late.ran.await(5, TimeUnit.SECONDS));
+        assertTrue(late.ranAt.get() - start >= TimeUnit.MILLISECONDS.toNanos(DELAY_MILLIS));
+    }
+
+    @Test
+    public void testStopDiscardsDelayedCommands() throws Exception {
+        final SerialIoCommandManager manager = new SerialIoCommandManager(null, executor);
+        manager.start();
+
+        final LatchCommand stale = new LatchCommand();
+        manager.enqueue(stale, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        manager.stop();
+        // Restarted before the delay ends, as on a reconnect.
+        manager.start();
+
+        final LatchCommand fresh = new LatchCommand();
+        manager.enqueue(fresh, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertTrue(fresh.ran.await(5, TimeUnit.SECONDS));
+        assertFalse(stale.ran.await(DELAY_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDelayedEnqueueRequiresStart() {
+        new SerialIoCommandManager(null, executor).enqueue(new LatchCommand(), 1,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private static final class LatchCommand implements IoCommand {
+
+        private final CountDownLatch ran = new CountDownLatch(1);
+        private final AtomicLong ranAt = new AtomicLong();
+
+        @Override
+        public void execute(IoManager ioManager) {
+            ranAt.set(System.nanoTime());
+            ran.countDown();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.common.notification.NotificationListener;
+import net.tracknalysis.ecu.ms.Megasquirt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author David Valeri
+ */
+public class AsyncFileLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsAndMarksKeepTheirOrder() throws Exception {
+        final TextLog log = new TextLog(folder.getRoot());
+        final AsyncFileLog asyncLog = new AsyncFileLog(log, 4096);
+        final int threads = 4;
+        final int samples = 500;
+
+        asyncLog.start();
+        final List<Thread> producers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            producers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < samples; i++) {
+                            asyncLog.write(null);
+                            if (i % 100 == 0) {
+                                asyncLog.mark(thread + " " + i);
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        asyncLog.stop();
+
+        final List<String> lines = readLines(new File(asyncLog.getLogFileAbsolutePath()));
+        assertEquals("header", lines.get(0));
+        // Records reach the file in the order they were formatted and each thread's marks in
+        // the order it placed them.
+        int records = 0;
+        final int[] lastMark = new int[threads];
+        for (int i = 1; i < lines.size(); i++) {
+            final String[] fields = lines.get(i).split(" ");
+            if (fields[0].equals("sample")) {
+                assertEquals(records++, Integer.parseInt(fields[1]));
+            } else {
+                final int thread = Integer.parseInt(fields[1]);
+                final int sample = Integer.parseInt(fields[2]);
+                assertTrue(sample == 0 || sample > lastMark[thread]);
+                lastMark[thread] = sample;
+            }
+        }
+        assertEquals(threads * samples, records);
+        assertEquals(threads * (samples + samples / 100), asyncLog.getWrittenCount());
+        assertEquals(0, asyncLog.getDroppedCount());
+    }
+
+    @Test
+    public void testDropsWhenFullAndNotifiesOncePerRun() throws Exception {
+        final TextLog log = new TextLog(folder.getRoot());
+        log.gate = new Semaphore(0);
+        final AsyncFileLog asyncLog = new AsyncFileLog(log, 4);
+        final Notifications notifications = new Notifications();
+        asyncLog.addListener(notifications);
+
+        asyncLog.start();
+        // The writer thread takes the first sample and blocks writing it, keeping its slot.
+        asyncLog.write(null);
+        assertTrue(log.entered.tryAcquire(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 7; i++) {
+            asyncLog.write(null);
+        }
+        assertEquals(4, asyncLog.getDroppedCount());
+        assertEquals(1, notifications.count(AsyncLogNotificationType.SAMPLES_DROPPED));
+
+        log.gate.release(4);
+        awaitEmpty(asyncLog);
+        asyncLog.write(null);
+        assertEquals(AsyncLogNotificationType.SAMPLES_RESUMED, notifications.last());
+
+        for (int i = 0; i < 8; i++) {
+            asyncLog.write(null);
+        }
+        assertEquals(2, notifications.count(AsyncLogNotificationType.SAMPLES_DROPPED));
+
+        log.gate.release(Integer.MAX_VALUE / 2);
+        asyncLog.stop();
+        assertEquals(1 + 7 + 1 + 8, asyncLog.getWrittenCount() + asyncLog.getDroppedCount());
+        // The header and every sample that was not dropped.
+        assertEquals(1 + asyncLog.getWrittenCount(),
+                readLines(new File(asyncLog.getLogFileAbsolutePath())).size());
+    }
+
+    @Test
+    public void testWritesQueuedWhileBlockedAreFlushedOnce() throws Exception {
+        final TextLog log = new TextLog(folder.getRoot());
+        log.gate = new Semaphore(0);
+        final AsyncFileLog asyncLog = new AsyncFileLog(log, 256);
+
+        asyncLog.start();
+        asyncLog.write(null);
+        assertTrue(log.entered.tryAcquire(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            asyncLog.write(null);
+        }
+        log.gate.release(Integer.MAX_VALUE / 2);
+        awaitEmpty(asyncLog);
+        asyncLog.stop();
+
+        assertEquals(101, asyncLog.getWrittenCount());
+        assertEquals(102, readLines(new File(asyncLog.getLogFileAbsolutePath())).size());
+        // One flush once the queue drained, rather than one per sample, then the flush and the
+        // close on stop.
+        assertEquals(3, log.flushes);
+    }
+
+    @Test
+    public void testWriterFailuresAreCountedAndReported() throws Exception {
+        final TextLog log = new TextLog(folder.getRoot());
+        log.failEvery = 5;
+        final AsyncFileLog asyncLog = new AsyncFileLog(log, 64);
+        final Notifications notifications = new Notifications();
+        asyncLog.addListener(notifications);
+
+        asyncLog.start();
+        for (int i = 0; i < 49; i++) {
+            asyncLog.write(null);
+        }
+        asyncLog.stop();
+
+        // The header shares the first slot, so 49 slots are written in 49 writes, of which the
+        // 5th, 10th, ... 45th fail.
+        assertEquals(49, asyncLog.getWrittenCount());
+        assertEquals(9, asyncLog.getWriteFailedCount());
+        assertEquals(9, notifications.count(AsyncLogNotificationType.WRITE_FAILED));
+        assertEquals(1 + 49 - 9, readLines(new File(asyncLog.getLogFileAbsolutePath())).size());
+    }
+
+    private static void awaitEmpty(AsyncFileLog log) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (log.getQueueDepth() > 0) {
+            assertTrue("Timed out draining the queue.", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            final List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Records the notifications received.
+     */
+    private static final class Notifications implements NotificationListener<AsyncLogNotificationType> {
+
+        private final List<AsyncLogNotificationType> received =
+                Collections.synchronizedList(new ArrayList<AsyncLogNotificationType>());
+
+        @Override
+        public void handleNotification(AsyncLogNotificationType type, Object body) {
+            received.add(type);
+        }
+
+        int count(AsyncLogNotificationType type) {
+            synchronized (received) {
+                return Collections.frequency(received, type);
+            }
+        }
+
+        AsyncLogNotificationType last() {
+            synchronized (received) {
+                return received.get(received.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Writes a header line, one numbered line per sample and one line per mark straight to the
+     * file.  Each write of the file may wait for a permit from the gate or fail, and flushes are
+     * counted.
+     */
+    private static final class TextLog extends AbstractFileLog {
+
+        private final Semaphore entered = new Semaphore(0);
+        private volatile Semaphore gate;
+        private volatile int failEvery;
+        private volatile int flushes;
+        private int samples;
+        private int writes;
+
+        public TextLog(File logFolder) {
+            super(logFolder);
+        }
+
+        @Override
+        protected void mark(String message, OutputStream out) throws IOException {
+            out.write(("MARK " + message + "\n").getBytes("US-ASCII"));
+        }
+
+        @Override
+        protected void writeHeader(Megasquirt ms, OutputStream out) throws IOException {
+            out.write("header\n".getBytes("US-ASCII"));
+        }
+
+        @Override
+        protected void write(Megasquirt ms, OutputStream out) throws IOException {
+            out.write(("sample " + samples++ + "\n").getBytes("US-ASCII"));
+        }
+
+        @Override
+        public boolean isMarkSupported() {
+            return true;
+        }
+
+        @Override
+        protected String getFileExtension() {
+            return "txt";
+        }
+
+        @Override
+        protected OutputStream createOutputStream(File logFile) throws FileNotFoundException {
+            return new FilterOutputStream(new FileOutputStream(logFile)) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    entered.release();
+                    if (gate != null) {
+                        gate.acquireUninterruptibly();
+                    }
+                    writes++;
+                    if (failEvery > 0 && writes % failEvery == 0) {
+                        throw new IOException("Failed write " + writes + ".");
+                    }
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    flushes++;
+                    super.flush();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import net.tracknalysis.common.notification.NotificationListener;
+import net.tracknalysis.ecu.ms.Megasquirt;
+
+import org.junit.Test;
+
+/**
+ * @author David Valeri
+ */
+public class AsyncLogAdapterTest {
+
+    @Test
+    public void testWritesAndMarksInOrder() throws Exception {
+        final RecordingLog log = new RecordingLog();
+        final AsyncLogAdapter adapter = new AsyncLogAdapter(log, 4096);
+
+        final List<String> expected = new ArrayList<String>();
+        adapter.start();
+        for (int i = 0; i < 1000; i++) {
+            adapter.write(null);
+            expected.add("write");
+            if (i % 100 == 0) {
+                adapter.mark("m" + i);
+                expected.add("mark m" + i);
+                adapter.mark();
+                expected.add("mark");
+            }
+        }
+        adapter.stop();
+
+        assertEquals(expected, log.calls);
+        assertEquals(expected.size(), adapter.getWrittenCount());
+        assertEquals(0, adapter.getDroppedCount());
+        assertEquals(0, adapter.getQueueDepth());
+        assertTrue(adapter.getMaxLatencyNanos() > 0);
+        assertTrue(adapter.getTotalLatencyNanos() >= adapter.getMaxLatencyNanos());
+        assertTrue(log.stopped);
+    }
+
+    @Test
+    public void testDropsWhenFullAndNotifiesOncePerRun() throws Exception {
+        final RecordingLog log = new RecordingLog();
+        log.gate = new Semaphore(0);
+        final AsyncLogAdapter adapter = new AsyncLogAdapter(log, 4);
+        final Notifications notifications = new Notifications();
+        adapter.addListener(notifications);
+
+        adapter.start();
+        // The writer thread takes the first sample and blocks in the log.
+        adapter.write(null);
+        assertTrue(log.entered.tryAcquire(10, TimeUnit.SECONDS));
+        // The sample being written keeps its slot, so three more fit.
+        for (int i = 0; i < 7; i++) {
+            adapter.write(null);
+        }
+        assertEquals(4, adapter.getDroppedCount());
+        assertEquals(1, notifications.count(AsyncLogNotificationType.SAMPLES_DROPPED));
+
+        // Drain the queue, after which samples are accepted again.
+        log.gate.release(4);
+        awaitEmpty(adapter);
+        adapter.write(null);
+        assertEquals(AsyncLogNotificationType.SAMPLES_RESUMED, notifications.last());
+
+        // A second run of drops is reported again.
+        for (int i = 0; i < 8; i++) {
+            adapter.write(null);
+        }
+        assertEquals(2, notifications.count(AsyncLogNotificationType.SAMPLES_DROPPED));
+
+        log.gate.release(Integer.MAX_VALUE / 2);
+        adapter.stop();
+        assertEquals(adapter.getWrittenCount() + adapter.getDroppedCount(), 1 + 7 + 1 + 8);
+        assertEquals(adapter.getWrittenCount(), log.calls.size());
+    }
+
+    @Test
+    public void testWriterFailuresAreCountedAndReported() throws Exception {
+        final RecordingLog log = new RecordingLog();
+        log.failEvery = 3;
+        final AsyncLogAdapter adapter = new AsyncLogAdapter(log, 64);
+        final Notifications notifications = new Notifications();
+        adapter.addListener(notifications);
+
+        adapter.start();
+        for (int i = 0; i < 30; i++) {
+            adapter.write(null);
+        }
+        adapter.stop();
+
+        assertEquals(30, adapter.getWrittenCount());
+        assertEquals(10, adapter.getWriteFailedCount());
+        assertEquals(10, notifications.count(AsyncLogNotificationType.WRITE_FAILED));
+        assertEquals(20, log.calls.size());
+    }
+
+    private static void awaitEmpty(AsyncLog log) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (log.getQueueDepth() > 0) {
+            assertTrue("Timed out draining the queue.", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Records the notifications received.
+     */
+    static final class Notifications implements NotificationListener<AsyncLogNotificationType> {
+
+        private final List<AsyncLogNotificationType> received =
+                Collections.synchronizedList(new ArrayList<AsyncLogNotificationType>());
+
+        @Override
+        public void handleNotification(AsyncLogNotificationType type, Object body) {
+            received.add(type);
+        }
+
+        int count(AsyncLogNotificationType type) {
+            synchronized (received) {
+                return Collections.frequency(received, type);
+            }
+        }
+
+        AsyncLogNotificationType last() {
+            synchronized (received) {
+                return received.get(received.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Records each call on the writer thread, optionally waiting for a permit before each
+     * call or failing every few calls.
+     */
+    private static final class RecordingLog implements Log {
+
+        private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        private final Semaphore entered = new Semaphore(0);
+        private volatile Semaphore gate;
+        private volatile int failEvery;
+        private volatile boolean stopped;
+        private int count;
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void mark(String message) throws IOException {
+            record("mark " + message);
+        }
+
+        @Override
+        public void mark() throws IOException {
+            record("mark");
+        }
+
+        @Override
+        public boolean isMarkSupported() {
+            return true;
+        }
+
+        @Override
+        public long getStartTime() {
+            return 0;
+        }
+
+        @Override
+        public void write(Megasquirt ms) throws IOException {
+            record("write");
+        }
+
+        @Override
+        public boolean isLogging() {
+            return true;
+        }
+
+        private void record(String call) throws IOException {
+            entered.release();
+            if (gate != null) {
+                gate.acquireUninterruptibly();
+            }
+            count++;
+            if (failEvery > 0 && count % failEvery == 0) {
+                if (count % (2 * failEvery) == 0) {
+                    throw new IllegalStateException("Failed " + call + ".");
+                }
+                throw new IOException("Failed " + call + ".");
+            }
+            calls.add(call);
+        }
+    }
+}
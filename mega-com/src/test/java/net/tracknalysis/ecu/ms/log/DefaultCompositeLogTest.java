@@ -0,0 +1,226 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tracknalysis.ecu.ms.Megasquirt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author David Valeri
+ */
+public class DefaultCompositeLogTest {
+
+    private static final int SAMPLES = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParallelStatisticsCoverWriterThread() throws Exception {
+        final TextLog fileLog = new TextLog(folder.getRoot());
+        final CountingLog plainLog = new CountingLog(false);
+        final DefaultCompositeLog composite = new DefaultCompositeLog(true, fileLog, plainLog);
+
+        composite.start();
+        for (int i = 0; i < SAMPLES; i++) {
+            composite.write(null);
+        }
+        composite.stop();
+
+        final LogStatistics fileStatistics = composite.getStatistics().get(0);
+        assertEquals(SAMPLES, fileStatistics.getWriteCount());
+        assertEquals(0, fileStatistics.getErrorCount());
+        assertEquals(SAMPLES - fileStatistics.getDroppedCount(),
+                countLines(new File(fileLog.getLogFileAbsolutePath())) - 1);
+        assertTrue(fileStatistics.getMaxLatencyNanos() > 0);
+        assertTrue(fileStatistics.getMaxLatencyNanos() >= fileStatistics.getAverageLatencyNanos());
+
+        // Other logs get a writer thread of their own too.
+        final LogStatistics plainStatistics = composite.getStatistics().get(1);
+        assertEquals(SAMPLES, plainStatistics.getWriteCount());
+        assertEquals(SAMPLES - plainStatistics.getDroppedCount(), plainLog.writes.get());
+        assertEquals(0, plainStatistics.getErrorCount());
+        assertTrue(plainStatistics.getMaxLatencyNanos() > 0);
+        assertTrue(plainStatistics.getMaxLatencyNanos() >= plainStatistics.getAverageLatencyNanos());
+    }
+
+    @Test
+    public void testParallelSlowLogDoesNotDelayOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountingLog slowLog = new CountingLog(false) {
+            @Override
+            public void write(Megasquirt ms) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(ms);
+            }
+        };
+        final CountingLog failingLog = new CountingLog(true);
+        final DefaultCompositeLog composite = new DefaultCompositeLog(true, slowLog, failingLog);
+
+        composite.start();
+        for (int i = 0; i < 10; i++) {
+            composite.write(null);
+        }
+        // Nothing has reached the slow log, yet every write returned.
+        assertEquals(0, slowLog.writes.get());
+        release.countDown();
+        composite.stop();
+
+        assertEquals(10, slowLog.writes.get());
+        assertEquals(0, composite.getStatistics().get(0).getErrorCount());
+        assertTrue(composite.getStatistics().get(0).getMaxLatencyNanos()
+                > composite.getStatistics().get(0).getMaxWriteNanos());
+        assertEquals(10, composite.getStatistics().get(1).getErrorCount());
+    }
+
+    @Test
+    public void testFailingLogDoesNotStopOthers() throws Exception {
+        final CountingLog failingLog = new CountingLog(true);
+        final CountingLog log = new CountingLog(false);
+        final DefaultCompositeLog composite = new DefaultCompositeLog(failingLog, log);
+
+        composite.start();
+        for (int i = 0; i < 10; i++) {
+            composite.write(null);
+        }
+        composite.stop();
+
+        assertEquals(10, composite.getStatistics().get(0).getErrorCount());
+        assertEquals(0, composite.getStatistics().get(1).getErrorCount());
+        assertEquals(10, log.writes.get());
+    }
+
+    private static int countLines(File file) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int lines = 0;
+            while (reader.readLine() != null) {
+                lines++;
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a header line and one line per sample.
+     */
+    private static final class TextLog extends AbstractFileLog {
+
+        public TextLog(File logFolder) {
+            super(logFolder);
+        }
+
+        @Override
+        protected void mark(String message, OutputStream out) throws IOException {
+            out.write(("MARK " + message + "\n").getBytes("US-ASCII"));
+        }
+
+        @Override
+        protected void writeHeader(Megasquirt ms, OutputStream out) throws IOException {
+            out.write("header\n".getBytes("US-ASCII"));
+        }
+
+        @Override
+        protected void write(Megasquirt ms, OutputStream out) throws IOException {
+            out.write("sample\n".getBytes("US-ASCII"));
+        }
+
+        @Override
+        public boolean isMarkSupported() {
+            return true;
+        }
+
+        @Override
+        protected String getFileExtension() {
+            return "txt";
+        }
+    }
+
+    /**
+     * Counts writes, optionally failing each one.
+     */
+    private static class CountingLog implements Log {
+
+        private final boolean fail;
+        private final AtomicInteger writes = new AtomicInteger();
+        private volatile boolean logging;
+
+        public CountingLog(boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public void start() {
+            logging = true;
+        }
+
+        @Override
+        public void stop() {
+            logging = false;
+        }
+
+        @Override
+        public void mark(String message) {
+        }
+
+        @Override
+        public void mark() {
+        }
+
+        @Override
+        public boolean isMarkSupported() {
+            return false;
+        }
+
+        @Override
+        public long getStartTime() {
+            return 0;
+        }
+
+        @Override
+        public void write(Megasquirt ms) throws IOException {
+            if (fail) {
+                throw new IOException("Failed.");
+            }
+            writes.incrementAndGet();
+        }
+
+        @Override
+        public boolean isLogging() {
+            return logging;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author David Valeri
+ */
+public class FRDLogReaderTest {
+
+    private static final int BLOCK_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadRecords() throws Exception {
+        final FRDLogReader reader = new FRDLogReader(writeFile(3));
+        try {
+            assertEquals("Test Firmware", reader.getFirmware());
+            assertEquals(3, reader.getRecordCount());
+            assertEquals(BLOCK_SIZE, reader.getBlockSize());
+            assertEquals(0, reader.countCounterGaps());
+
+            final byte[] och = new byte[BLOCK_SIZE];
+            reader.getOchBuffer(2, och);
+            assertEquals(2, och[0]);
+            assertEquals(2, reader.getOchBuffer(2).get(BLOCK_SIZE - 1));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        final FRDLogReader reader = new FRDLogReader(writeFile(1));
+        final ByteBuffer view = reader.getOchBuffer(0);
+        reader.close();
+        reader.close();
+
+        try {
+            reader.getOchBuffer(0, new byte[BLOCK_SIZE]);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // Views handed out before closing remain readable.
+        assertEquals(BLOCK_SIZE, view.remaining());
+        assertEquals(0, view.get(BLOCK_SIZE - 1));
+    }
+
+    private File writeFile(int records) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(FRDLogReader.HEADER_LENGTH
+                + records * (FRDLogReader.RECORD_PREFIX_LENGTH + BLOCK_SIZE));
+        buffer.put(new byte[] {0x46, 0x52, 0x44, 0x00, 0x00, 0x00});
+        buffer.putShort((short) 1);
+        buffer.putInt(1349000000);
+        buffer.put("Test Firmware".getBytes("ISO-8859-1"));
+        buffer.putInt(75, FRDLogReader.HEADER_LENGTH);
+        buffer.putShort(79, (short) BLOCK_SIZE);
+
+        buffer.position(FRDLogReader.HEADER_LENGTH);
+        for (int i = 0; i < records; i++) {
+            buffer.put((byte) 1);
+            buffer.put((byte) i);
+            for (int j = 0; j < BLOCK_SIZE; j++) {
+                buffer.put((byte) i);
+            }
+        }
+
+        final File file = folder.newFile("test.frd");
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
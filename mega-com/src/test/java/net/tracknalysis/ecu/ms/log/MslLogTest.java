@@ -0,0 +1,56 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.log;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import net.tracknalysis.ecu.ms.EcuTestSupport;
+import net.tracknalysis.ecu.ms.common.LogRowBuffer;
+import net.tracknalysis.ecu.ms.common.MsEcu;
+
+import org.junit.Test;
+
+/**
+ * @author David Valeri
+ */
+public class MslLogTest {
+
+    private static final int FRAME_COUNT = 500;
+
+    @Test
+    public void testWriteRowMatchesStringRow() throws Exception {
+        final LogRowBuffer rowBuffer = new LogRowBuffer();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String signature : EcuTestSupport.getSignatures()) {
+            final MsEcu ecu = EcuTestSupport.create(signature);
+            final byte[] frame = new byte[ecu.getBlockSize()];
+            final Random random = new Random(signature.hashCode());
+
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                random.nextBytes(frame);
+                ecu.calculate(frame);
+
+                out.reset();
+                MslLog.writeRow(ecu, rowBuffer, out);
+                assertEquals(signature + " frame " + i, ecu.getLogRow() + "\r\n",
+                        out.toString("UTF-8"));
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2012 David Valeri.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this software except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tracknalysis.ecu.ms.page;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import net.tracknalysis.ecu.ms.common.Constant;
+import net.tracknalysis.ecu.ms.common.MSUtils;
+
+import org.junit.Test;
+
+/**
+ * @author David Valeri
+ */
+public class PageImageTest {
+
+    private static final Constant CYLINDERS = bits("nCylinders", 2, "[0:3+1]");
+    private static final Constant DIVIDER = bits("divider", 2, "[4:6]");
+
+    @Test
+    public void testBitsConstantsInOneByte() {
+        final PageImage image = new PageImage(1, new byte[4]);
+        image.setByte(2, 0x80);
+        image.takeDirty(new byte[4]);
+
+        image.setConstant(CYLINDERS, 8);
+        image.setConstant(DIVIDER, 5);
+
+        final byte[] data = image.getData();
+        assertEquals(8, MSUtils.getBits(data, 2, 0, 3, 1));
+        assertEquals(5, MSUtils.getBits(data, 2, 4, 6, 0));
+        // The bit outside both constants is untouched.
+        assertEquals(0x80, data[2] & 0x80);
+        assertEquals(1, image.getDirtyCount());
+
+        image.setConstant(CYLINDERS, 4);
+        assertEquals(4, MSUtils.getBits(image.getData(), 2, 0, 3, 1));
+        assertEquals(5, MSUtils.getBits(image.getData(), 2, 4, 6, 0));
+    }
+
+    @Test
+    public void testBitsConstantMasksValue() {
+        final PageImage image = new PageImage(1, new byte[4]);
+        image.setConstant(DIVIDER, 7);
+
+        // 17 - 1 does not fit in four bits and must not spill into the divider.
+        image.setConstant(CYLINDERS, 17);
+        assertEquals(7, MSUtils.getBits(image.getData(), 2, 4, 6, 0));
+    }
+
+    @Test
+    public void testBitsConstantNotWithinOneByte() {
+        try {
+            new PageImage(1, new byte[4]).setConstant(bits("wide", 0, "[4:9]"), 1);
+            fail("Expected IllegalArgumentException.");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testBitsConstantIndexed() {
+        try {
+            new PageImage(1, new byte[4]).setConstant(CYLINDERS, 1, 4);
+            fail("Expected IllegalArgumentException.");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testScalarAndArrayConstants() {
+        final PageImage image = new PageImage(1, new byte[8]);
+        final Constant reqFuel = new Constant(1, "reqFuel", "scalar", "U16", 0, "", "ms", 0.001,
+                0, 0, 25.5, 3);
+        final Constant table = new Constant(1, "veTable", "array", "U08", 2, "[2x2]", "%", 1, 0,
+                0, 255, 0);
+
+        image.setConstant(reqFuel, 12.345);
+        image.setConstant(table, 3, 80);
+
+        final byte[] data = image.getData();
+        assertEquals(12345, ((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+        assertEquals(80, data[5] & 0xFF);
+        assertEquals(3, image.getDirtyCount());
+
+        image.takeDirty(new byte[8]);
+        image.setConstant(table, 3, 80);
+        assertFalse(image.isDirty());
+    }
+
+    @Test
+    public void testUnsupportedClass() {
+        try {
+            new PageImage(1, new byte[4]).setConstant(new Constant(1, "name", "string", "ASCII",
+                    0, "", "", 1, 0, 0, 0, 0), 1);
+            fail("Expected IllegalArgumentException.");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Returns a bits constant as generated by the normaliser, which leaves the type empty.
+     */
+    private static Constant bits(String name, int offset, String shape) {
+        return new Constant(1, name, "bits", "", offset, shape, "", 1, 0, "0", "0", 0,
+                new String[0]);
+    }
+}